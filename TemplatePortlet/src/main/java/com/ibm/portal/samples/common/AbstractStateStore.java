@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Convenience base class for state stores. Computes the content addressed keys.
+ * 
+ * @author cleue
+ */
+public abstract class AbstractStateStore implements StateStore {
+
+	/**
+	 * algorithm used to compute the keys
+	 */
+	private static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * Number of bytes of the digest that make up the key. 16 bytes keep the
+	 * collision probability negligible and result in 22 characters.
+	 */
+	protected static final int KEY_BYTES = 16;
+
+	/**
+	 * Per thread digest, {@link MessageDigest#getInstance(String)} is
+	 * comparatively expensive
+	 */
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.ThreadLocal#initialValue()
+		 */
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(ALGORITHM);
+			} catch (final NoSuchAlgorithmException ex) {
+				// SHA-256 is a mandatory algorithm
+				throw new IllegalStateException(ex);
+			}
+		}
+	};
+
+	/**
+	 * Computes the truncated digest of the data
+	 * 
+	 * @param aData
+	 *            the data
+	 * @param aOffset
+	 *            offset into the data
+	 * @param aLength
+	 *            number of bytes
+	 * @return the digest bytes, {@link #KEY_BYTES} long
+	 */
+	protected static final byte[] computeHash(final byte[] aData,
+			final int aOffset, final int aLength) {
+		// sanity check
+		assert aData != null;
+		// compute the digest, the digest is reset after the computation
+		final MessageDigest digest = DIGEST.get();
+		digest.update(aData, aOffset, aLength);
+		final byte[] hash = digest.digest();
+		// truncate
+		final byte[] result = new byte[KEY_BYTES];
+		System.arraycopy(hash, 0, result, 0, KEY_BYTES);
+		return result;
+	}
+
+	/**
+	 * Computes the key for the data
+	 * 
+	 * @param aData
+	 *            the data
+	 * @return the URL safe key
+	 */
+	protected static final String computeKey(final byte[] aData) {
+		return Base64URL.encode(computeHash(aData, 0, aData.length));
+	}
+
+	/**
+	 * Do not instantiate this directly
+	 */
+	protected AbstractStateStore() {
+
+	}
+}
@@ -14,14 +14,19 @@
  * permissions and limitations under the License.
  */package com.ibm.portal.samples.common;
 
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.portlet.MimeResponse;
 import javax.portlet.PortletConfig;
 import javax.portlet.PortletRequest;
+import javax.portlet.ResourceRequest;
+
+import org.w3c.dom.Element;
 
 /**
  * Base class for view beans. This class encapsulates functionality that is
@@ -56,6 +61,29 @@ public abstract class AbstractView {
 	 */
 	private final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
 
+	/**
+	 * prefix of the IDs of the head elements. The IDs do not contain the
+	 * namespace, so all instances of the portlet on a page use the same ID for
+	 * the same resource.
+	 */
+	private static final String HEAD_ID_PREFIX = "com.ibm.portal.samples.head.";
+
+	/**
+	 * name of the request attribute that keeps the IDs of the head elements
+	 * contributed during the request, across all views of the request
+	 */
+	private static final String KEY_HEAD_IDS = AbstractView.class.getName()
+			+ ".headIds";
+
+	/**
+	 * Client side guard for scripts, only adds the script element if there is
+	 * no element with the same ID, yet. The first parameter is the ID, the
+	 * second one the URL.
+	 */
+	private static final String SCRIPT_LOADER = "(function(d,i,s){if(!d.getElementById(i)){"
+			+ "var e=d.createElement(\"script\");e.id=i;e.src=s;e.async=true;"
+			+ "(d.head||d.documentElement).appendChild(e);}})(document,";
+
 	/**
 	 * URL to the blank image
 	 */
@@ -127,6 +155,119 @@ public abstract class AbstractView {
 		}
 	}
 
+	/**
+	 * Adds an element to the head section of the page, unless an element with
+	 * the same ID has already been added during this request
+	 * 
+	 * @param aId
+	 *            the stable ID
+	 * @param aElement
+	 *            the element
+	 */
+	private final void addHeadElement(final String aId, final Element aElement) {
+		// logging support
+		final String LOG_METHOD = "addHeadElement(aId, aElement)";
+		// add the element only once
+		if (getHeadIds().add(aId)) {
+			aElement.setAttribute("id", aId);
+			response.addProperty(MimeResponse.MARKUP_HEAD_ELEMENT, aElement);
+			// log this
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Added head element [{0}].", aId);
+			}
+		}
+	}
+
+	/**
+	 * Adds a link element that lets the browser open the connection to a
+	 * foreign origin early, e.g. to a CDN
+	 * 
+	 * @param aOrigin
+	 *            the origin, e.g. <code>https://cdn.example.com</code>
+	 */
+	protected final void addPreconnect(final String aOrigin) {
+		// sanity check
+		assert aOrigin != null;
+		// the link
+		final Element link = response.createElement("link");
+		link.setAttribute("rel", "preconnect");
+		link.setAttribute("href", aOrigin);
+		link.setAttribute("crossorigin", "anonymous");
+		addHeadElement(toHeadId("preconnect", aOrigin), link);
+	}
+
+	/**
+	 * Adds a link element that lets the browser download a resource of the
+	 * web application early
+	 * 
+	 * @param aPath
+	 *            path of the resource, relative to the web application
+	 * @param aType
+	 *            type of the resource as expected by the <code>as</code>
+	 *            attribute, e.g. <code>image</code> or <code>script</code>
+	 */
+	protected final void addPreload(final String aPath, final String aType) {
+		// sanity check
+		assert aPath != null;
+		assert aType != null;
+		// the link
+		final Element link = response.createElement("link");
+		link.setAttribute("rel", "preload");
+		link.setAttribute("href", toResourceURL(aPath));
+		link.setAttribute("as", aType);
+		addHeadElement(toHeadId("preload", aPath), link);
+	}
+
+	/**
+	 * Adds a script of the web application to the page. The script is added
+	 * via a small inline loader that checks for an element with the same ID,
+	 * so it is only loaded and executed once, even if the aggregator writes
+	 * the contributions of all instances of the portlet.
+	 * 
+	 * @param aPath
+	 *            path of the script, relative to the web application
+	 */
+	protected final void addScript(final String aPath) {
+		// sanity check
+		assert aPath != null;
+		// the loader
+		final String id = toHeadId("script", aPath);
+		final Element script = response.createElement("script");
+		script.setAttribute("type", "text/javascript");
+		script.setTextContent(SCRIPT_LOADER + toScriptString(id) + ","
+				+ toScriptString(toResourceURL(aPath)) + ");");
+		addHeadElement(id + ".loader", script);
+	}
+
+	/**
+	 * Adds a style sheet of the web application to the page. Style sheets
+	 * with the same URL are only applied once by the browser, so duplicate
+	 * contributions by several instances of the portlet are harmless.
+	 * 
+	 * @param aPath
+	 *            path of the style sheet, relative to the web application
+	 */
+	protected final void addStyleSheet(final String aPath) {
+		// sanity check
+		assert aPath != null;
+		// the link
+		final Element link = response.createElement("link");
+		link.setAttribute("rel", "stylesheet");
+		link.setAttribute("type", "text/css");
+		link.setAttribute("href", toResourceURL(aPath));
+		addHeadElement(toHeadId("css", aPath), link);
+	}
+
+	/**
+	 * Contributes the elements of the head section, e.g. preload hints, style
+	 * sheets and scripts. This is called during the header phase, the default
+	 * implementation does not contribute anything.
+	 */
+	public void contributeHeadElements() {
+		// nothing by default
+	}
+
 	/**
 	 * Returns the URL to the blank image. This is typically required to realize
 	 * image sprites, when the sprite is provided by CSS classes, but the img
@@ -140,8 +281,7 @@ public abstract class AbstractView {
 		// lazily compute the URL
 		if (blankURL == null) {
 			// create the URL
-			blankURL = response.encodeURL(request.getContextPath()
-					+ "/images/blank.png");
+			blankURL = toResourceURL("/images/blank.png");
 			// log this
 			if (bIsLogging) {
 				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
@@ -176,6 +316,35 @@ public abstract class AbstractView {
 		return locale;
 	}
 
+	/**
+	 * Checks if the markup is rendered as a fragment in response to a
+	 * resource request, e.g. to replace the markup of the portlet on the
+	 * client. In this case the view must not emit page level scripts again.
+	 * 
+	 * @return <code>true</code> for a fragment, <code>false</code> for the
+	 *         regular rendering as part of the page
+	 */
+	public final boolean isFragment() {
+		return request instanceof ResourceRequest;
+	}
+
+	/**
+	 * Returns the IDs of the head elements that have been added during the
+	 * request. The IDs are kept in a request attribute, since each phase of
+	 * the request constructs its own view.
+	 * 
+	 * @return the IDs
+	 */
+	@SuppressWarnings("unchecked")
+	private final Set<String> getHeadIds() {
+		Set<String> result = (Set<String>) request.getAttribute(KEY_HEAD_IDS);
+		if (result == null) {
+			result = new HashSet<String>();
+			request.setAttribute(KEY_HEAD_IDS, result);
+		}
+		return result;
+	}
+
 	/**
 	 * Returns the message from the bundle
 	 * 
@@ -220,4 +389,69 @@ public abstract class AbstractView {
 		// the namespace
 		return namespace;
 	}
+
+	/**
+	 * Computes the stable ID of a head element. The ID depends on the web
+	 * application and the resource, but not on the portlet window.
+	 * 
+	 * @param aType
+	 *            type of the element
+	 * @param aResource
+	 *            the resource
+	 * @return the ID
+	 */
+	private final String toHeadId(final String aType, final String aResource) {
+		// replace the characters that are not valid in an ID
+		final String raw = aType + request.getContextPath() + aResource;
+		final StringBuilder result = new StringBuilder(HEAD_ID_PREFIX.length()
+				+ raw.length());
+		result.append(HEAD_ID_PREFIX);
+		for (int i = 0; i < raw.length(); ++i) {
+			final char c = raw.charAt(i);
+			if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+					|| ((c >= '0') && (c <= '9')) || (c == '-') || (c == '.')) {
+				result.append(c);
+			} else {
+				result.append('_');
+			}
+		}
+		// ok
+		return result.toString();
+	}
+
+	/**
+	 * Encodes the URL of a resource of the web application
+	 * 
+	 * @param aPath
+	 *            path of the resource, relative to the web application
+	 * @return the URL
+	 */
+	private final String toResourceURL(final String aPath) {
+		return response.encodeURL(request.getContextPath() + aPath);
+	}
+
+	/**
+	 * Represents a string as a JavaScript string literal that can safely be
+	 * placed into a script element
+	 * 
+	 * @param aValue
+	 *            the value
+	 * @return the literal
+	 */
+	private static final String toScriptString(final String aValue) {
+		final StringBuilder result = new StringBuilder(aValue.length() + 2);
+		result.append('"');
+		for (int i = 0; i < aValue.length(); ++i) {
+			final char c = aValue.charAt(i);
+			if ((c == '"') || (c == '\\') || (c == '<') || (c < ' ')) {
+				// escape as a unicode sequence
+				result.append(String.format("\\u%04x", (int) c));
+			} else {
+				result.append(c);
+			}
+		}
+		result.append('"');
+		// ok
+		return result.toString();
+	}
 }
@@ -0,0 +1,364 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes commit operations on a bounded pool of background threads, so a
+ * slow backend does not hold the action thread of the portal. Each operation
+ * is identified by a random token that can be kept in the navigational state,
+ * so the following render requests can show the progress or the result of the
+ * operation.
+ * 
+ * If the queue is full, {@link #submit(Callable)} returns <code>null</code>
+ * and the caller is expected to execute the operation synchronously. The
+ * committer maintains gauges and counters for the queue depth and the latency
+ * in the {@link Metrics}.
+ * 
+ * @author cleue
+ */
+public class AsyncCommitter {
+
+	/**
+	 * State of an operation
+	 */
+	private static final class Operation {
+
+		/**
+		 * time the operation completed in milliseconds, <code>0</code> while
+		 * pending
+		 */
+		private volatile long completed;
+
+		/**
+		 * current status
+		 */
+		private volatile STATUS status = STATUS.PENDING;
+	}
+
+	/**
+	 * Status of an operation as seen by the render request
+	 */
+	public enum STATUS {
+
+		/**
+		 * the operation completed successfully
+		 */
+		DONE,
+
+		/**
+		 * the operation failed
+		 */
+		FAILED,
+
+		/**
+		 * the operation is queued or running
+		 */
+		PENDING,
+
+		/**
+		 * the token does not identify an operation, e.g. because the result
+		 * expired or the portlet has been restarted
+		 */
+		UNKNOWN
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = AsyncCommitter.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Name of the counter for completed operations
+	 */
+	public static final String METRIC_COMPLETED = "commit.async.completed";
+
+	/**
+	 * Name of the counter for the accumulated execution time in milliseconds
+	 */
+	public static final String METRIC_EXECUTION_MILLIS = "commit.async.execution.millis";
+
+	/**
+	 * Name of the counter for failed operations
+	 */
+	public static final String METRIC_FAILED = "commit.async.failed";
+
+	/**
+	 * Name of the gauge for the number of queued operations
+	 */
+	public static final String METRIC_QUEUE_DEPTH = "commit.async.queue.depth";
+
+	/**
+	 * Name of the counter for the accumulated time in milliseconds operations
+	 * spent in the queue
+	 */
+	public static final String METRIC_QUEUE_MILLIS = "commit.async.queue.millis";
+
+	/**
+	 * Name of the counter for operations that were rejected because the queue
+	 * was full and thus executed synchronously
+	 */
+	public static final String METRIC_REJECTED = "commit.async.rejected";
+
+	/**
+	 * Name of the counter for submitted operations
+	 */
+	public static final String METRIC_SUBMITTED = "commit.async.submitted";
+
+	/**
+	 * interval between two purges of expired results in milliseconds
+	 */
+	private static final long PURGE_INTERVAL = 1000;
+
+	/**
+	 * number of random bytes in a token
+	 */
+	private static final int TOKEN_BYTES = 12;
+
+	/**
+	 * the worker threads
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * time of the last purge
+	 */
+	private final AtomicLong lastPurge = new AtomicLong();
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * number of queued operations
+	 */
+	private final AtomicLong queueDepth;
+
+	/**
+	 * the operations by token
+	 */
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+	/**
+	 * generates the tokens
+	 */
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * time in milliseconds the result of an operation is retained after its
+	 * completion
+	 */
+	private final long retention;
+
+	/**
+	 * Initializes the committer
+	 * 
+	 * @param aName
+	 *            name prefix of the worker threads
+	 * @param aThreads
+	 *            number of worker threads
+	 * @param aQueueSize
+	 *            maximum number of queued operations
+	 * @param aRetention
+	 *            time in milliseconds the result of an operation is retained
+	 *            after its completion
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public AsyncCommitter(final String aName, final int aThreads,
+			final int aQueueSize, final long aRetention, final Metrics aMetrics) {
+		// sanity check
+		assert aThreads > 0;
+		assert aQueueSize > 0;
+		assert aRetention >= 0;
+		assert aMetrics != null;
+		// init
+		retention = aRetention;
+		metrics = aMetrics;
+		queueDepth = aMetrics.getGauge(METRIC_QUEUE_DEPTH);
+		executor = new ThreadPoolExecutor(aThreads, aThreads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(aQueueSize),
+				new NamedThreadFactory(aName));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the status of an operation
+	 * 
+	 * @param aToken
+	 *            the token as returned by {@link #submit(Callable)}
+	 * @return the status
+	 */
+	public STATUS getStatus(final String aToken) {
+		final Operation op = (aToken != null) ? operations.get(aToken) : null;
+		return (op != null) ? op.status : STATUS.UNKNOWN;
+	}
+
+	/**
+	 * Removes the results that are older than the retention time, at most
+	 * once per purge interval
+	 * 
+	 * @param aNow
+	 *            the current time
+	 */
+	private final void purge(final long aNow) {
+		// only one thread purges per interval
+		final long last = lastPurge.get();
+		if ((aNow - last < PURGE_INTERVAL)
+				|| !lastPurge.compareAndSet(last, aNow)) {
+			return;
+		}
+		// remove the expired results
+		final long expired = aNow - retention;
+		for (final Iterator<Operation> iter = operations.values().iterator(); iter
+				.hasNext();) {
+			final long completed = iter.next().completed;
+			if ((completed != 0) && (completed < expired)) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Queued operations are still executed, the call
+	 * waits for them up to the given timeout. Operations that did not start
+	 * until then are dropped and the running ones are interrupted. The worker
+	 * threads are daemon threads, so waiting here is the only guarantee that
+	 * a commit completes.
+	 * 
+	 * @param aTimeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if all operations completed
+	 */
+	public boolean shutdown(final long aTimeout) {
+		// logging support
+		final String LOG_METHOD = "shutdown(aTimeout)";
+		// queued operations still run
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(aTimeout, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (final InterruptedException ex) {
+			// keep the interruption for the caller
+			Thread.currentThread().interrupt();
+		}
+		// give up on the operations
+		final int dropped = executor.shutdownNow().size();
+		queueDepth.addAndGet(-dropped);
+		// log this
+		LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+				"Dropped [{0}] queued commits, running commits did not complete within [{1}] ms.",
+				new Object[] { dropped, aTimeout });
+		return false;
+	}
+
+	/**
+	 * Enqueues an operation
+	 * 
+	 * @param aOperation
+	 *            the operation, must not access request scoped objects
+	 * @return the token that identifies the operation or <code>null</code> if
+	 *         the queue is full. In this case the caller should execute the
+	 *         operation synchronously.
+	 */
+	public String submit(final Callable<?> aOperation) {
+		// sanity check
+		assert aOperation != null;
+		// logging support
+		final String LOG_METHOD = "submit(aOperation)";
+		// cleanup
+		final long queued = System.currentTimeMillis();
+		purge(queued);
+		// register the operation
+		final byte[] bytes = new byte[TOKEN_BYTES];
+		random.nextBytes(bytes);
+		final String token = Base64URL.encode(bytes);
+		final Operation op = new Operation();
+		operations.put(token, op);
+		// enqueue
+		queueDepth.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.lang.Runnable#run()
+				 */
+				@Override
+				public void run() {
+					// logging support
+					final String LOG_METHOD = "run()";
+					// account for the queue
+					final long started = System.currentTimeMillis();
+					queueDepth.decrementAndGet();
+					metrics.add(METRIC_QUEUE_MILLIS, started - queued);
+					// execute
+					STATUS status = STATUS.FAILED;
+					try {
+						aOperation.call();
+						status = STATUS.DONE;
+					} catch (final Exception ex) {
+						// log this
+						LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+								"Commit failed.", ex);
+					} finally {
+						// publish the result
+						final long completed = System.currentTimeMillis();
+						op.completed = completed;
+						op.status = status;
+						metrics.add(METRIC_EXECUTION_MILLIS, completed
+								- started);
+						metrics.increment((status == STATUS.DONE) ? METRIC_COMPLETED
+								: METRIC_FAILED);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ex) {
+			// the queue is full, let the caller execute the operation
+			queueDepth.decrementAndGet();
+			metrics.increment(METRIC_REJECTED);
+			operations.remove(token);
+			// log this
+			if (LOGGER.isLoggable(LOG_LEVEL)) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Queue is full, commit runs synchronously.");
+			}
+			return null;
+		}
+		// ok
+		metrics.increment(METRIC_SUBMITTED);
+		return token;
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the backend calls required to render a portlet in the background. The
+ * fetches are typically started during the header phase of the two phase
+ * rendering, so their latency overlaps with the rendering of the other
+ * portlets on the page, and joined during the markup phase. The markup phase
+ * waits at most until a deadline, fetches that did not complete until then
+ * are reported as missing and the view renders a fallback.
+ * 
+ * Fetches of cached data are served from the cache if the entry is fresh.
+ * Otherwise the entry is reloaded in the background and the markup phase
+ * serves the last good value of the cache if the reload misses the deadline
+ * or fails. The reload is not cancelled, so it refreshes the cache for the
+ * next render.
+ * 
+ * Fetches run on the calling thread if no executor is configured or if the
+ * executor rejects them.
+ * 
+ * @author cleue
+ */
+public class AsyncFetcher {
+
+	/**
+	 * The fetches of a single portlet window during a single page render
+	 */
+	public final class Session {
+
+		/**
+		 * absolute deadline in nanoseconds, only valid if started
+		 */
+		private volatile long deadline;
+
+		/**
+		 * checks if the deadline has been started
+		 */
+		private volatile boolean bDeadline;
+
+		/**
+		 * the fetches by key
+		 */
+		private final ConcurrentMap<String, FutureTask<Object>> fetches = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+		/**
+		 * keys of the fetches that reload cached data, they are not cancelled
+		 */
+		private final Set<String> reloads = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		/**
+		 * the last good values by key of the fetch
+		 */
+		private final ConcurrentMap<String, Object> staleValues = new ConcurrentHashMap<String, Object>();
+
+		/**
+		 * Cancels the fetches that did not start, yet. Running fetches are
+		 * not interrupted, their results are discarded. Reloads of cached data
+		 * complete in the background.
+		 */
+		public void close() {
+			for (final Map.Entry<String, FutureTask<Object>> entry : fetches
+					.entrySet()) {
+				if (!reloads.contains(entry.getKey())) {
+					entry.getValue().cancel(false);
+				}
+			}
+			fetches.clear();
+			reloads.clear();
+			staleValues.clear();
+		}
+
+		/**
+		 * Starts a fetch of cached data unless a fetch with the same key has
+		 * already been started in this session. A fresh entry is used
+		 * directly, otherwise the entry is reloaded in the background and
+		 * {@link #get(String, Object)} falls back to the last good value of
+		 * the cache if the reload misses the deadline or fails.
+		 * 
+		 * @param aKey
+		 *            key of the fetch
+		 * @param aCache
+		 *            the cache
+		 * @param aCacheKey
+		 *            key of the entry
+		 * @param aLoader
+		 *            loads the entry, must not access the portlet request or
+		 *            response, because it runs on a different thread
+		 */
+		public <K, V> void fetch(final String aKey,
+				final DataCache<K, V> aCache, final K aCacheKey,
+				final DataCache.Loader<? super K, V> aLoader) {
+			// sanity check
+			assert aKey != null;
+			assert aCache != null;
+			assert aCacheKey != null;
+			assert aLoader != null;
+			// already running
+			if (fetches.containsKey(aKey)) {
+				metrics.increment(METRIC_EARLY);
+				return;
+			}
+			// fresh entries do not need a thread
+			final V value = aCache.getIfPresent(aCacheKey);
+			if (value != null) {
+				final FutureTask<Object> task = new FutureTask<Object>(
+						new Callable<Object>() {
+
+							/*
+							 * (non-Javadoc)
+							 * 
+							 * @see java.util.concurrent.Callable#call()
+							 */
+							@Override
+							public Object call() {
+								return value;
+							}
+						});
+				task.run();
+				fetches.putIfAbsent(aKey, task);
+				return;
+			}
+			// remember the last good value before the reload replaces it
+			final V stale = aCache.getStale(aCacheKey);
+			if (stale != null) {
+				staleValues.put(aKey, stale);
+			}
+			reloads.add(aKey);
+			fetch(aKey, new Callable<V>() {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.util.concurrent.Callable#call()
+				 */
+				@Override
+				public V call() throws Exception {
+					return aCache.load(aCacheKey, aLoader);
+				}
+			});
+		}
+
+		/**
+		 * Starts a fetch unless a fetch with the same key has already been
+		 * started in this session, e.g. during the header phase
+		 * 
+		 * @param aKey
+		 *            key of the fetch
+		 * @param aFetch
+		 *            the fetch, must not access the portlet request or
+		 *            response, because it runs on a different thread
+		 */
+		public void fetch(final String aKey, final Callable<?> aFetch) {
+			// sanity check
+			assert aKey != null;
+			assert aFetch != null;
+			// the task
+			final FutureTask<Object> task = new FutureTask<Object>(
+					new Callable<Object>() {
+
+						/*
+						 * (non-Javadoc)
+						 * 
+						 * @see java.util.concurrent.Callable#call()
+						 */
+						@Override
+						public Object call() throws Exception {
+							return aFetch.call();
+						}
+					});
+			if (fetches.putIfAbsent(aKey, task) != null) {
+				// already running
+				metrics.increment(METRIC_EARLY);
+				return;
+			}
+			metrics.increment(METRIC_STARTED);
+			// synchronous processing
+			if (executor == null) {
+				task.run();
+				return;
+			}
+			try {
+				executor.execute(task);
+			} catch (final RejectedExecutionException ex) {
+				// fallback to the calling thread
+				metrics.increment(METRIC_SYNCHRONOUS);
+				if (LOGGER.isLoggable(LOG_LEVEL)) {
+					LOGGER.logp(LOG_LEVEL, LOG_CLASS, "fetch(aKey, aFetch)",
+							"Executor rejected fetch [{0}], running it synchronously.",
+							aKey);
+				}
+				task.run();
+			}
+		}
+
+		/**
+		 * Returns the result of a fetch, waiting at most until the deadline.
+		 * Starts the deadline if it has not been started, yet.
+		 * 
+		 * @param aKey
+		 *            key of the fetch
+		 * @param aDefault
+		 *            value to return if the fetch does not exist, failed or
+		 *            did not complete before the deadline
+		 * @return the result
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> T get(final String aKey, final T aDefault) {
+			// sanity check
+			assert aKey != null;
+			// logging support
+			final String LOG_METHOD = "get(aKey, aDefault)";
+			// locate the fetch
+			final FutureTask<Object> task = fetches.get(aKey);
+			if (task == null) {
+				return aDefault;
+			}
+			startDeadline();
+			try {
+				// wait for the remaining time
+				final long remaining = deadline - System.nanoTime();
+				return (T) (task.isDone() ? task.get() : task.get(
+						Math.max(0, remaining), TimeUnit.NANOSECONDS));
+			} catch (final TimeoutException ex) {
+				// log this
+				metrics.increment(METRIC_TIMEOUTS);
+				if (LOGGER.isLoggable(LOG_LEVEL)) {
+					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+							"Fetch [{0}] missed the deadline.", aKey);
+				}
+				return getStale(aKey, aDefault);
+			} catch (final ExecutionException ex) {
+				// log this
+				metrics.increment(METRIC_FAILURES);
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD, "Fetch ["
+						+ aKey + "] failed.", ex.getCause());
+				return getStale(aKey, aDefault);
+			} catch (final CancellationException ex) {
+				// session has been closed
+			} catch (final InterruptedException ex) {
+				// restore the interrupt
+				Thread.currentThread().interrupt();
+			}
+			// fallback
+			return aDefault;
+		}
+
+		/**
+		 * Returns the last good value of a fetch of cached data
+		 * 
+		 * @param aKey
+		 *            key of the fetch
+		 * @param aDefault
+		 *            value to return if there is no last good value
+		 * @return the value
+		 */
+		@SuppressWarnings("unchecked")
+		private final <T> T getStale(final String aKey, final T aDefault) {
+			final Object stale = staleValues.get(aKey);
+			if (stale == null) {
+				return aDefault;
+			}
+			// log this
+			metrics.increment(METRIC_STALE);
+			if (LOGGER.isLoggable(LOG_LEVEL)) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, "getStale(aKey, aDefault)",
+						"Serving the last good value of fetch [{0}].", aKey);
+			}
+			return (T) stale;
+		}
+
+		/**
+		 * Returns the time left until the deadline. Fetches can use it as the
+		 * budget for backend calls that support a timeout.
+		 * 
+		 * @return time in milliseconds, the full timeout if the deadline has
+		 *         not been started, yet
+		 */
+		public long getRemaining() {
+			return bDeadline ? Math.max(0, TimeUnit.NANOSECONDS
+					.toMillis(deadline - System.nanoTime())) : timeout;
+		}
+
+		/**
+		 * Starts the deadline for the fetches, typically at the beginning of
+		 * the markup phase. Subsequent calls do not move the deadline.
+		 */
+		public void startDeadline() {
+			if (!bDeadline) {
+				deadline = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(timeout);
+				bDeadline = true;
+			}
+		}
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = AsyncFetcher.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Name of the counter for started fetches
+	 */
+	public static final String METRIC_STARTED = "render.fetch.started";
+
+	/**
+	 * Name of the counter for fetches that had already been started by the
+	 * header phase when the markup phase requested them
+	 */
+	public static final String METRIC_EARLY = "render.fetch.early";
+
+	/**
+	 * Name of the counter for fetches that ran on the calling thread, because
+	 * the executor rejected them
+	 */
+	public static final String METRIC_SYNCHRONOUS = "render.fetch.synchronous";
+
+	/**
+	 * Name of the counter for fetches that missed the deadline
+	 */
+	public static final String METRIC_TIMEOUTS = "render.fetch.timeouts";
+
+	/**
+	 * Name of the counter for failed fetches
+	 */
+	public static final String METRIC_FAILURES = "render.fetch.failures";
+
+	/**
+	 * Name of the counter for fetches that served the last good value of a
+	 * cache, because the reload missed the deadline or failed
+	 */
+	public static final String METRIC_STALE = "render.fetch.stale";
+
+	/**
+	 * the workers, <code>null</code> for synchronous fetches
+	 */
+	private final Executor executor;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * time in milliseconds the markup phase waits for the fetches
+	 */
+	private final long timeout;
+
+	/**
+	 * Initializes the fetcher
+	 * 
+	 * @param aExecutor
+	 *            the workers, <code>null</code> to fetch on the calling
+	 *            thread
+	 * @param aTimeout
+	 *            time in milliseconds the markup phase waits for the fetches
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public AsyncFetcher(final Executor aExecutor, final long aTimeout,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aTimeout >= 0;
+		assert aMetrics != null;
+		// init
+		executor = aExecutor;
+		timeout = aTimeout;
+		metrics = aMetrics;
+	}
+
+	/**
+	 * Starts the fetches of a portlet window
+	 * 
+	 * @return the session
+	 */
+	public Session open() {
+		return new Session();
+	}
+}
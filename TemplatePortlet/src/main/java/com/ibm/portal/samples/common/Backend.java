@@ -0,0 +1,43 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+
+/**
+ * Access to the remote services that provide the data of the portlet.
+ * Implementations must be thread safe, since they are called from the fetch
+ * workers and from the refreshes of the caches.
+ * 
+ * TODO implement this interface for your backend, {@link SimulatedBackend}
+ * stands in for it during load and performance tests
+ * 
+ * @author cleue
+ */
+public interface Backend {
+
+	/**
+	 * Loads a resource from the backend
+	 * 
+	 * @param aResource
+	 *            name of the resource, the part up to the first slash selects
+	 *            the service, e.g. <code>profiles/4711</code>
+	 * @return the payload
+	 * @throws IOException
+	 *             if the backend failed
+	 */
+	byte[] load(String aResource) throws IOException;
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Arrays;
+
+/**
+ * Base64 encoding using the URL and filename safe alphabet (RFC 4648, section
+ * 5) without padding. The result can be placed into URLs without further
+ * escaping, which keeps encoded render parameters short.
+ * 
+ * @author cleue
+ */
+public final class Base64URL {
+
+	/**
+	 * the URL safe alphabet
+	 */
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.toCharArray();
+
+	/**
+	 * reverse lookup table, <code>-1</code> marks invalid characters
+	 */
+	private static final byte[] DECODE = new byte[128];
+
+	static {
+		// initialize the reverse table
+		Arrays.fill(DECODE, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; ++i) {
+			DECODE[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	/**
+	 * Decodes a base64url string
+	 * 
+	 * @param aToken
+	 *            the encoded string
+	 * @return the decoded bytes or <code>null</code> if the string is not a
+	 *         valid encoding
+	 */
+	public static byte[] decode(final CharSequence aToken) {
+		// sanity check
+		assert aToken != null;
+		// a single remaining character cannot encode a full byte
+		final int len = aToken.length();
+		if ((len & 3) == 1) {
+			return null;
+		}
+		// allocate the result
+		final byte[] result = new byte[(len * 3) >> 2];
+		int bits = 0;
+		int nBits = 0;
+		int pos = 0;
+		for (int i = 0; i < len; ++i) {
+			// decode the character
+			final char c = aToken.charAt(i);
+			final int value = (c < DECODE.length) ? DECODE[c] : -1;
+			if (value < 0) {
+				return null;
+			}
+			// shift in six bits
+			bits = (bits << 6) | value;
+			nBits += 6;
+			if (nBits >= 8) {
+				nBits -= 8;
+				result[pos++] = (byte) (bits >> nBits);
+			}
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Encodes the bytes as a base64url string without padding
+	 * 
+	 * @param aData
+	 *            the data
+	 * @param aOffset
+	 *            offset into the data
+	 * @param aLength
+	 *            number of bytes to encode
+	 * @return the encoded string
+	 */
+	public static String encode(final byte[] aData, final int aOffset,
+			final int aLength) {
+		// sanity check
+		assert aData != null;
+		// target buffer
+		final StringBuilder result = new StringBuilder(((aLength << 2) + 2) / 3);
+		int bits = 0;
+		int nBits = 0;
+		final int end = aOffset + aLength;
+		for (int i = aOffset; i < end; ++i) {
+			// shift in eight bits
+			bits = (bits << 8) | (aData[i] & 0xff);
+			nBits += 8;
+			while (nBits >= 6) {
+				nBits -= 6;
+				result.append(ALPHABET[(bits >> nBits) & 0x3f]);
+			}
+		}
+		// remaining bits
+		if (nBits > 0) {
+			result.append(ALPHABET[(bits << (6 - nBits)) & 0x3f]);
+		}
+		// ok
+		return result.toString();
+	}
+
+	/**
+	 * Encodes the bytes as a base64url string without padding
+	 * 
+	 * @param aData
+	 *            the data
+	 * @return the encoded string
+	 */
+	public static String encode(final byte[] aData) {
+		return encode(aData, 0, aData.length);
+	}
+
+	/**
+	 * Do not instantiate this class
+	 */
+	private Base64URL() {
+
+	}
+}
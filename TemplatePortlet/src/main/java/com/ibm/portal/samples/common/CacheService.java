@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the named {@link DataCache} instances of a portlet. Caches are
+ * created on first access, using the configuration registered for their name
+ * or the default configuration. Callers should keep the returned cache rather
+ * than looking it up for every access.
+ * 
+ * @author cleue
+ */
+public class CacheService {
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = CacheService.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * the caches by name
+	 */
+	private final ConcurrentMap<String, DataCache<?, ?>> caches = new ConcurrentHashMap<String, DataCache<?, ?>>();
+
+	/**
+	 * configuration of caches without an explicit configuration
+	 */
+	private final DataCache.Spec defaultSpec;
+
+	/**
+	 * runs the refreshes, may be <code>null</code>
+	 */
+	private final Executor executor;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * the configurations by cache name
+	 */
+	private final Map<String, DataCache.Spec> specs;
+
+	/**
+	 * Initializes the service
+	 * 
+	 * @param aSpecs
+	 *            the configurations by cache name
+	 * @param aDefaultSpec
+	 *            configuration of caches without an explicit configuration
+	 * @param aExecutor
+	 *            runs the refreshes, <code>null</code> to disable refreshes
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public CacheService(final Map<String, DataCache.Spec> aSpecs,
+			final DataCache.Spec aDefaultSpec, final Executor aExecutor,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aSpecs != null;
+		assert aDefaultSpec != null;
+		assert aMetrics != null;
+		// init
+		specs = new HashMap<String, DataCache.Spec>(aSpecs);
+		defaultSpec = aDefaultSpec;
+		executor = aExecutor;
+		metrics = aMetrics;
+	}
+
+	/**
+	 * Returns the cache with the given name, counting its entries
+	 * 
+	 * @param aName
+	 *            name of the cache
+	 * @return the cache
+	 */
+	public <K, V> DataCache<K, V> getCache(final String aName) {
+		return getCache(aName, null);
+	}
+
+	/**
+	 * Returns the cache with the given name. The weigher is only used if the
+	 * cache is created by this call and if its configuration defines a
+	 * maximum weight.
+	 * 
+	 * @param aName
+	 *            name of the cache
+	 * @param aWeigher
+	 *            computes the weight of the entries, <code>null</code> to
+	 *            count the entries
+	 * @return the cache
+	 */
+	@SuppressWarnings("unchecked")
+	public <K, V> DataCache<K, V> getCache(final String aName,
+			final DataCache.Weigher<? super K, ? super V> aWeigher) {
+		// sanity check
+		assert aName != null;
+		// logging support
+		final String LOG_METHOD = "getCache(aName, aWeigher)";
+		// lookup
+		DataCache<?, ?> cache = caches.get(aName);
+		if (cache == null) {
+			/**
+			 * create the cache under the lock, since the statistics of a
+			 * second instance would interfere with the first one
+			 */
+			synchronized (caches) {
+				cache = caches.get(aName);
+				if (cache == null) {
+					final DataCache.Spec spec = specs.containsKey(aName) ? specs
+							.get(aName) : defaultSpec;
+					cache = new DataCache<K, V>(aName, spec, aWeigher,
+							executor, metrics);
+					caches.put(aName, cache);
+					// log this
+					if (LOGGER.isLoggable(LOG_LEVEL)) {
+						LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+								"Created cache [{0}].", cache);
+					}
+				}
+			}
+		}
+		// ok
+		return (DataCache<K, V>) cache;
+	}
+
+	/**
+	 * Returns the caches created so far
+	 * 
+	 * @return the caches
+	 */
+	public Collection<DataCache<?, ?>> getCaches() {
+		return new ArrayList<DataCache<?, ?>>(caches.values());
+	}
+
+	/**
+	 * Removes the entries of all caches
+	 */
+	public void invalidateAll() {
+		for (final DataCache<?, ?> cache : caches.values()) {
+			cache.invalidateAll();
+		}
+	}
+}
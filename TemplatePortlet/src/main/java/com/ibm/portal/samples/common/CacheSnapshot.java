@@ -0,0 +1,594 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the most valuable entries of the {@link DataCache} instances of a
+ * portlet in a memory mapped file when the portlet is destroyed, so a
+ * restarted portlet can start with warm caches instead of sending the first
+ * requests of every key to the backend.
+ * 
+ * The file starts with a header, followed by the records. The header carries
+ * the build version of the application, the time of the snapshot and a
+ * checksum of the records. Snapshots of a different build, e.g. after a
+ * redeployment that changed the cached classes, are discarded. Each record
+ * consists of the name of the cache, the age of the entry and the serialized
+ * key and value. Entries that are not serializable are skipped. Restored
+ * entries keep their age, including the time the portlet was down, so they
+ * expire as if they had never left the cache.
+ * 
+ * The classes of the entries are resolved by the class loader of the
+ * application. Only the configured types of the keys and values and their
+ * super classes are deserialized, records of other classes are skipped.
+ * Still, the file should be kept in a location that only the server can
+ * write to.
+ * 
+ * @author cleue
+ */
+public class CacheSnapshot {
+
+	/**
+	 * Entry read from the file
+	 */
+	private static final class Record {
+
+		/**
+		 * time in milliseconds since the entry has been written
+		 */
+		private final long age;
+
+		/**
+		 * name of the cache
+		 */
+		private final String cache;
+
+		/**
+		 * the key
+		 */
+		private final Object key;
+
+		/**
+		 * the value
+		 */
+		private final Object value;
+
+		/**
+		 * Initializes the record
+		 * 
+		 * @param aCache
+		 *            name of the cache
+		 * @param aKey
+		 *            the key
+		 * @param aValue
+		 *            the value
+		 * @param aAge
+		 *            time in milliseconds since the entry has been written
+		 */
+		Record(final String aCache, final Object aKey, final Object aValue,
+				final long aAge) {
+			cache = aCache;
+			key = aKey;
+			value = aValue;
+			age = aAge;
+		}
+	}
+
+	/**
+	 * Deserializes objects using the class loader of the application rather
+	 * than the one of the caller of the stream, rejects all classes but the
+	 * allowed ones
+	 */
+	private static final class SnapshotInputStream extends ObjectInputStream {
+
+		/**
+		 * names of the classes that may be deserialized
+		 */
+		private final Set<String> allowed;
+
+		/**
+		 * Initializes the stream
+		 * 
+		 * @param aIn
+		 *            the serialized data
+		 * @param aAllowed
+		 *            names of the classes that may be deserialized
+		 * @throws IOException
+		 */
+		SnapshotInputStream(final InputStream aIn, final Set<String> aAllowed)
+				throws IOException {
+			super(aIn);
+			allowed = aAllowed;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+		 */
+		@Override
+		protected Class<?> resolveClass(final ObjectStreamClass aDesc)
+				throws IOException, ClassNotFoundException {
+			// check the name before the class is loaded
+			if (!allowed.contains(aDesc.getName())) {
+				throw new InvalidClassException(aDesc.getName(),
+						"Class is not allowed in a snapshot.");
+			}
+			try {
+				return Class.forName(aDesc.getName(), false,
+						CacheSnapshot.class.getClassLoader());
+			} catch (final ClassNotFoundException ex) {
+				// primitives and system classes
+				return super.resolveClass(aDesc);
+			}
+		}
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = CacheSnapshot.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Marker of the file
+	 */
+	private static final int MAGIC = 0x54505343;
+
+	/**
+	 * Position of the marker in the header
+	 */
+	private static final int POS_MAGIC = 0;
+
+	/**
+	 * Position of the version of the file format in the header
+	 */
+	private static final int POS_FORMAT = 4;
+
+	/**
+	 * Position of the time of the snapshot in the header
+	 */
+	private static final int POS_TIME = 8;
+
+	/**
+	 * Position of the number of records in the header
+	 */
+	private static final int POS_COUNT = 16;
+
+	/**
+	 * Position of the checksum of the records in the header
+	 */
+	private static final int POS_CHECKSUM = 20;
+
+	/**
+	 * Position of the length of the records in the header
+	 */
+	private static final int POS_LENGTH = 28;
+
+	/**
+	 * Position of the length of the build version in the header, the version
+	 * follows the header and the records follow the version
+	 */
+	private static final int POS_VERSION_LENGTH = 32;
+
+	/**
+	 * Size of the fixed part of the header
+	 */
+	private static final int HEADER_SIZE = 36;
+
+	/**
+	 * Version of the file format
+	 */
+	private static final int FORMAT = 1;
+
+	/**
+	 * names of the classes that may be deserialized
+	 */
+	private final Set<String> allowed;
+
+	/**
+	 * counts snapshots that have been discarded
+	 */
+	private final AtomicLong discarded;
+
+	/**
+	 * the snapshot file
+	 */
+	private final File file;
+
+	/**
+	 * maximum number of entries per cache
+	 */
+	private final int maxEntries;
+
+	/**
+	 * counts restored entries
+	 */
+	private final AtomicLong restored;
+
+	/**
+	 * counts entries that could not be written or restored
+	 */
+	private final AtomicLong skipped;
+
+	/**
+	 * build version of the application
+	 */
+	private final String version;
+
+	/**
+	 * counts written entries
+	 */
+	private final AtomicLong written;
+
+	/**
+	 * Initializes the snapshot
+	 * 
+	 * @param aFile
+	 *            the snapshot file
+	 * @param aVersion
+	 *            build version of the application
+	 * @param aMaxEntries
+	 *            maximum number of entries per cache
+	 * @param aTypes
+	 *            types of the keys and values that may be restored, sub
+	 *            classes of these types are rejected
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public CacheSnapshot(final File aFile, final String aVersion,
+			final int aMaxEntries, final Collection<Class<?>> aTypes,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aFile != null;
+		assert aVersion != null;
+		assert aMaxEntries >= 0;
+		assert aTypes != null;
+		assert aMetrics != null;
+		// the stream also describes the serializable super classes
+		allowed = new HashSet<String>();
+		for (final Class<?> type : aTypes) {
+			for (Class<?> cls = type; cls != null; cls = cls.getSuperclass()) {
+				allowed.add(cls.getName());
+			}
+		}
+		// init
+		file = aFile;
+		version = aVersion;
+		maxEntries = aMaxEntries;
+		written = aMetrics.getCounter("snapshot.written");
+		restored = aMetrics.getCounter("snapshot.restored");
+		skipped = aMetrics.getCounter("snapshot.skipped");
+		discarded = aMetrics.getCounter("snapshot.discarded");
+	}
+
+	/**
+	 * Deserializes an object
+	 * 
+	 * @param aData
+	 *            the serialized object
+	 * @return the object
+	 * @throws IOException
+	 *             e.g. if the class is not allowed
+	 * @throws ClassNotFoundException
+	 */
+	private final Object deserialize(final byte[] aData) throws IOException,
+			ClassNotFoundException {
+		final ObjectInputStream in = new SnapshotInputStream(
+				new ByteArrayInputStream(aData), allowed);
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Serializes an object
+	 * 
+	 * @param aObject
+	 *            the object
+	 * @return the serialized object or <code>null</code> if the object is
+	 *         not serializable
+	 */
+	private static final byte[] serialize(final Object aObject) {
+		// sanity check
+		if (!(aObject instanceof Serializable)) {
+			return null;
+		}
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(aObject);
+			out.close();
+			return bytes.toByteArray();
+		} catch (final IOException ex) {
+			// some member is not serializable
+			return null;
+		}
+	}
+
+	/**
+	 * Discards the snapshot file
+	 */
+	private final void discard() {
+		// logging support
+		final String LOG_METHOD = "discard()";
+		discarded.incrementAndGet();
+		if (!file.delete() && file.exists()) {
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Unable to delete the snapshot [{0}].", file);
+		}
+	}
+
+	/**
+	 * Reads the entries from the snapshot file and adds them to the caches.
+	 * Caches that do not exist, yet, are created. Entries that expired while
+	 * the portlet was down and keys that have been cached meanwhile are
+	 * ignored. A snapshot of a different build or a damaged snapshot is
+	 * discarded.
+	 * 
+	 * @param aService
+	 *            the caches
+	 * @return the number of restored entries
+	 * @throws IOException
+	 */
+	public int restore(final CacheService aService) throws IOException {
+		// sanity check
+		assert aService != null;
+		// logging support
+		final String LOG_METHOD = "restore(aService)";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		// nothing to do
+		if (!file.isFile()) {
+			return 0;
+		}
+		// read the records
+		final byte[] body;
+		final long time;
+		final int count;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final long length = raf.length();
+			if (length < HEADER_SIZE) {
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Snapshot [{0}] is truncated.", file);
+				raf.close();
+				discard();
+				return 0;
+			}
+			final MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, length);
+			// validate the header
+			final int versionLength = buffer.getInt(POS_VERSION_LENGTH);
+			final int bodyLength = buffer.getInt(POS_LENGTH);
+			if ((buffer.getInt(POS_MAGIC) != MAGIC)
+					|| (buffer.getInt(POS_FORMAT) != FORMAT)
+					|| (versionLength < 0) || (bodyLength < 0)
+					|| (HEADER_SIZE + (long) versionLength + bodyLength != length)) {
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Snapshot [{0}] is invalid.", file);
+				raf.close();
+				discard();
+				return 0;
+			}
+			// check the build
+			final byte[] versionBytes = new byte[versionLength];
+			buffer.position(HEADER_SIZE);
+			buffer.get(versionBytes);
+			final String snapshotVersion = new String(versionBytes, "UTF-8");
+			if (!version.equals(snapshotVersion)) {
+				LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+						"Discarding snapshot [{0}] of build [{1}].",
+						new Object[] { file, snapshotVersion });
+				raf.close();
+				discard();
+				return 0;
+			}
+			// check the records
+			body = new byte[bodyLength];
+			buffer.get(body);
+			final CRC32 crc = new CRC32();
+			crc.update(body);
+			if (crc.getValue() != buffer.getLong(POS_CHECKSUM)) {
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Snapshot [{0}] is damaged.", file);
+				raf.close();
+				discard();
+				return 0;
+			}
+			time = buffer.getLong(POS_TIME);
+			count = buffer.getInt(POS_COUNT);
+		} finally {
+			raf.close();
+		}
+		// the time the portlet was down adds to the age of the entries
+		final long downtime = Math.max(0, System.currentTimeMillis() - time);
+		// parse the records, the most valuable entries come first
+		final List<Record> records = new ArrayList<Record>(count);
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(body));
+		for (int i = 0; i < count; ++i) {
+			final String cache = in.readUTF();
+			final long age = in.readLong();
+			final byte[] key = new byte[in.readInt()];
+			in.readFully(key);
+			final byte[] value = new byte[in.readInt()];
+			in.readFully(value);
+			try {
+				records.add(new Record(cache, deserialize(key),
+						deserialize(value), age + downtime));
+			} catch (final ClassNotFoundException ex) {
+				skipped.incrementAndGet();
+			} catch (final IOException ex) {
+				// e.g. an incompatible or rejected class
+				skipped.incrementAndGet();
+				if (bIsLogging) {
+					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+							"Skipping an entry of cache [" + cache + "].", ex);
+				}
+			}
+		}
+		// add the least valuable entries first, so they are evicted first
+		int result = 0;
+		for (int i = records.size() - 1; i >= 0; --i) {
+			final Record record = records.get(i);
+			final DataCache<Object, Object> cache = aService
+					.getCache(record.cache);
+			if (cache.restore(record.key, record.value, record.age)) {
+				++result;
+			}
+		}
+		restored.addAndGet(result);
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Restored [{0}] of [{1}] entries from [{2}].",
+					new Object[] { result, count, file });
+		}
+		// ok
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CacheSnapshot[" + file + "," + version + "]";
+	}
+
+	/**
+	 * Writes the most valuable entries of the caches to the snapshot file.
+	 * The file is written under a temporary name and renamed, so a failure
+	 * never leaves a partial snapshot behind.
+	 * 
+	 * @param aCaches
+	 *            the caches
+	 * @return the number of written entries
+	 * @throws IOException
+	 */
+	public int write(final Collection<DataCache<?, ?>> aCaches)
+			throws IOException {
+		// sanity check
+		assert aCaches != null;
+		// logging support
+		final String LOG_METHOD = "write(aCaches)";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		// serialize the records
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		int count = 0;
+		for (final DataCache<?, ?> cache : aCaches) {
+			for (final DataCache.Entry<?, ?> entry : cache
+					.getHottest(maxEntries)) {
+				final byte[] key = serialize(entry.getKey());
+				final byte[] value = (key != null) ? serialize(entry
+						.getValue()) : null;
+				if (value == null) {
+					skipped.incrementAndGet();
+					continue;
+				}
+				out.writeUTF(cache.getName());
+				out.writeLong(entry.getAge());
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeInt(value.length);
+				out.write(value);
+				++count;
+			}
+		}
+		out.close();
+		final byte[] body = bytes.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(body);
+		final byte[] versionBytes = version.getBytes("UTF-8");
+		// write the file
+		// make sure the directory exists
+		final File dir = file.getAbsoluteFile().getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory [" + dir + "].");
+		}
+		final File tmp = new File(file.getPath() + ".tmp");
+		final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			final MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + versionBytes.length + body.length);
+			buffer.putInt(POS_MAGIC, MAGIC);
+			buffer.putInt(POS_FORMAT, FORMAT);
+			buffer.putLong(POS_TIME, System.currentTimeMillis());
+			buffer.putInt(POS_COUNT, count);
+			buffer.putLong(POS_CHECKSUM, crc.getValue());
+			buffer.putInt(POS_LENGTH, body.length);
+			buffer.putInt(POS_VERSION_LENGTH, versionBytes.length);
+			buffer.position(HEADER_SIZE);
+			buffer.put(versionBytes);
+			buffer.put(body);
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+		// replace the previous snapshot
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Unable to rename [" + tmp + "] to ["
+						+ file + "].");
+			}
+		}
+		written.addAndGet(count);
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Wrote [{0}] entries to [{1}].", new Object[] { count,
+							file });
+		}
+		// ok
+		return count;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.portlet.ClientDataRequest;
+
+import org.apache.commons.fileupload.UploadContext;
+import org.apache.commons.fileupload.portlet.PortletFileUpload;
+
+/**
+ * Upload context on top of any portlet request that carries client data.
+ * {@link PortletFileUpload} only accepts action requests, this context allows
+ * to parse multipart form posts that are sent as resource requests, too.
+ * 
+ * @author cleue
+ */
+public class ClientDataRequestContext implements UploadContext {
+
+	/**
+	 * the request
+	 */
+	private final ClientDataRequest request;
+
+	/**
+	 * Initializes the context
+	 * 
+	 * @param aRequest
+	 *            the request
+	 */
+	public ClientDataRequestContext(final ClientDataRequest aRequest) {
+		// sanity check
+		assert aRequest != null;
+		// init
+		request = aRequest;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.commons.fileupload.UploadContext#contentLength()
+	 */
+	@Override
+	public long contentLength() {
+		return request.getContentLength();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.commons.fileupload.RequestContext#getCharacterEncoding()
+	 */
+	@Override
+	public String getCharacterEncoding() {
+		return request.getCharacterEncoding();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.commons.fileupload.RequestContext#getContentLength()
+	 */
+	@Override
+	@Deprecated
+	public int getContentLength() {
+		return request.getContentLength();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.commons.fileupload.RequestContext#getContentType()
+	 */
+	@Override
+	public String getContentType() {
+		return request.getContentType();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.commons.fileupload.RequestContext#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return request.getPortletInputStream();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ContentLength=" + contentLength() + ", ContentType="
+				+ getContentType();
+	}
+}
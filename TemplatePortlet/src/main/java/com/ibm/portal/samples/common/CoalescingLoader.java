@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key into a single call to the
+ * backend. The first caller for a key runs the load on its own thread, callers
+ * that arrive while the load is in flight wait for its result instead of
+ * starting their own load. The result or the failure of the load is passed
+ * to all of them. Once the load completed, the next caller starts a new one,
+ * so results are never shared across bursts, that is the job of a
+ * {@link DataCache}.
+ * 
+ * Waiting callers can be bounded by a timeout, the caller that runs the load
+ * is bounded by the timeouts of the backend.
+ * 
+ * @author cleue
+ */
+public class CoalescingLoader<K, V> {
+
+	/**
+	 * the loads in flight
+	 */
+	private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * counts the callers that waited for the load of another caller
+	 */
+	private final AtomicLong followers;
+
+	/**
+	 * counts the callers that ran the load
+	 */
+	private final AtomicLong leaders;
+
+	/**
+	 * counts the callers that gave up waiting
+	 */
+	private final AtomicLong timeouts;
+
+	/**
+	 * Initializes the loader
+	 * 
+	 * @param aPrefix
+	 *            prefix of the names of the counters
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public CoalescingLoader(final String aPrefix, final Metrics aMetrics) {
+		// sanity check
+		assert aPrefix != null;
+		assert aMetrics != null;
+		// init
+		leaders = aMetrics.getCounter(aPrefix + ".leaders");
+		followers = aMetrics.getCounter(aPrefix + ".followers");
+		timeouts = aMetrics.getCounter(aPrefix + ".timeouts");
+	}
+
+	/**
+	 * Returns the result of the task, rethrowing its failure
+	 * 
+	 * @param aTask
+	 *            the completed or running task
+	 * @param aTimeout
+	 *            time in milliseconds to wait, zero to wait until the task
+	 *            completes
+	 * @return the result
+	 * @throws Exception
+	 *             the failure of the task, a {@link TimeoutException} or an
+	 *             {@link InterruptedException}
+	 */
+	private final V join(final FutureTask<V> aTask, final long aTimeout)
+			throws Exception {
+		try {
+			return (aTimeout > 0) ? aTask.get(aTimeout, TimeUnit.MILLISECONDS)
+					: aTask.get();
+		} catch (final ExecutionException ex) {
+			// unwrap
+			final Throwable cause = ex.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Loads the value of the key, or joins the load that is already in flight
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aLoader
+	 *            loads the value if no load is in flight
+	 * @param aTimeout
+	 *            time in milliseconds to wait for a load in flight, zero to
+	 *            wait until it completes
+	 * @return the value
+	 * @throws TimeoutException
+	 *             if the load in flight did not complete in time
+	 * @throws Exception
+	 *             the failure of the load
+	 */
+	public V load(final K aKey, final DataCache.Loader<? super K, V> aLoader,
+			final long aTimeout) throws Exception {
+		// sanity check
+		assert aKey != null;
+		assert aLoader != null;
+		assert aTimeout >= 0;
+		// check for a load in flight
+		FutureTask<V> task = flights.get(aKey);
+		if (task == null) {
+			final FutureTask<V> newTask = new FutureTask<V>(new Callable<V>() {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.util.concurrent.Callable#call()
+				 */
+				@Override
+				public V call() throws Exception {
+					return aLoader.load(aKey);
+				}
+			});
+			task = flights.putIfAbsent(aKey, newTask);
+			if (task == null) {
+				// we lead, the load runs on the calling thread
+				leaders.incrementAndGet();
+				try {
+					newTask.run();
+				} finally {
+					flights.remove(aKey, newTask);
+				}
+				return join(newTask, 0);
+			}
+		}
+		// join the load in flight
+		followers.incrementAndGet();
+		try {
+			return join(task, aTimeout);
+		} catch (final TimeoutException ex) {
+			timeouts.incrementAndGet();
+			throw ex;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.portlet.ActionRequest;
+import javax.portlet.EventRequest;
+import javax.portlet.PortletPreferences;
+import javax.portlet.PortletRequest;
+import javax.portlet.ReadOnlyException;
+import javax.portlet.ValidatorException;
+
+/**
+ * Request scoped facade for the portlet preferences. Reads are served from the
+ * immutable snapshot maintained by the {@link PreferencesCache}, modifications
+ * are recorded and written with a single {@link PortletPreferences#store()} on
+ * {@link #flush()}. Reads see the recorded modifications.
+ * 
+ * Since {@link PortletPreferences} can only be stored during the action and
+ * event phase of the request that obtained them, modifications are coalesced
+ * per request, typically across all actions of a form post. Other requests,
+ * e.g. the resource requests of the AJAX action channel, must check
+ * {@link #isStorable()} and hand the modifications over to an action.
+ * 
+ * @author cleue
+ */
+public class CoalescingPreferences {
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = CoalescingPreferences.class
+			.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * the portlet wide cache
+	 */
+	private final PreferencesCache cache;
+
+	/**
+	 * modifications in order, <code>null</code> values represent a reset
+	 */
+	private final Map<String, String[]> modifications = new LinkedHashMap<String, String[]>();
+
+	/**
+	 * the request
+	 */
+	private final PortletRequest request;
+
+	/**
+	 * the snapshot, taken lazily
+	 */
+	private PreferencesCache.Snapshot snapshot;
+
+	/**
+	 * Initializes the facade
+	 * 
+	 * @param aCache
+	 *            the cache
+	 * @param aRequest
+	 *            the request
+	 */
+	CoalescingPreferences(final PreferencesCache aCache,
+			final PortletRequest aRequest) {
+		// sanity check
+		assert aCache != null;
+		assert aRequest != null;
+		// init
+		cache = aCache;
+		request = aRequest;
+	}
+
+	/**
+	 * Writes the recorded modifications with a single store operation and
+	 * invalidates the snapshot. Nothing is stored if the modifications do not
+	 * change any value. Must be called during the action or event phase.
+	 * 
+	 * @throws IllegalStateException
+	 *             if there are modifications, but the request is neither an
+	 *             action nor an event request
+	 * @throws IOException
+	 * @throws ReadOnlyException
+	 * @throws ValidatorException
+	 */
+	public void flush() throws IOException, ReadOnlyException,
+			ValidatorException {
+		// logging support
+		final String LOG_METHOD = "flush()";
+		// nothing to do
+		if (modifications.isEmpty()) {
+			return;
+		}
+		// the portal only stores preferences in these phases
+		if (!isStorable()) {
+			throw new IllegalStateException(
+					"Preferences can only be stored during an action or event.");
+		}
+		final Metrics metrics = cache.getMetrics();
+		try {
+			// check for actual changes
+			final Map<String, String[]> values = getSnapshot().getValues();
+			boolean bChanged = false;
+			for (final Map.Entry<String, String[]> entry : modifications
+					.entrySet()) {
+				final String[] value = entry.getValue();
+				if ((value == null) || !Arrays.equals(value,
+						values.get(entry.getKey()))) {
+					bChanged = true;
+					break;
+				}
+			}
+			if (!bChanged) {
+				metrics.increment(PreferencesCache.METRIC_STORES_SKIPPED);
+				modifications.clear();
+				return;
+			}
+			// apply and store once
+			final PortletPreferences prefs = request.getPreferences();
+			for (final Map.Entry<String, String[]> entry : modifications
+					.entrySet()) {
+				final String[] value = entry.getValue();
+				if (value != null) {
+					prefs.setValues(entry.getKey(), value);
+				} else {
+					prefs.reset(entry.getKey());
+				}
+			}
+			prefs.store();
+			metrics.increment(PreferencesCache.METRIC_STORES);
+			metrics.add(PreferencesCache.METRIC_WRITES, modifications.size());
+			// log this
+			if (LOGGER.isLoggable(LOG_LEVEL)) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Stored the preferences [{0}].", modifications.keySet());
+			}
+		} finally {
+			// the snapshot is outdated unless nothing has been written
+			if (!modifications.isEmpty()) {
+				modifications.clear();
+				snapshot = null;
+				cache.invalidate(request);
+			}
+		}
+	}
+
+	/**
+	 * Returns the snapshot
+	 * 
+	 * @return the snapshot
+	 */
+	private final PreferencesCache.Snapshot getSnapshot() {
+		// take the snapshot lazily
+		if (snapshot == null) {
+			// preferences may be personalized by the user
+			RenderScope.markPrivate(request, "preferences");
+			snapshot = cache.getSnapshot(request);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the first value of a preference
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aDefault
+	 *            value returned if the preference does not exist or has no
+	 *            value
+	 * @return the value
+	 */
+	public String getValue(final String aKey, final String aDefault) {
+		final String[] values = lookup(aKey);
+		return ((values != null) && (values.length > 0) && (values[0] != null)) ? values[0]
+				: aDefault;
+	}
+
+	/**
+	 * Returns the values of a preference
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aDefault
+	 *            values returned if the preference does not exist
+	 * @return a copy of the values
+	 */
+	public String[] getValues(final String aKey, final String[] aDefault) {
+		final String[] values = lookup(aKey);
+		return (values != null) ? values.clone() : aDefault;
+	}
+
+	/**
+	 * Checks if there are modifications that have not been flushed
+	 * 
+	 * @return <code>true</code> if there are modifications
+	 */
+	public boolean isModified() {
+		return !modifications.isEmpty();
+	}
+
+	/**
+	 * Checks if modifications can be stored during the current request, i.e.
+	 * if it is an action or an event request
+	 * 
+	 * @return <code>true</code> if {@link #flush()} can store modifications
+	 */
+	public boolean isStorable() {
+		return (request instanceof ActionRequest)
+				|| (request instanceof EventRequest);
+	}
+
+	/**
+	 * Looks up the values, considering the modifications
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @return the values or <code>null</code>
+	 */
+	private final String[] lookup(final String aKey) {
+		// sanity check
+		assert aKey != null;
+		// modifications win, a reset falls back to the snapshot
+		final String[] modified = modifications.get(aKey);
+		return (modified != null) ? modified : getSnapshot().getValues().get(
+				aKey);
+	}
+
+	/**
+	 * Records the reset of a preference. Reads still return the value of the
+	 * snapshot until the modifications have been flushed, since the default
+	 * is only known to the portal.
+	 * 
+	 * @param aKey
+	 *            the key
+	 */
+	public void reset(final String aKey) {
+		// sanity check
+		assert aKey != null;
+		// re-insert so the reset is applied in order
+		modifications.remove(aKey);
+		modifications.put(aKey, null);
+	}
+
+	/**
+	 * Records the modification of a preference
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aValue
+	 *            the value
+	 */
+	public void setValue(final String aKey, final String aValue) {
+		setValues(aKey, new String[] { aValue });
+	}
+
+	/**
+	 * Records the modification of a preference
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aValues
+	 *            the values
+	 */
+	public void setValues(final String aKey, final String[] aValues) {
+		// sanity check
+		assert aKey != null;
+		assert aValues != null;
+		// re-insert so the last modification wins
+		modifications.remove(aKey);
+		modifications.put(aKey, aValues.clone());
+	}
+}
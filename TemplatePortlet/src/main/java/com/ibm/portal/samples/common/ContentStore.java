@@ -0,0 +1,295 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * Local content addressed store for uploaded files. Each file is stored under
+ * the hex encoded SHA-256 digest of its content, so identical uploads are kept
+ * only once and are neither written nor copied again. The digest is taken from
+ * the {@link DigestFileItem} that computed it while the upload streamed in.
+ * 
+ * The store counts hits and misses and maintains the hit ratio in percent as a
+ * gauge in the {@link Metrics}.
+ * 
+ * @author cleue
+ */
+public class ContentStore {
+
+	/**
+	 * hex digits
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * length of a key, a hex encoded SHA-256 digest
+	 */
+	private static final int KEY_LENGTH = 64;
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = ContentStore.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Name of the counter for the bytes that did not have to be stored again
+	 */
+	public static final String METRIC_BYTES_SAVED = "upload.dedup.bytes.saved";
+
+	/**
+	 * Name of the counter for uploads whose content already existed
+	 */
+	public static final String METRIC_HITS = "upload.dedup.hits";
+
+	/**
+	 * Name of the gauge for the ratio of hits in percent
+	 */
+	public static final String METRIC_HIT_RATIO = "upload.dedup.hit.ratio.percent";
+
+	/**
+	 * Name of the counter for uploads with new content
+	 */
+	public static final String METRIC_MISSES = "upload.dedup.misses";
+
+	/**
+	 * Name of the counter for uploads that had to be read to compute the
+	 * digest
+	 */
+	public static final String METRIC_REHASHED = "upload.dedup.rehashed";
+
+	/**
+	 * size of the read buffer when computing a digest
+	 */
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * the root directory
+	 */
+	private final File root;
+
+	/**
+	 * moves the content into the store
+	 */
+	private final UploadManager uploadManager;
+
+	/**
+	 * Initializes the store
+	 * 
+	 * @param aRoot
+	 *            the root directory, created if missing
+	 * @param aUploadManager
+	 *            the upload handling
+	 * @param aMetrics
+	 *            the counters
+	 * 
+	 * @throws IOException
+	 *             if the root directory cannot be created
+	 */
+	public ContentStore(final File aRoot, final UploadManager aUploadManager,
+			final Metrics aMetrics) throws IOException {
+		// sanity check
+		assert aRoot != null;
+		assert aUploadManager != null;
+		assert aMetrics != null;
+		// create the root
+		if (!aRoot.isDirectory() && !aRoot.mkdirs()) {
+			throw new IOException("Unable to create the content store [" + aRoot
+					+ "].");
+		}
+		// init
+		root = aRoot;
+		uploadManager = aUploadManager;
+		metrics = aMetrics;
+	}
+
+	/**
+	 * Computes the digest by reading the content of the item
+	 * 
+	 * @param aItem
+	 *            the item
+	 * @return the digest
+	 * 
+	 * @throws IOException
+	 */
+	private static final byte[] computeDigest(final FileItem aItem)
+			throws IOException {
+		final MessageDigest digest = DigestFileItem.createDigest();
+		if (aItem.isInMemory()) {
+			digest.update(aItem.get());
+			return digest.digest();
+		}
+		final InputStream in = aItem.getInputStream();
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, len);
+			}
+			return digest.digest();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Counts a lookup and updates the hit ratio
+	 * 
+	 * @param bHit
+	 *            <code>true</code> if the content existed
+	 */
+	private final void count(final boolean bHit) {
+		final long hits = bHit ? metrics.increment(METRIC_HITS) : metrics
+				.get(METRIC_HITS);
+		final long misses = bHit ? metrics.get(METRIC_MISSES) : metrics
+				.increment(METRIC_MISSES);
+		final long total = hits + misses;
+		if (total > 0) {
+			metrics.set(METRIC_HIT_RATIO, (hits * 100) / total);
+		}
+	}
+
+	/**
+	 * Returns the file that holds the content for a key
+	 * 
+	 * @param aKey
+	 *            the key as returned by {@link #put(FileItem)}
+	 * @return the file or <code>null</code> if the key is invalid or the
+	 *         content does not exist
+	 */
+	public File get(final String aKey) {
+		// validate, the key becomes part of a path
+		if ((aKey == null) || (aKey.length() != KEY_LENGTH)) {
+			return null;
+		}
+		for (int i = 0; i < KEY_LENGTH; ++i) {
+			final char c = aKey.charAt(i);
+			if (((c < '0') || (c > '9')) && ((c < 'a') || (c > 'f'))) {
+				return null;
+			}
+		}
+		// locate
+		final File file = getFile(aKey);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Returns the location of the content for a key. The first two characters
+	 * of the key are used as a subdirectory to keep the directories small.
+	 * 
+	 * @param aKey
+	 *            the valid key
+	 * @return the file
+	 */
+	private final File getFile(final String aKey) {
+		return new File(new File(root, aKey.substring(0, 2)), aKey);
+	}
+
+	/**
+	 * Stores the content of an item unless identical content already exists.
+	 * The item must not be read after this call.
+	 * 
+	 * @param aItem
+	 *            the item
+	 * @return the key of the content
+	 * 
+	 * @throws IOException
+	 */
+	public String put(final FileItem aItem) throws IOException {
+		// sanity check
+		assert aItem != null;
+		// logging support
+		final String LOG_METHOD = "put(aItem)";
+		// the size is not available after the transfer
+		final long size = aItem.getSize();
+		// the digest was computed while the content streamed in
+		byte[] hash = (aItem instanceof DigestFileItem) ? ((DigestFileItem) aItem)
+				.getDigest() : null;
+		if (hash == null) {
+			metrics.increment(METRIC_REHASHED);
+			hash = computeDigest(aItem);
+		}
+		final String key = toHex(hash);
+		final File target = getFile(key);
+		// check for a hit
+		boolean bHit = target.isFile();
+		if (!bHit) {
+			// move the content into a temporary file next to the target
+			final File dir = target.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+				throw new IOException("Unable to create [" + dir + "].");
+			}
+			final File temp = File.createTempFile("upload", ".tmp", dir);
+			try {
+				uploadManager.transfer(aItem, temp);
+				// publish atomically, a concurrent upload might have won
+				if (!temp.renameTo(target)) {
+					if (!target.isFile()) {
+						throw new IOException("Unable to store [" + target
+								+ "].");
+					}
+					bHit = true;
+				}
+			} finally {
+				temp.delete();
+			}
+		}
+		// count this
+		count(bHit);
+		if (bHit) {
+			metrics.add(METRIC_BYTES_SAVED, size);
+		}
+		// log this
+		if (LOGGER.isLoggable(LOG_LEVEL)) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Content [{0}], existing [{1}].", new Object[] { key, bHit });
+		}
+		// ok
+		return key;
+	}
+
+	/**
+	 * Hex encodes the digest
+	 * 
+	 * @param aHash
+	 *            the digest
+	 * @return the key
+	 */
+	private static final String toHex(final byte[] aHash) {
+		final char[] result = new char[aHash.length << 1];
+		for (int i = 0; i < aHash.length; ++i) {
+			result[i << 1] = HEX[(aHash[i] >> 4) & 0x0f];
+			result[(i << 1) + 1] = HEX[aHash[i] & 0x0f];
+		}
+		return new String(result);
+	}
+}
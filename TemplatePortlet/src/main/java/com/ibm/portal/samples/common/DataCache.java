@@ -0,0 +1,1497 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded read-through cache for backend data. The cache is bounded by the
+ * number of entries or by their weight. Entries expire a fixed time after
+ * they have been written and can be refreshed in the background once they
+ * reach a configurable age, so readers keep getting the current value while
+ * the new one is loaded. Expired entries can be kept as the last good value
+ * for callers that prefer a stale value over waiting for a slow backend, see
+ * {@link #getStale(Object)}.
+ * 
+ * Reads do not lock. They are recorded in a lossy buffer that is applied to
+ * the eviction policy in batches by whichever thread manages to get the
+ * eviction lock. Writes update the policy directly under the lock.
+ * 
+ * The default eviction policy is W-TinyLFU: new entries enter a small LRU
+ * window. Entries that leave the window compete with the least recently used
+ * entry of the main area, which is a segmented LRU, and only the one that was
+ * accessed more frequently according to a {@link FrequencySketch} is kept.
+ * This protects popular entries from being flushed by scans. Alternatively
+ * the cache can use plain LRU eviction.
+ * 
+ * Statistics are kept as counters in the {@link Metrics} of the portlet, the
+ * names are prefixed by <code>cache.</code> and the name of the cache.
+ * 
+ * @author cleue
+ */
+public class DataCache<K, V> {
+
+	/**
+	 * Copy of an entry of the cache, e.g. to persist it
+	 */
+	public static final class Entry<K, V> {
+
+		/**
+		 * time in milliseconds since the entry has been written
+		 */
+		private final long age;
+
+		/**
+		 * the key
+		 */
+		private final K key;
+
+		/**
+		 * the value
+		 */
+		private final V value;
+
+		/**
+		 * Initializes the copy
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @param aValue
+		 *            the value
+		 * @param aAge
+		 *            time in milliseconds since the entry has been written
+		 */
+		Entry(final K aKey, final V aValue, final long aAge) {
+			key = aKey;
+			value = aValue;
+			age = aAge;
+		}
+
+		/**
+		 * Returns the time in milliseconds since the entry has been written
+		 * 
+		 * @return the age
+		 */
+		public long getAge() {
+			return age;
+		}
+
+		/**
+		 * Returns the key
+		 * 
+		 * @return the key
+		 */
+		public K getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the value
+		 * 
+		 * @return the value
+		 */
+		public V getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * Loads the value of a key from the backend
+	 */
+	public interface Loader<K, V> {
+
+		/**
+		 * Loads the value
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @return the value or <code>null</code> if there is no value, which
+		 *         is not cached
+		 * @throws Exception
+		 */
+		V load(K aKey) throws Exception;
+	}
+
+	/**
+	 * Configuration of a cache. The textual representation is a comma
+	 * separated list of <code>name=value</code> pairs, e.g.
+	 * <code>maximumSize=1000,expireAfterWrite=60000,refreshAfterWrite=30000</code>
+	 * . Times are given in milliseconds, zero disables expiration or refresh.
+	 * The <code>loadTimeout</code> bounds the time a caller waits for the
+	 * load of the same key by another caller, zero waits until it completes.
+	 * Expired entries are kept for another <code>staleWhileRevalidate</code>
+	 * milliseconds as the last good value, which may be served if the reload
+	 * is too slow or fails.
+	 * The policy is either <code>tinylfu</code> (default) or <code>lru</code>.
+	 */
+	public static final class Spec {
+
+		/**
+		 * time in milliseconds after which an entry expires
+		 */
+		private final long expireAfterWrite;
+
+		/**
+		 * use plain LRU instead of W-TinyLFU
+		 */
+		private final boolean bLru;
+
+		/**
+		 * time in milliseconds a caller waits for a concurrent load
+		 */
+		private final long loadTimeout;
+
+		/**
+		 * maximum number of entries or maximum weight
+		 */
+		private final long maximum;
+
+		/**
+		 * checks if the maximum is a weight
+		 */
+		private final boolean bWeighted;
+
+		/**
+		 * time in milliseconds after which an entry is refreshed
+		 */
+		private final long refreshAfterWrite;
+
+		/**
+		 * time in milliseconds an expired entry is kept as the last good value
+		 */
+		private final long staleWhileRevalidate;
+
+		/**
+		 * Initializes the configuration
+		 * 
+		 * @param aMaximum
+		 *            maximum number of entries or maximum weight
+		 * @param aWeighted
+		 *            <code>true</code> if the maximum is a weight
+		 * @param aExpireAfterWrite
+		 *            time in milliseconds after which an entry expires
+		 * @param aRefreshAfterWrite
+		 *            time in milliseconds after which an entry is refreshed
+		 * @param aStaleWhileRevalidate
+		 *            time in milliseconds an expired entry is kept as the
+		 *            last good value
+		 * @param aLoadTimeout
+		 *            time in milliseconds a caller waits for the concurrent
+		 *            load of the same key, zero to wait until it completes
+		 * @param aLru
+		 *            <code>true</code> for plain LRU eviction
+		 */
+		public Spec(final long aMaximum, final boolean aWeighted,
+				final long aExpireAfterWrite, final long aRefreshAfterWrite,
+				final long aStaleWhileRevalidate, final long aLoadTimeout,
+				final boolean aLru) {
+			// sanity check
+			assert aMaximum > 0;
+			assert aExpireAfterWrite >= 0;
+			assert aRefreshAfterWrite >= 0;
+			assert aStaleWhileRevalidate >= 0;
+			assert aLoadTimeout >= 0;
+			// init
+			maximum = aMaximum;
+			bWeighted = aWeighted;
+			expireAfterWrite = aExpireAfterWrite;
+			refreshAfterWrite = aRefreshAfterWrite;
+			staleWhileRevalidate = aStaleWhileRevalidate;
+			loadTimeout = aLoadTimeout;
+			bLru = aLru;
+		}
+
+		/**
+		 * Parses the textual representation of a configuration
+		 * 
+		 * @param aSpec
+		 *            the representation
+		 * @return the configuration
+		 * @throws IllegalArgumentException
+		 *             if the representation is invalid
+		 */
+		public static Spec parse(final String aSpec) {
+			// sanity check
+			assert aSpec != null;
+			// defaults
+			long maximum = DEFAULT_MAXIMUM_SIZE;
+			boolean bWeighted = false;
+			long expireAfterWrite = 0;
+			long refreshAfterWrite = 0;
+			long staleWhileRevalidate = 0;
+			long loadTimeout = 0;
+			boolean bLru = false;
+			// parse the pairs
+			for (final String pair : aSpec.split(",")) {
+				final String trimmed = pair.trim();
+				if (trimmed.length() == 0) {
+					continue;
+				}
+				final int idx = trimmed.indexOf('=');
+				if (idx < 0) {
+					throw new IllegalArgumentException("Invalid cache setting ["
+							+ trimmed + "] in [" + aSpec + "].");
+				}
+				final String name = trimmed.substring(0, idx).trim();
+				final String value = trimmed.substring(idx + 1).trim();
+				try {
+					if ("maximumSize".equals(name)) {
+						maximum = Long.parseLong(value);
+						bWeighted = false;
+					} else if ("maximumWeight".equals(name)) {
+						maximum = Long.parseLong(value);
+						bWeighted = true;
+					} else if ("expireAfterWrite".equals(name)) {
+						expireAfterWrite = Long.parseLong(value);
+					} else if ("refreshAfterWrite".equals(name)) {
+						refreshAfterWrite = Long.parseLong(value);
+					} else if ("staleWhileRevalidate".equals(name)) {
+						staleWhileRevalidate = Long.parseLong(value);
+					} else if ("loadTimeout".equals(name)) {
+						loadTimeout = Long.parseLong(value);
+					} else if ("policy".equals(name)) {
+						if ("lru".equalsIgnoreCase(value)) {
+							bLru = true;
+						} else if ("tinylfu".equalsIgnoreCase(value)) {
+							bLru = false;
+						} else {
+							throw new IllegalArgumentException(
+									"Unknown cache policy [" + value + "].");
+						}
+					} else {
+						throw new IllegalArgumentException(
+								"Unknown cache setting [" + name + "].");
+					}
+				} catch (final NumberFormatException ex) {
+					throw new IllegalArgumentException("Cache setting [" + name
+							+ "] is not a number.", ex);
+				}
+			}
+			// validate
+			if ((maximum <= 0) || (expireAfterWrite < 0)
+					|| (refreshAfterWrite < 0) || (staleWhileRevalidate < 0)
+					|| (loadTimeout < 0)) {
+				throw new IllegalArgumentException("Invalid cache settings ["
+						+ aSpec + "].");
+			}
+			// ok
+			return new Spec(maximum, bWeighted, expireAfterWrite,
+					refreshAfterWrite, staleWhileRevalidate, loadTimeout, bLru);
+		}
+
+		/**
+		 * Returns the time in milliseconds after which an entry expires
+		 * 
+		 * @return the time, zero if entries do not expire
+		 */
+		public long getExpireAfterWrite() {
+			return expireAfterWrite;
+		}
+
+		/**
+		 * Returns the time in milliseconds a caller waits for the concurrent
+		 * load of the same key
+		 * 
+		 * @return the time, zero to wait until the load completes
+		 */
+		public long getLoadTimeout() {
+			return loadTimeout;
+		}
+
+		/**
+		 * Returns the maximum number of entries or the maximum weight
+		 * 
+		 * @return the maximum
+		 */
+		public long getMaximum() {
+			return maximum;
+		}
+
+		/**
+		 * Returns the time in milliseconds after which an entry is refreshed
+		 * 
+		 * @return the time, zero if entries are not refreshed
+		 */
+		public long getRefreshAfterWrite() {
+			return refreshAfterWrite;
+		}
+
+		/**
+		 * Returns the time in milliseconds an expired entry is kept as the last
+		 * good value
+		 * 
+		 * @return the time, zero if expired entries are removed
+		 */
+		public long getStaleWhileRevalidate() {
+			return staleWhileRevalidate;
+		}
+
+		/**
+		 * Checks if the cache uses plain LRU eviction
+		 * 
+		 * @return <code>true</code> for LRU, <code>false</code> for W-TinyLFU
+		 */
+		public boolean isLru() {
+			return bLru;
+		}
+
+		/**
+		 * Checks if the maximum is a weight rather than a number of entries
+		 * 
+		 * @return <code>true</code> if the maximum is a weight
+		 */
+		public boolean isWeighted() {
+			return bWeighted;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return (bWeighted ? "maximumWeight=" : "maximumSize=") + maximum
+					+ ",expireAfterWrite=" + expireAfterWrite
+					+ ",refreshAfterWrite=" + refreshAfterWrite
+					+ ",staleWhileRevalidate=" + staleWhileRevalidate
+					+ ",loadTimeout=" + loadTimeout + ",policy="
+					+ (bLru ? "lru" : "tinylfu");
+		}
+	}
+
+	/**
+	 * Computes the weight of an entry
+	 */
+	public interface Weigher<K, V> {
+
+		/**
+		 * Computes the weight
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @param aValue
+		 *            the value
+		 * @return the weight, must not be negative
+		 */
+		int weigh(K aKey, V aValue);
+	}
+
+	/**
+	 * Doubly linked list of entries in access order, the first entry is the
+	 * least recently used one. Only accessed under the eviction lock.
+	 */
+	private static final class AccessOrder<K, V> {
+
+		/**
+		 * least recently used entry
+		 */
+		private Node<K, V> first;
+
+		/**
+		 * most recently used entry
+		 */
+		private Node<K, V> last;
+
+		/**
+		 * total weight of the entries
+		 */
+		private long weight;
+
+		/**
+		 * Appends the entry as the most recently used one
+		 * 
+		 * @param aNode
+		 *            the entry
+		 */
+		void add(final Node<K, V> aNode) {
+			aNode.prev = last;
+			aNode.next = null;
+			if (last != null) {
+				last.next = aNode;
+			} else {
+				first = aNode;
+			}
+			last = aNode;
+			weight += aNode.policyWeight;
+		}
+
+		/**
+		 * Marks the entry as the most recently used one
+		 * 
+		 * @param aNode
+		 *            the entry
+		 */
+		void moveToLast(final Node<K, V> aNode) {
+			if (aNode != last) {
+				remove(aNode);
+				add(aNode);
+			}
+		}
+
+		/**
+		 * Removes the entry
+		 * 
+		 * @param aNode
+		 *            the entry
+		 */
+		void remove(final Node<K, V> aNode) {
+			if (aNode.prev != null) {
+				aNode.prev.next = aNode.next;
+			} else {
+				first = aNode.next;
+			}
+			if (aNode.next != null) {
+				aNode.next.prev = aNode.prev;
+			} else {
+				last = aNode.prev;
+			}
+			aNode.prev = null;
+			aNode.next = null;
+			weight -= aNode.policyWeight;
+		}
+	}
+
+	/**
+	 * An entry of the cache. A new node is created for each write, so the
+	 * value of a node never changes.
+	 */
+	private static final class Node<K, V> {
+
+		/**
+		 * hash code of the key
+		 */
+		final int hash;
+
+		/**
+		 * the key
+		 */
+		final K key;
+
+		/**
+		 * next entry in access order, guarded by the eviction lock
+		 */
+		Node<K, V> next;
+
+		/**
+		 * weight accounted for in the policy, guarded by the eviction lock
+		 */
+		final int policyWeight;
+
+		/**
+		 * previous entry in access order, guarded by the eviction lock
+		 */
+		Node<K, V> prev;
+
+		/**
+		 * the queue the entry belongs to, guarded by the eviction lock
+		 */
+		int queue = QUEUE_NONE;
+
+		/**
+		 * checks if a refresh of the entry is in progress
+		 */
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		/**
+		 * the value
+		 */
+		final V value;
+
+		/**
+		 * time of the write in nanoseconds
+		 */
+		final long writeTime;
+
+		/**
+		 * Initializes the entry
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @param aValue
+		 *            the value
+		 * @param aWeight
+		 *            the weight
+		 */
+		Node(final K aKey, final V aValue, final int aWeight) {
+			this(aKey, aValue, aWeight, System.nanoTime());
+		}
+
+		/**
+		 * Initializes the entry
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @param aValue
+		 *            the value
+		 * @param aWeight
+		 *            the weight
+		 * @param aWriteTime
+		 *            time of the write in nanoseconds
+		 */
+		Node(final K aKey, final V aValue, final int aWeight,
+				final long aWriteTime) {
+			key = aKey;
+			hash = aKey.hashCode();
+			value = aValue;
+			policyWeight = aWeight;
+			writeTime = aWriteTime;
+		}
+	}
+
+	/**
+	 * Default maximum number of entries
+	 */
+	public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = DataCache.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * queue of entries that have been removed from the policy
+	 */
+	private static final int QUEUE_NONE = 0;
+
+	/**
+	 * queue of the admission window
+	 */
+	private static final int QUEUE_WINDOW = 1;
+
+	/**
+	 * queue of the main area for entries accessed once
+	 */
+	private static final int QUEUE_PROBATION = 2;
+
+	/**
+	 * queue of the main area for entries accessed repeatedly
+	 */
+	private static final int QUEUE_PROTECTED = 3;
+
+	/**
+	 * number of buffered reads that trigger the maintenance
+	 */
+	private static final int READ_BUFFER_DRAIN = 32;
+
+	/**
+	 * maximum number of buffered reads, further reads are not recorded
+	 */
+	private static final int READ_BUFFER_MAX = 256;
+
+	/**
+	 * Weigher that counts the entries
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final Weigher SINGLETON_WEIGHER = new Weigher() {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.DataCache.Weigher#weigh(java.lang.Object
+		 * , java.lang.Object)
+		 */
+		@Override
+		public int weigh(final Object aKey, final Object aValue) {
+			return 1;
+		}
+	};
+
+	/**
+	 * number of buffered reads
+	 */
+	private final AtomicInteger bufferedReads = new AtomicInteger();
+
+	/**
+	 * coalesces concurrent loads of the same key
+	 */
+	private final CoalescingLoader<K, V> coalescer;
+
+	/**
+	 * the entries
+	 */
+	private final ConcurrentHashMap<K, Node<K, V>> data;
+
+	/**
+	 * guards the policy
+	 */
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	/**
+	 * counts evicted entries
+	 */
+	private final AtomicLong evictions;
+
+	/**
+	 * runs the refreshes, may be <code>null</code>
+	 */
+	private final Executor executor;
+
+	/**
+	 * time in nanoseconds after which an entry expires, zero for never
+	 */
+	private final long expireNanos;
+
+	/**
+	 * counts expired entries
+	 */
+	private final AtomicLong expirations;
+
+	/**
+	 * counts hits
+	 */
+	private final AtomicLong hits;
+
+	/**
+	 * counts failed loads and refreshes
+	 */
+	private final AtomicLong loadFailures;
+
+	/**
+	 * counts loads
+	 */
+	private final AtomicLong loads;
+
+	/**
+	 * current maximum weight, guarded by the eviction lock
+	 */
+	private long maximum;
+
+	/**
+	 * maximum weight of the main area, guarded by the eviction lock
+	 */
+	private long mainMaximum;
+
+	/**
+	 * counts misses
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * name of the cache
+	 */
+	private final String name;
+
+	/**
+	 * main area, entries accessed once
+	 */
+	private final AccessOrder<K, V> probation = new AccessOrder<K, V>();
+
+	/**
+	 * main area, entries accessed repeatedly
+	 */
+	private final AccessOrder<K, V> protect = new AccessOrder<K, V>();
+
+	/**
+	 * maximum weight of the protected segment, guarded by the eviction lock
+	 */
+	private long protectedMaximum;
+
+	/**
+	 * reads not yet applied to the policy
+	 */
+	private final ConcurrentLinkedQueue<Node<K, V>> readBuffer = new ConcurrentLinkedQueue<Node<K, V>>();
+
+	/**
+	 * time in nanoseconds after which an entry is refreshed, zero for never
+	 */
+	private final long refreshNanos;
+
+	/**
+	 * counts refreshes
+	 */
+	private final AtomicLong refreshes;
+
+	/**
+	 * access frequencies, <code>null</code> for LRU
+	 */
+	private final FrequencySketch sketch;
+
+	/**
+	 * the configuration
+	 */
+	private final Spec spec;
+
+	/**
+	 * time in nanoseconds after which an entry is removed, zero for never
+	 */
+	private final long staleNanos;
+
+	/**
+	 * current weight, published as a gauge
+	 */
+	private final AtomicLong weight;
+
+	/**
+	 * computes the weight of the entries
+	 */
+	private final Weigher<? super K, ? super V> weigher;
+
+	/**
+	 * admission window
+	 */
+	private final AccessOrder<K, V> window = new AccessOrder<K, V>();
+
+	/**
+	 * maximum weight of the admission window, guarded by the eviction lock
+	 */
+	private long windowMaximum;
+
+	/**
+	 * Initializes the cache
+	 * 
+	 * @param aName
+	 *            name of the cache, used for the statistics
+	 * @param aSpec
+	 *            the configuration
+	 * @param aWeigher
+	 *            computes the weight of the entries, <code>null</code> to
+	 *            count the entries. Only used if the configuration defines a
+	 *            maximum weight.
+	 * @param aExecutor
+	 *            runs the refreshes, <code>null</code> to disable refreshes
+	 * @param aMetrics
+	 *            the counters
+	 */
+	@SuppressWarnings("unchecked")
+	public DataCache(final String aName, final Spec aSpec,
+			final Weigher<? super K, ? super V> aWeigher,
+			final Executor aExecutor, final Metrics aMetrics) {
+		// sanity check
+		assert aName != null;
+		assert aSpec != null;
+		assert aMetrics != null;
+		// init
+		name = aName;
+		spec = aSpec;
+		weigher = (aSpec.isWeighted() && (aWeigher != null)) ? aWeigher
+				: SINGLETON_WEIGHER;
+		executor = aExecutor;
+		expireNanos = TimeUnit.MILLISECONDS.toNanos(aSpec
+				.getExpireAfterWrite());
+		refreshNanos = TimeUnit.MILLISECONDS.toNanos(aSpec
+				.getRefreshAfterWrite());
+		staleNanos = (expireNanos > 0) ? expireNanos
+				+ TimeUnit.MILLISECONDS.toNanos(aSpec.getStaleWhileRevalidate())
+				: 0;
+		data = new ConcurrentHashMap<K, Node<K, V>>((int) Math.min(
+				aSpec.getMaximum(), 1024), 0.75f, 16);
+		sketch = aSpec.isLru() ? null : new FrequencySketch(aSpec.getMaximum());
+		// the statistics
+		final String prefix = "cache." + aName + ".";
+		hits = aMetrics.getCounter(prefix + "hits");
+		misses = aMetrics.getCounter(prefix + "misses");
+		loads = aMetrics.getCounter(prefix + "loads");
+		loadFailures = aMetrics.getCounter(prefix + "load.failures");
+		refreshes = aMetrics.getCounter(prefix + "refreshes");
+		evictions = aMetrics.getCounter(prefix + "evictions");
+		expirations = aMetrics.getCounter(prefix + "expirations");
+		weight = aMetrics.getGauge(prefix + "weight");
+		coalescer = new CoalescingLoader<K, V>(prefix + "coalesce", aMetrics);
+		// the sizes of the areas
+		setMaximum(aSpec.getMaximum());
+	}
+
+	/**
+	 * Records an access to the entry in the policy
+	 * 
+	 * @param aNode
+	 *            the entry
+	 */
+	private final void accessed(final Node<K, V> aNode) {
+		// the entry might have been removed meanwhile
+		if (sketch != null) {
+			sketch.increment(aNode.hash);
+		}
+		switch (aNode.queue) {
+		case QUEUE_WINDOW:
+			window.moveToLast(aNode);
+			break;
+		case QUEUE_PROBATION:
+			// promote
+			probation.remove(aNode);
+			aNode.queue = QUEUE_PROTECTED;
+			protect.add(aNode);
+			// demote if the protected segment overflows
+			while ((protect.weight > protectedMaximum)
+					&& (protect.first != aNode)) {
+				final Node<K, V> demoted = protect.first;
+				protect.remove(demoted);
+				demoted.queue = QUEUE_PROBATION;
+				probation.add(demoted);
+			}
+			break;
+		case QUEUE_PROTECTED:
+			protect.moveToLast(aNode);
+			break;
+		default:
+			// removed
+			break;
+		}
+	}
+
+	/**
+	 * Adds a new entry to the policy and evicts entries if required. Must be
+	 * called under the eviction lock.
+	 * 
+	 * @param aNode
+	 *            the entry
+	 */
+	private final void added(final Node<K, V> aNode) {
+		if (sketch != null) {
+			sketch.increment(aNode.hash);
+		}
+		aNode.queue = QUEUE_WINDOW;
+		window.add(aNode);
+		evict();
+	}
+
+	/**
+	 * Applies the buffered reads to the policy. Must be called under the
+	 * eviction lock.
+	 */
+	private final void drainReads() {
+		Node<K, V> node;
+		while ((node = readBuffer.poll()) != null) {
+			bufferedReads.decrementAndGet();
+			accessed(node);
+		}
+	}
+
+	/**
+	 * Removes the entry from the map and from the policy because of its size
+	 * or age. Must be called under the eviction lock.
+	 * 
+	 * @param aNode
+	 *            the entry
+	 */
+	private final void evict(final Node<K, V> aNode) {
+		data.remove(aNode.key, aNode);
+		removed(aNode);
+		evictions.incrementAndGet();
+	}
+
+	/**
+	 * Evicts entries until the cache fits into its maximum. Must be called
+	 * under the eviction lock.
+	 */
+	private final void evict() {
+		// move the entries that overflow the window to the main area
+		while (window.weight > windowMaximum) {
+			final Node<K, V> candidate = window.first;
+			window.remove(candidate);
+			candidate.queue = QUEUE_NONE;
+			if (probation.weight + protect.weight + candidate.policyWeight <= mainMaximum) {
+				// space left
+				candidate.queue = QUEUE_PROBATION;
+				probation.add(candidate);
+				continue;
+			}
+			// the least recently used entry of the main area is the victim
+			final Node<K, V> victim = (probation.first != null) ? probation.first
+					: protect.first;
+			if ((victim != null)
+					&& (sketch != null)
+					&& (sketch.frequency(candidate.hash) > sketch
+							.frequency(victim.hash))) {
+				// the candidate is more popular
+				evict(victim);
+				candidate.queue = QUEUE_PROBATION;
+				probation.add(candidate);
+			} else {
+				// the candidate is rejected, this is plain LRU eviction
+				evict(candidate);
+			}
+		}
+		// make sure the total fits, e.g. after shrinking the cache
+		while (window.weight + probation.weight + protect.weight > maximum) {
+			final Node<K, V> victim = (probation.first != null) ? probation.first
+					: ((protect.first != null) ? protect.first : window.first);
+			evict(victim);
+		}
+		// demote if the protected segment overflows
+		while (protect.weight > protectedMaximum) {
+			final Node<K, V> demoted = protect.first;
+			protect.remove(demoted);
+			demoted.queue = QUEUE_PROBATION;
+			probation.add(demoted);
+		}
+		// publish the weight
+		weight.set(window.weight + probation.weight + protect.weight);
+	}
+
+	/**
+	 * Removes the expired entry. Must be called under the eviction lock.
+	 * 
+	 * @param aNode
+	 *            the entry
+	 */
+	private final void expire(final Node<K, V> aNode) {
+		if (data.remove(aNode.key, aNode)) {
+			removed(aNode);
+			expirations.incrementAndGet();
+			weight.set(window.weight + probation.weight + protect.weight);
+		}
+	}
+
+	/**
+	 * Returns the value of the key, loading it if required. Concurrent
+	 * callers that miss the same key share a single load, they wait at most
+	 * for the load timeout of the configuration.
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aLoader
+	 *            loads the value on a miss and refreshes it in the background
+	 * @return the value or <code>null</code> if the loader did not return a
+	 *         value
+	 * @throws java.util.concurrent.TimeoutException
+	 *             if the load of a concurrent caller did not complete in time
+	 * @throws Exception
+	 *             the failure of the loader
+	 */
+	public V get(final K aKey, final Loader<? super K, V> aLoader)
+			throws Exception {
+		// sanity check
+		assert aKey != null;
+		assert aLoader != null;
+		// lookup
+		final Node<K, V> node = lookup(aKey);
+		if (node != null) {
+			// refresh old entries in the background
+			if ((refreshNanos > 0)
+					&& (System.nanoTime() - node.writeTime >= refreshNanos)) {
+				refresh(node, aLoader);
+			}
+			return node.value;
+		}
+		// load once for all concurrent callers
+		return load(aKey, aLoader);
+	}
+
+	/**
+	 * Returns the value of the key, even if it expired, as long as it is kept
+	 * as the last good value. The read is not recorded in the statistics or
+	 * the policy.
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @return the value or <code>null</code>
+	 */
+	public V getStale(final K aKey) {
+		// sanity check
+		assert aKey != null;
+		// lookup
+		final Node<K, V> node = data.get(aKey);
+		return ((node != null) && ((staleNanos == 0) || (System.nanoTime()
+				- node.writeTime < staleNanos))) ? node.value : null;
+	}
+
+	/**
+	 * Loads the value of the key without looking it up, e.g. after a miss
+	 * reported by {@link #getIfPresent(Object)}, and caches it. Concurrent
+	 * callers that load the same key share a single load, they wait at most
+	 * for the load timeout of the configuration.
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aLoader
+	 *            loads the value
+	 * @return the value or <code>null</code> if the loader did not return a
+	 *         value
+	 * @throws java.util.concurrent.TimeoutException
+	 *             if the load of a concurrent caller did not complete in time
+	 * @throws Exception
+	 *             the failure of the loader
+	 */
+	public V load(final K aKey, final Loader<? super K, V> aLoader)
+			throws Exception {
+		// sanity check
+		assert aKey != null;
+		assert aLoader != null;
+		// load once for all concurrent callers
+		return coalescer.load(aKey, new Loader<K, V>() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see
+			 * com.ibm.portal.samples.common.DataCache.Loader#load(java.lang.
+			 * Object)
+			 */
+			@Override
+			public V load(final K aKey) throws Exception {
+				// a previous load might have completed meanwhile
+				final Node<K, V> node = data.get(aKey);
+				if ((node != null)
+						&& ((expireNanos == 0) || (System.nanoTime()
+								- node.writeTime < expireNanos))) {
+					return node.value;
+				}
+				// load and publish before the other callers are released
+				final V value = callLoader(aKey, aLoader);
+				if (value != null) {
+					put(aKey, value);
+				}
+				return value;
+			}
+		}, spec.getLoadTimeout());
+	}
+
+	/**
+	 * Returns the value of the key if it is cached
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @return the value or <code>null</code>
+	 */
+	public V getIfPresent(final K aKey) {
+		// sanity check
+		assert aKey != null;
+		// lookup
+		final Node<K, V> node = lookup(aKey);
+		return (node != null) ? node.value : null;
+	}
+
+	/**
+	 * Returns copies of the entries that have not expired, the most valuable
+	 * ones first: the protected segment, the probation segment and finally
+	 * the window, each from the most to the least recently used entry. The
+	 * read is not recorded in the statistics or the policy.
+	 * 
+	 * @param aLimit
+	 *            maximum number of entries
+	 * @return the entries
+	 */
+	public List<Entry<K, V>> getHottest(final int aLimit) {
+		// sanity check
+		assert aLimit >= 0;
+		final List<Entry<K, V>> result = new ArrayList<Entry<K, V>>(Math.min(
+				aLimit, data.size()));
+		final long now = System.nanoTime();
+		evictionLock.lock();
+		try {
+			drainReads();
+			final List<AccessOrder<K, V>> orders = new ArrayList<AccessOrder<K, V>>(
+					3);
+			orders.add(protect);
+			orders.add(probation);
+			orders.add(window);
+			for (final AccessOrder<K, V> order : orders) {
+				for (Node<K, V> node = order.last; (node != null)
+						&& (result.size() < aLimit); node = node.prev) {
+					final long age = now - node.writeTime;
+					if ((expireNanos == 0) || (age < expireNanos)) {
+						result.add(new Entry<K, V>(node.key, node.value,
+								TimeUnit.NANOSECONDS.toMillis(age)));
+					}
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Returns the name of the cache
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the configuration of the cache
+	 * 
+	 * @return the configuration
+	 */
+	public Spec getSpec() {
+		return spec;
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public void invalidateAll() {
+		evictionLock.lock();
+		try {
+			for (final Node<K, V> node : data.values()) {
+				if (data.remove(node.key, node)) {
+					removed(node);
+				}
+			}
+			drainReads();
+			weight.set(window.weight + probation.weight + protect.weight);
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the entry of the key
+	 * 
+	 * @param aKey
+	 *            the key
+	 */
+	public void invalidate(final K aKey) {
+		// sanity check
+		assert aKey != null;
+		evictionLock.lock();
+		try {
+			final Node<K, V> node = data.remove(aKey);
+			if (node != null) {
+				removed(node);
+				weight.set(window.weight + probation.weight + protect.weight);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads a value and records the statistics
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aLoader
+	 *            the loader
+	 * @return the value
+	 * @throws Exception
+	 *             the failure of the loader
+	 */
+	private final V callLoader(final K aKey,
+			final Loader<? super K, V> aLoader) throws Exception {
+		loads.incrementAndGet();
+		try {
+			return aLoader.load(aKey);
+		} catch (final Exception ex) {
+			loadFailures.incrementAndGet();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Looks up the entry of the key and records the read
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @return the entry or <code>null</code> on a miss
+	 */
+	private final Node<K, V> lookup(final K aKey) {
+		// lookup
+		final Node<K, V> node = data.get(aKey);
+		if (node == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		// check the age
+		final long age = System.nanoTime() - node.writeTime;
+		if ((expireNanos > 0) && (age >= expireNanos)) {
+			// keep the last good value until the stale period ends
+			if (age >= staleNanos) {
+				evictionLock.lock();
+				try {
+					expire(node);
+				} finally {
+					evictionLock.unlock();
+				}
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		// record the read, drop it if the buffer is full
+		final int pending = bufferedReads.incrementAndGet();
+		if (pending <= READ_BUFFER_MAX) {
+			readBuffer.offer(node);
+		} else {
+			bufferedReads.decrementAndGet();
+		}
+		// apply the reads if nobody else does
+		if ((pending >= READ_BUFFER_DRAIN) && evictionLock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+		// ok
+		return node;
+	}
+
+	/**
+	 * Adds or replaces the entry of the key
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aValue
+	 *            the value
+	 */
+	public void put(final K aKey, final V aValue) {
+		// sanity check
+		assert aKey != null;
+		assert aValue != null;
+		// the new entry
+		final int w = weigher.weigh(aKey, aValue);
+		assert w >= 0;
+		final Node<K, V> node = new Node<K, V>(aKey, aValue, w);
+		evictionLock.lock();
+		try {
+			// apply the reads first, so the eviction sees them
+			drainReads();
+			// replace
+			final Node<K, V> old = data.put(aKey, node);
+			if (old != null) {
+				removed(old);
+			}
+			added(node);
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Reloads the entry in the background, readers get the current value
+	 * until the new one is available
+	 * 
+	 * @param aNode
+	 *            the entry
+	 * @param aLoader
+	 *            the loader
+	 */
+	private final void refresh(final Node<K, V> aNode,
+			final Loader<? super K, V> aLoader) {
+		// logging support
+		final String LOG_METHOD = "refresh(aNode, aLoader)";
+		// only one refresh per entry
+		if ((executor == null) || !aNode.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.lang.Runnable#run()
+				 */
+				@Override
+				public void run() {
+					try {
+						final V value = callLoader(aNode.key, aLoader);
+						refreshes.incrementAndGet();
+						// only replace the entry if nobody else did
+						if (value != null) {
+							replace(aNode, value);
+						} else {
+							invalidate(aNode.key);
+						}
+					} catch (final Exception ex) {
+						// keep the current value until it expires
+						aNode.refreshing.set(false);
+						LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+								"Refresh of [" + aNode.key + "] in cache ["
+										+ name + "] failed.", ex);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ex) {
+			// try again with the next read
+			aNode.refreshing.set(false);
+			if (LOGGER.isLoggable(LOG_LEVEL)) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Executor rejected the refresh of [{0}].", aNode.key);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry from the policy. Must be called under the eviction
+	 * lock.
+	 * 
+	 * @param aNode
+	 *            the entry
+	 */
+	private final void removed(final Node<K, V> aNode) {
+		switch (aNode.queue) {
+		case QUEUE_WINDOW:
+			window.remove(aNode);
+			break;
+		case QUEUE_PROBATION:
+			probation.remove(aNode);
+			break;
+		case QUEUE_PROTECTED:
+			protect.remove(aNode);
+			break;
+		default:
+			// not part of the policy
+			break;
+		}
+		aNode.queue = QUEUE_NONE;
+	}
+
+	/**
+	 * Replaces the entry by a new value, unless it has been replaced or
+	 * removed meanwhile
+	 * 
+	 * @param aNode
+	 *            the entry
+	 * @param aValue
+	 *            the new value
+	 */
+	private final void replace(final Node<K, V> aNode, final V aValue) {
+		// the new entry
+		final Node<K, V> node = new Node<K, V>(aNode.key, aValue,
+				weigher.weigh(aNode.key, aValue));
+		evictionLock.lock();
+		try {
+			if (data.replace(aNode.key, aNode, node)) {
+				removed(aNode);
+				added(node);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an entry that has been written some time ago, e.g. from a
+	 * persisted copy. The entry keeps its age, so it expires and refreshes as
+	 * if it had never left the cache. Entries that expired meanwhile and keys
+	 * that have been cached already are ignored.
+	 * 
+	 * @param aKey
+	 *            the key
+	 * @param aValue
+	 *            the value
+	 * @param aAge
+	 *            time in milliseconds since the entry has been written
+	 * @return <code>true</code> if the entry has been added
+	 */
+	public boolean restore(final K aKey, final V aValue, final long aAge) {
+		// sanity check
+		assert aKey != null;
+		assert aValue != null;
+		assert aAge >= 0;
+		// check the age
+		final long age = TimeUnit.MILLISECONDS.toNanos(aAge);
+		if ((expireNanos > 0) && (age >= expireNanos)) {
+			return false;
+		}
+		// the new entry
+		final int w = weigher.weigh(aKey, aValue);
+		assert w >= 0;
+		final Node<K, V> node = new Node<K, V>(aKey, aValue, w,
+				System.nanoTime() - age);
+		evictionLock.lock();
+		try {
+			// never replace a current value
+			if (data.putIfAbsent(aKey, node) != null) {
+				return false;
+			}
+			// apply the reads first, so the eviction sees them
+			drainReads();
+			added(node);
+		} finally {
+			evictionLock.unlock();
+		}
+		// ok
+		return true;
+	}
+
+	/**
+	 * Changes the maximum weight of the cache, e.g. to react to memory
+	 * pressure. Entries are evicted immediately if the cache is too large.
+	 * 
+	 * @param aMaximum
+	 *            the new maximum
+	 */
+	public void setMaximum(final long aMaximum) {
+		// sanity check
+		assert aMaximum > 0;
+		evictionLock.lock();
+		try {
+			maximum = aMaximum;
+			if (sketch == null) {
+				// LRU, everything is in the window
+				windowMaximum = aMaximum;
+				mainMaximum = 0;
+			} else {
+				// one percent for the window, the rest for the main area
+				windowMaximum = Math.max(1, aMaximum / 100);
+				mainMaximum = aMaximum - windowMaximum;
+			}
+			protectedMaximum = (mainMaximum * 4) / 5;
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current maximum weight of the cache
+	 * 
+	 * @return the maximum
+	 */
+	public long getMaximum() {
+		evictionLock.lock();
+		try {
+			return maximum;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries, including expired ones that have not
+	 * been removed, yet
+	 * 
+	 * @return the number of entries
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DataCache[" + name + "," + spec + "]";
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size limits that are enforced while decoding request data, i.e. render
+ * parameters and form fields. The limits protect against crafted requests
+ * that force large allocations. Each rejection is counted in the
+ * {@link Metrics}, so abusive traffic becomes visible. Since the client
+ * controls the rejections, at most one warning per
+ * {@link #WARNING_INTERVAL} is logged, the others are logged at
+ * {@link Level#FINE}.
+ * 
+ * The per parameter limit applies to each individual value, the per request
+ * limit to the sum of all values decoded while processing one request. Use
+ * {@link #newBudget()} to track the latter.
+ * 
+ * @author cleue
+ */
+public class DecodingLimits {
+
+	/**
+	 * Tracks the amount of data decoded during a single request. Instances are
+	 * not thread safe, they are meant to be used by request scoped beans.
+	 */
+	public final class Budget {
+
+		/**
+		 * the decisions about the values that have been charged by key
+		 */
+		private Map<Object, Boolean> charged;
+
+		/**
+		 * number of bytes decoded so far
+		 */
+		private long consumed;
+
+		/**
+		 * Do not instantiate this directly
+		 */
+		private Budget() {
+
+		}
+
+		/**
+		 * Checks if a value of the given size may be decoded and accounts for
+		 * it
+		 * 
+		 * @param aLength
+		 *            size of the value in bytes
+		 * @return <code>true</code> if the value may be decoded, else
+		 *         <code>false</code>
+		 */
+		public boolean consume(final long aLength) {
+			// check the value itself
+			if (!checkParameter(aLength)) {
+				return false;
+			}
+			// check the request
+			if (!checkRequest(consumed + aLength)) {
+				return false;
+			}
+			// account
+			consumed += aLength;
+			return true;
+		}
+
+		/**
+		 * Checks if a named value may be decoded and accounts for it. Each key
+		 * is charged only once, decoding the same value again, e.g. in a
+		 * clone of a model, returns the first decision without charging or
+		 * counting it again. The size is the length of the UTF-8 encoding of
+		 * the value.
+		 * 
+		 * @param aKey
+		 *            identifies the value within the request
+		 * @param aValue
+		 *            the value
+		 * @return <code>true</code> if the value may be decoded, else
+		 *         <code>false</code>
+		 */
+		public boolean consume(final Object aKey, final CharSequence aValue) {
+			// sanity check
+			assert aKey != null;
+			assert aValue != null;
+			// values that have been charged before
+			if (charged == null) {
+				charged = new HashMap<Object, Boolean>();
+			}
+			final Boolean previous = charged.get(aKey);
+			if (previous != null) {
+				return previous.booleanValue();
+			}
+			// charge the value
+			final boolean bAccepted = consume(getUTF8Length(aValue));
+			charged.put(aKey, Boolean.valueOf(bAccepted));
+			return bAccepted;
+		}
+	}
+
+	/**
+	 * Default maximum size of a single value
+	 */
+	public static final int DEFAULT_MAX_PARAMETER_LENGTH = 16 * 1024;
+
+	/**
+	 * Default maximum size of all values of a request
+	 */
+	public static final long DEFAULT_MAX_REQUEST_LENGTH = 1024 * 1024;
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = DecodingLimits.class.getName();
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * minimum time in milliseconds between two warnings about rejections
+	 */
+	public static final long WARNING_INTERVAL = 60 * 1000;
+
+	/**
+	 * Name of the counter for values that exceeded the per parameter limit
+	 */
+	public static final String METRIC_REJECTED_PARAMETER = "decoding.rejected.parameter";
+
+	/**
+	 * Name of the counter for requests that exceeded the per request limit
+	 */
+	public static final String METRIC_REJECTED_REQUEST = "decoding.rejected.request";
+
+	/**
+	 * maximum size of a single value
+	 */
+	private final int maxParameterLength;
+
+	/**
+	 * maximum size of all values of a request
+	 */
+	private final long maxRequestLength;
+
+	/**
+	 * earliest time of the next warning
+	 */
+	private final AtomicLong nextWarning = new AtomicLong();
+
+	/**
+	 * counts rejected values
+	 */
+	private final AtomicLong rejectedParameters;
+
+	/**
+	 * counts rejected requests
+	 */
+	private final AtomicLong rejectedRequests;
+
+	/**
+	 * Initializes the limits
+	 * 
+	 * @param aMaxParameterLength
+	 *            maximum size of a single value
+	 * @param aMaxRequestLength
+	 *            maximum size of all values of a request
+	 * @param aMetrics
+	 *            the metrics used to count the rejections
+	 */
+	public DecodingLimits(final int aMaxParameterLength,
+			final long aMaxRequestLength, final Metrics aMetrics) {
+		// sanity check
+		assert aMaxParameterLength > 0;
+		assert aMaxRequestLength > 0;
+		assert aMetrics != null;
+		// init
+		maxParameterLength = aMaxParameterLength;
+		maxRequestLength = aMaxRequestLength;
+		rejectedParameters = aMetrics.getCounter(METRIC_REJECTED_PARAMETER);
+		rejectedRequests = aMetrics.getCounter(METRIC_REJECTED_REQUEST);
+	}
+
+	/**
+	 * Computes the number of bytes of the UTF-8 encoding of the characters,
+	 * without encoding them
+	 * 
+	 * @param aValue
+	 *            the characters
+	 * @return the number of bytes
+	 */
+	public static long getUTF8Length(final CharSequence aValue) {
+		// sanity check
+		assert aValue != null;
+		// count
+		final int len = aValue.length();
+		long result = len;
+		for (int i = 0; i < len; ++i) {
+			final char c = aValue.charAt(i);
+			if (c >= 0x800) {
+				if (Character.isHighSurrogate(c) && (i + 1 < len)
+						&& Character.isLowSurrogate(aValue.charAt(i + 1))) {
+					// four bytes for the pair
+					result += 2;
+					++i;
+				} else {
+					result += 2;
+				}
+			} else if (c >= 0x80) {
+				result += 1;
+			}
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Checks a single value against the per parameter limit
+	 * 
+	 * @param aLength
+	 *            size of the value in bytes
+	 * @return <code>true</code> if the value is acceptable, else
+	 *         <code>false</code>
+	 */
+	public boolean checkParameter(final long aLength) {
+		// check
+		if (aLength <= maxParameterLength) {
+			return true;
+		}
+		// count this
+		rejectParameter(aLength);
+		return false;
+	}
+
+	/**
+	 * Checks the size of a request against the per request limit
+	 * 
+	 * @param aLength
+	 *            size of the request data in bytes
+	 * @return <code>true</code> if the request is acceptable, else
+	 *         <code>false</code>
+	 */
+	public boolean checkRequest(final long aLength) {
+		// check
+		if (aLength <= maxRequestLength) {
+			return true;
+		}
+		// count this
+		rejectRequest(aLength);
+		return false;
+	}
+
+	/**
+	 * Logs a rejection, as a warning if the last warning is long enough ago,
+	 * else at {@link Level#FINE}
+	 * 
+	 * @param aMethod
+	 *            the logging method
+	 * @param aMessage
+	 *            the message
+	 * @param aParams
+	 *            the parameters of the message
+	 */
+	private final void logRejection(final String aMethod,
+			final String aMessage, final Object[] aParams) {
+		// check if we may warn
+		final long now = System.currentTimeMillis();
+		final long next = nextWarning.get();
+		if ((now >= next)
+				&& nextWarning.compareAndSet(next, now + WARNING_INTERVAL)) {
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, aMethod, aMessage
+					+ " Further rejections within [" + WARNING_INTERVAL
+					+ "] ms are logged at FINE.", aParams);
+		} else if (LOGGER.isLoggable(Level.FINE)) {
+			// log this
+			LOGGER.logp(Level.FINE, LOG_CLASS, aMethod, aMessage, aParams);
+		}
+	}
+
+	/**
+	 * Returns the maximum size of a single value
+	 * 
+	 * @return the limit
+	 */
+	public int getMaxParameterLength() {
+		return maxParameterLength;
+	}
+
+	/**
+	 * Returns the maximum size of all values of a request
+	 * 
+	 * @return the limit
+	 */
+	public long getMaxRequestLength() {
+		return maxRequestLength;
+	}
+
+	/**
+	 * Constructs a tracker for the data decoded during one request
+	 * 
+	 * @return the tracker
+	 */
+	public Budget newBudget() {
+		return new Budget();
+	}
+
+	/**
+	 * Counts and logs a value that exceeded the per parameter limit. Call this
+	 * directly if the limit has been enforced by a different component, e.g.
+	 * by the file upload parser.
+	 * 
+	 * @param aLength
+	 *            size of the value, <code>-1</code> if unknown
+	 */
+	public void rejectParameter(final long aLength) {
+		// logging support
+		final String LOG_METHOD = "rejectParameter(aLength)";
+		// count and log this
+		rejectedParameters.incrementAndGet();
+		logRejection(LOG_METHOD,
+				"Rejected a value of [{0}] bytes, the limit is [{1}].",
+				new Object[] { aLength, maxParameterLength });
+	}
+
+	/**
+	 * Counts and logs a request that exceeded the per request limit. Call this
+	 * directly if the limit has been enforced by a different component, e.g.
+	 * by the file upload parser.
+	 * 
+	 * @param aLength
+	 *            size of the request, <code>-1</code> if unknown
+	 */
+	public void rejectRequest(final long aLength) {
+		// logging support
+		final String LOG_METHOD = "rejectRequest(aLength)";
+		// count and log this
+		rejectedRequests.incrementAndGet();
+		logRejection(LOG_METHOD,
+				"Rejected a request of [{0}] bytes, the limit is [{1}].",
+				new Object[] { aLength, maxRequestLength });
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Marshaller for private render parameters that compresses large string values.
+ * Strings whose UTF-8 representation exceeds a threshold are compressed using
+ * the deflate algorithm with a preset dictionary shared by encoder and decoder
+ * and then represented in the base64url alphabet, so they can travel in URLs
+ * without further escaping. Short values are passed through unchanged, because
+ * for these the compression overhead outweighs the savings.
+ * 
+ * The encoding of a compressed value starts with {@link #MARKER}. Plain values
+ * that happen to start with the marker are escaped by doubling it.
+ * 
+ * Decoding is bounded: tokens that are longer than the configured maximum or
+ * that inflate to more than the configured maximum are rejected and the
+ * default value is used instead. Note that decoding is lazy by construction,
+ * since the model only unmarshals a parameter when its getter is called.
+ * 
+ * Compressors and decompressors hold native memory, so they are kept in
+ * bounded pools and released by {@link #destroy()}.
+ * 
+ * @author cleue
+ * 
+ */
+public class DeflateParameterMarshaller extends PrivateParameterMarshaller {
+
+	/**
+	 * Default preset dictionary. The dictionary should contain byte sequences
+	 * that are likely to appear in the compressed values, the most likely ones
+	 * at the end.
+	 * 
+	 * TODO replace by the typical content of your navigational state
+	 */
+	public static final String DEFAULT_DICTIONARY = "true false null sample id=name=value=filter=sort=asc desc page=selection=";
+
+	/**
+	 * Default maximum number of bytes a compressed value may inflate to
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 64 * 1024;
+
+	/**
+	 * Default number of idle compressors and decompressors kept for reuse
+	 */
+	public static final int DEFAULT_POOL_SIZE = 2 * Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * Default minimum number of bytes before a value gets compressed
+	 */
+	public static final int DEFAULT_THRESHOLD = 128;
+
+	/**
+	 * Encoding used to convert between strings and bytes
+	 */
+	private static final String ENCODING = "UTF-8";
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = DeflateParameterMarshaller.class
+			.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Prefix of a compressed value, this character is not part of the
+	 * base64url alphabet
+	 */
+	public static final char MARKER = '~';
+
+	/**
+	 * singleton access using the default settings
+	 */
+	public static final Marshaller SINGLETON = new DeflateParameterMarshaller(
+			DEFAULT_THRESHOLD, DEFAULT_MAX_LENGTH, DEFAULT_DICTIONARY);
+
+	/**
+	 * checks if the marshaller has been destroyed
+	 */
+	private volatile boolean bDestroyed;
+
+	/**
+	 * idle compressors, the native resources of a {@link Deflater} are
+	 * expensive to allocate
+	 */
+	private final BlockingQueue<Deflater> deflaters;
+
+	/**
+	 * the preset dictionary
+	 */
+	private final byte[] dictionary;
+
+	/**
+	 * idle decompressors, the native resources of an {@link Inflater} are
+	 * expensive to allocate
+	 */
+	private final BlockingQueue<Inflater> inflaters;
+
+	/**
+	 * maximum number of bytes a value may inflate to
+	 */
+	private final int maxLength;
+
+	/**
+	 * maximum number of characters of a compressed token, derived from the
+	 * maximum length
+	 */
+	private final int maxTokenLength;
+
+	/**
+	 * minimum number of bytes before compression kicks in
+	 */
+	private final int threshold;
+
+	/**
+	 * Initializes the marshaller with the default pool size
+	 * 
+	 * @param aThreshold
+	 *            minimum size in bytes of the UTF-8 representation of a string
+	 *            before it gets compressed
+	 * @param aMaxLength
+	 *            maximum size in bytes a compressed value may inflate to
+	 * @param aDictionary
+	 *            the preset dictionary, must be identical for encoding and
+	 *            decoding
+	 */
+	public DeflateParameterMarshaller(final int aThreshold,
+			final int aMaxLength, final String aDictionary) {
+		this(aThreshold, aMaxLength, aDictionary, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * Initializes the marshaller
+	 * 
+	 * @param aThreshold
+	 *            minimum size in bytes of the UTF-8 representation of a string
+	 *            before it gets compressed
+	 * @param aMaxLength
+	 *            maximum size in bytes a compressed value may inflate to
+	 * @param aDictionary
+	 *            the preset dictionary, must be identical for encoding and
+	 *            decoding
+	 * @param aPoolSize
+	 *            maximum number of idle compressors and decompressors kept
+	 *            for reuse
+	 */
+	public DeflateParameterMarshaller(final int aThreshold,
+			final int aMaxLength, final String aDictionary, final int aPoolSize) {
+		// sanity check
+		assert aThreshold >= 0;
+		assert aMaxLength > 0;
+		assert aDictionary != null;
+		assert aPoolSize > 0;
+		// init
+		threshold = aThreshold;
+		maxLength = aMaxLength;
+		dictionary = toBytes(aDictionary);
+		deflaters = new ArrayBlockingQueue<Deflater>(aPoolSize);
+		inflaters = new ArrayBlockingQueue<Inflater>(aPoolSize);
+		/**
+		 * deflate never expands by more than a few bytes per 16K block, so
+		 * anything longer than this cannot be a valid token
+		 */
+		final long maxCompressed = maxLength + (maxLength >> 10) + 64;
+		maxTokenLength = (int) Math.min(Integer.MAX_VALUE,
+				((maxCompressed << 2) + 2) / 3 + 1);
+	}
+
+	/**
+	 * Compresses the data
+	 * 
+	 * @param aData
+	 *            the data to compress
+	 * @return the compressed representation, prefixed by the marker
+	 */
+	private final String deflate(final byte[] aData) {
+		// get an idle compressor or allocate a new one
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		}
+		try {
+			// initialize
+			deflater.setDictionary(dictionary);
+			deflater.setInput(aData);
+			deflater.finish();
+			// target buffer, sized for the worst case
+			byte[] buffer = new byte[aData.length + (aData.length >> 3) + 64];
+			int len = 0;
+			while (!deflater.finished()) {
+				// grow if required
+				if (len == buffer.length) {
+					final byte[] newBuffer = new byte[buffer.length << 1];
+					System.arraycopy(buffer, 0, newBuffer, 0, len);
+					buffer = newBuffer;
+				}
+				len += deflater.deflate(buffer, len, buffer.length - len);
+			}
+			// encode
+			return MARKER + Base64URL.encode(buffer, 0, len);
+		} finally {
+			// make the compressor reusable, release it if the pool is full
+			deflater.reset();
+			if (bDestroyed || !deflaters.offer(deflater)) {
+				deflater.end();
+			} else if (bDestroyed && deflaters.remove(deflater)) {
+				// the pool has been drained concurrently
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Releases the native memory of the idle compressors and decompressors.
+	 * Instances that are in use are released when they are returned.
+	 */
+	public void destroy() {
+		// no more pooling
+		bDestroyed = true;
+		// release the idle instances
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+		Inflater inflater;
+		while ((inflater = inflaters.poll()) != null) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses the data, bounded by the maximum length
+	 * 
+	 * @param aData
+	 *            the compressed data
+	 * @return the decompressed string or <code>null</code> if the data could
+	 *         not be decoded or exceeded the limit
+	 */
+	private final String inflate(final byte[] aData) {
+		// logging support
+		final String LOG_METHOD = "inflate(aData)";
+		// get an idle decompressor or allocate a new one
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+			// initialize
+			inflater.setDictionary(dictionary);
+			inflater.setInput(aData);
+			// target buffer
+			byte[] buffer = new byte[Math.min(maxLength,
+					Math.max(aData.length << 2, 256))];
+			int len = 0;
+			while (!inflater.finished()) {
+				// grow if required, but never beyond the limit
+				if (len == buffer.length) {
+					if (len >= maxLength) {
+						// log this, the client controls the value
+						if (LOGGER.isLoggable(LOG_LEVEL)) {
+							LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+									"Compressed parameter exceeds [{0}] bytes.",
+									maxLength);
+						}
+						return null;
+					}
+					final byte[] newBuffer = new byte[(int) Math.min(
+							maxLength, ((long) buffer.length) << 1)];
+					System.arraycopy(buffer, 0, newBuffer, 0, len);
+					buffer = newBuffer;
+				}
+				// inflate
+				final int n = inflater.inflate(buffer, len, buffer.length - len);
+				if ((n == 0)
+						&& (inflater.needsInput() || inflater
+								.needsDictionary())) {
+					// truncated input
+					return null;
+				}
+				len += n;
+			}
+			// decode
+			return new String(buffer, 0, len, ENCODING);
+		} catch (final DataFormatException ex) {
+			// log this
+			if (LOGGER.isLoggable(LOG_LEVEL)) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Invalid compressed parameter.", ex);
+			}
+			return null;
+		} catch (final UnsupportedEncodingException ex) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(ex);
+		} finally {
+			// make the decompressor reusable, release it if the pool is full
+			inflater.reset();
+			if (bDestroyed || !inflaters.offer(inflater)) {
+				inflater.end();
+			} else if (bDestroyed && inflaters.remove(inflater)) {
+				// the pool has been drained concurrently
+				inflater.end();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.ibm.portal.samples.common.AbstractMarshaller#marshalString(java.lang
+	 * .String)
+	 */
+	@Override
+	public String marshalString(final String aRaw) {
+		// nothing to compress
+		if (aRaw == null) {
+			return null;
+		}
+		// escape values that look like compressed ones
+		final String plain = ((aRaw.length() > 0) && (aRaw.charAt(0) == MARKER)) ? MARKER
+				+ aRaw
+				: aRaw;
+		/**
+		 * the UTF-8 length is at least the number of characters, so short
+		 * strings can be excluded without the conversion
+		 */
+		if (plain.length() < threshold) {
+			return plain;
+		}
+		// check the byte length
+		final byte[] data = toBytes(aRaw);
+		if (data.length < threshold) {
+			return plain;
+		}
+		// compress and only use the result if it is actually shorter
+		final String compressed = deflate(data);
+		return (compressed.length() < plain.length()) ? compressed : plain;
+	}
+
+	/**
+	 * Converts the string to its UTF-8 representation
+	 * 
+	 * @param aValue
+	 *            the string
+	 * @return the bytes
+	 */
+	private static final byte[] toBytes(final String aValue) {
+		try {
+			return aValue.getBytes(ENCODING);
+		} catch (final UnsupportedEncodingException ex) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.ibm.portal.samples.common.AbstractMarshaller#unmarshalString(java
+	 * .lang.String, java.lang.String)
+	 */
+	@Override
+	public String unmarshalString(final String aToken, final String aDefault) {
+		// plain values
+		if ((aToken == null) || (aToken.length() == 0)
+				|| (aToken.charAt(0) != MARKER)) {
+			return super.unmarshalString(aToken, aDefault);
+		}
+		// escaped plain values
+		if ((aToken.length() > 1) && (aToken.charAt(1) == MARKER)) {
+			return aToken.substring(1);
+		}
+		// reject oversized tokens before decoding anything
+		if (aToken.length() > maxTokenLength) {
+			return aDefault;
+		}
+		// decode the compressed value
+		final byte[] data = Base64URL.decode(aToken.substring(1));
+		final String result = (data != null) ? inflate(data) : null;
+		// fallback
+		return (result != null) ? result : aDefault;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.io.FileCleaningTracker;
+
+/**
+ * File item that computes the SHA-256 digest of an uploaded file while the
+ * parser writes it, so the content does not have to be read a second time to
+ * compute a content address. Form fields are not digested, instead their size
+ * is limited while they are written, since the limit of the parser applies to
+ * files and form fields alike.
+ * 
+ * @author cleue
+ */
+public class DigestFileItem extends DiskFileItem {
+
+	/**
+	 * Stream that rejects the content of a form field once it exceeds the
+	 * maximum size
+	 */
+	private final class LimitedOutputStream extends FilterOutputStream {
+
+		/**
+		 * number of bytes written
+		 */
+		private long count;
+
+		/**
+		 * Initializes the stream
+		 * 
+		 * @param aOut
+		 *            the target stream
+		 */
+		private LimitedOutputStream(final OutputStream aOut) {
+			super(aOut);
+		}
+
+		/**
+		 * Counts the bytes and fails if the limit is exceeded
+		 * 
+		 * @param aLength
+		 *            number of bytes to write
+		 * @throws IOException
+		 */
+		private final void check(final int aLength) throws IOException {
+			count += aLength;
+			if (count > maxFieldSize) {
+				// the parser unwraps the exception
+				final FileSizeLimitExceededException ex = new FileSizeLimitExceededException(
+						"The field [" + getFieldName()
+								+ "] exceeds its maximum permitted size of ["
+								+ maxFieldSize + "] bytes.", count,
+						maxFieldSize);
+				ex.setFieldName(getFieldName());
+				throw new FileUploadIOException(ex);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			check(len);
+			out.write(b, off, len);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException {
+			check(1);
+			out.write(b);
+		}
+	}
+
+	/**
+	 * algorithm used to compute the digest
+	 */
+	public static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * serialization support
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * the digest while the content is written
+	 */
+	private transient MessageDigest digest;
+
+	/**
+	 * the final digest
+	 */
+	private transient byte[] hash;
+
+	/**
+	 * maximum size of a form field, <code>-1</code> for no limit
+	 */
+	private final long maxFieldSize;
+
+	/**
+	 * Initializes the item
+	 * 
+	 * @param aFieldName
+	 *            name of the form field
+	 * @param aContentType
+	 *            the content type
+	 * @param bIsFormField
+	 *            <code>true</code> for a plain form field
+	 * @param aFileName
+	 *            the original file name
+	 * @param aSizeThreshold
+	 *            number of bytes above which the item is kept on disk
+	 * @param aRepository
+	 *            directory for the temporary file
+	 */
+	public DigestFileItem(final String aFieldName, final String aContentType,
+			final boolean bIsFormField, final String aFileName,
+			final int aSizeThreshold, final File aRepository) {
+		this(aFieldName, aContentType, bIsFormField, aFileName,
+				aSizeThreshold, aRepository, -1);
+	}
+
+	/**
+	 * Initializes the item
+	 * 
+	 * @param aFieldName
+	 *            name of the form field
+	 * @param aContentType
+	 *            the content type
+	 * @param bIsFormField
+	 *            <code>true</code> for a plain form field
+	 * @param aFileName
+	 *            the original file name
+	 * @param aSizeThreshold
+	 *            number of bytes above which the item is kept on disk
+	 * @param aRepository
+	 *            directory for the temporary file
+	 * @param aMaxFieldSize
+	 *            maximum size of a plain form field, <code>-1</code> for no
+	 *            limit
+	 */
+	public DigestFileItem(final String aFieldName, final String aContentType,
+			final boolean bIsFormField, final String aFileName,
+			final int aSizeThreshold, final File aRepository,
+			final long aMaxFieldSize) {
+		super(aFieldName, aContentType, bIsFormField, aFileName,
+				aSizeThreshold, aRepository);
+		maxFieldSize = aMaxFieldSize;
+	}
+
+	/**
+	 * Creates a new digest instance
+	 * 
+	 * @return the digest
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (final NoSuchAlgorithmException ex) {
+			// SHA-256 is a mandatory algorithm
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Returns the digest of the content. Only valid after the parser completed
+	 * the item.
+	 * 
+	 * @return the digest or <code>null</code> for form fields
+	 */
+	public synchronized byte[] getDigest() {
+		// finish the computation on first access
+		if ((hash == null) && (digest != null)) {
+			hash = digest.digest();
+			digest = null;
+		}
+		return hash;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.commons.fileupload.disk.DiskFileItem#getOutputStream()
+	 */
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		// the stream the content is written to
+		final OutputStream out = super.getOutputStream();
+		if (isFormField()) {
+			return (maxFieldSize >= 0) ? new LimitedOutputStream(out) : out;
+		}
+		// digest while writing
+		digest = createDigest();
+		hash = null;
+		return new DigestOutputStream(out, digest);
+	}
+
+	/**
+	 * Registers the temporary file of the item with the tracker, so the file
+	 * is deleted once the item is garbage collected
+	 * 
+	 * @param aTracker
+	 *            the tracker
+	 */
+	final void track(final FileCleaningTracker aTracker) {
+		aTracker.track(getTempFile(), this);
+	}
+}
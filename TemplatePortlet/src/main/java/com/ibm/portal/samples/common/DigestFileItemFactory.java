@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.File;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.io.FileCleaningTracker;
+
+/**
+ * Item factory that creates {@link DigestFileItem} instances, so uploaded
+ * files are hashed while they stream in.
+ * 
+ * @author cleue
+ */
+public class DigestFileItemFactory extends DiskFileItemFactory {
+
+	/**
+	 * maximum size of a form field, <code>-1</code> for no limit
+	 */
+	private final long maxFieldSize;
+
+	/**
+	 * Initializes the factory
+	 * 
+	 * @param aThreshold
+	 *            number of bytes above which an item is buffered on disk
+	 * @param aRepository
+	 *            directory for the temporary files, <code>null</code> for the
+	 *            system temp directory
+	 */
+	public DigestFileItemFactory(final int aThreshold, final File aRepository) {
+		this(aThreshold, aRepository, -1);
+	}
+
+	/**
+	 * Initializes the factory
+	 * 
+	 * @param aThreshold
+	 *            number of bytes above which an item is buffered on disk
+	 * @param aRepository
+	 *            directory for the temporary files, <code>null</code> for the
+	 *            system temp directory
+	 * @param aMaxFieldSize
+	 *            maximum size of a plain form field, <code>-1</code> for no
+	 *            limit
+	 */
+	public DigestFileItemFactory(final int aThreshold, final File aRepository,
+			final long aMaxFieldSize) {
+		super(aThreshold, aRepository);
+		maxFieldSize = aMaxFieldSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.apache.commons.fileupload.disk.DiskFileItemFactory#createItem(java
+	 * .lang.String, java.lang.String, boolean, java.lang.String)
+	 */
+	@Override
+	public FileItem createItem(final String aFieldName,
+			final String aContentType, final boolean bIsFormField,
+			final String aFileName) {
+		// same as the default, but with the digesting item
+		final DigestFileItem result = new DigestFileItem(aFieldName,
+				aContentType, bIsFormField, aFileName, getSizeThreshold(),
+				getRepository(), maxFieldSize);
+		final FileCleaningTracker tracker = getFileCleaningTracker();
+		if (tracker != null) {
+			result.track(tracker);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded, time expiring set of one-time tokens that detects duplicate
+ * submissions of the same action without the need for a session. Tokens are
+ * generated by the client when a form is submitted, so the markup does not
+ * depend on the user, and registered when the action executes. The second
+ * registration of a token within the expiration time is rejected. The token
+ * of an action that failed is unregistered, so the user can submit the same
+ * form again. Forms submitted without the client script carry no token and
+ * are always executed.
+ * 
+ * All tokens share the same time to live, so the insertion order is also the
+ * expiration order. The oldest tokens are dropped first if the set exceeds
+ * its capacity.
+ * 
+ * @author cleue
+ */
+public class DuplicateFilter {
+
+	/**
+	 * A registered token
+	 */
+	private static final class Entry {
+
+		/**
+		 * time of the registration
+		 */
+		private final Long created;
+
+		/**
+		 * the token
+		 */
+		private final String token;
+
+		/**
+		 * Initializes the entry
+		 * 
+		 * @param aToken
+		 *            the token
+		 * @param aCreated
+		 *            time of the registration
+		 */
+		private Entry(final String aToken, final Long aCreated) {
+			token = aToken;
+			created = aCreated;
+		}
+	}
+
+	/**
+	 * Name of the counter for accepted tokens
+	 */
+	public static final String METRIC_ACCEPTED = "actions.tokens.accepted";
+
+	/**
+	 * Name of the counter for suppressed duplicates
+	 */
+	public static final String METRIC_SUPPRESSED = "actions.tokens.suppressed";
+
+	/**
+	 * registrations in order
+	 */
+	private final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * maximum number of tokens
+	 */
+	private final int maxTokens;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * registration time by token
+	 */
+	private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * time to live of a registration in milliseconds
+	 */
+	private final long ttl;
+
+	/**
+	 * Initializes the filter
+	 * 
+	 * @param aTTL
+	 *            time in milliseconds a token is remembered
+	 * @param aMaxTokens
+	 *            maximum number of remembered tokens
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public DuplicateFilter(final long aTTL, final int aMaxTokens,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aTTL > 0;
+		assert aMaxTokens > 0;
+		assert aMetrics != null;
+		// init
+		ttl = aTTL;
+		maxTokens = aMaxTokens;
+		metrics = aMetrics;
+	}
+
+	/**
+	 * Registers the token of an action
+	 * 
+	 * @param aToken
+	 *            the token
+	 * @return <code>true</code> if the token is new and the action should be
+	 *         executed, <code>false</code> for a duplicate
+	 */
+	public boolean register(final String aToken) {
+		// sanity check
+		assert aToken != null;
+		// register atomically
+		final long now = System.currentTimeMillis();
+		final Long created = Long.valueOf(now);
+		final Long existing = tokens.putIfAbsent(aToken, created);
+		boolean bAccepted = (existing == null);
+		if (!bAccepted && (now - existing.longValue() >= ttl)) {
+			// the previous registration expired, but has not been purged
+			bAccepted = tokens.replace(aToken, existing, created);
+		}
+		// count this
+		if (!bAccepted) {
+			metrics.increment(METRIC_SUPPRESSED);
+			return false;
+		}
+		metrics.increment(METRIC_ACCEPTED);
+		entries.add(new Entry(aToken, created));
+		// drop expired and surplus registrations
+		trim(now);
+		return true;
+	}
+
+	/**
+	 * Removes the registration of a token, e.g. because the action failed and
+	 * may be submitted again
+	 * 
+	 * @param aToken
+	 *            the token
+	 */
+	public void unregister(final String aToken) {
+		// sanity check
+		assert aToken != null;
+		// the entry in the queue expires on its own
+		tokens.remove(aToken);
+	}
+
+	/**
+	 * Removes expired registrations and the oldest ones above the capacity
+	 * 
+	 * @param aNow
+	 *            the current time
+	 */
+	private final void trim(final long aNow) {
+		Entry head;
+		while (((head = entries.peek()) != null)
+				&& ((aNow - head.created.longValue() >= ttl) || (tokens.size() > maxTokens))) {
+			if (entries.remove(head)) {
+				// only remove the token if it has not been registered again
+				tokens.remove(head.token, head.created);
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+/**
+ * Approximate access frequency of the keys of a {@link DataCache}, used to
+ * decide if a new entry is worth evicting an existing one. The sketch is a
+ * count-min sketch with four 4-bit counters per key. All counters are halved
+ * periodically, so the sketch follows changes of the popularity.
+ * 
+ * The sketch is not thread safe, it is only accessed under the eviction lock
+ * of the cache.
+ * 
+ * @author cleue
+ */
+final class FrequencySketch {
+
+	/**
+	 * seeds of the hash functions
+	 */
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	/**
+	 * mask of the lowest bit of each counter
+	 */
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	/**
+	 * mask that clears the highest bit of each counter after a shift
+	 */
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/**
+	 * number of increments before the counters are halved
+	 */
+	private final int sampleSize;
+
+	/**
+	 * the counters, sixteen per long
+	 */
+	private final long[] table;
+
+	/**
+	 * mask to compute the index into the table
+	 */
+	private final int tableMask;
+
+	/**
+	 * number of increments since the last reset
+	 */
+	private int size;
+
+	/**
+	 * Initializes the sketch
+	 * 
+	 * @param aMaximumSize
+	 *            expected maximum number of entries of the cache
+	 */
+	FrequencySketch(final long aMaximumSize) {
+		// sanity check
+		assert aMaximumSize > 0;
+		// power of two, at least one counter per entry
+		final int capacity = (int) Math.min(aMaximumSize, 1 << 24);
+		final int length = Math.max(16, Integer.highestOneBit(capacity - 1) << 1);
+		table = new long[length];
+		tableMask = length - 1;
+		sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the estimated frequency of the key
+	 * 
+	 * @param aHash
+	 *            hash code of the key
+	 * @return the frequency, between 0 and 15
+	 */
+	int frequency(final int aHash) {
+		final int hash = spread(aHash);
+		int result = Integer.MAX_VALUE;
+		for (int i = 0; i < SEEDS.length; ++i) {
+			result = Math.min(result, (int) ((table[indexOf(hash, i)] >>> offsetOf(
+					hash, i)) & 0xfL));
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Records an access to the key
+	 * 
+	 * @param aHash
+	 *            hash code of the key
+	 */
+	void increment(final int aHash) {
+		final int hash = spread(aHash);
+		boolean bAdded = false;
+		for (int i = 0; i < SEEDS.length; ++i) {
+			// increment the counter unless it is saturated
+			final int index = indexOf(hash, i);
+			final int offset = offsetOf(hash, i);
+			if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+				table[index] += (1L << offset);
+				bAdded = true;
+			}
+		}
+		// age the counters
+		if (bAdded && (++size >= sampleSize)) {
+			reset();
+		}
+	}
+
+	/**
+	 * Computes the table index for the given hash function
+	 * 
+	 * @param aHash
+	 *            spread hash code of the key
+	 * @param aFunction
+	 *            index of the hash function
+	 * @return the index
+	 */
+	private final int indexOf(final int aHash, final int aFunction) {
+		long hash = (aHash + SEEDS[aFunction]) * SEEDS[aFunction];
+		hash += (hash >>> 32);
+		return ((int) hash) & tableMask;
+	}
+
+	/**
+	 * Computes the bit offset of the counter in the table entry
+	 * 
+	 * @param aHash
+	 *            spread hash code of the key
+	 * @param aFunction
+	 *            index of the hash function
+	 * @return the offset
+	 */
+	private static final int offsetOf(final int aHash, final int aFunction) {
+		// each function uses its own four counters of the sixteen per entry
+		return (((aHash >>> (aFunction << 3)) & 3) + (aFunction << 2)) << 2;
+	}
+
+	/**
+	 * Halves all counters
+	 */
+	private final void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; ++i) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size >>> 1) - (odd >>> 2);
+	}
+
+	/**
+	 * Improves the distribution of poor hash codes
+	 * 
+	 * @param aHash
+	 *            the hash code
+	 * @return the spread hash code
+	 */
+	private static final int spread(final int aHash) {
+		int hash = ((aHash >>> 16) ^ aHash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
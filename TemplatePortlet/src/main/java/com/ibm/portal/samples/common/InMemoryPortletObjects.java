@@ -0,0 +1,596 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.CharArrayWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.BaseURL;
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletMode;
+import javax.portlet.PortletPreferences;
+import javax.portlet.PortletRequest;
+import javax.portlet.PortletURL;
+import javax.portlet.ResourceURL;
+import javax.portlet.WindowState;
+
+/**
+ * Creates requests and responses that exist in memory only, e.g. to run
+ * synthetic renders through the model, view and controller before the
+ * portlet receives its first request. The objects implement the portlet
+ * interfaces via dynamic proxies and cover what the beans of a render use:
+ * parameters, attributes, the locale, the namespace, empty preferences and
+ * URLs that record their parameters. All other methods return
+ * <code>null</code>, <code>false</code> or zero.
+ * 
+ * The objects cannot be passed to the container, e.g. to include a JSP.
+ * 
+ * @author cleue
+ */
+public final class InMemoryPortletObjects {
+
+	/**
+	 * Answers the methods of an interface
+	 */
+	private abstract static class Handler implements InvocationHandler {
+
+		/**
+		 * Answers a method of the interface
+		 * 
+		 * @param aProxy
+		 *            the proxy
+		 * @param aName
+		 *            name of the method
+		 * @param aArgs
+		 *            the arguments, <code>null</code> for none
+		 * @return the result or {@link InMemoryPortletObjects#DEFAULT} for the
+		 *         default result of the return type
+		 * @throws Exception
+		 */
+		abstract Object answer(Object aProxy, String aName, Object[] aArgs)
+				throws Exception;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 * java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(final Object aProxy, final Method aMethod,
+				final Object[] aArgs) throws Throwable {
+			final String name = aMethod.getName();
+			// the methods of the object
+			if (aMethod.getDeclaringClass() == Object.class) {
+				if ("equals".equals(name)) {
+					return Boolean.valueOf(aProxy == aArgs[0]);
+				}
+				if ("hashCode".equals(name)) {
+					return Integer.valueOf(System.identityHashCode(aProxy));
+				}
+				return toString();
+			}
+			// the methods of the interface
+			final Object result = answer(aProxy, name, aArgs);
+			return (result != DEFAULT) ? result : defaultValue(aMethod
+					.getReturnType());
+		}
+	}
+
+	/**
+	 * Preferences without any values
+	 */
+	private static final class PreferencesHandler extends Handler {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.InMemoryPortletObjects.Handler#answer
+		 * (java.lang.Object, java.lang.String, java.lang.Object[])
+		 */
+		@Override
+		Object answer(final Object aProxy, final String aName,
+				final Object[] aArgs) {
+			// the defaults
+			if ("getValue".equals(aName) || "getValues".equals(aName)) {
+				return aArgs[1];
+			}
+			return DEFAULT;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "PortletPreferences[]";
+		}
+	}
+
+	/**
+	 * A request with fixed parameters
+	 */
+	private static final class RequestHandler extends Handler {
+
+		/**
+		 * the attributes
+		 */
+		private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		/**
+		 * path of the web application
+		 */
+		private final String contextPath;
+
+		/**
+		 * the locale
+		 */
+		private final Locale locale;
+
+		/**
+		 * the parameters
+		 */
+		private final Map<String, String[]> parameters;
+
+		/**
+		 * the preferences
+		 */
+		private final PortletPreferences preferences = newProxy(
+				PortletPreferences.class, new PreferencesHandler());
+
+		/**
+		 * ID of the portlet window
+		 */
+		private final String windowID;
+
+		/**
+		 * Initializes the request
+		 * 
+		 * @param aWindowID
+		 *            ID of the portlet window
+		 * @param aContextPath
+		 *            path of the web application
+		 * @param aLocale
+		 *            the locale
+		 * @param aParameters
+		 *            the parameters
+		 */
+		RequestHandler(final String aWindowID, final String aContextPath,
+				final Locale aLocale, final Map<String, String[]> aParameters) {
+			windowID = aWindowID;
+			contextPath = aContextPath;
+			locale = aLocale;
+			parameters = Collections
+					.unmodifiableMap(new LinkedHashMap<String, String[]>(
+							aParameters));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.InMemoryPortletObjects.Handler#answer
+		 * (java.lang.Object, java.lang.String, java.lang.Object[])
+		 */
+		@Override
+		Object answer(final Object aProxy, final String aName,
+				final Object[] aArgs) {
+			// attributes
+			if ("getAttribute".equals(aName)) {
+				return attributes.get(aArgs[0]);
+			}
+			if ("setAttribute".equals(aName)) {
+				if (aArgs[1] != null) {
+					attributes.put((String) aArgs[0], aArgs[1]);
+				} else {
+					attributes.remove(aArgs[0]);
+				}
+				return null;
+			}
+			if ("removeAttribute".equals(aName)) {
+				attributes.remove(aArgs[0]);
+				return null;
+			}
+			if ("getAttributeNames".equals(aName)) {
+				return Collections.enumeration(attributes.keySet());
+			}
+			// parameters, all of them are private
+			if ("getParameter".equals(aName)) {
+				final String[] values = parameters.get(aArgs[0]);
+				return ((values != null) && (values.length > 0)) ? values[0]
+						: null;
+			}
+			if ("getParameterValues".equals(aName)) {
+				return parameters.get(aArgs[0]);
+			}
+			if ("getParameterMap".equals(aName)
+					|| "getPrivateParameterMap".equals(aName)) {
+				return parameters;
+			}
+			if ("getParameterNames".equals(aName)) {
+				return Collections.enumeration(parameters.keySet());
+			}
+			// the window
+			if ("getWindowID".equals(aName)) {
+				return windowID;
+			}
+			if ("getPortletMode".equals(aName)) {
+				return PortletMode.VIEW;
+			}
+			if ("getWindowState".equals(aName)) {
+				return WindowState.NORMAL;
+			}
+			if ("getPreferences".equals(aName)) {
+				return preferences;
+			}
+			// the client
+			if ("getLocale".equals(aName)) {
+				return locale;
+			}
+			if ("getLocales".equals(aName)) {
+				return Collections.enumeration(Collections.singleton(locale));
+			}
+			if ("getResponseContentType".equals(aName)) {
+				return CONTENT_TYPE;
+			}
+			if ("getResponseContentTypes".equals(aName)) {
+				return Collections.enumeration(Collections
+						.singleton(CONTENT_TYPE));
+			}
+			if ("getContextPath".equals(aName)) {
+				return contextPath;
+			}
+			return DEFAULT;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "PortletRequest[" + windowID + "," + locale + "]";
+		}
+	}
+
+	/**
+	 * A response that discards the markup
+	 */
+	private static final class ResponseHandler extends Handler {
+
+		/**
+		 * the locale
+		 */
+		private final Locale locale;
+
+		/**
+		 * the namespace
+		 */
+		private final String namespace;
+
+		/**
+		 * the markup, discarded with the response
+		 */
+		private final PrintWriter writer = new PrintWriter(
+				new CharArrayWriter());
+
+		/**
+		 * Initializes the response
+		 * 
+		 * @param aNamespace
+		 *            the namespace
+		 * @param aLocale
+		 *            the locale
+		 */
+		ResponseHandler(final String aNamespace, final Locale aLocale) {
+			namespace = aNamespace;
+			locale = aLocale;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.InMemoryPortletObjects.Handler#answer
+		 * (java.lang.Object, java.lang.String, java.lang.Object[])
+		 */
+		@Override
+		Object answer(final Object aProxy, final String aName,
+				final Object[] aArgs) {
+			// URLs
+			if ("createRenderURL".equals(aName)
+					|| "createActionURL".equals(aName)) {
+				return newProxy(PortletURL.class, new URLHandler(aName));
+			}
+			if ("createResourceURL".equals(aName)) {
+				return newProxy(ResourceURL.class, new URLHandler(aName));
+			}
+			if ("encodeURL".equals(aName)) {
+				return aArgs[0];
+			}
+			// markup
+			if ("getNamespace".equals(aName)) {
+				return namespace;
+			}
+			if ("getLocale".equals(aName)) {
+				return locale;
+			}
+			if ("getContentType".equals(aName)) {
+				return CONTENT_TYPE;
+			}
+			if ("getCharacterEncoding".equals(aName)) {
+				return ENCODING;
+			}
+			if ("getWriter".equals(aName)) {
+				return writer;
+			}
+			return DEFAULT;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "MimeResponse[" + namespace + "," + locale + "]";
+		}
+	}
+
+	/**
+	 * A URL that records its parameters
+	 */
+	private static final class URLHandler extends Handler {
+
+		/**
+		 * the method that created the URL
+		 */
+		private final String factory;
+
+		/**
+		 * the parameters
+		 */
+		private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+		/**
+		 * Initializes the URL
+		 * 
+		 * @param aFactory
+		 *            the method that created the URL
+		 */
+		URLHandler(final String aFactory) {
+			factory = aFactory;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.InMemoryPortletObjects.Handler#answer
+		 * (java.lang.Object, java.lang.String, java.lang.Object[])
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		Object answer(final Object aProxy, final String aName,
+				final Object[] aArgs) throws Exception {
+			// parameters
+			if ("setParameter".equals(aName)) {
+				final String key = (String) aArgs[0];
+				if (aArgs[1] == null) {
+					parameters.remove(key);
+				} else if (aArgs[1] instanceof String[]) {
+					parameters.put(key, ((String[]) aArgs[1]).clone());
+				} else {
+					parameters.put(key, new String[] { (String) aArgs[1] });
+				}
+				return null;
+			}
+			if ("setParameters".equals(aName)) {
+				parameters.clear();
+				parameters.putAll((Map<String, String[]>) aArgs[0]);
+				return null;
+			}
+			if ("getParameterMap".equals(aName)) {
+				return new LinkedHashMap<String, String[]>(parameters);
+			}
+			// serialization
+			if ("write".equals(aName)) {
+				((Writer) aArgs[0]).write(toString());
+				return null;
+			}
+			return DEFAULT;
+		}
+
+		/**
+		 * Returns a copy of the parameters
+		 * 
+		 * @return the parameters
+		 */
+		Map<String, String[]> getParameters() {
+			return new LinkedHashMap<String, String[]>(parameters);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder result = new StringBuilder("#").append(factory);
+			for (final Map.Entry<String, String[]> entry : parameters
+					.entrySet()) {
+				for (final String value : entry.getValue()) {
+					result.append('&').append(entry.getKey()).append('=')
+							.append(value);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * content type of the requests and responses
+	 */
+	private static final String CONTENT_TYPE = "text/html";
+
+	/**
+	 * marker for the default result of a method
+	 */
+	private static final Object DEFAULT = new Object();
+
+	/**
+	 * character encoding of the responses
+	 */
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * Creates a request for the view mode of a window in the normal state
+	 * 
+	 * @param aType
+	 *            the request interface, e.g. {@link javax.portlet.RenderRequest}
+	 * @param aWindowID
+	 *            ID of the portlet window
+	 * @param aContextPath
+	 *            path of the web application
+	 * @param aLocale
+	 *            the locale
+	 * @param aParameters
+	 *            the private render parameters
+	 * @return the request
+	 */
+	public static <T extends PortletRequest> T createRequest(
+			final Class<T> aType, final String aWindowID,
+			final String aContextPath, final Locale aLocale,
+			final Map<String, String[]> aParameters) {
+		// sanity check
+		assert aType != null;
+		assert aWindowID != null;
+		assert aContextPath != null;
+		assert aLocale != null;
+		assert aParameters != null;
+		return newProxy(aType, new RequestHandler(aWindowID, aContextPath,
+				aLocale, aParameters));
+	}
+
+	/**
+	 * Creates a response that discards the markup
+	 * 
+	 * @param aType
+	 *            the response interface, e.g.
+	 *            {@link javax.portlet.RenderResponse}
+	 * @param aNamespace
+	 *            the namespace
+	 * @param aLocale
+	 *            the locale
+	 * @return the response
+	 */
+	public static <T extends MimeResponse> T createResponse(
+			final Class<T> aType, final String aNamespace, final Locale aLocale) {
+		// sanity check
+		assert aType != null;
+		assert aNamespace != null;
+		assert aLocale != null;
+		return newProxy(aType, new ResponseHandler(aNamespace, aLocale));
+	}
+
+	/**
+	 * Returns the zero value of a type
+	 * 
+	 * @param aType
+	 *            the type
+	 * @return the value
+	 */
+	private static final Object defaultValue(final Class<?> aType) {
+		if (!aType.isPrimitive() || (aType == void.class)) {
+			return (aType == Enumeration.class) ? Collections
+					.enumeration(Collections.emptyList()) : null;
+		}
+		if (aType == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (aType == char.class) {
+			return Character.valueOf((char) 0);
+		}
+		if (aType == long.class) {
+			return Long.valueOf(0);
+		}
+		if (aType == float.class) {
+			return Float.valueOf(0);
+		}
+		if (aType == double.class) {
+			return Double.valueOf(0);
+		}
+		if (aType == byte.class) {
+			return Byte.valueOf((byte) 0);
+		}
+		if (aType == short.class) {
+			return Short.valueOf((short) 0);
+		}
+		return Integer.valueOf(0);
+	}
+
+	/**
+	 * Returns the parameters of a URL created by a response of this class
+	 * 
+	 * @param aURL
+	 *            the URL
+	 * @return the parameters
+	 */
+	public static Map<String, String[]> getParameters(final BaseURL aURL) {
+		// sanity check
+		assert aURL != null;
+		return ((URLHandler) Proxy.getInvocationHandler(aURL)).getParameters();
+	}
+
+	/**
+	 * Creates a proxy
+	 * 
+	 * @param aType
+	 *            the interface
+	 * @param aHandler
+	 *            answers the methods
+	 * @return the proxy
+	 */
+	private static final <T> T newProxy(final Class<T> aType,
+			final Handler aHandler) {
+		return aType.cast(Proxy.newProxyInstance(
+				InMemoryPortletObjects.class.getClassLoader(),
+				new Class<?>[] { aType }, aHandler));
+	}
+
+	/**
+	 * Do not instantiate this class
+	 */
+	private InMemoryPortletObjects() {
+
+	}
+}
@@ -0,0 +1,444 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link StateStore} backed by a memory mapped file. The file is organized as a
+ * ring buffer of records, so the disk and memory consumption is bounded by the
+ * size of the file and the oldest entries are evicted first. The data lives
+ * outside of the Java heap, only a compact index is kept on the heap. The
+ * index is rebuilt from the file on startup, so the stored state survives a
+ * restart of the server.
+ * 
+ * The file starts with a header, followed by the records. Each record consists
+ * of the length of the data, the content hash and the data itself.
+ * 
+ * @author cleue
+ */
+public class MappedFileStateStore extends AbstractStateStore {
+
+	/**
+	 * Position of a record in the file
+	 */
+	private static final class Slot {
+
+		/**
+		 * the key of the record
+		 */
+		private final String key;
+
+		/**
+		 * length of the data
+		 */
+		private final int length;
+
+		/**
+		 * offset of the record in the file
+		 */
+		private final int offset;
+
+		/**
+		 * Initializes the slot
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @param aOffset
+		 *            offset of the record
+		 * @param aLength
+		 *            length of the data
+		 */
+		private Slot(final String aKey, final int aOffset, final int aLength) {
+			key = aKey;
+			offset = aOffset;
+			length = aLength;
+		}
+	}
+
+	/**
+	 * size of the file header: magic, version, write position, tail position
+	 * and number of records
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = MappedFileStateStore.class
+			.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * identifies the file format
+	 */
+	private static final int MAGIC = 0x54505353;
+
+	/**
+	 * header offset of the number of records
+	 */
+	private static final int POS_COUNT = 16;
+
+	/**
+	 * header offset of the magic number
+	 */
+	private static final int POS_MAGIC = 0;
+
+	/**
+	 * header offset of the position of the oldest record
+	 */
+	private static final int POS_TAIL = 12;
+
+	/**
+	 * header offset of the version
+	 */
+	private static final int POS_VERSION = 4;
+
+	/**
+	 * header offset of the position of the next record
+	 */
+	private static final int POS_WRITE = 8;
+
+	/**
+	 * size of the record header: length and hash
+	 */
+	private static final int RECORD_OVERHEAD = 4 + KEY_BYTES;
+
+	/**
+	 * version of the file format
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * marks the end of the used area before the ring buffer wraps around
+	 */
+	private static final int WRAP = -1;
+
+	/**
+	 * the mapped file content
+	 */
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * size of the file
+	 */
+	private final int capacity;
+
+	/**
+	 * the mapped file
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * index from key to record
+	 */
+	private final Map<String, Slot> index = new HashMap<String, Slot>();
+
+	/**
+	 * protects the index and the buffer
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * maximum size of a single record, larger records are not stored
+	 */
+	private final int maxRecord;
+
+	/**
+	 * the records in the order they have been written
+	 */
+	private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+
+	/**
+	 * position of the next record
+	 */
+	private int writePos;
+
+	/**
+	 * Opens the store, existing content of the file is recovered
+	 * 
+	 * @param aFile
+	 *            the file that backs the store
+	 * @param aCapacity
+	 *            size of the file in bytes
+	 * 
+	 * @throws IOException
+	 */
+	public MappedFileStateStore(final File aFile, final int aCapacity)
+			throws IOException {
+		// sanity check
+		assert aFile != null;
+		assert aCapacity > HEADER_SIZE + RECORD_OVERHEAD;
+		// logging support
+		final String LOG_METHOD = "MappedFileStateStore(aFile, aCapacity)";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD, new Object[] { aFile,
+					aCapacity });
+		}
+		// init
+		capacity = aCapacity;
+		maxRecord = (capacity - HEADER_SIZE) / 4;
+		// make sure the directory exists
+		final File dir = aFile.getAbsoluteFile().getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory [" + dir + "].");
+		}
+		// open the file
+		file = new RandomAccessFile(aFile, "rw");
+		try {
+			// a change of the size invalidates the content
+			final boolean bResize = file.length() != capacity;
+			if (bResize) {
+				file.setLength(capacity);
+			}
+			// map the file
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					capacity);
+			// recover the content
+			if (bResize || !recover()) {
+				format();
+			}
+		} catch (final IOException ex) {
+			// do not leak the file handle
+			file.close();
+			throw ex;
+		}
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Recovered [{0}] entries.", slots.size());
+		}
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.StateStore#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			// flush the content and release the file
+			buffer.force();
+			file.close();
+			// release the index
+			index.clear();
+			slots.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest record from the index
+	 */
+	private final void evict() {
+		// remove the oldest record
+		index.remove(slots.removeFirst().key);
+	}
+
+	/**
+	 * Initializes an empty store
+	 */
+	private final void format() {
+		// reset the index
+		index.clear();
+		slots.clear();
+		writePos = HEADER_SIZE;
+		// write the header
+		buffer.putInt(POS_MAGIC, MAGIC);
+		buffer.putInt(POS_VERSION, VERSION);
+		writeHeader();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.StateStore#get(java.lang.String)
+	 */
+	@Override
+	public byte[] get(final String aKey) {
+		lock.readLock().lock();
+		try {
+			// lookup the record
+			final Slot slot = index.get(aKey);
+			if (slot == null) {
+				return null;
+			}
+			// copy the data from the file
+			final ByteBuffer src = buffer.duplicate();
+			src.position(slot.offset + RECORD_OVERHEAD);
+			final byte[] data = new byte[slot.length];
+			src.get(data);
+			return data;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.StateStore#put(byte[])
+	 */
+	@Override
+	public String put(final byte[] aData) {
+		// sanity check
+		assert aData != null;
+		// compute the key outside of the lock
+		final byte[] hash = computeHash(aData, 0, aData.length);
+		final String key = Base64URL.encode(hash);
+		final int recordLength = RECORD_OVERHEAD + aData.length;
+		// oversized entries would evict everything else
+		if (recordLength > maxRecord) {
+			return null;
+		}
+		lock.writeLock().lock();
+		try {
+			// content addressed, so existing entries do not need to be stored
+			if (index.containsKey(key)) {
+				return key;
+			}
+			// position of the new record
+			int pos = writePos;
+			if (pos + recordLength > capacity) {
+				// the records behind the write position are lost
+				while (!slots.isEmpty() && (slots.peekFirst().offset >= pos)) {
+					evict();
+				}
+				// mark the wrap around
+				if (pos + 4 <= capacity) {
+					buffer.putInt(pos, WRAP);
+				}
+				pos = HEADER_SIZE;
+			}
+			// evict the records we are about to overwrite
+			final int end = pos + recordLength;
+			while (!slots.isEmpty() && (slots.peekFirst().offset >= pos)
+					&& (slots.peekFirst().offset < end)) {
+				evict();
+			}
+			// write the record
+			final ByteBuffer dst = buffer.duplicate();
+			dst.position(pos);
+			dst.putInt(aData.length);
+			dst.put(hash);
+			dst.put(aData);
+			// update the index
+			final Slot slot = new Slot(key, pos, aData.length);
+			slots.addLast(slot);
+			index.put(key, slot);
+			writePos = end;
+			// the header is written last, so a partial record is never used
+			writeHeader();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		// ok
+		return key;
+	}
+
+	/**
+	 * Rebuilds the index from the file content
+	 * 
+	 * @return <code>true</code> if the content could be recovered, else
+	 *         <code>false</code>
+	 */
+	private final boolean recover() {
+		// logging support
+		final String LOG_METHOD = "recover()";
+		// validate the header
+		if ((buffer.getInt(POS_MAGIC) != MAGIC)
+				|| (buffer.getInt(POS_VERSION) != VERSION)) {
+			return false;
+		}
+		final int write = buffer.getInt(POS_WRITE);
+		final int tail = buffer.getInt(POS_TAIL);
+		final int count = buffer.getInt(POS_COUNT);
+		if ((write < HEADER_SIZE) || (write > capacity) || (tail < HEADER_SIZE)
+				|| (tail > capacity) || (count < 0)) {
+			return false;
+		}
+		// scan the records starting with the oldest one
+		int pos = tail;
+		for (int i = 0; i < count; ++i) {
+			// check for the wrap around
+			if ((pos + 4 > capacity) || (buffer.getInt(pos) == WRAP)) {
+				pos = HEADER_SIZE;
+			}
+			// validate the record
+			final int length = buffer.getInt(pos);
+			if ((length < 0) || (pos + RECORD_OVERHEAD + length > capacity)) {
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Invalid record at [{0}], discarding the state store.",
+						pos);
+				return false;
+			}
+			final byte[] hash = new byte[KEY_BYTES];
+			final byte[] data = new byte[length];
+			final ByteBuffer src = buffer.duplicate();
+			src.position(pos + 4);
+			src.get(hash);
+			src.get(data);
+			if (!Arrays.equals(hash, computeHash(data, 0, length))) {
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Corrupt record at [{0}], discarding the state store.",
+						pos);
+				return false;
+			}
+			// register the record
+			final Slot slot = new Slot(Base64URL.encode(hash), pos, length);
+			slots.addLast(slot);
+			index.put(slot.key, slot);
+			pos += RECORD_OVERHEAD + length;
+		}
+		// ok
+		writePos = write;
+		return true;
+	}
+
+	/**
+	 * Persists the positions and the number of records
+	 */
+	private final void writeHeader() {
+		buffer.putInt(POS_WRITE, writePos);
+		buffer.putInt(POS_TAIL, slots.isEmpty() ? writePos : slots
+				.peekFirst().offset);
+		buffer.putInt(POS_COUNT, slots.size());
+	}
+}
@@ -0,0 +1,432 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Shrinks the caches of a {@link CacheService} when the heap runs full, so
+ * the caches of the portlet never compete with the portal for memory. The
+ * governor monitors the tenured heap pools, i.e. the heap pools that support
+ * thresholds. The usage is polled on the schedule of the governor. In
+ * addition, the governor sets a usage threshold on a pool and listens for the
+ * notifications of the JVM, but only if no other component has set a
+ * threshold on that pool, since thresholds are global to the JVM. Any
+ * threshold notification of a monitored pool triggers an immediate check
+ * against the level of the governor. The collection usage threshold is
+ * preferred, since it ignores garbage that the next collection would reclaim.
+ * 
+ * Each step of pressure halves the maximum of all caches relative to their
+ * configured maximum, the last step clears them. While the usage stays above
+ * the threshold, the periodic check takes another step. Once it drops below
+ * the recovery level, the check lets the caches grow back one step at a
+ * time. All steps run on a single thread of the governor.
+ * 
+ * @author cleue
+ */
+public class MemoryGovernor {
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = MemoryGovernor.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Number of shrinking steps, the last one clears the caches
+	 */
+	public static final int MAX_LEVEL = 4;
+
+	/**
+	 * the governed caches
+	 */
+	private final CacheService cacheService;
+
+	/**
+	 * counts the clearing of the caches
+	 */
+	private final AtomicLong clears;
+
+	/**
+	 * runs the checks and the steps
+	 */
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * counts the growing steps
+	 */
+	private final AtomicLong grows;
+
+	/**
+	 * current step of pressure, published as a gauge, only modified by the
+	 * thread of the governor
+	 */
+	private final AtomicLong level;
+
+	/**
+	 * receives the threshold notifications
+	 */
+	private final NotificationListener listener = new NotificationListener() {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * javax.management.NotificationListener#handleNotification(javax.management
+		 * .Notification, java.lang.Object)
+		 */
+		@Override
+		public void handleNotification(final Notification aNotification,
+				final Object aHandback) {
+			// only react to our pools
+			final String type = aNotification.getType();
+			if (!MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+					&& !MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED
+							.equals(type)) {
+				return;
+			}
+			final MemoryNotificationInfo info = MemoryNotificationInfo
+					.from((CompositeData) aNotification.getUserData());
+			if (!names.contains(info.getPoolName())) {
+				return;
+			}
+			// log this
+			notifications.incrementAndGet();
+			LOGGER.logp(Level.INFO, LOG_CLASS, "handleNotification",
+					"Memory pool [{0}] exceeded its threshold, usage [{1}].",
+					new Object[] { info.getPoolName(), info.getUsage() });
+			// check on the thread of the governor, the threshold might not be ours
+			try {
+				executor.execute(new Runnable() {
+
+					/*
+					 * (non-Javadoc)
+					 * 
+					 * @see java.lang.Runnable#run()
+					 */
+					@Override
+					public void run() {
+						check();
+					}
+				});
+			} catch (final RejectedExecutionException ex) {
+				// shut down
+			}
+		}
+	};
+
+	/**
+	 * counts the threshold notifications
+	 */
+	private final AtomicLong notifications;
+
+	/**
+	 * names of the monitored pools
+	 */
+	private final Set<String> names = new HashSet<String>();
+
+	/**
+	 * the monitored pools
+	 */
+	private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+
+	/**
+	 * usage level in percent of the maximum below which the caches grow back
+	 */
+	private final double recovery;
+
+	/**
+	 * counts the shrinking steps
+	 */
+	private final AtomicLong shrinks;
+
+	/**
+	 * usage level in percent of the maximum at which the caches shrink
+	 */
+	private final double threshold;
+
+	/**
+	 * the thresholds set by this governor by pool name, removed on shutdown
+	 */
+	private final Map<String, Long> thresholds = new HashMap<String, Long>();
+
+	/**
+	 * Initializes the governor and registers it with the JVM
+	 * 
+	 * @param aCacheService
+	 *            the governed caches
+	 * @param aThreshold
+	 *            usage level in percent of the maximum of a pool at which the
+	 *            caches shrink
+	 * @param aRecovery
+	 *            usage level in percent below which the caches grow back
+	 * @param aInterval
+	 *            time in milliseconds between the checks of the usage
+	 * @param aName
+	 *            name of the thread
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public MemoryGovernor(final CacheService aCacheService,
+			final double aThreshold, final double aRecovery,
+			final long aInterval, final String aName, final Metrics aMetrics) {
+		// sanity check
+		assert aCacheService != null;
+		assert (aThreshold > 0) && (aThreshold < 100);
+		assert (aRecovery > 0) && (aRecovery <= aThreshold);
+		assert aInterval > 0;
+		assert aName != null;
+		assert aMetrics != null;
+		// logging support
+		final String LOG_METHOD = "MemoryGovernor(aCacheService, aThreshold, aRecovery, aInterval, aName, aMetrics)";
+		// init
+		cacheService = aCacheService;
+		threshold = aThreshold;
+		recovery = aRecovery;
+		notifications = aMetrics.getCounter("memory.notifications");
+		shrinks = aMetrics.getCounter("memory.shrinks");
+		clears = aMetrics.getCounter("memory.clears");
+		grows = aMetrics.getCounter("memory.grows");
+		level = aMetrics.getGauge("memory.level");
+		// monitor the tenured pools
+		for (final MemoryPoolMXBean pool : ManagementFactory
+				.getMemoryPoolMXBeans()) {
+			// only the tenured pools support usage thresholds
+			if ((pool.getType() != MemoryType.HEAP) || !pool.isValid()
+					|| !pool.isUsageThresholdSupported()) {
+				continue;
+			}
+			final MemoryUsage usage = pool.getUsage();
+			final long max = (usage.getMax() > 0) ? usage.getMax() : usage
+					.getCommitted();
+			if (max <= 0) {
+				continue;
+			}
+			final long bytes = (long) (max * aThreshold / 100);
+			pools.add(pool);
+			names.add(pool.getName());
+			// never replace the threshold of another component
+			final boolean bCollection = pool.isCollectionUsageThresholdSupported();
+			final long current = bCollection ? pool
+					.getCollectionUsageThreshold() : pool.getUsageThreshold();
+			if (current == 0) {
+				if (bCollection) {
+					pool.setCollectionUsageThreshold(bytes);
+				} else {
+					pool.setUsageThreshold(bytes);
+				}
+				thresholds.put(pool.getName(), Long.valueOf(bytes));
+				// log this
+				LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+						"Monitoring memory pool [{0}] at [{1}] bytes.",
+						new Object[] { pool.getName(), bytes });
+			} else {
+				// log this
+				LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+						"Memory pool [{0}] has a threshold of [{1}] bytes already, polling it at [{2}] bytes.",
+						new Object[] { pool.getName(), current, bytes });
+			}
+		}
+		// listen for the notifications
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+				.addNotificationListener(listener, null, null);
+		// check periodically
+		executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(
+				aName));
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				check();
+			}
+		}, aInterval, aInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets the maximum of all caches according to the current level
+	 */
+	private final void apply() {
+		final int shift = (int) level.get();
+		for (final DataCache<?, ?> cache : cacheService.getCaches()) {
+			final long maximum = Math.max(1, cache.getSpec().getMaximum() >> shift);
+			if (cache.getMaximum() != maximum) {
+				cache.setMaximum(maximum);
+			}
+		}
+	}
+
+	/**
+	 * Compares the usage with the threshold and the recovery level and takes
+	 * a step if required. Runs on the thread of the governor.
+	 */
+	private final void check() {
+		// logging support
+		final String LOG_METHOD = "check()";
+		try {
+			final double usage = getUsage();
+			if (usage >= threshold) {
+				shrink();
+			} else if ((usage < recovery) && (level.get() > 0)) {
+				// grow back
+				level.decrementAndGet();
+				grows.incrementAndGet();
+				apply();
+				// log this
+				LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+						"Heap usage [{0}%] recovered, caches grow to level [{1}].",
+						new Object[] { Math.round(usage), level.get() });
+			} else {
+				// caches created meanwhile follow the current level
+				apply();
+			}
+		} catch (final RuntimeException ex) {
+			// keep the periodic check alive
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Memory check failed.", ex);
+		}
+	}
+
+	/**
+	 * Returns the highest usage of the monitored pools
+	 * 
+	 * @return usage in percent of the maximum
+	 */
+	private final double getUsage() {
+		double result = 0;
+		for (final MemoryPoolMXBean pool : pools) {
+			// the usage after the last collection ignores garbage
+			MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool
+					.getCollectionUsage() : null;
+			if ((usage == null) || (usage.getUsed() == 0)) {
+				usage = pool.getUsage();
+			}
+			final long max = (usage.getMax() > 0) ? usage.getMax() : usage
+					.getCommitted();
+			if (max > 0) {
+				result = Math.max(result, 100.0 * usage.getUsed() / max);
+			}
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Returns the current step of pressure
+	 * 
+	 * @return the level, zero if the caches use their configured maximum
+	 */
+	public int getLevel() {
+		return (int) level.get();
+	}
+
+	/**
+	 * Stops the governor, removes the thresholds it has set, unless they have
+	 * been changed meanwhile, and restores the configured maximum of the caches
+	 */
+	public void shutdown() {
+		// logging support
+		final String LOG_METHOD = "shutdown()";
+		// stop listening
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+					.removeNotificationListener(listener);
+		} catch (final ListenerNotFoundException ex) {
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Memory listener was not registered.", ex);
+		}
+		executor.shutdownNow();
+		// remove our thresholds, leave those of other components alone
+		for (final MemoryPoolMXBean pool : pools) {
+			final Long own = thresholds.get(pool.getName());
+			if (own == null) {
+				continue;
+			}
+			if (pool.isCollectionUsageThresholdSupported()) {
+				if (pool.getCollectionUsageThreshold() == own.longValue()) {
+					pool.setCollectionUsageThreshold(0);
+				}
+			} else if (pool.getUsageThreshold() == own.longValue()) {
+				pool.setUsageThreshold(0);
+			}
+		}
+		thresholds.clear();
+		names.clear();
+		pools.clear();
+		// restore the caches
+		level.set(0);
+		apply();
+	}
+
+	/**
+	 * Takes the next step of shrinking. Runs on the thread of the governor.
+	 */
+	private final void shrink() {
+		// logging support
+		final String LOG_METHOD = "shrink()";
+		if (level.get() >= MAX_LEVEL) {
+			// nothing left to give
+			return;
+		}
+		if (level.incrementAndGet() < MAX_LEVEL) {
+			// shrink
+			shrinks.incrementAndGet();
+			apply();
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Heap is running full, caches shrink to level [{0}].",
+					level.get());
+		} else {
+			// clear
+			clears.incrementAndGet();
+			apply();
+			cacheService.invalidateAll();
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Heap is running full, caches have been cleared.");
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Heap based implementation of a {@link StateStore}. The entries are evicted
+ * in least recently used order once the total size of the stored data exceeds
+ * the capacity. The store does not survive a restart, so it is meant for tests
+ * and single node development setups.
+ * 
+ * @author cleue
+ */
+public class MemoryStateStore extends AbstractStateStore {
+
+	/**
+	 * maximum number of bytes of all stored entries
+	 */
+	private final long capacity;
+
+	/**
+	 * the entries in access order
+	 */
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+
+	/**
+	 * current number of bytes of all stored entries
+	 */
+	private long size;
+
+	/**
+	 * Initializes the store
+	 * 
+	 * @param aCapacity
+	 *            maximum number of bytes of all stored entries
+	 */
+	public MemoryStateStore(final long aCapacity) {
+		// sanity check
+		assert aCapacity > 0;
+		// init
+		capacity = aCapacity;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.StateStore#close()
+	 */
+	@Override
+	public synchronized void close() {
+		// release the data
+		entries.clear();
+		size = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.StateStore#get(java.lang.String)
+	 */
+	@Override
+	public synchronized byte[] get(final String aKey) {
+		// lookup and refresh the access order
+		final byte[] data = entries.get(aKey);
+		// return a copy so callers cannot modify the stored data
+		return (data != null) ? data.clone() : null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.StateStore#put(byte[])
+	 */
+	@Override
+	public String put(final byte[] aData) {
+		// sanity check
+		assert aData != null;
+		// compute the key outside of the lock
+		final String key = computeKey(aData);
+		synchronized (this) {
+			// content addressed, so existing entries do not need to be stored
+			if (entries.get(key) == null) {
+				// oversized entries would evict everything else
+				if (aData.length > capacity) {
+					return null;
+				}
+				// store a copy
+				entries.put(key, aData.clone());
+				size += aData.length;
+				// evict the least recently used entries
+				final Iterator<Map.Entry<String, byte[]>> iter = entries
+						.entrySet().iterator();
+				while ((size > capacity) && iter.hasNext()) {
+					// remove the oldest entry
+					size -= iter.next().getValue().length;
+					iter.remove();
+				}
+			}
+		}
+		// ok
+		return key;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set of named counters that allow to observe the runtime behaviour of a
+ * portlet, e.g. the number of rejected requests or cache hits. Counters are
+ * created on first access and can be updated concurrently without locking.
+ * 
+ * The instance is shared across all requests of a portlet and is typically
+ * registered as an MBean, so the counters can be monitored via JMX.
+ * 
+ * Gauges are counters that reflect a current state, e.g. the number of
+ * queued operations. They are created via {@link #getGauge(String)} or
+ * {@link #set(String, long)} and keep their value when the counters are
+ * reset, since in progress operations still update them.
+ * 
+ * @author cleue
+ */
+public class Metrics implements MetricsMBean {
+
+	/**
+	 * the counters
+	 */
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * names of the counters that represent gauges
+	 */
+	private final Set<String> gauges = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Adds a value to a counter
+	 * 
+	 * @param aName
+	 *            name of the counter
+	 * @param aDelta
+	 *            the value to add, may be negative for gauges
+	 * @return the new value
+	 */
+	public long add(final String aName, final long aDelta) {
+		return getCounter(aName).addAndGet(aDelta);
+	}
+
+	/**
+	 * Returns the current value of a counter
+	 * 
+	 * @param aName
+	 *            name of the counter
+	 * @return the value, <code>0</code> if the counter does not exist
+	 */
+	public long get(final String aName) {
+		// lookup
+		final AtomicLong counter = counters.get(aName);
+		return (counter != null) ? counter.get() : 0;
+	}
+
+	/**
+	 * Returns the counter for the given name, creates it if required. Callers
+	 * on hot paths may keep a reference to the counter to avoid the lookup.
+	 * 
+	 * @param aName
+	 *            name of the counter
+	 * @return the counter
+	 */
+	public AtomicLong getCounter(final String aName) {
+		// sanity check
+		assert aName != null;
+		// lookup
+		AtomicLong counter = counters.get(aName);
+		if (counter == null) {
+			// register a new counter, another thread might have been faster
+			final AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(aName, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		// ok
+		return counter;
+	}
+
+	/**
+	 * Returns the gauge for the given name, creates it if required. Gauges are
+	 * not affected by {@link #reset()}.
+	 * 
+	 * @param aName
+	 *            name of the gauge
+	 * @return the gauge
+	 */
+	public AtomicLong getGauge(final String aName) {
+		// sanity check
+		assert aName != null;
+		// mark the name before the gauge becomes visible
+		gauges.add(aName);
+		return getCounter(aName);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.MetricsMBean#getCounters()
+	 */
+	@Override
+	public Map<String, Long> getCounters() {
+		// copy the current values
+		final Map<String, Long> result = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Increments a counter
+	 * 
+	 * @param aName
+	 *            name of the counter
+	 * @return the new value
+	 */
+	public long increment(final String aName) {
+		return getCounter(aName).incrementAndGet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.MetricsMBean#reset()
+	 */
+	@Override
+	public void reset() {
+		// reset the values, but keep the counters since callers might hold
+		// references
+		for (final Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			// gauges reflect the current state
+			if (!gauges.contains(entry.getKey())) {
+				entry.getValue().set(0);
+			}
+		}
+	}
+
+	/**
+	 * Sets the value of a gauge
+	 * 
+	 * @param aName
+	 *            name of the gauge
+	 * @param aValue
+	 *            the new value
+	 */
+	public void set(final String aName, final long aValue) {
+		getGauge(aName).set(aValue);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getCounters().toString();
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Metrics}, so the counters can be
+ * inspected via JMX.
+ * 
+ * @author cleue
+ */
+public interface MetricsMBean {
+
+	/**
+	 * Returns a snapshot of all counters
+	 * 
+	 * @return the counters, sorted by name
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * Resets all counters to zero, gauges keep their current value
+	 */
+	void reset();
+}
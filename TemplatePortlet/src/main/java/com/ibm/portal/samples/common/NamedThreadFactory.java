@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a common name prefix, so the workers of the
+ * portlet can be identified in thread dumps and do not block the shutdown of
+ * the server.
+ * 
+ * @author cleue
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	/**
+	 * sequence number of the next thread
+	 */
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * the name prefix
+	 */
+	private final String prefix;
+
+	/**
+	 * Initializes the factory
+	 * 
+	 * @param aPrefix
+	 *            the name prefix of the threads
+	 */
+	public NamedThreadFactory(final String aPrefix) {
+		// sanity check
+		assert aPrefix != null;
+		// init
+		prefix = aPrefix;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+	 */
+	@Override
+	public Thread newThread(final Runnable aRunnable) {
+		final Thread thread = new Thread(aRunnable, prefix + "-"
+				+ count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.portlet.PortletPreferences;
+import javax.portlet.PortletRequest;
+
+/**
+ * Portlet wide cache of immutable snapshots of the portlet preferences, keyed
+ * by the portlet window and the user, since preferences can be personalized
+ * per user in the edit mode. Reading preferences via {@link CoalescingPreferences}
+ * is served from the snapshot, so the portal does not have to resolve the
+ * preferences for every access. Snapshots expire after a short time, because
+ * preferences can also be modified outside of this portlet, e.g. by an
+ * administrator, and are invalidated whenever the portlet stores them.
+ * 
+ * @author cleue
+ */
+public class PreferencesCache {
+
+	/**
+	 * Immutable copy of the preferences of a window as seen by a user
+	 */
+	static final class Snapshot {
+
+		/**
+		 * time the snapshot has been taken
+		 */
+		private final long created;
+
+		/**
+		 * the values, neither the map nor the arrays are modified
+		 */
+		private final Map<String, String[]> values;
+
+		/**
+		 * Copies the preferences
+		 * 
+		 * @param aPreferences
+		 *            the preferences
+		 * @param aNow
+		 *            the current time
+		 */
+		private Snapshot(final PortletPreferences aPreferences, final long aNow) {
+			// copy the values, the arrays of the map might be live
+			final Map<String, String[]> map = aPreferences.getMap();
+			final Map<String, String[]> copy = new HashMap<String, String[]>(
+					(map.size() << 1) + 1);
+			for (final Map.Entry<String, String[]> entry : map.entrySet()) {
+				final String[] value = entry.getValue();
+				copy.put(entry.getKey(), (value != null) ? value.clone() : null);
+			}
+			// init
+			values = Collections.unmodifiableMap(copy);
+			created = aNow;
+		}
+
+		/**
+		 * Returns the values
+		 * 
+		 * @return the values, the arrays must not be modified
+		 */
+		Map<String, String[]> getValues() {
+			return values;
+		}
+	}
+
+	/**
+	 * Name of the counter for reads served from a snapshot
+	 */
+	public static final String METRIC_HITS = "preferences.snapshot.hits";
+
+	/**
+	 * Name of the counter for snapshots taken
+	 */
+	public static final String METRIC_MISSES = "preferences.snapshot.misses";
+
+	/**
+	 * Name of the counter for modifications coalesced into a store operation
+	 */
+	public static final String METRIC_WRITES = "preferences.writes";
+
+	/**
+	 * Name of the counter for store operations
+	 */
+	public static final String METRIC_STORES = "preferences.stores";
+
+	/**
+	 * Name of the counter for store operations that have been skipped because
+	 * the modifications did not change any value
+	 */
+	public static final String METRIC_STORES_SKIPPED = "preferences.stores.skipped";
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * snapshots by window and user, least recently used first
+	 */
+	private final Map<String, Snapshot> snapshots;
+
+	/**
+	 * time in milliseconds a snapshot is valid
+	 */
+	private final long ttl;
+
+	/**
+	 * Initializes the cache
+	 * 
+	 * @param aTTL
+	 *            time in milliseconds a snapshot is valid
+	 * @param aMaxWindows
+	 *            maximum number of snapshots to keep, one per window and user
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public PreferencesCache(final long aTTL, final int aMaxWindows,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aTTL >= 0;
+		assert aMaxWindows > 0;
+		assert aMetrics != null;
+		// init
+		ttl = aTTL;
+		metrics = aMetrics;
+		snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+
+			/**
+			 * serialization support
+			 */
+			private static final long serialVersionUID = 1L;
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+			 */
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Snapshot> aEldest) {
+				return size() > aMaxWindows;
+			}
+		};
+	}
+
+	/**
+	 * Computes the key of the snapshot of a request. The key is unique per
+	 * window and user, the length prefix keeps user names and window IDs
+	 * apart.
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the key
+	 */
+	private static final String getKey(final PortletRequest aRequest) {
+		final String windowID = aRequest.getWindowID();
+		final String user = aRequest.getRemoteUser();
+		return (user != null) ? user.length() + ":" + user + "@" + windowID
+				: "@" + windowID;
+	}
+
+	/**
+	 * Returns the current snapshot for the window and the user of the
+	 * request, takes a new one if required
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the snapshot
+	 */
+	final Snapshot getSnapshot(final PortletRequest aRequest) {
+		// lookup
+		final String key = getKey(aRequest);
+		final long now = System.currentTimeMillis();
+		Snapshot snapshot;
+		synchronized (snapshots) {
+			snapshot = snapshots.get(key);
+		}
+		if ((snapshot != null) && (now - snapshot.created < ttl)) {
+			metrics.increment(METRIC_HITS);
+			return snapshot;
+		}
+		// take a new snapshot outside of the lock
+		metrics.increment(METRIC_MISSES);
+		snapshot = new Snapshot(aRequest.getPreferences(), now);
+		synchronized (snapshots) {
+			snapshots.put(key, snapshot);
+		}
+		// ok
+		return snapshot;
+	}
+
+	/**
+	 * Drops the snapshot of the window and the user of the request
+	 * 
+	 * @param aRequest
+	 *            the request
+	 */
+	final void invalidate(final PortletRequest aRequest) {
+		final String key = getKey(aRequest);
+		synchronized (snapshots) {
+			snapshots.remove(key);
+		}
+	}
+
+	/**
+	 * Returns the counters
+	 * 
+	 * @return the counters
+	 */
+	final Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Creates the preferences facade for a request
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the facade
+	 */
+	public CoalescingPreferences open(final PortletRequest aRequest) {
+		return new CoalescingPreferences(this, aRequest);
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.portlet.PortletException;
+
+/**
+ * Coalesces identical concurrent renders. The first render of a key produces
+ * the markup and copies it into a buffer while streaming it to its own
+ * response. Renders of the same key that arrive meanwhile wait for the markup
+ * and copy it instead of rendering it again.
+ * 
+ * Waiting is bounded by a timeout, renders that time out render
+ * independently. The markup is only shared if the first render declares it
+ * independent of the user, otherwise the waiting renders also render
+ * independently and the key is remembered as private, so later renders of
+ * the key do not wait at all.
+ * 
+ * @author cleue
+ */
+public class RenderCoalescer {
+
+	/**
+	 * A render that is in progress
+	 */
+	private static final class Flight {
+
+		/**
+		 * released once the markup is available or known to be unavailable
+		 */
+		final CountDownLatch done = new CountDownLatch(1);
+
+		/**
+		 * the markup, <code>null</code> if it cannot be shared
+		 */
+		volatile char[] markup;
+	}
+
+	/**
+	 * Produces the markup
+	 */
+	public interface Renderer {
+
+		/**
+		 * Renders the markup
+		 * 
+		 * @param aWriter
+		 *            the writer to render to
+		 * @return <code>true</code> if the markup is independent of the user
+		 *         and may be shared with concurrent renders
+		 * @throws PortletException
+		 * @throws IOException
+		 */
+		boolean render(PrintWriter aWriter) throws PortletException,
+				IOException;
+	}
+
+	/**
+	 * Writes to a target and keeps a copy of at most a maximum number of
+	 * characters
+	 */
+	private static final class TeeWriter extends Writer {
+
+		/**
+		 * the copy, <code>null</code> once it exceeded the maximum
+		 */
+		private CharArrayWriter copy = new CharArrayWriter();
+
+		/**
+		 * maximum number of characters of the copy
+		 */
+		private final int maxLength;
+
+		/**
+		 * the target
+		 */
+		private final Writer target;
+
+		/**
+		 * Initializes the writer
+		 * 
+		 * @param aTarget
+		 *            the target
+		 * @param aMaxLength
+		 *            maximum number of characters of the copy
+		 */
+		TeeWriter(final Writer aTarget, final int aMaxLength) {
+			target = aTarget;
+			maxLength = aMaxLength;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.Writer#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			// the target belongs to the response
+			target.flush();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.Writer#flush()
+		 */
+		@Override
+		public void flush() throws IOException {
+			target.flush();
+		}
+
+		/**
+		 * Returns the copy
+		 * 
+		 * @return the copy or <code>null</code> if the markup was too large
+		 */
+		char[] getCopy() {
+			return (copy != null) ? copy.toCharArray() : null;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.Writer#write(char[], int, int)
+		 */
+		@Override
+		public void write(final char[] aBuffer, final int aOffset,
+				final int aLength) throws IOException {
+			target.write(aBuffer, aOffset, aLength);
+			if (copy != null) {
+				if (copy.size() + aLength <= maxLength) {
+					copy.write(aBuffer, aOffset, aLength);
+				} else {
+					// too large to share
+					copy = null;
+				}
+			}
+		}
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = RenderCoalescer.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Maximum number of characters of shared markup
+	 */
+	public static final int MAX_MARKUP_LENGTH = 1024 * 1024;
+
+	/**
+	 * counts renders that rendered directly, because the key is private
+	 */
+	private final AtomicLong bypassed;
+
+	/**
+	 * counts renders that waited, but had to render independently
+	 */
+	private final AtomicLong fallbacks;
+
+	/**
+	 * the renders in progress
+	 */
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * counts renders that copied the markup of another render
+	 */
+	private final AtomicLong followers;
+
+	/**
+	 * counts renders that produced the markup for others
+	 */
+	private final AtomicLong leaders;
+
+	/**
+	 * keys of markup that depends on the user
+	 */
+	private final DataCache<String, Boolean> privateKeys;
+
+	/**
+	 * counts renders that gave up waiting
+	 */
+	private final AtomicLong timeouts;
+
+	/**
+	 * time in milliseconds to wait for the markup of another render
+	 */
+	private final long timeout;
+
+	/**
+	 * Initializes the coalescer
+	 * 
+	 * @param aTimeout
+	 *            time in milliseconds to wait for the markup of another render
+	 * @param aPrivateKeys
+	 *            remembers the keys of markup that depends on the user
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public RenderCoalescer(final long aTimeout,
+			final DataCache<String, Boolean> aPrivateKeys,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aTimeout > 0;
+		assert aPrivateKeys != null;
+		assert aMetrics != null;
+		// init
+		timeout = aTimeout;
+		privateKeys = aPrivateKeys;
+		leaders = aMetrics.getCounter("render.coalesce.leaders");
+		followers = aMetrics.getCounter("render.coalesce.followers");
+		timeouts = aMetrics.getCounter("render.coalesce.timeouts");
+		fallbacks = aMetrics.getCounter("render.coalesce.fallbacks");
+		bypassed = aMetrics.getCounter("render.coalesce.bypassed");
+	}
+
+	/**
+	 * Renders the markup of the key, or copies the markup of a concurrent
+	 * render of the same key
+	 * 
+	 * @param aKey
+	 *            identifies the markup
+	 * @param aWriter
+	 *            writer of the response
+	 * @param aRenderer
+	 *            produces the markup
+	 * @throws PortletException
+	 * @throws IOException
+	 */
+	public void render(final String aKey, final PrintWriter aWriter,
+			final Renderer aRenderer) throws PortletException, IOException {
+		// sanity check
+		assert aKey != null;
+		assert aWriter != null;
+		assert aRenderer != null;
+		// logging support
+		final String LOG_METHOD = "render(aKey, aWriter, aRenderer)";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		// user specific markup is never shared
+		if (privateKeys.getIfPresent(aKey) != null) {
+			bypassed.incrementAndGet();
+			aRenderer.render(aWriter);
+			return;
+		}
+		// lead or follow
+		final Flight flight = new Flight();
+		final Flight existing = flights.putIfAbsent(aKey, flight);
+		if (existing == null) {
+			leaders.incrementAndGet();
+			final TeeWriter tee = new TeeWriter(aWriter, MAX_MARKUP_LENGTH);
+			final PrintWriter writer = new PrintWriter(tee);
+			try {
+				final boolean bPublic = aRenderer.render(writer);
+				writer.flush();
+				if (bPublic) {
+					flight.markup = tee.getCopy();
+				} else {
+					privateKeys.put(aKey, Boolean.TRUE);
+				}
+			} finally {
+				// release the followers
+				flights.remove(aKey, flight);
+				flight.done.countDown();
+			}
+			return;
+		}
+		// wait for the leader
+		try {
+			if (existing.done.await(timeout, TimeUnit.MILLISECONDS)) {
+				final char[] markup = existing.markup;
+				if (markup != null) {
+					followers.incrementAndGet();
+					aWriter.write(markup);
+					return;
+				}
+			} else {
+				timeouts.incrementAndGet();
+			}
+		} catch (final InterruptedException ex) {
+			// restore the interrupt and render
+			Thread.currentThread().interrupt();
+		}
+		// render independently
+		fallbacks.incrementAndGet();
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Rendering [{0}] independently.", aKey);
+		}
+		aRenderer.render(aWriter);
+	}
+}
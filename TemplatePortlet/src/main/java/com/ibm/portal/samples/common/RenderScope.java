@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.portlet.CacheControl;
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletRequest;
+
+/**
+ * Tracks during a render if the markup depends on the current user. The
+ * components that read user specific data, e.g. the preferences or the
+ * status of a pending commit, mark the scope as private. If nothing did, the
+ * markup only depends on the state of the portlet window and the portal can
+ * share one cached fragment among all users.
+ * 
+ * The scope is kept as a request attribute, components without access to the
+ * request can keep the instance. Views that read user data directly from the
+ * request, e.g. the remote user, must mark the scope themselves.
+ * 
+ * @author cleue
+ */
+public class RenderScope {
+
+	/**
+	 * name of the request attribute
+	 */
+	private static final String KEY_SCOPE = RenderScope.class.getName();
+
+	/**
+	 * what made the scope private, <code>null</code> while it is public
+	 */
+	private volatile String reason;
+
+	/**
+	 * Starts tracking the scope of a render
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the scope
+	 */
+	public static RenderScope open(final PortletRequest aRequest) {
+		// sanity check
+		assert aRequest != null;
+		// register
+		final RenderScope scope = new RenderScope();
+		aRequest.setAttribute(KEY_SCOPE, scope);
+		return scope;
+	}
+
+	/**
+	 * Stops tracking the scope of a render
+	 * 
+	 * @param aRequest
+	 *            the request
+	 */
+	public static void close(final PortletRequest aRequest) {
+		// sanity check
+		assert aRequest != null;
+		aRequest.removeAttribute(KEY_SCOPE);
+	}
+
+	/**
+	 * Returns the scope of the current render
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the scope or <code>null</code> if it is not tracked
+	 */
+	public static RenderScope get(final PortletRequest aRequest) {
+		// sanity check
+		assert aRequest != null;
+		final Object scope = aRequest.getAttribute(KEY_SCOPE);
+		return (scope instanceof RenderScope) ? (RenderScope) scope : null;
+	}
+
+	/**
+	 * Marks the scope of the current render as private, if it is tracked
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @param aReason
+	 *            what made the markup user specific, for logging
+	 */
+	public static void markPrivate(final PortletRequest aRequest,
+			final String aReason) {
+		final RenderScope scope = get(aRequest);
+		if (scope != null) {
+			scope.markPrivate(aReason);
+		}
+	}
+
+	/**
+	 * Computes the key that identifies the markup of a portlet window
+	 * independently of the user, from the portlet mode, the window state, the
+	 * locale and the private render parameters, i.e. the encoded model.
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the URL safe key
+	 */
+	public static String getSharedKey(final PortletRequest aRequest) {
+		// sanity check
+		assert aRequest != null;
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, String.valueOf(aRequest.getPortletMode()));
+			update(digest, String.valueOf(aRequest.getWindowState()));
+			update(digest, String.valueOf(aRequest.getLocale()));
+			// the parameters in a stable order
+			final Map<String, String[]> params = new TreeMap<String, String[]>(
+					aRequest.getPrivateParameterMap());
+			for (final Map.Entry<String, String[]> entry : params.entrySet()) {
+				update(digest, entry.getKey());
+				update(digest, Arrays.toString(entry.getValue()));
+			}
+			return Base64URL.encode(digest.digest());
+		} catch (final NoSuchAlgorithmException ex) {
+			// every JRE supports SHA-256
+			throw new IllegalStateException(ex);
+		} catch (final UnsupportedEncodingException ex) {
+			// every JRE supports UTF-8
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Adds a length prefixed string to the digest, so adjacent strings
+	 * cannot be confused
+	 * 
+	 * @param aDigest
+	 *            the digest
+	 * @param aValue
+	 *            the string
+	 * @throws UnsupportedEncodingException
+	 */
+	private static final void update(final MessageDigest aDigest,
+			final String aValue) throws UnsupportedEncodingException {
+		final byte[] bytes = aValue.getBytes("UTF-8");
+		aDigest.update((byte) (bytes.length >>> 24));
+		aDigest.update((byte) (bytes.length >>> 16));
+		aDigest.update((byte) (bytes.length >>> 8));
+		aDigest.update((byte) bytes.length);
+		aDigest.update(bytes);
+	}
+
+	/**
+	 * Returns what made the scope private
+	 * 
+	 * @return the reason or <code>null</code> if the scope is public
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Checks if the markup is independent of the user
+	 * 
+	 * @return <code>true</code> if nothing marked the scope as private
+	 */
+	public boolean isPublic() {
+		return reason == null;
+	}
+
+	/**
+	 * Lets the portal share the markup among all users, if nothing marked the
+	 * scope as private. The shared key of the request serves as validation
+	 * token of the markup.
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @param aResponse
+	 *            the response
+	 * @return the shared key or <code>null</code> if the markup is private
+	 *         or the response has been committed, because the portal may
+	 *         ignore the cache control once output has been sent
+	 */
+	public String share(final PortletRequest aRequest,
+			final MimeResponse aResponse) {
+		// sanity check
+		assert aRequest != null;
+		assert aResponse != null;
+		if (!isPublic() || aResponse.isCommitted()) {
+			return null;
+		}
+		// share the markup
+		final String key = getSharedKey(aRequest);
+		final CacheControl cacheControl = aResponse.getCacheControl();
+		cacheControl.setPublicScope(true);
+		cacheControl.setETag(key);
+		// ok
+		return key;
+	}
+
+	/**
+	 * Marks the scope as private, the first reason is kept
+	 * 
+	 * @param aReason
+	 *            what made the markup user specific, for logging
+	 */
+	public void markPrivate(final String aReason) {
+		// sanity check
+		assert aReason != null;
+		if (reason == null) {
+			reason = aReason;
+		}
+	}
+}
@@ -0,0 +1,528 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for the backend, used to test the caching, the
+ * timeouts and the coalescing of the portlet without real services. The
+ * backend does not use the network, it sleeps for a random latency, fails at
+ * a random rate and returns a random payload of a random size.
+ * 
+ * The behavior is configured per service by a properties file. The service is
+ * the part of the resource name up to the first slash, services without a
+ * configuration use the <code>default</code> service. The keys are prefixed
+ * by the name of the service:
+ * <ul>
+ * <li><code>latency</code> distribution of the latency in milliseconds</li>
+ * <li><code>payload</code> distribution of the payload size in bytes</li>
+ * <li><code>errorRate</code> probability of a failure between 0 and 1</li>
+ * <li><code>maxConcurrent</code> number of calls served in parallel, further
+ * calls wait for a free slot</li>
+ * <li><code>rate</code> number of calls served per second, further calls are
+ * delayed</li>
+ * </ul>
+ * Distributions are written as <code>fixed:value</code>,
+ * <code>uniform:min:max</code>, <code>exponential:mean</code> or
+ * <code>lognormal:median:sigma</code>. The random numbers of a call only
+ * depend on the <code>seed</code> key, the resource name and the number of
+ * previous calls for that resource, so runs are reproducible independently
+ * of the scheduling of the threads. Waiting for slots is the only source of
+ * variation.
+ * 
+ * @author cleue
+ */
+public class SimulatedBackend implements Backend {
+
+	/**
+	 * A random distribution of non-negative numbers
+	 */
+	private static final class Distribution {
+
+		/**
+		 * first parameter
+		 */
+		private final double first;
+
+		/**
+		 * second parameter
+		 */
+		private final double second;
+
+		/**
+		 * kind of distribution
+		 */
+		private final String type;
+
+		/**
+		 * Initializes the distribution
+		 * 
+		 * @param aType
+		 *            kind of distribution
+		 * @param aFirst
+		 *            first parameter
+		 * @param aSecond
+		 *            second parameter
+		 */
+		private Distribution(final String aType, final double aFirst,
+				final double aSecond) {
+			type = aType;
+			first = aFirst;
+			second = aSecond;
+		}
+
+		/**
+		 * Parses the textual representation of a distribution
+		 * 
+		 * @param aValue
+		 *            the representation
+		 * @return the distribution
+		 * @throws IllegalArgumentException
+		 *             if the representation is invalid
+		 */
+		static Distribution parse(final String aValue) {
+			// sanity check
+			assert aValue != null;
+			final String[] parts = aValue.trim().split(":");
+			try {
+				final String type = parts[0].trim();
+				if (("fixed".equals(type) || "exponential".equals(type))
+						&& (parts.length == 2)) {
+					return new Distribution(type, parseParameter(parts[1]), 0);
+				}
+				if (("uniform".equals(type) || "lognormal".equals(type))
+						&& (parts.length == 3)) {
+					return new Distribution(type, parseParameter(parts[1]),
+							parseParameter(parts[2]));
+				}
+			} catch (final NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid distribution ["
+						+ aValue + "].", ex);
+			}
+			throw new IllegalArgumentException("Invalid distribution ["
+					+ aValue + "].");
+		}
+
+		/**
+		 * Parses a parameter of a distribution
+		 * 
+		 * @param aValue
+		 *            the parameter
+		 * @return the value
+		 */
+		private static final double parseParameter(final String aValue) {
+			final double result = Double.parseDouble(aValue.trim());
+			if ((result < 0) || Double.isNaN(result)
+					|| Double.isInfinite(result)) {
+				throw new NumberFormatException("Invalid parameter [" + aValue
+						+ "].");
+			}
+			return result;
+		}
+
+		/**
+		 * Draws a number
+		 * 
+		 * @param aRandom
+		 *            the random numbers
+		 * @return the number
+		 */
+		long sample(final Random aRandom) {
+			final double result;
+			if ("fixed".equals(type)) {
+				result = first;
+			} else if ("uniform".equals(type)) {
+				result = first + (aRandom.nextDouble() * (second - first));
+			} else if ("exponential".equals(type)) {
+				result = -first * Math.log(1.0 - aRandom.nextDouble());
+			} else {
+				result = first * Math.exp(second * aRandom.nextGaussian());
+			}
+			return Math.max(0, Math.round(result));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return ("fixed".equals(type) || "exponential".equals(type)) ? type
+					+ ":" + first : type + ":" + first + ":" + second;
+		}
+	}
+
+	/**
+	 * The simulated behavior of a service
+	 */
+	private static final class Service {
+
+		/**
+		 * probability of a failure
+		 */
+		private final double errorRate;
+
+		/**
+		 * latency in milliseconds
+		 */
+		private final Distribution latency;
+
+		/**
+		 * number of parallel calls, zero for no limit
+		 */
+		private final int maxConcurrent;
+
+		/**
+		 * time in nanoseconds at which the next call may start, guarded by
+		 * the service
+		 */
+		private long nextStart;
+
+		/**
+		 * size of the payload in bytes
+		 */
+		private final Distribution payload;
+
+		/**
+		 * time in nanoseconds between two calls, zero for no limit
+		 */
+		private final long interval;
+
+		/**
+		 * slots for parallel calls, <code>null</code> for no limit
+		 */
+		private final Semaphore slots;
+
+		/**
+		 * Initializes the service
+		 * 
+		 * @param aLatency
+		 *            latency in milliseconds
+		 * @param aPayload
+		 *            size of the payload in bytes
+		 * @param aErrorRate
+		 *            probability of a failure
+		 * @param aMaxConcurrent
+		 *            number of parallel calls, zero for no limit
+		 * @param aRate
+		 *            number of calls per second, zero for no limit
+		 */
+		Service(final Distribution aLatency, final Distribution aPayload,
+				final double aErrorRate, final int aMaxConcurrent,
+				final double aRate) {
+			latency = aLatency;
+			payload = aPayload;
+			errorRate = aErrorRate;
+			maxConcurrent = aMaxConcurrent;
+			slots = (aMaxConcurrent > 0) ? new Semaphore(aMaxConcurrent, true)
+					: null;
+			interval = (aRate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / aRate)
+					: 0;
+		}
+
+		/**
+		 * Reserves the start time of the next call
+		 * 
+		 * @return time in nanoseconds the caller has to wait
+		 */
+		synchronized long reserve() {
+			final long now = System.nanoTime();
+			final long start = Math.max(now, nextStart);
+			nextStart = start + interval;
+			return start - now;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "latency=" + latency + ",payload=" + payload
+					+ ",errorRate=" + errorRate + ",maxConcurrent="
+					+ maxConcurrent + ",interval=" + interval;
+		}
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = SimulatedBackend.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Name of the service that applies to resources without a configured
+	 * service
+	 */
+	public static final String SERVICE_DEFAULT = "default";
+
+	/**
+	 * counts the calls
+	 */
+	private final AtomicLong calls;
+
+	/**
+	 * number of calls by resource, drives the random numbers
+	 */
+	private final ConcurrentMap<String, AtomicLong> callNumbers = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * counts the simulated failures
+	 */
+	private final AtomicLong failures;
+
+	/**
+	 * counts the bytes returned
+	 */
+	private final AtomicLong payloadBytes;
+
+	/**
+	 * counts the calls that waited for a free slot
+	 */
+	private final AtomicLong queued;
+
+	/**
+	 * seed of the random numbers
+	 */
+	private final long seed;
+
+	/**
+	 * the services by name
+	 */
+	private final Map<String, Service> services;
+
+	/**
+	 * counts the calls that were delayed by the rate limit
+	 */
+	private final AtomicLong throttled;
+
+	/**
+	 * Initializes the backend
+	 * 
+	 * @param aConfig
+	 *            the configuration
+	 * @param aMetrics
+	 *            the counters
+	 * @throws IllegalArgumentException
+	 *             if the configuration is invalid
+	 */
+	public SimulatedBackend(final Properties aConfig, final Metrics aMetrics) {
+		// sanity check
+		assert aConfig != null;
+		assert aMetrics != null;
+		// logging support
+		final String LOG_METHOD = "SimulatedBackend(aConfig, aMetrics)";
+		// parse the services
+		seed = Long.parseLong(aConfig.getProperty("seed", "0").trim());
+		services = new HashMap<String, Service>();
+		services.put(SERVICE_DEFAULT, parseService(SERVICE_DEFAULT, aConfig));
+		for (final String key : aConfig.stringPropertyNames()) {
+			final int idx = key.lastIndexOf('.');
+			if (idx > 0) {
+				final String name = key.substring(0, idx);
+				if (!services.containsKey(name)) {
+					services.put(name, parseService(name, aConfig));
+				}
+			}
+		}
+		// log this
+		if (LOGGER.isLoggable(LOG_LEVEL)) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Simulated services [{0}].", services);
+		}
+		// the statistics
+		calls = aMetrics.getCounter("backend.calls");
+		failures = aMetrics.getCounter("backend.failures");
+		queued = aMetrics.getCounter("backend.queued");
+		throttled = aMetrics.getCounter("backend.throttled");
+		payloadBytes = aMetrics.getCounter("backend.bytes");
+	}
+
+	/**
+	 * Reads the configuration from a stream in properties format
+	 * 
+	 * @param aConfig
+	 *            the configuration, closed by this method
+	 * @param aMetrics
+	 *            the counters
+	 * @return the backend
+	 * @throws IOException
+	 *             if the configuration cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the configuration is invalid
+	 */
+	public static SimulatedBackend load(final InputStream aConfig,
+			final Metrics aMetrics) throws IOException {
+		// sanity check
+		assert aConfig != null;
+		// read the file
+		final Properties props = new Properties();
+		try {
+			props.load(aConfig);
+		} finally {
+			aConfig.close();
+		}
+		// ok
+		return new SimulatedBackend(props, aMetrics);
+	}
+
+	/**
+	 * Parses the configuration of a service, missing settings are taken from
+	 * the default service
+	 * 
+	 * @param aName
+	 *            name of the service
+	 * @param aConfig
+	 *            the configuration
+	 * @return the service
+	 */
+	private static final Service parseService(final String aName,
+			final Properties aConfig) {
+		try {
+			final double errorRate = Double.parseDouble(getSetting(aName,
+					"errorRate", "0", aConfig));
+			if ((errorRate < 0) || (errorRate > 1)) {
+				throw new IllegalArgumentException("Error rate of service ["
+						+ aName + "] is not between 0 and 1.");
+			}
+			return new Service(Distribution.parse(getSetting(aName,
+					"latency", "fixed:0", aConfig)),
+					Distribution.parse(getSetting(aName, "payload", "fixed:0",
+							aConfig)), errorRate, Integer.parseInt(getSetting(
+							aName, "maxConcurrent", "0", aConfig)),
+					Double.parseDouble(getSetting(aName, "rate", "0", aConfig)));
+		} catch (final NumberFormatException ex) {
+			throw new IllegalArgumentException(
+					"Invalid configuration of service [" + aName + "].", ex);
+		}
+	}
+
+	/**
+	 * Returns a setting of a service, falling back to the default service
+	 * 
+	 * @param aName
+	 *            name of the service
+	 * @param aKey
+	 *            name of the setting
+	 * @param aDefault
+	 *            value if neither the service nor the default service
+	 *            configure the setting
+	 * @param aConfig
+	 *            the configuration
+	 * @return the value
+	 */
+	private static final String getSetting(final String aName,
+			final String aKey, final String aDefault, final Properties aConfig) {
+		final String value = aConfig.getProperty(aName + "." + aKey,
+				aConfig.getProperty(SERVICE_DEFAULT + "." + aKey, aDefault));
+		return value.trim();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.Backend#load(java.lang.String)
+	 */
+	@Override
+	public byte[] load(final String aResource) throws IOException {
+		// sanity check
+		assert aResource != null;
+		// logging support
+		final String LOG_METHOD = "load(aResource)";
+		// locate the service
+		final int idx = aResource.indexOf('/');
+		Service service = (idx > 0) ? services.get(aResource.substring(0, idx))
+				: null;
+		if (service == null) {
+			service = services.get(SERVICE_DEFAULT);
+		}
+		// the random numbers of this call
+		AtomicLong callNumber = callNumbers.get(aResource);
+		if (callNumber == null) {
+			final AtomicLong newCallNumber = new AtomicLong();
+			callNumber = callNumbers.putIfAbsent(aResource, newCallNumber);
+			if (callNumber == null) {
+				callNumber = newCallNumber;
+			}
+		}
+		final Random random = new Random((seed * 31 + aResource.hashCode())
+				* 0x9e3779b97f4a7c15L + callNumber.getAndIncrement());
+		calls.incrementAndGet();
+		try {
+			// wait for a slot
+			if (service.slots != null) {
+				if (!service.slots.tryAcquire()) {
+					queued.incrementAndGet();
+					service.slots.acquire();
+				}
+			}
+			try {
+				// wait for the rate limit
+				final long delay = service.reserve();
+				if (delay > 0) {
+					throttled.incrementAndGet();
+					TimeUnit.NANOSECONDS.sleep(delay);
+				}
+				// the latency
+				TimeUnit.MILLISECONDS.sleep(service.latency.sample(random));
+			} finally {
+				if (service.slots != null) {
+					service.slots.release();
+				}
+			}
+		} catch (final InterruptedException ex) {
+			// restore the interrupt
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Call of [" + aResource
+					+ "] has been interrupted.");
+		}
+		// the failure
+		if (random.nextDouble() < service.errorRate) {
+			failures.incrementAndGet();
+			if (LOGGER.isLoggable(LOG_LEVEL)) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Simulating a failure of [{0}].", aResource);
+			}
+			throw new IOException("Simulated failure of [" + aResource + "].");
+		}
+		// the payload
+		final byte[] result = new byte[(int) Math.min(
+				service.payload.sample(random), Integer.MAX_VALUE - 8)];
+		random.nextBytes(result);
+		payloadBytes.addAndGet(result.length);
+		// ok
+		return result;
+	}
+}
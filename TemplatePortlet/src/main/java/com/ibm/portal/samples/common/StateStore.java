@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+
+/**
+ * Server side storage for navigational state that is too large to be
+ * transported in URLs. Entries are addressed by a hash of their content, so
+ * the key can be placed into the URL instead of the state itself. Since the
+ * key is derived from the content, the resulting URLs remain bookmarkable and
+ * do not depend on a session.
+ * 
+ * Implementations are bounded, so entries may be evicted at any time. Callers
+ * must fall back to a default state if an entry cannot be found.
+ * 
+ * @author cleue
+ */
+public interface StateStore {
+
+	/**
+	 * Releases the resources held by the store
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Looks up an entry
+	 * 
+	 * @param aKey
+	 *            the key as returned by {@link #put(byte[])}
+	 * @return the data or <code>null</code> if the entry does not exist (any
+	 *         more)
+	 * 
+	 * @throws IOException
+	 */
+	byte[] get(String aKey) throws IOException;
+
+	/**
+	 * Stores an entry. Storing identical data twice returns the same key
+	 * without storing the data again.
+	 * 
+	 * @param aData
+	 *            the data
+	 * @return the key of the entry, consisting of URL safe characters only,
+	 *         or <code>null</code> if the data exceeds the capacity of the
+	 *         store and has not been stored
+	 * 
+	 * @throws IOException
+	 */
+	String put(byte[] aData) throws IOException;
+}
@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Marshaller for private render parameters that moves large string values into
+ * a {@link StateStore}. Only the content hash of such a value is encoded into
+ * the URL, prefixed by {@link #MARKER}. All other values are marshalled by the
+ * delegate marshaller, so this class can be stacked on top of e.g. a
+ * {@link DeflateParameterMarshaller} to compress values first and only store
+ * them if they are still too large.
+ * 
+ * Since the key is derived from the content, URLs remain bookmarkable and do
+ * not require a session. If a stored value has been evicted, the default value
+ * of the parameter is used.
+ * 
+ * @author cleue
+ */
+public class StoredParameterMarshaller extends AbstractMarshaller {
+
+	/**
+	 * Encoding used to convert between strings and bytes
+	 */
+	private static final String ENCODING = "UTF-8";
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = StoredParameterMarshaller.class
+			.getName();
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Prefix of a stored value, this character is neither part of the
+	 * base64url alphabet nor the marker of the
+	 * {@link DeflateParameterMarshaller}
+	 */
+	public static final char MARKER = '!';
+
+	/**
+	 * marshaller for the values that are not stored
+	 */
+	private final Marshaller delegate;
+
+	/**
+	 * the store
+	 */
+	private final StateStore store;
+
+	/**
+	 * minimum length of an encoded value before it is moved into the store
+	 */
+	private final int threshold;
+
+	/**
+	 * Initializes the marshaller
+	 * 
+	 * @param aDelegate
+	 *            marshaller for the values
+	 * @param aStore
+	 *            the store for large values
+	 * @param aThreshold
+	 *            number of characters of the encoded value above which the
+	 *            value is moved into the store
+	 */
+	public StoredParameterMarshaller(final Marshaller aDelegate,
+			final StateStore aStore, final int aThreshold) {
+		// sanity check
+		assert aDelegate != null;
+		assert aStore != null;
+		assert aThreshold > 0;
+		// init
+		delegate = aDelegate;
+		store = aStore;
+		threshold = aThreshold;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.AbstractMarshaller#marshalEnum(java.lang.Enum)
+	 */
+	@Override
+	public String marshalEnum(final Enum<?> aRaw) {
+		return delegate.marshalEnum(aRaw);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.Marshaller#marshalInt(int)
+	 */
+	@Override
+	public String marshalInt(final int aRaw) {
+		return delegate.marshalInt(aRaw);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.ibm.portal.samples.common.AbstractMarshaller#marshalString(java.lang
+	 * .String)
+	 */
+	@Override
+	public String marshalString(final String aRaw) {
+		// logging support
+		final String LOG_METHOD = "marshalString(aRaw)";
+		// encode the value
+		final String token = delegate.marshalString(aRaw);
+		if (token == null) {
+			return null;
+		}
+		// small values travel in the URL
+		if (token.length() < threshold) {
+			return inline(token);
+		}
+		// move the value into the store
+		try {
+			final String key = store.put(token.getBytes(ENCODING));
+			if (key != null) {
+				return MARKER + key;
+			}
+			// log this, the client controls the size
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.logp(Level.FINE, LOG_CLASS, LOG_METHOD,
+						"Parameter of [{0}] characters exceeds the capacity "
+								+ "of the store, encoding it inline.",
+						token.length());
+			}
+		} catch (final IOException ex) {
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Unable to store the parameter, encoding it inline.", ex);
+		}
+		// fallback to the inline representation
+		return inline(token);
+	}
+
+	/**
+	 * Encodes a value inline, escapes values that look like stored ones
+	 * 
+	 * @param aToken
+	 *            the value as encoded by the delegate
+	 * @return the inline representation
+	 */
+	private static final String inline(final String aToken) {
+		return ((aToken.length() > 0) && (aToken.charAt(0) == MARKER)) ? MARKER
+				+ aToken : aToken;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.ibm.portal.samples.common.AbstractMarshaller#unmarshalEnum(java.lang
+	 * .String, java.lang.Enum[], java.lang.Enum)
+	 */
+	@Override
+	public <E extends Enum<E>> E unmarshalEnum(final String aToken,
+			final E[] aEnums, final E aDefault) {
+		return delegate.unmarshalEnum(aToken, aEnums, aDefault);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.ibm.portal.samples.common.Marshaller#unmarshalInt(java.lang.String,
+	 * int)
+	 */
+	@Override
+	public int unmarshalInt(final String aToken, final int aDefault) {
+		return delegate.unmarshalInt(aToken, aDefault);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.ibm.portal.samples.common.AbstractMarshaller#unmarshalString(java
+	 * .lang.String, java.lang.String)
+	 */
+	@Override
+	public String unmarshalString(final String aToken, final String aDefault) {
+		// logging support
+		final String LOG_METHOD = "unmarshalString(aToken, aDefault)";
+		// values encoded inline
+		if ((aToken == null) || (aToken.length() == 0)
+				|| (aToken.charAt(0) != MARKER)) {
+			return delegate.unmarshalString(aToken, aDefault);
+		}
+		// escaped inline values
+		if ((aToken.length() > 1) && (aToken.charAt(1) == MARKER)) {
+			return delegate.unmarshalString(aToken.substring(1), aDefault);
+		}
+		// lookup the stored value
+		try {
+			final byte[] data = store.get(aToken.substring(1));
+			return (data != null) ? delegate.unmarshalString(new String(data,
+					ENCODING), aDefault) : aDefault;
+		} catch (final UnsupportedEncodingException ex) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(ex);
+		} catch (final IOException ex) {
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Unable to read the stored parameter.", ex);
+			return aDefault;
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Allocation light decoding of bytes into strings. The conversion via
+ * {@link String#String(byte[], String)} looks up the character set by name and
+ * allocates a new decoder and intermediate buffers for every invocation. This
+ * class caches the {@link Charset} instances and keeps a reusable
+ * {@link CharsetDecoder} and buffers per thread, so the only allocation per
+ * decoded value is the resulting string. The thread locals only hold JDK
+ * types, so container threads that keep them do not pin the class loader of
+ * the web application, and there is nothing to release per request.
+ * 
+ * Malformed input is replaced, consistent with the behaviour of the
+ * {@link String} constructors.
+ * 
+ * @author cleue
+ */
+public final class TextDecoder {
+
+	/**
+	 * cache of the character sets by normalized name
+	 */
+	private static final ConcurrentMap<String, Charset> CHARSETS = new ConcurrentHashMap<String, Charset>();
+
+	/**
+	 * maximum number of cached character set names, further names are looked
+	 * up but not cached
+	 */
+	private static final int MAX_CHARSETS = 32;
+
+	/**
+	 * size of the byte buffer used to read streams
+	 */
+	private static final int BYTE_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Per thread buffer for the bytes read from a stream
+	 */
+	private static final ThreadLocal<ByteBuffer> BYTES = new ThreadLocal<ByteBuffer>();
+
+	/**
+	 * Per thread buffer for the decoded characters
+	 */
+	private static final ThreadLocal<CharBuffer> CHARS = new ThreadLocal<CharBuffer>();
+
+	/**
+	 * Per thread decoder of the most recently used character set
+	 */
+	private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>();
+
+	/**
+	 * Maximum capacity of the character buffer that is retained between
+	 * invocations. Larger buffers are released after use so a single large
+	 * value does not pin memory for the lifetime of the thread.
+	 */
+	private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+	/**
+	 * the default character set
+	 */
+	public static final Charset UTF_8 = getCharset("UTF-8", null);
+
+	/**
+	 * Returns the character set for the given name. Unknown or unsupported
+	 * names result in the default.
+	 * 
+	 * @param aName
+	 *            name of the character set
+	 * @param aDefault
+	 *            the default
+	 * @return the character set
+	 */
+	public static Charset getCharset(final String aName, final Charset aDefault) {
+		// no name
+		if (aName == null) {
+			return aDefault;
+		}
+		// the name might come from a client, so normalize it
+		final String key = aName.trim().toLowerCase(Locale.ENGLISH);
+		// lookup
+		Charset result = CHARSETS.get(key);
+		if (result == null) {
+			try {
+				result = Charset.forName(key);
+			} catch (final IllegalArgumentException ex) {
+				// do not cache unknown names
+				return aDefault;
+			}
+			// keep the cache bounded, the size check is not atomic
+			if (CHARSETS.size() < MAX_CHARSETS) {
+				CHARSETS.putIfAbsent(key, result);
+			}
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Decodes the given bytes
+	 * 
+	 * @param aData
+	 *            the bytes
+	 * @param aCharset
+	 *            the character set
+	 * @return the string
+	 */
+	public static String decode(final byte[] aData, final Charset aCharset) {
+		// sanity check
+		assert aData != null;
+		assert aCharset != null;
+		// prepare
+		final CharsetDecoder dec = getDecoder(aCharset);
+		CharBuffer out = getChars((int) (aData.length * dec
+				.averageCharsPerByte()) + 16);
+		try {
+			// decode
+			final ByteBuffer in = ByteBuffer.wrap(aData);
+			out = decode(dec, in, out, true);
+			out = flush(dec, out);
+			// produce the result
+			out.flip();
+			return out.toString();
+		} catch (final CharacterCodingException ex) {
+			// cannot happen since we replace malformed input
+			throw new IllegalStateException(ex);
+		} finally {
+			release(out);
+		}
+	}
+
+	/**
+	 * Decodes the content of the stream. The stream is not closed.
+	 * 
+	 * @param aIn
+	 *            the stream
+	 * @param aCharset
+	 *            the character set
+	 * @return the string
+	 * 
+	 * @throws IOException
+	 */
+	public static String decode(final InputStream aIn, final Charset aCharset)
+			throws IOException {
+		// sanity check
+		assert aIn != null;
+		assert aCharset != null;
+		// prepare
+		final CharsetDecoder dec = getDecoder(aCharset);
+		ByteBuffer in = BYTES.get();
+		if (in == null) {
+			in = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+			BYTES.set(in);
+		}
+		in.clear();
+		CharBuffer out = getChars(BYTE_BUFFER_SIZE);
+		try {
+			// read and decode chunk by chunk
+			boolean bEOF = false;
+			while (!bEOF) {
+				// fill the buffer
+				final int n = aIn.read(in.array(),
+						in.arrayOffset() + in.position(), in.remaining());
+				if (n < 0) {
+					bEOF = true;
+				} else {
+					in.position(in.position() + n);
+				}
+				// decode, incomplete sequences remain in the buffer
+				in.flip();
+				out = decode(dec, in, out, bEOF);
+				in.compact();
+			}
+			out = flush(dec, out);
+			// produce the result
+			out.flip();
+			return out.toString();
+		} finally {
+			release(out);
+		}
+	}
+
+	/**
+	 * Decodes the available input, grows the output buffer as required
+	 * 
+	 * @param aDecoder
+	 *            the decoder
+	 * @param aIn
+	 *            the input
+	 * @param aOut
+	 *            the output
+	 * @param bEOF
+	 *            <code>true</code> if this is the last input
+	 * @return the output buffer, might be a different one than passed in
+	 * 
+	 * @throws CharacterCodingException
+	 */
+	private static final CharBuffer decode(final CharsetDecoder aDecoder,
+			final ByteBuffer aIn, final CharBuffer aOut, final boolean bEOF)
+			throws CharacterCodingException {
+		CharBuffer out = aOut;
+		while (true) {
+			final CoderResult result = aDecoder.decode(aIn, out, bEOF);
+			if (result.isOverflow()) {
+				out = grow(out);
+			} else if (result.isUnderflow()) {
+				return out;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the decoder, grows the output buffer as required
+	 * 
+	 * @param aDecoder
+	 *            the decoder
+	 * @param aOut
+	 *            the output
+	 * @return the output buffer, might be a different one than passed in
+	 * 
+	 * @throws CharacterCodingException
+	 */
+	private static final CharBuffer flush(final CharsetDecoder aDecoder,
+			final CharBuffer aOut) throws CharacterCodingException {
+		CharBuffer out = aOut;
+		while (true) {
+			final CoderResult result = aDecoder.flush(out);
+			if (result.isOverflow()) {
+				out = grow(out);
+			} else if (result.isUnderflow()) {
+				return out;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+
+	/**
+	 * Returns an empty character buffer of the current thread with at least
+	 * the given capacity
+	 * 
+	 * @param aCapacity
+	 *            the capacity
+	 * @return the buffer
+	 */
+	private static final CharBuffer getChars(final int aCapacity) {
+		// reuse the buffer if it is large enough
+		CharBuffer chars = CHARS.get();
+		if ((chars == null) || (chars.capacity() < aCapacity)) {
+			chars = CharBuffer.allocate(aCapacity);
+			CHARS.set(chars);
+		}
+		chars.clear();
+		return chars;
+	}
+
+	/**
+	 * Returns a reset decoder of the current thread for the character set
+	 * 
+	 * @param aCharset
+	 *            the character set
+	 * @return the decoder
+	 */
+	private static final CharsetDecoder getDecoder(final Charset aCharset) {
+		// the character set typically does not change
+		CharsetDecoder decoder = DECODER.get();
+		if ((decoder == null) || !decoder.charset().equals(aCharset)) {
+			decoder = aCharset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			DECODER.set(decoder);
+		} else {
+			decoder.reset();
+		}
+		// ok
+		return decoder;
+	}
+
+	/**
+	 * Doubles the capacity of the buffer, keeping its content
+	 * 
+	 * @param aOut
+	 *            the buffer
+	 * @return the new buffer
+	 */
+	private static final CharBuffer grow(final CharBuffer aOut) {
+		// allocate and copy
+		final CharBuffer result = CharBuffer.allocate(aOut.capacity() << 1);
+		aOut.flip();
+		result.put(aOut);
+		// keep it for the next invocation
+		CHARS.set(result);
+		return result;
+	}
+
+	/**
+	 * Drops the character buffer of the current thread if it grew too large
+	 * 
+	 * @param aOut
+	 *            the buffer
+	 */
+	private static final void release(final CharBuffer aOut) {
+		if (aOut.capacity() > MAX_RETAINED_CHARS) {
+			CHARS.remove();
+		}
+	}
+
+	/**
+	 * Do not instantiate this class
+	 */
+	private TextDecoder() {
+
+	}
+}
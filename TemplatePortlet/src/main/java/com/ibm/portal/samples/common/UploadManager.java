@@ -0,0 +1,617 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.portlet.ClientDataRequest;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadBase.IOFileUploadException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.portlet.PortletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.io.FileCleaningTracker;
+
+/**
+ * Portlet wide configuration of the form upload handling. A single
+ * {@link DiskFileItemFactory} is shared across all requests, configured with a
+ * memory threshold and a repository directory (e.g. on tmpfs). Temporary files
+ * are tracked by a {@link FileCleaningTracker}, so they are removed even if an
+ * action fails before it could release its items. Uploaded files are hashed
+ * while they stream in, see {@link DigestFileItem}.
+ * 
+ * Requests are parsed part by part via {@link #open(ClientDataRequest)}, a part
+ * is available to the caller as soon as it has been received, while the
+ * following parts are still in transit.
+ * 
+ * Files and plain form fields have separate limits. Files are streamed to
+ * disk, so their limit only protects the disk space and defaults to
+ * {@link #DEFAULT_MAX_FILE_SIZE}. Form fields are decoded into strings, so
+ * their limit is enforced while they are written, before they can fill the
+ * buffers.
+ * 
+ * The manager maintains gauges for the bytes currently buffered in memory and
+ * on disk and the number of temporary files in the {@link Metrics}.
+ * 
+ * Items are moved to their final location via
+ * {@link #transfer(FileItem, File)} without passing the content through heap
+ * buffers where possible: spooled files are renamed or copied via
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * , all other items are written through a direct buffer.
+ * 
+ * @author cleue
+ */
+public class UploadManager {
+
+	/**
+	 * The items of a single request together with their buffer sizes. The
+	 * items are parsed from the request body one at a time via
+	 * {@link #next()}, so a consumer can process a part while the following
+	 * parts are still being received.
+	 */
+	public final class Batch {
+
+		/**
+		 * <code>true</code> if the batch has been released
+		 */
+		private boolean bReleased;
+
+		/**
+		 * bytes buffered on disk
+		 */
+		private long disk;
+
+		/**
+		 * number of temporary files
+		 */
+		private int files;
+
+		/**
+		 * the items parsed so far
+		 */
+		private final List<FileItem> items = new ArrayList<FileItem>();
+
+		/**
+		 * bytes buffered in memory
+		 */
+		private long memory;
+
+		/**
+		 * the parts that have not been parsed, yet
+		 */
+		private final FileItemIterator parts;
+
+		/**
+		 * Initializes the batch
+		 * 
+		 * @param aParts
+		 *            the parts of the request
+		 */
+		private Batch(final FileItemIterator aParts) {
+			// sanity check
+			assert aParts != null;
+			// init
+			parts = aParts;
+		}
+
+		/**
+		 * Returns the items that have been parsed so far
+		 * 
+		 * @return the items
+		 */
+		public List<FileItem> getItems() {
+			return items;
+		}
+
+		/**
+		 * Parses the next part of the request into an item and accounts for
+		 * its buffer. The limits are enforced while the part streams in. The
+		 * item is deleted when the batch is released, but may be deleted
+		 * earlier by the caller.
+		 * 
+		 * @return the item or <code>null</code> if there are no more parts
+		 * 
+		 * @throws FileUploadException
+		 *             if the request exceeds the size limits or is malformed
+		 */
+		public FileItem next() throws FileUploadException {
+			// logging support
+			final String LOG_METHOD = "next()";
+			// sanity check
+			if (bReleased) {
+				throw new IllegalStateException("The batch has been released.");
+			}
+			try {
+				// check for more parts
+				if (!parts.hasNext()) {
+					return null;
+				}
+				final FileItemStream part = parts.next();
+				final FileItem item = factory.createItem(part.getFieldName(),
+						part.getContentType(), part.isFormField(),
+						part.getName());
+				// track the item first, so a partial item is deleted, too
+				items.add(item);
+				try {
+					Streams.copy(part.openStream(), item.getOutputStream(),
+							true);
+				} catch (final FileUploadIOException ex) {
+					throw (FileUploadException) ex.getCause();
+				} catch (final IOException ex) {
+					throw new IOFileUploadException("Processing of the part ["
+							+ part.getFieldName() + "] failed. "
+							+ ex.getMessage(), ex);
+				}
+				item.setHeaders(part.getHeaders());
+				// update the gauges, the sizes are not available after a
+				// deletion
+				final long size = item.getSize();
+				if (item.isInMemory()) {
+					memory += size;
+					memoryBytes.addAndGet(size);
+				} else {
+					disk += size;
+					files++;
+					diskBytes.addAndGet(size);
+					diskFiles.incrementAndGet();
+					metrics.add(METRIC_DISK_FILES_CREATED, 1);
+				}
+				// log this
+				if (LOGGER.isLoggable(LOG_LEVEL)) {
+					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+							"Buffered part [{0}] with [{1}] bytes in memory [{2}].",
+							new Object[] { item.getFieldName(), size,
+									item.isInMemory() });
+				}
+				// ok
+				return item;
+			} catch (final FileUploadIOException ex) {
+				throw (FileUploadException) ex.getCause();
+			} catch (final IOException ex) {
+				throw new FileUploadException(ex.getMessage(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Default for the maximum size of an uploaded file
+	 */
+	public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024L * 1024L;
+
+	/**
+	 * Size of the per thread direct buffer used to stream items
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Per thread direct buffer, direct buffers are expensive to allocate
+	 */
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.ThreadLocal#initialValue()
+		 */
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = UploadManager.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Name of the gauge for the bytes buffered on disk
+	 */
+	public static final String METRIC_DISK_BYTES = "upload.disk.bytes";
+
+	/**
+	 * Name of the gauge for the number of temporary files
+	 */
+	public static final String METRIC_DISK_FILES = "upload.disk.files";
+
+	/**
+	 * Name of the counter for the number of temporary files ever created
+	 */
+	public static final String METRIC_DISK_FILES_CREATED = "upload.disk.files.created";
+
+	/**
+	 * Name of the gauge for the bytes buffered in memory
+	 */
+	public static final String METRIC_MEMORY_BYTES = "upload.memory.bytes";
+
+	/**
+	 * Name of the counter for the bytes moved to their final location
+	 */
+	public static final String METRIC_TRANSFER_BYTES = "upload.transfer.bytes";
+
+	/**
+	 * Name of the counter for items copied via the file channel
+	 */
+	public static final String METRIC_TRANSFER_COPIED = "upload.transfer.copied";
+
+	/**
+	 * Name of the counter for items moved by renaming the temporary file
+	 */
+	public static final String METRIC_TRANSFER_RENAMED = "upload.transfer.renamed";
+
+	/**
+	 * Name of the counter for items written through the direct buffer
+	 */
+	public static final String METRIC_TRANSFER_STREAMED = "upload.transfer.streamed";
+
+	/**
+	 * the shared factory
+	 */
+	private final DiskFileItemFactory factory;
+
+	/**
+	 * maximum size of a single file
+	 */
+	private final long maxFileSize;
+
+	/**
+	 * maximum size of a request
+	 */
+	private final long maxRequestSize;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * gauge of the bytes buffered on disk
+	 */
+	private final AtomicLong diskBytes;
+
+	/**
+	 * gauge of the files buffered on disk
+	 */
+	private final AtomicLong diskFiles;
+
+	/**
+	 * gauge of the bytes buffered in memory
+	 */
+	private final AtomicLong memoryBytes;
+
+	/**
+	 * removes temporary files of items that have been garbage collected
+	 */
+	private final FileCleaningTracker tracker = new FileCleaningTracker();
+
+	/**
+	 * Initializes the manager
+	 * 
+	 * @param aThreshold
+	 *            number of bytes above which an item is buffered on disk
+	 * @param aRepository
+	 *            directory for the temporary files, <code>null</code> for the
+	 *            system temp directory
+	 * @param aMaxFieldSize
+	 *            maximum size of a plain form field, <code>-1</code> for no
+	 *            limit
+	 * @param aMaxFileSize
+	 *            maximum size of a single file, <code>-1</code> for no limit
+	 * @param aMaxRequestSize
+	 *            maximum size of a request, <code>-1</code> for no limit
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public UploadManager(final int aThreshold, final File aRepository,
+			final long aMaxFieldSize, final long aMaxFileSize,
+			final long aMaxRequestSize, final Metrics aMetrics) {
+		// sanity check
+		assert aThreshold >= 0;
+		assert aMetrics != null;
+		// init
+		maxFileSize = aMaxFileSize;
+		maxRequestSize = aMaxRequestSize;
+		metrics = aMetrics;
+		diskBytes = aMetrics.getGauge(METRIC_DISK_BYTES);
+		diskFiles = aMetrics.getGauge(METRIC_DISK_FILES);
+		memoryBytes = aMetrics.getGauge(METRIC_MEMORY_BYTES);
+		// the shared factory
+		factory = new DigestFileItemFactory(aThreshold, aRepository,
+				aMaxFieldSize);
+		factory.setFileCleaningTracker(tracker);
+	}
+
+	/**
+	 * Constructs the parser for a request, configured with the size limits
+	 * 
+	 * @return the parser
+	 */
+	public PortletFileUpload createUpload() {
+		// the parser is cheap, the factory is shared and limits the form fields
+		final PortletFileUpload upload = new PortletFileUpload(factory);
+		upload.setFileSizeMax(maxFileSize);
+		upload.setSizeMax(maxRequestSize);
+		return upload;
+	}
+
+	/**
+	 * Starts to parse the form data of a request. The parts are parsed while
+	 * the caller iterates via {@link Batch#next()}, so the body is never
+	 * buffered as a whole. The request may be an action or a resource request.
+	 * The result must be passed to {@link #release(Batch)} at the end of the
+	 * request.
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the batch that parses the items of the request
+	 * 
+	 * @throws FileUploadException
+	 *             if the declared length of the request exceeds the size
+	 *             limit or the request is malformed
+	 */
+	public Batch open(final ClientDataRequest aRequest)
+			throws FileUploadException {
+		try {
+			// the limits are enforced while streaming
+			return new Batch(createUpload().getItemIterator(
+					new ClientDataRequestContext(aRequest)));
+		} catch (final FileUploadIOException ex) {
+			throw (FileUploadException) ex.getCause();
+		} catch (final IOException ex) {
+			throw new FileUploadException(ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Parses all form data of a request and accounts for the buffered items,
+	 * see {@link #open(ClientDataRequest)}. The result must be passed to
+	 * {@link #release(Batch)} at the end of the request.
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the items of the request
+	 * 
+	 * @throws FileUploadException
+	 *             if the request exceeds the size limits or is malformed
+	 */
+	public Batch parse(final ClientDataRequest aRequest)
+			throws FileUploadException {
+		// logging support
+		final String LOG_METHOD = "parse(aRequest)";
+		// parse all parts, release the partial batch on failure
+		final Batch batch = open(aRequest);
+		boolean bSuccess = false;
+		try {
+			while (batch.next() != null) {
+				// the batch keeps the items
+			}
+			bSuccess = true;
+		} finally {
+			if (!bSuccess) {
+				release(batch);
+			}
+		}
+		// log this
+		if (LOGGER.isLoggable(LOG_LEVEL)) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Buffered [{0}] bytes in memory and [{1}] bytes in [{2}] files.",
+					new Object[] { batch.memory, batch.disk, batch.files });
+		}
+		// ok
+		return batch;
+	}
+
+	/**
+	 * Deletes the items of a request and updates the gauges. Releasing a batch
+	 * twice is harmless.
+	 * 
+	 * @param aBatch
+	 *            the items
+	 */
+	public void release(final Batch aBatch) {
+		// sanity check
+		assert aBatch != null;
+		// release only once
+		if (aBatch.bReleased) {
+			return;
+		}
+		aBatch.bReleased = true;
+		// delete the items, this is a no-op for items deleted before
+		for (final FileItem item : aBatch.items) {
+			item.delete();
+		}
+		// update the gauges
+		memoryBytes.addAndGet(-aBatch.memory);
+		diskBytes.addAndGet(-aBatch.disk);
+		diskFiles.addAndGet(-aBatch.files);
+	}
+
+	/**
+	 * Copies a file via the file channel, so the content does not pass through
+	 * the Java heap
+	 * 
+	 * @param aSource
+	 *            the source file
+	 * @param aTarget
+	 *            the target file
+	 * @return number of bytes copied
+	 * 
+	 * @throws IOException
+	 */
+	private static final long copy(final File aSource, final File aTarget)
+			throws IOException {
+		final FileInputStream in = new FileInputStream(aSource);
+		try {
+			final FileOutputStream out = new FileOutputStream(aTarget);
+			try {
+				// transferTo might transfer less than requested
+				final FileChannel src = in.getChannel();
+				final FileChannel dst = out.getChannel();
+				final long len = src.size();
+				long pos = 0;
+				while (pos < len) {
+					pos += src.transferTo(pos, len - pos, dst);
+				}
+				return len;
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the content of an item to a file. In memory items are written
+	 * from their existing array, streams are read via the per thread direct
+	 * buffer.
+	 * 
+	 * @param aItem
+	 *            the item
+	 * @param aTarget
+	 *            the target file
+	 * @return number of bytes written
+	 * 
+	 * @throws IOException
+	 */
+	private static final long stream(final FileItem aItem, final File aTarget)
+			throws IOException {
+		final FileOutputStream out = new FileOutputStream(aTarget);
+		try {
+			final FileChannel dst = out.getChannel();
+			long len = 0;
+			if (aItem.isInMemory()) {
+				// the content is on the heap anyway, avoid a second copy
+				final ByteBuffer data = ByteBuffer.wrap(aItem.get());
+				while (data.hasRemaining()) {
+					len += dst.write(data);
+				}
+				return len;
+			}
+			// stream the content
+			final InputStream in = aItem.getInputStream();
+			try {
+				final ReadableByteChannel src = (in instanceof FileInputStream) ? ((FileInputStream) in)
+						.getChannel() : Channels.newChannel(in);
+				final ByteBuffer buffer = BUFFER.get();
+				buffer.clear();
+				while (src.read(buffer) >= 0) {
+					buffer.flip();
+					len += dst.write(buffer);
+					buffer.compact();
+				}
+				// drain
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					len += dst.write(buffer);
+				}
+				return len;
+			} finally {
+				in.close();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Moves the content of an item to its final location, an existing file is
+	 * replaced. Items that have been spooled to disk are renamed, which is
+	 * free if the repository resides on the same file system as the target,
+	 * otherwise they are copied via
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+	 * . All other items are written through a direct buffer. The item must not
+	 * be read after the transfer.
+	 * 
+	 * @param aItem
+	 *            the item
+	 * @param aTarget
+	 *            the target file
+	 * @return number of bytes transferred
+	 * 
+	 * @throws IOException
+	 */
+	public long transfer(final FileItem aItem, final File aTarget)
+			throws IOException {
+		// sanity check
+		assert aItem != null;
+		assert aTarget != null;
+		// logging support
+		final String LOG_METHOD = "transfer(aItem, aTarget)";
+		final long len;
+		final String metric;
+		// check for a spooled file
+		final File source = (!aItem.isInMemory() && (aItem instanceof DiskFileItem)) ? ((DiskFileItem) aItem)
+				.getStoreLocation() : null;
+		if ((source != null) && source.isFile()) {
+			// move the file, the rename fails across file systems
+			final long size = source.length();
+			if ((!aTarget.exists() || aTarget.delete())
+					&& source.renameTo(aTarget)) {
+				len = size;
+				metric = METRIC_TRANSFER_RENAMED;
+			} else {
+				len = copy(source, aTarget);
+				metric = METRIC_TRANSFER_COPIED;
+			}
+		} else {
+			// write the content
+			len = stream(aItem, aTarget);
+			metric = METRIC_TRANSFER_STREAMED;
+		}
+		// count this
+		metrics.increment(metric);
+		metrics.add(METRIC_TRANSFER_BYTES, len);
+		// log this
+		if (LOGGER.isLoggable(LOG_LEVEL)) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Transferred [{0}] bytes to [{1}] via [{2}].",
+					new Object[] { len, aTarget, metric });
+		}
+		// ok
+		return len;
+	}
+
+	/**
+	 * Stops the reaper thread once all tracked files have been deleted
+	 */
+	public void shutdown() {
+		tracker.exitWhenFinished();
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * Processes the file parts of a multipart request in parallel. Each part is
+ * handed to an {@link Executor} for hashing, validation or storage while the
+ * action continues to decode the remaining fields. The number of parts in
+ * flight is bounded across all requests, so decoding blocks if the workers are
+ * saturated.
+ * 
+ * The pipeline falls back to processing the parts on the calling thread if no
+ * executor is configured or if the executor rejects a part.
+ * 
+ * @author cleue
+ */
+public class UploadPipeline {
+
+	/**
+	 * The parts submitted during a single request
+	 */
+	public final class Session {
+
+		/**
+		 * the submitted parts in order
+		 */
+		private final List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+
+		/**
+		 * Waits for all parts submitted so far. If a part failed, the first
+		 * failure is rethrown.
+		 * 
+		 * @throws Exception
+		 *             the failure of a part
+		 */
+		public void await() throws Exception {
+			try {
+				for (final FutureTask<Void> task : tasks) {
+					try {
+						task.get();
+					} catch (final ExecutionException ex) {
+						// unwrap
+						final Throwable cause = ex.getCause();
+						if (cause instanceof Exception) {
+							throw (Exception) cause;
+						}
+						if (cause instanceof Error) {
+							throw (Error) cause;
+						}
+						throw ex;
+					}
+				}
+			} finally {
+				tasks.clear();
+			}
+		}
+
+		/**
+		 * Cancels the parts that did not start, yet, and waits for the running
+		 * ones, so the items can safely be deleted afterwards. Failures are
+		 * ignored.
+		 */
+		public void close() {
+			// cancel what did not start
+			for (final FutureTask<Void> task : tasks) {
+				task.cancel(false);
+			}
+			// wait for the running ones
+			boolean bInterrupted = false;
+			for (final FutureTask<Void> task : tasks) {
+				while (true) {
+					try {
+						task.get();
+						break;
+					} catch (final InterruptedException ex) {
+						bInterrupted = true;
+					} catch (final ExecutionException ex) {
+						break;
+					} catch (final CancellationException ex) {
+						break;
+					}
+				}
+			}
+			tasks.clear();
+			// restore the interrupt
+			if (bInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Hands a part to the pipeline. Blocks if the maximum number of parts
+		 * is in flight. The item must not be deleted before {@link #await()}
+		 * or {@link #close()} returned.
+		 * 
+		 * @param aItem
+		 *            the part
+		 * @param aTask
+		 *            the processing of the part
+		 * 
+		 * @throws Exception
+		 *             the failure of the part if it was processed on the
+		 *             calling thread
+		 */
+		public void submit(final FileItem aItem, final Task aTask)
+				throws Exception {
+			// sanity check
+			assert aItem != null;
+			assert aTask != null;
+			// synchronous processing
+			if (executor == null) {
+				aTask.process(aItem);
+				return;
+			}
+			// back-pressure
+			if (!permits.tryAcquire()) {
+				metrics.increment(METRIC_BLOCKED);
+				permits.acquire();
+			}
+			// the task returns its permit on completion or cancellation
+			final FutureTask<Void> task = new FutureTask<Void>(
+					new Callable<Void>() {
+
+						/*
+						 * (non-Javadoc)
+						 * 
+						 * @see java.util.concurrent.Callable#call()
+						 */
+						@Override
+						public Void call() throws Exception {
+							aTask.process(aItem);
+							return null;
+						}
+					}) {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.util.concurrent.FutureTask#done()
+				 */
+				@Override
+				protected void done() {
+					permits.release();
+				}
+			};
+			tasks.add(task);
+			try {
+				executor.execute(task);
+				metrics.increment(METRIC_PARALLEL);
+			} catch (final RejectedExecutionException ex) {
+				// fallback to the calling thread
+				metrics.increment(METRIC_SYNCHRONOUS);
+				if (LOGGER.isLoggable(LOG_LEVEL)) {
+					LOGGER.logp(LOG_LEVEL, LOG_CLASS, "submit(aItem, aTask)",
+							"Executor rejected the part, processing it synchronously.");
+				}
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Processing of a single part
+	 */
+	public interface Task {
+
+		/**
+		 * Processes the part, e.g. hashes, validates and stores it
+		 * 
+		 * @param aItem
+		 *            the part
+		 * @throws Exception
+		 */
+		void process(FileItem aItem) throws Exception;
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = UploadPipeline.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * Name of the counter for parts that had to wait for a free worker
+	 */
+	public static final String METRIC_BLOCKED = "upload.pipeline.blocked";
+
+	/**
+	 * Name of the counter for parts processed by the executor
+	 */
+	public static final String METRIC_PARALLEL = "upload.pipeline.parallel";
+
+	/**
+	 * Name of the counter for parts processed on the calling thread, because
+	 * the executor rejected them
+	 */
+	public static final String METRIC_SYNCHRONOUS = "upload.pipeline.synchronous";
+
+	/**
+	 * the workers, <code>null</code> for synchronous processing
+	 */
+	private final Executor executor;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * bounds the number of parts in flight
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Initializes the pipeline
+	 * 
+	 * @param aExecutor
+	 *            the workers, <code>null</code> to process all parts on the
+	 *            calling thread
+	 * @param aMaxPending
+	 *            maximum number of parts in flight across all requests
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public UploadPipeline(final Executor aExecutor, final int aMaxPending,
+			final Metrics aMetrics) {
+		// sanity check
+		assert aMaxPending > 0;
+		assert aMetrics != null;
+		// init
+		executor = aExecutor;
+		permits = new Semaphore(aMaxPending);
+		metrics = aMetrics;
+	}
+
+	/**
+	 * Starts the processing of the parts of a request
+	 * 
+	 * @return the session
+	 */
+	public Session open() {
+		return new Session();
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a sequence of steps that prepare a portlet for its first requests,
+ * e.g. loading classes and resource bundles or giving the JIT compiler a
+ * chance to compile the hot paths. The steps run on a background thread, so
+ * they do not delay the start of the portlet. Each step is timed, failures
+ * of a step are logged and do not prevent the remaining steps from running.
+ * 
+ * The instance is typically registered as an MBean, so monitoring can check
+ * when a portlet is ready for traffic.
+ * 
+ * @author cleue
+ */
+public class Warmup implements WarmupMBean, Runnable {
+
+	/**
+	 * A step of the warm-up
+	 */
+	public interface Step {
+
+		/**
+		 * Executes the step
+		 * 
+		 * @throws Exception
+		 *             the failure of the step
+		 */
+		void run() throws Exception;
+	}
+
+	/** class name for the logger */
+	private static final String LOG_CLASS = Warmup.class.getName();
+
+	/** logging level */
+	private static final Level LOG_LEVEL = Level.FINER;
+
+	/** class logger */
+	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
+
+	/**
+	 * checks if the warm-up has been cancelled
+	 */
+	private volatile boolean bCancelled;
+
+	/**
+	 * checks if all steps ran
+	 */
+	private volatile boolean bReady;
+
+	/**
+	 * time in milliseconds the warm-up took, while it runs the start time in
+	 * nanoseconds is used instead
+	 */
+	private volatile long elapsed;
+
+	/**
+	 * counts the failed steps
+	 */
+	private final AtomicLong failed;
+
+	/**
+	 * the failure messages by step name, guarded by the instance
+	 */
+	private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+	/**
+	 * name of the warm-up, for logging
+	 */
+	private final String name;
+
+	/**
+	 * start time in nanoseconds, zero until the warm-up starts
+	 */
+	private volatile long start;
+
+	/**
+	 * the steps by name, in execution order
+	 */
+	private final Map<String, Step> steps = new LinkedHashMap<String, Step>();
+
+	/**
+	 * the times in milliseconds by step name, guarded by the instance
+	 */
+	private final Map<String, Long> times = new LinkedHashMap<String, Long>();
+
+	/**
+	 * Initializes the warm-up
+	 * 
+	 * @param aName
+	 *            name of the warm-up, for logging
+	 * @param aMetrics
+	 *            the counters
+	 */
+	public Warmup(final String aName, final Metrics aMetrics) {
+		// sanity check
+		assert aName != null;
+		assert aMetrics != null;
+		// init
+		name = aName;
+		failed = aMetrics.getCounter("warmup.failures");
+	}
+
+	/**
+	 * Reads all properties of a bean, the way the expression language of a
+	 * JSP does, and converts the values to strings
+	 * 
+	 * @param aBean
+	 *            the bean
+	 * @return the number of properties
+	 * @throws Exception
+	 *             the failure of a getter
+	 */
+	public static int readProperties(final Object aBean) throws Exception {
+		// sanity check
+		assert aBean != null;
+		// the getters
+		final BeanInfo info = Introspector.getBeanInfo(aBean.getClass(),
+				Object.class);
+		int result = 0;
+		for (final PropertyDescriptor desc : info.getPropertyDescriptors()) {
+			final Method getter = desc.getReadMethod();
+			if (getter == null) {
+				continue;
+			}
+			try {
+				String.valueOf(getter.invoke(aBean));
+			} catch (final InvocationTargetException ex) {
+				// report the failure of the getter
+				final Throwable cause = ex.getCause();
+				throw (cause instanceof Exception) ? (Exception) cause : ex;
+			}
+			++result;
+		}
+		// ok
+		return result;
+	}
+
+	/**
+	 * Adds a step, steps run in the order they have been added
+	 * 
+	 * @param aName
+	 *            name of the step
+	 * @param aStep
+	 *            the step
+	 */
+	public void addStep(final String aName, final Step aStep) {
+		// sanity check
+		assert aName != null;
+		assert aStep != null;
+		assert start == 0;
+		steps.put(aName, aStep);
+	}
+
+	/**
+	 * Skips the steps that did not start, yet, e.g. because the portlet is
+	 * destroyed
+	 */
+	public void cancel() {
+		bCancelled = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.WarmupMBean#getElapsedTime()
+	 */
+	@Override
+	public long getElapsedTime() {
+		if (bReady) {
+			return elapsed;
+		}
+		final long started = start;
+		return (started != 0) ? TimeUnit.NANOSECONDS.toMillis(System
+				.nanoTime() - started) : 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.WarmupMBean#getFailures()
+	 */
+	@Override
+	public synchronized Map<String, String> getFailures() {
+		return new LinkedHashMap<String, String>(failures);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.WarmupMBean#getStepTimes()
+	 */
+	@Override
+	public synchronized Map<String, Long> getStepTimes() {
+		return new LinkedHashMap<String, Long>(times);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.WarmupMBean#isReady()
+	 */
+	@Override
+	public boolean isReady() {
+		return bReady;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		// logging support
+		final String LOG_METHOD = "run()";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD);
+		}
+		start = System.nanoTime();
+		for (final Map.Entry<String, Step> entry : steps.entrySet()) {
+			// the portlet is going away
+			if (bCancelled) {
+				LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+						"Warm-up of [{0}] cancelled before step [{1}].",
+						new Object[] { name, entry.getKey() });
+				return;
+			}
+			final long begin = System.nanoTime();
+			try {
+				entry.getValue().run();
+				final long millis = TimeUnit.NANOSECONDS.toMillis(System
+						.nanoTime() - begin);
+				synchronized (this) {
+					times.put(entry.getKey(), millis);
+				}
+				// log this
+				LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+						"Warm-up step [{0}] of [{1}] took [{2}] ms.",
+						new Object[] { entry.getKey(), name, millis });
+			} catch (final Exception ex) {
+				failed.incrementAndGet();
+				synchronized (this) {
+					failures.put(entry.getKey(), String.valueOf(ex));
+				}
+				// log this
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Warm-up step [" + entry.getKey() + "] of [" + name
+								+ "] failed.", ex);
+			}
+		}
+		// done
+		elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		bReady = true;
+		// log this
+		LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+				"Warm-up of [{0}] completed in [{1}] ms.", new Object[] { name,
+						elapsed });
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		}
+	}
+
+	/**
+	 * Runs the steps in the background. Use an executor that the owner shuts
+	 * down and waits for, after cancelling the warm-up.
+	 * 
+	 * @param aExecutor
+	 *            runs the steps
+	 */
+	public void start(final Executor aExecutor) {
+		// sanity check
+		assert aExecutor != null;
+		aExecutor.execute(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Warmup[" + name + "," + steps.keySet() + "]";
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Warmup}, so the readiness of a portlet
+ * can be checked via JMX, e.g. before a cluster member is added to the load
+ * balancer.
+ * 
+ * @author cleue
+ */
+public interface WarmupMBean {
+
+	/**
+	 * Returns the time the warm-up took so far
+	 * 
+	 * @return the time in milliseconds
+	 */
+	long getElapsedTime();
+
+	/**
+	 * Returns the failures of the steps
+	 * 
+	 * @return the failure messages by step name
+	 */
+	Map<String, String> getFailures();
+
+	/**
+	 * Returns the times of the completed steps
+	 * 
+	 * @return the times in milliseconds by step name, in execution order
+	 */
+	Map<String, Long> getStepTimes();
+
+	/**
+	 * Checks if the warm-up completed
+	 * 
+	 * @return <code>true</code> once all steps ran, even if some of them
+	 *         failed
+	 */
+	boolean isReady();
+}
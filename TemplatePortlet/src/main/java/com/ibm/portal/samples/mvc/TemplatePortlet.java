@@ -15,12 +15,37 @@
  */
 package com.ibm.portal.samples.mvc;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
+import javax.portlet.ClientDataRequest;
 import javax.portlet.GenericPortlet;
 import javax.portlet.MimeResponse;
 import javax.portlet.PortletException;
@@ -30,9 +55,37 @@ import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
 import javax.portlet.ResourceRequest;
 import javax.portlet.ResourceResponse;
+import javax.portlet.filter.RenderResponseWrapper;
 
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+
+import com.ibm.portal.samples.common.AsyncCommitter;
+import com.ibm.portal.samples.common.AsyncFetcher;
+import com.ibm.portal.samples.common.Backend;
+import com.ibm.portal.samples.common.CacheService;
+import com.ibm.portal.samples.common.CacheSnapshot;
+import com.ibm.portal.samples.common.DataCache;
+import com.ibm.portal.samples.common.ContentStore;
+import com.ibm.portal.samples.common.DecodingLimits;
+import com.ibm.portal.samples.common.DeflateParameterMarshaller;
+import com.ibm.portal.samples.common.DuplicateFilter;
+import com.ibm.portal.samples.common.InMemoryPortletObjects;
+import com.ibm.portal.samples.common.MappedFileStateStore;
 import com.ibm.portal.samples.common.Marshaller;
+import com.ibm.portal.samples.common.MemoryGovernor;
+import com.ibm.portal.samples.common.MemoryStateStore;
+import com.ibm.portal.samples.common.Metrics;
+import com.ibm.portal.samples.common.NamedThreadFactory;
+import com.ibm.portal.samples.common.PreferencesCache;
 import com.ibm.portal.samples.common.PrivateParameterMarshaller;
+import com.ibm.portal.samples.common.RenderCoalescer;
+import com.ibm.portal.samples.common.RenderScope;
+import com.ibm.portal.samples.common.SimulatedBackend;
+import com.ibm.portal.samples.common.StateStore;
+import com.ibm.portal.samples.common.StoredParameterMarshaller;
+import com.ibm.portal.samples.common.UploadManager;
+import com.ibm.portal.samples.common.UploadPipeline;
+import com.ibm.portal.samples.common.Warmup;
 import com.ibm.portal.samples.mvc.controller.TemplateController;
 import com.ibm.portal.samples.mvc.model.TemplateActions;
 import com.ibm.portal.samples.mvc.model.TemplateModel;
@@ -71,11 +124,371 @@ public class TemplatePortlet extends GenericPortlet {
 		 */
 	}
 
+	/**
+	 * Name of the init parameter that configures the size in bytes above which
+	 * private render parameters get compressed. If missing, parameters are
+	 * never compressed.
+	 */
+	private static final String INIT_COMPRESSION_THRESHOLD = "com.ibm.portal.samples.state.compression.threshold";
+
+	/**
+	 * Name of the init parameter that configures the maximum size in bytes a
+	 * compressed render parameter may inflate to
+	 */
+	private static final String INIT_COMPRESSION_MAX_LENGTH = "com.ibm.portal.samples.state.compression.maxLength";
+
+	/**
+	 * Name of the init parameter that configures the length of an encoded
+	 * private render parameter above which the value is moved into the server
+	 * side state store. If missing, no state store is used.
+	 */
+	private static final String INIT_STORE_THRESHOLD = "com.ibm.portal.samples.state.store.threshold";
+
+	/**
+	 * Name of the init parameter that configures the file backing the state
+	 * store. Relative paths are resolved against the temp directory. If
+	 * missing, the state is kept in memory and does not survive a restart.
+	 */
+	private static final String INIT_STORE_FILE = "com.ibm.portal.samples.state.store.file";
+
+	/**
+	 * Name of the init parameter that configures the maximum size in bytes of
+	 * the state store
+	 */
+	private static final String INIT_STORE_CAPACITY = "com.ibm.portal.samples.state.store.capacity";
+
+	/**
+	 * Name of the init parameter that configures the maximum size of a single
+	 * render parameter or form field
+	 */
+	private static final String INIT_LIMITS_PARAMETER = "com.ibm.portal.samples.limits.parameter";
+
+	/**
+	 * Name of the init parameter that configures the maximum size of all
+	 * render parameters or form fields of a request
+	 */
+	private static final String INIT_LIMITS_REQUEST = "com.ibm.portal.samples.limits.request";
+
+	/**
+	 * Name of the init parameter that configures the size in bytes above which
+	 * uploaded form data is buffered on disk
+	 */
+	private static final String INIT_UPLOAD_THRESHOLD = "com.ibm.portal.samples.upload.threshold";
+
+	/**
+	 * Name of the init parameter that configures the directory for the
+	 * temporary upload files, e.g. on a tmpfs. Defaults to the temp directory
+	 * of the web application.
+	 */
+	private static final String INIT_UPLOAD_REPOSITORY = "com.ibm.portal.samples.upload.repository";
+
+	/**
+	 * Name of the init parameter that configures the maximum size of a single
+	 * uploaded file. Defaults to {@link UploadManager#DEFAULT_MAX_FILE_SIZE},
+	 * plain form fields are limited by the parameter limit.
+	 */
+	private static final String INIT_UPLOAD_MAX_FILE_SIZE = "com.ibm.portal.samples.upload.maxFileSize";
+
+	/**
+	 * Name of the init parameter that configures the maximum size of an
+	 * upload request. Defaults to the maximum file size plus the request
+	 * limit.
+	 */
+	private static final String INIT_UPLOAD_MAX_REQUEST_SIZE = "com.ibm.portal.samples.upload.maxRequestSize";
+
+	/**
+	 * Name of the init parameter that configures the number of threads that
+	 * process uploaded files in parallel. Files are processed synchronously if
+	 * the parameter is missing or zero.
+	 */
+	private static final String INIT_UPLOAD_THREADS = "com.ibm.portal.samples.upload.threads";
+
+	/**
+	 * Name of the init parameter that configures the maximum number of
+	 * uploaded files in flight across all requests. Defaults to twice the
+	 * number of threads.
+	 */
+	private static final String INIT_UPLOAD_MAX_PENDING = "com.ibm.portal.samples.upload.maxPending";
+
+	/**
+	 * Name of the init parameter that configures the directory of the content
+	 * addressed store for uploaded files. Relative paths are resolved against
+	 * the temp directory. Defaults to a subdirectory named after the portlet.
+	 */
+	private static final String INIT_UPLOAD_STORE = "com.ibm.portal.samples.upload.store";
+
+	/**
+	 * Name of the init parameter that configures the number of threads that
+	 * commit modifications in the background. Commits run synchronously in
+	 * the action if the parameter is missing or zero.
+	 */
+	private static final String INIT_COMMIT_THREADS = "com.ibm.portal.samples.commit.threads";
+
+	/**
+	 * Name of the init parameter that configures the maximum number of queued
+	 * commits. If the queue is full, commits run synchronously.
+	 */
+	private static final String INIT_COMMIT_QUEUE_SIZE = "com.ibm.portal.samples.commit.queueSize";
+
+	/**
+	 * Name of the init parameter that configures the time in milliseconds the
+	 * result of a background commit is retained for the render requests
+	 */
+	private static final String INIT_COMMIT_RETENTION = "com.ibm.portal.samples.commit.retention";
+
+	/**
+	 * Name of the init parameter that configures the time in milliseconds a
+	 * snapshot of the portlet preferences is valid
+	 */
+	private static final String INIT_PREFERENCES_TTL = "com.ibm.portal.samples.preferences.ttl";
+
+	/**
+	 * Name of the init parameter that configures the maximum number of
+	 * preference snapshots, one per portlet window and user
+	 */
+	private static final String INIT_PREFERENCES_MAX_WINDOWS = "com.ibm.portal.samples.preferences.maxWindows";
+
+	/**
+	 * Name of the init parameter that configures the time in milliseconds the
+	 * one-time token of an executed action is remembered
+	 */
+	private static final String INIT_TOKENS_TTL = "com.ibm.portal.samples.actions.tokens.ttl";
+
+	/**
+	 * Name of the init parameter that configures the maximum number of
+	 * remembered action tokens
+	 */
+	private static final String INIT_TOKENS_MAX = "com.ibm.portal.samples.actions.tokens.max";
+
+	/**
+	 * Name of the init parameter that configures the number of threads that
+	 * run the backend fetches of the render phase. Fetches run synchronously
+	 * if the parameter is missing or zero.
+	 */
+	private static final String INIT_FETCH_THREADS = "com.ibm.portal.samples.render.fetch.threads";
+
+	/**
+	 * Name of the init parameter that configures the maximum number of queued
+	 * fetches. If the queue is full, fetches run synchronously.
+	 */
+	private static final String INIT_FETCH_QUEUE_SIZE = "com.ibm.portal.samples.render.fetch.queueSize";
+
+	/**
+	 * Name of the init parameter that configures the time in milliseconds the
+	 * markup phase waits for the fetches
+	 */
+	private static final String INIT_FETCH_TIMEOUT = "com.ibm.portal.samples.render.fetch.timeout";
+
+	/**
+	 * Name of the init parameter that configures the time in milliseconds an
+	 * identical concurrent render waits for the markup of the first one. If
+	 * missing, renders are not coalesced.
+	 */
+	private static final String INIT_COALESCE_TIMEOUT = "com.ibm.portal.samples.render.coalesce.timeout";
+
+	/**
+	 * Prefix of the init parameters that configure the caches for backend
+	 * data. The remainder of the parameter name is the name of the cache, the
+	 * value is the configuration in the format of {@link DataCache.Spec}.
+	 */
+	private static final String INIT_CACHE_PREFIX = "com.ibm.portal.samples.cache.";
+
+	/**
+	 * Name of the init parameter that configures the heap usage in percent at
+	 * which the caches shrink. If missing, the caches are not governed.
+	 */
+	private static final String INIT_MEMORY_THRESHOLD = "com.ibm.portal.samples.memory.threshold";
+
+	/**
+	 * Name of the init parameter that configures the heap usage in percent
+	 * below which the caches grow back
+	 */
+	private static final String INIT_MEMORY_RECOVERY = "com.ibm.portal.samples.memory.recovery";
+
+	/**
+	 * Name of the init parameter that configures the time in milliseconds
+	 * between two checks of the heap usage
+	 */
+	private static final String INIT_MEMORY_INTERVAL = "com.ibm.portal.samples.memory.interval";
+
+	/**
+	 * Name of the init parameter that configures the path of the simulation
+	 * settings of the {@link SimulatedBackend}, relative to the root of the
+	 * web application. If set, the simulation replaces the backend.
+	 */
+	private static final String INIT_BACKEND_SIMULATION = "com.ibm.portal.samples.backend.simulation";
+
+	/**
+	 * Name of the init parameter that configures the file that keeps the
+	 * cached data across restarts, relative to the temp directory. If missing,
+	 * the caches start empty.
+	 */
+	private static final String INIT_SNAPSHOT_FILE = "com.ibm.portal.samples.snapshot.file";
+
+	/**
+	 * Name of the init parameter that configures the maximum number of
+	 * entries per cache that are kept across restarts
+	 */
+	private static final String INIT_SNAPSHOT_MAX_ENTRIES = "com.ibm.portal.samples.snapshot.maxEntries";
+
+	/**
+	 * Name of the init parameter that configures the number of synthetic
+	 * renders per locale during the warm-up. If missing, the portlet does not
+	 * warm up.
+	 */
+	private static final String INIT_WARMUP_RENDERS = "com.ibm.portal.samples.warmup.renders";
+
+	/**
+	 * Name of the init parameter that configures the comma separated locales
+	 * of the warm-up, e.g. <code>en,de_DE</code>. If missing, the supported
+	 * locales of the portlet and the default locale are used.
+	 */
+	private static final String INIT_WARMUP_LOCALES = "com.ibm.portal.samples.warmup.locales";
+
+	/**
+	 * Name of the cache configuration that applies to caches without an
+	 * explicit configuration
+	 */
+	private static final String CACHE_DEFAULT = "default";
+
+	/**
+	 * Name of the cache that remembers the keys of user specific markup, so
+	 * their renders are not coalesced
+	 */
+	private static final String CACHE_RENDER_PRIVATE = "render.private";
+
+	/**
+	 * Default maximum number of queued fetches
+	 */
+	private static final int DEFAULT_FETCH_QUEUE_SIZE = 64;
+
+	/**
+	 * Default time in milliseconds the markup phase waits for the fetches
+	 */
+	private static final long DEFAULT_FETCH_TIMEOUT = 2 * 1000;
+
+	/**
+	 * Default heap usage in percent below which the caches grow back
+	 */
+	private static final long DEFAULT_MEMORY_RECOVERY = 60;
+
+	/**
+	 * Default time in milliseconds between two checks of the heap usage
+	 */
+	private static final long DEFAULT_MEMORY_INTERVAL = 10 * 1000;
+
+	/**
+	 * Default maximum number of entries per cache that are kept across
+	 * restarts
+	 */
+	private static final long DEFAULT_SNAPSHOT_MAX_ENTRIES = 1000;
+
+	/**
+	 * Default time in milliseconds an action token is remembered
+	 */
+	private static final long DEFAULT_TOKENS_TTL = 10 * 60 * 1000;
+
+	/**
+	 * Default maximum number of remembered action tokens
+	 */
+	private static final int DEFAULT_TOKENS_MAX = 100000;
+
+	/**
+	 * Default validity of a preference snapshot in milliseconds
+	 */
+	private static final long DEFAULT_PREFERENCES_TTL = 5 * 1000;
+
+	/**
+	 * Default maximum number of preference snapshots
+	 */
+	private static final int DEFAULT_PREFERENCES_MAX_WINDOWS = 1024;
+
+	/**
+	 * Default maximum number of queued commits
+	 */
+	private static final int DEFAULT_COMMIT_QUEUE_SIZE = 64;
+
+	/**
+	 * Default retention time of commit results in milliseconds
+	 */
+	private static final long DEFAULT_COMMIT_RETENTION = 60 * 1000;
+
+	/**
+	 * Name of the counter for failed actions
+	 */
+	private static final String METRIC_ACTION_FAILURES = "action.failures";
+
+	/**
+	 * Name of the counter for actions executed via the AJAX action channel
+	 */
+	private static final String METRIC_AJAX_ACTIONS = "action.ajax";
+
+	/**
+	 * Name of the counter for AJAX actions that had to be repeated as a
+	 * regular form post, because they modified the preferences
+	 */
+	private static final String METRIC_AJAX_REDIRECTS = "action.ajax.redirects";
+
+	/**
+	 * Name of the counter for renders whose markup is shared among all users
+	 */
+	private static final String METRIC_SCOPE_PUBLIC = "render.scope.public";
+
+	/**
+	 * Name of the counter for renders whose markup depends on the user
+	 */
+	private static final String METRIC_SCOPE_PRIVATE = "render.scope.private";
+
+	/**
+	 * Name of the counter for renders whose markup would have been public, but
+	 * the response had already been committed
+	 */
+	private static final String METRIC_SCOPE_LATE = "render.scope.late";
+
+	/**
+	 * name of the context attribute that contains the temp directory of the
+	 * web application
+	 */
+	private static final String CONTEXT_TEMPDIR = "javax.servlet.context.tempdir";
+
+	/**
+	 * path of the manifest of the web application
+	 */
+	private static final String MANIFEST_PATH = "/META-INF/MANIFEST.MF";
+
+	/**
+	 * name of the manifest attribute that carries the time of the build
+	 */
+	private static final String MANIFEST_BUILD_TIME = "Build-Time";
+
+	/**
+	 * ID of the portlet window of the synthetic renders of the warm-up
+	 */
+	private static final String WARMUP_WINDOW_ID = "warmup";
+
+	/**
+	 * Time in milliseconds the destruction of the portlet waits for each of
+	 * its background workers
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10 * 1000;
+
+	/**
+	 * Default size of the state store
+	 */
+	private static final int DEFAULT_STORE_CAPACITY = 16 * 1024 * 1024;
+
 	/**
 	 * Name of the request attribute for the controller
 	 */
 	private static final String KEY_CONTROLLER = "controller";
 
+	/**
+	 * Name of the request attribute that hands the fetches started in the
+	 * header phase over to the markup phase
+	 */
+	private static final String KEY_FETCHES = TemplatePortlet.class.getName()
+			+ ".fetches";
+
 	/**
 	 * Name of the request attribute for the model
 	 */
@@ -96,117 +509,1168 @@ public class TemplatePortlet extends GenericPortlet {
 	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
 
 	/**
-	 * reference to external services
+	 * reference to external services
+	 */
+	private Dependencies dependencies;
+
+	/**
+	 * size limits for request data
+	 */
+	private DecodingLimits decodingLimits;
+
+	/**
+	 * root path for JSPs. Per default we use the package name of the portlet
+	 * inside the WEB-INF directory.
+	 */
+	private String jspRoot;
+
+	/**
+	 * counters of the portlet
+	 */
+	private Metrics metrics;
+
+	/**
+	 * name of the metrics MBean, <code>null</code> if not registered
+	 */
+	private ObjectName metricsName;
+
+	/**
+	 * prepares the portlet for its first requests, may be <code>null</code>
+	 */
+	private Warmup warmup;
+
+	/**
+	 * name of the warm-up MBean, <code>null</code> if not registered
+	 */
+	private ObjectName warmupName;
+
+	/**
+	 * marshaller for private render parameters
+	 */
+	private Marshaller privateMarshaller;
+
+	/**
+	 * compressing marshaller, may be <code>null</code> if compression is not
+	 * configured
+	 */
+	private DeflateParameterMarshaller deflateMarshaller;
+
+	/**
+	 * server side store for large navigational state, may be <code>null</code>
+	 */
+	private StateStore stateStore;
+
+	/**
+	 * portlet wide handling of the form upload
+	 */
+	private UploadManager uploadManager;
+
+	/**
+	 * deduplicating store for uploaded files
+	 */
+	private ContentStore contentStore;
+
+	/**
+	 * background execution of commits, may be <code>null</code>
+	 */
+	private AsyncCommitter asyncCommitter;
+
+	/**
+	 * snapshots of the portlet preferences
+	 */
+	private PreferencesCache preferencesCache;
+
+	/**
+	 * detects duplicate action submissions
+	 */
+	private DuplicateFilter duplicateFilter;
+
+	/**
+	 * workers for the parallel processing of uploaded files, may be
+	 * <code>null</code>
+	 */
+	private ExecutorService uploadExecutor;
+
+	/**
+	 * parallel processing of uploaded files
+	 */
+	private UploadPipeline uploadPipeline;
+
+	/**
+	 * workers for the backend fetches of the render phase, may be
+	 * <code>null</code>
+	 */
+	private ExecutorService fetchExecutor;
+
+	/**
+	 * backend fetches of the render phase
+	 */
+	private AsyncFetcher asyncFetcher;
+
+	/**
+	 * named caches for backend data
+	 */
+	private CacheService cacheService;
+
+	/**
+	 * the services that provide the data, may be <code>null</code>
+	 */
+	private Backend backend;
+
+	/**
+	 * shrinks the caches under memory pressure, may be <code>null</code>
+	 */
+	private MemoryGovernor memoryGovernor;
+
+	/**
+	 * keeps the cached data across restarts, may be <code>null</code>
+	 */
+	private CacheSnapshot cacheSnapshot;
+
+	/**
+	 * runs the restore of the cache snapshot and the warm-up one after the
+	 * other, so the destruction of the portlet can wait for them
+	 */
+	private ExecutorService startupExecutor;
+
+	/**
+	 * coalesces identical concurrent renders, may be <code>null</code>
+	 */
+	private RenderCoalescer renderCoalescer;
+
+	/**
+	 * Constructs the action handler
+	 * 
+	 * @param aModel
+	 *            model the actions will work on
+	 * @param aRequest
+	 *            the action request or the resource request of the AJAX
+	 *            action channel
+	 * @param aResponse
+	 *            the response
+	 * @return the model
+	 * 
+	 * @throws PortletException
+	 * @throws IOException
+	 */
+	private final TemplateActions createActions(final TemplateModel aModel,
+			final ClientDataRequest aRequest, final PortletResponse aResponse)
+			throws PortletException, IOException {
+		// sanity check
+		assert aModel != null;
+		assert aRequest != null;
+		assert aResponse != null;
+		/**
+		 * Decodes the action.This method normally does not have to be changed.
+		 * Rather change the implementation of the action.
+		 */
+		return new TemplateActions(aModel, aRequest, aResponse, dependencies);
+	}
+
+	/**
+	 * Marks the markup as cacheable for all users, if the render did not read
+	 * user specific data. The shared key identifies the markup as validation
+	 * token.
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @param aResponse
+	 *            the response
+	 * @param aScope
+	 *            scope of the render
+	 */
+	private final void applyCacheScope(final RenderRequest aRequest,
+			final RenderResponse aResponse, final RenderScope aScope) {
+		// logging support
+		final String LOG_METHOD = "applyCacheScope(aRequest, aResponse, aScope)";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		// user specific
+		if (!aScope.isPublic()) {
+			metrics.increment(METRIC_SCOPE_PRIVATE);
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Markup is private because of [{0}].",
+						aScope.getReason());
+			}
+			return;
+		}
+		// share the markup, unless output has already been sent
+		final String key = aScope.share(aRequest, aResponse);
+		if (key == null) {
+			metrics.increment(METRIC_SCOPE_LATE);
+			return;
+		}
+		metrics.increment(METRIC_SCOPE_PUBLIC);
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Markup is public with key [{0}].", key);
+		}
+	}
+
+	/**
+	 * Lets the view contribute the elements of the head section of the page
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @param aResponse
+	 *            the response
+	 */
+	private final void contributeHeadElements(final RenderRequest aRequest,
+			final RenderResponse aResponse) {
+		// the view decides about its head elements
+		final TemplateView view = new TemplateView(getPortletConfig(),
+				aRequest, aResponse, dependencies);
+		try {
+			view.contributeHeadElements();
+		} finally {
+			view.dispose();
+		}
+	}
+
+	/**
+	 * Constructs a new controller
+	 * 
+	 * @param aModel
+	 *            the model
+	 * @param aRequest
+	 *            the request
+	 * @param aResponse
+	 *            the response
+	 * @return the controller
+	 */
+	private final TemplateController createController(
+			final TemplateModel aModel, final PortletRequest aRequest,
+			final MimeResponse aResponse) {
+		// sanity check
+		assert aModel != null;
+		assert aRequest != null;
+		assert aResponse != null;
+		/**
+		 * Constructs the controller. This method normally does not have to be
+		 * changed. Rather change the implementation of the controller.
+		 */
+		return new TemplateController(aModel, aRequest, aResponse, dependencies);
+	}
+
+	/**
+	 * Decodes the model used during rendering
+	 * 
+	 * @param aRequest
+	 *            the portlet request
+	 * @param aResponse
+	 *            the portlet response
+	 * @return the model
+	 * 
+	 * @throws PortletException
+	 * @throws IOException
+	 */
+	private final TemplateModel decodeModel(final PortletRequest aRequest,
+			final PortletResponse aResponse) throws PortletException,
+			IOException {
+		// sanity check
+		assert aRequest != null;
+		assert aResponse != null;
+		/**
+		 * Decodes the model.This method normally does not have to be changed.
+		 * Rather change the implementation of the model.
+		 */
+		return new TemplateModel(aRequest, aResponse, getPortletConfig(),
+				dependencies);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.portlet.GenericPortlet#destroy()
+	 */
+	@Override
+	public void destroy() {
+		// logging support
+		final String LOG_METHOD = "destroy()";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD);
+		}
+		// TODO reset all other instance fields to null
+		// stop the warm-up
+		if (warmup != null) {
+			warmup.cancel();
+			warmup = null;
+		}
+		unregisterMBean(warmupName);
+		warmupName = null;
+		// wait for the restore of the snapshot and the running warm-up step
+		boolean bStarted = true;
+		if (startupExecutor != null) {
+			bStarted = shutdown(startupExecutor);
+			startupExecutor = null;
+		}
+		// reset the dependencies
+		dependencies = null;
+		jspRoot = null;
+		privateMarshaller = null;
+		if (deflateMarshaller != null) {
+			deflateMarshaller.destroy();
+			deflateMarshaller = null;
+		}
+		decodingLimits = null;
+		preferencesCache = null;
+		duplicateFilter = null;
+		// unregister the metrics
+		unregisterMBean(metricsName);
+		metricsName = null;
+		metrics = null;
+		// stop the commit workers, wait for the queued commits
+		if (asyncCommitter != null) {
+			asyncCommitter.shutdown(SHUTDOWN_TIMEOUT);
+			asyncCommitter = null;
+		}
+		// stop coalescing renders
+		renderCoalescer = null;
+		// stop governing the caches
+		if (memoryGovernor != null) {
+			memoryGovernor.shutdown();
+			memoryGovernor = null;
+		}
+		// release the backend
+		backend = null;
+		// stop the fetch workers, pending fetches belong to finished requests
+		asyncFetcher = null;
+		if (fetchExecutor != null) {
+			shutdown(fetchExecutor);
+			fetchExecutor = null;
+		}
+		// keep the most valuable cached data for the next start
+		if (cacheSnapshot != null) {
+			if (!bStarted) {
+				// log this
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Skipping the cache snapshot, the restore did not complete.");
+			} else if (cacheService != null) {
+				try {
+					cacheSnapshot.write(cacheService.getCaches());
+				} catch (final IOException ex) {
+					// log this
+					LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+							"Unable to write the cache snapshot.", ex);
+				}
+			}
+			cacheSnapshot = null;
+		}
+		// release the cached data
+		if (cacheService != null) {
+			cacheService.invalidateAll();
+			cacheService = null;
+		}
+		// stop the upload workers, wait for the parts in progress
+		uploadPipeline = null;
+		contentStore = null;
+		if (uploadExecutor != null) {
+			shutdown(uploadExecutor);
+			uploadExecutor = null;
+		}
+		// stop the reaper of the temporary upload files
+		if (uploadManager != null) {
+			uploadManager.shutdown();
+			uploadManager = null;
+		}
+		// release the state store
+		if (stateStore != null) {
+			try {
+				stateStore.close();
+			} catch (final IOException ex) {
+				// log this
+				LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+						"Unable to close the state store.", ex);
+			}
+			stateStore = null;
+		}
+		// default
+		super.destroy();
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		}
+	}
+
+	/**
+	 * Decides how to marshal private render parameters, based on the init
+	 * parameters of the portlet
+	 * 
+	 * @return the marshaller
+	 * 
+	 * @throws IOException
+	 */
+	private final Marshaller createPrivateParameterMarshaller()
+			throws IOException {
+		// logging support
+		final String LOG_METHOD = "createPrivateParameterMarshaller()";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		// check if compression has been configured
+		final String threshold = getInitParameter(INIT_COMPRESSION_THRESHOLD);
+		final Marshaller marshaller;
+		if (threshold != null) {
+			// configured limit
+			final String maxLength = getInitParameter(INIT_COMPRESSION_MAX_LENGTH);
+			// log this
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Compressing parameters above [{0}] bytes.", threshold);
+			}
+			// construct the compressing marshaller
+			deflateMarshaller = new DeflateParameterMarshaller(
+					Integer.parseInt(threshold.trim()),
+					(maxLength != null) ? Integer.parseInt(maxLength.trim())
+							: DeflateParameterMarshaller.DEFAULT_MAX_LENGTH,
+					DeflateParameterMarshaller.DEFAULT_DICTIONARY);
+			marshaller = deflateMarshaller;
+		} else {
+			// plain marshalling
+			marshaller = PrivateParameterMarshaller.SINGLETON;
+		}
+		// check if the state store has been configured
+		final String storeThreshold = getInitParameter(INIT_STORE_THRESHOLD);
+		if (storeThreshold == null) {
+			return marshaller;
+		}
+		// open the store
+		stateStore = createStateStore();
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Storing parameters above [{0}] characters in [{1}].",
+					new Object[] { storeThreshold, stateStore });
+		}
+		// store large values on the server
+		return new StoredParameterMarshaller(marshaller, stateStore,
+				Integer.parseInt(storeThreshold.trim()));
+	}
+
+	/**
+	 * Opens the server side store for large navigational state, based on the
+	 * init parameters of the portlet
+	 * 
+	 * @return the store
+	 * 
+	 * @throws IOException
+	 */
+	private final StateStore createStateStore() throws IOException {
+		// configured size
+		final String capacity = getInitParameter(INIT_STORE_CAPACITY);
+		final int size = (capacity != null) ? Integer
+				.parseInt(capacity.trim()) : DEFAULT_STORE_CAPACITY;
+		// without a file we keep the state in memory
+		final String fileName = getInitParameter(INIT_STORE_FILE);
+		if (fileName == null) {
+			return new MemoryStateStore(size);
+		}
+		// open the file, private to this web application
+		return new MappedFileStateStore(resolveFile(fileName.trim()), size);
+	}
+
+	/**
+	 * Resolves the name of a file that the portlet writes and reads back.
+	 * Relative names are resolved against the temp directory of the web
+	 * application, not against <code>java.io.tmpdir</code>, which is shared
+	 * by all servers on the host and writable by other users.
+	 * 
+	 * @param aName
+	 *            name of the file
+	 * @return the file
+	 * 
+	 * @throws IOException
+	 *             if the name is relative and the container does not provide
+	 *             a temp directory
+	 */
+	private final File resolveFile(final String aName) throws IOException {
+		// absolute names are used as configured
+		final File file = new File(aName);
+		if (file.isAbsolute()) {
+			return file;
+		}
+		// the temp directory of the web application
+		final Object tempDir = getPortletContext().getAttribute(CONTEXT_TEMPDIR);
+		if (!(tempDir instanceof File)) {
+			throw new IOException("No temp directory available to resolve ["
+					+ aName + "], configure an absolute path.");
+		}
+		// ok
+		return new File((File) tempDir, aName);
+	}
+
+	/**
+	 * Configures the portlet wide handling of the form upload, based on the
+	 * init parameters of the portlet
+	 * 
+	 * @return the upload manager
+	 * 
+	 * @throws PortletException
+	 */
+	private final UploadManager createUploadManager() throws PortletException {
+		// the repository
+		final String repositoryName = getInitParameter(INIT_UPLOAD_REPOSITORY);
+		final Object tempDir = getPortletContext().getAttribute(CONTEXT_TEMPDIR);
+		final File repository = (repositoryName != null) ? new File(
+				repositoryName.trim()) : (tempDir instanceof File) ? (File) tempDir
+				: null;
+		if ((repository != null) && !repository.isDirectory()
+				&& !repository.mkdirs()) {
+			throw new PortletException("Unable to create the upload repository ["
+					+ repository + "].");
+		}
+		// files have their own limit, form fields share the decoding limits
+		final long maxFileSize = getInitParameter(INIT_UPLOAD_MAX_FILE_SIZE,
+				UploadManager.DEFAULT_MAX_FILE_SIZE);
+		final long maxRequestSize = getInitParameter(
+				INIT_UPLOAD_MAX_REQUEST_SIZE,
+				(maxFileSize < 0) ? -1 : maxFileSize
+						+ decodingLimits.getMaxRequestLength());
+		// construct the manager
+		return new UploadManager((int) getInitParameter(INIT_UPLOAD_THRESHOLD,
+				DiskFileItemFactory.DEFAULT_SIZE_THRESHOLD), repository,
+				decodingLimits.getMaxParameterLength(), maxFileSize,
+				maxRequestSize, metrics);
+	}
+
+	/**
+	 * Configures the background fetches of the render phase, based on the
+	 * init parameters of the portlet
+	 * 
+	 * @return the fetcher
+	 * 
+	 * @throws PortletException
+	 */
+	private final AsyncFetcher createAsyncFetcher() throws PortletException {
+		// number of workers
+		final int threads = (int) getInitParameter(INIT_FETCH_THREADS, 0);
+		if (threads > 0) {
+			// the queue is bounded, rejected fetches run synchronously
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+					threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>((int) getInitParameter(
+							INIT_FETCH_QUEUE_SIZE, DEFAULT_FETCH_QUEUE_SIZE)),
+					new NamedThreadFactory(getPortletName() + "-fetch"));
+			executor.allowCoreThreadTimeOut(true);
+			fetchExecutor = executor;
+		}
+		// construct the fetcher
+		return new AsyncFetcher(fetchExecutor, getInitParameter(
+				INIT_FETCH_TIMEOUT, DEFAULT_FETCH_TIMEOUT), metrics);
+	}
+
+	/**
+	 * Configures the caches for backend data, based on the init parameters of
+	 * the portlet. Entries are refreshed by the workers of the render fetches.
+	 * 
+	 * @return the cache service
+	 * 
+	 * @throws PortletException
+	 */
+	private final CacheService createCacheService() throws PortletException {
+		// logging support
+		final String LOG_METHOD = "createCacheService()";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		// parse the configurations
+		final Map<String, DataCache.Spec> specs = new HashMap<String, DataCache.Spec>();
+		final Enumeration<String> names = getInitParameterNames();
+		while ((names != null) && names.hasMoreElements()) {
+			final String name = names.nextElement();
+			if (name.startsWith(INIT_CACHE_PREFIX)) {
+				try {
+					specs.put(name.substring(INIT_CACHE_PREFIX.length()),
+							DataCache.Spec.parse(getInitParameter(name)));
+				} catch (final IllegalArgumentException ex) {
+					throw new PortletException("Init parameter [" + name
+							+ "] is not a valid cache configuration.", ex);
+				}
+			}
+		}
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Cache configurations [{0}].", specs);
+		}
+		// the default configuration
+		final DataCache.Spec defaultSpec = specs.containsKey(CACHE_DEFAULT) ? specs
+				.get(CACHE_DEFAULT) : new DataCache.Spec(
+				DataCache.DEFAULT_MAXIMUM_SIZE, false, 0, 0, 0, 0, false);
+		// construct the service
+		return new CacheService(specs, defaultSpec, fetchExecutor, metrics);
+	}
+
+	/**
+	 * Configures the services that provide the data of the portlet, based on
+	 * the init parameters of the portlet
+	 * 
+	 * TODO construct the access to your backend
+	 * 
+	 * @return the backend or <code>null</code> if none is configured
+	 * 
+	 * @throws PortletException
+	 */
+	private final Backend createBackend() throws PortletException {
+		// logging support
+		final String LOG_METHOD = "createBackend()";
+		// the simulation replaces the backend during performance tests
+		final String path = getInitParameter(INIT_BACKEND_SIMULATION);
+		if (path == null) {
+			return null;
+		}
+		final InputStream config = getPortletContext().getResourceAsStream(
+				path.trim());
+		if (config == null) {
+			throw new PortletException("Backend simulation [" + path
+					+ "] does not exist.");
+		}
+		try {
+			final Backend result = SimulatedBackend.load(config, metrics);
+			// log this
+			LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+					"Using the simulated backend [{0}].", path);
+			return result;
+		} catch (final IOException ex) {
+			throw new PortletException("Unable to read the backend simulation ["
+					+ path + "].", ex);
+		} catch (final IllegalArgumentException ex) {
+			throw new PortletException("Backend simulation [" + path
+					+ "] is invalid.", ex);
+		}
+	}
+
+	/**
+	 * Configures the file that keeps the cached data across restarts, based
+	 * on the init parameters of the portlet. The snapshot is bound to the
+	 * build of the application as recorded in its manifest, without a build
+	 * version the caches start empty.
+	 * 
+	 * @return the snapshot or <code>null</code> if the caches start empty
+	 * 
+	 * @throws PortletException
+	 */
+	private final CacheSnapshot createCacheSnapshot() throws PortletException {
+		// logging support
+		final String LOG_METHOD = "createCacheSnapshot()";
+		// check if the snapshot has been configured
+		final String fileName = getInitParameter(INIT_SNAPSHOT_FILE);
+		if (fileName == null) {
+			return null;
+		}
+		// the build of the application
+		final String version = getBuildVersion();
+		if (version == null) {
+			LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+					"No build version in [{0}], not keeping the caches.",
+					MANIFEST_PATH);
+			return null;
+		}
+		// the file, private to this web application
+		final File file;
+		try {
+			file = resolveFile(fileName.trim());
+		} catch (final IOException ex) {
+			throw new PortletException("Unable to locate the cache snapshot ["
+					+ fileName + "].", ex);
+		}
+		// only the key and value types of our caches are restored
+		final List<Class<?>> types = new ArrayList<Class<?>>();
+		types.add(String.class);
+		types.add(Boolean.class);
+		return new CacheSnapshot(file, version, (int) Math.max(0,
+				getInitParameter(INIT_SNAPSHOT_MAX_ENTRIES,
+						DEFAULT_SNAPSHOT_MAX_ENTRIES)), types, metrics);
+	}
+
+	/**
+	 * Reads the build version of the application from its manifest
+	 * 
+	 * @return the version or <code>null</code> if the manifest does not
+	 *         identify the build
+	 * 
+	 * @throws PortletException
+	 */
+	private final String getBuildVersion() throws PortletException {
+		final InputStream in = getPortletContext().getResourceAsStream(
+				MANIFEST_PATH);
+		if (in == null) {
+			return null;
+		}
+		try {
+			try {
+				final Attributes attrs = new Manifest(in).getMainAttributes();
+				final String version = attrs
+						.getValue(Attributes.Name.IMPLEMENTATION_VERSION);
+				final String time = attrs.getValue(MANIFEST_BUILD_TIME);
+				return ((version != null) && (time != null)) ? version + "@"
+						+ time : null;
+			} finally {
+				in.close();
+			}
+		} catch (final IOException ex) {
+			throw new PortletException("Unable to read [" + MANIFEST_PATH
+					+ "].", ex);
+		}
+	}
+
+	/**
+	 * Restores the cached data of the previous run on the startup executor,
+	 * so the portlet can serve requests meanwhile
+	 */
+	private final void restoreCacheSnapshot() {
+		// logging support
+		final String LOG_METHOD = "restoreCacheSnapshot()";
+		// the instances of this run
+		final CacheSnapshot snapshot = cacheSnapshot;
+		final CacheService service = cacheService;
+		startupExecutor.execute(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				try {
+					final int count = snapshot.restore(service);
+					// log this
+					LOGGER.logp(Level.INFO, LOG_CLASS, LOG_METHOD,
+							"Restored [{0}] cache entries from [{1}].",
+							new Object[] { count, snapshot });
+				} catch (final IOException ex) {
+					// start with cold caches
+					LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+							"Unable to restore the cache snapshot.", ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops a worker pool of the portlet and waits for the running tasks, so
+	 * they do not access the resources released by the destruction
+	 * 
+	 * @param aExecutor
+	 *            the pool
+	 * @return <code>true</code> if the pool terminated in time, else
+	 *         <code>false</code>
+	 */
+	private static final boolean shutdown(final ExecutorService aExecutor) {
+		// logging support
+		final String LOG_METHOD = "shutdown(aExecutor)";
+		// queued tasks still run
+		aExecutor.shutdown();
+		try {
+			if (aExecutor.awaitTermination(SHUTDOWN_TIMEOUT,
+					TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (final InterruptedException ex) {
+			// keep the interruption for the container
+			Thread.currentThread().interrupt();
+		}
+		// give up on the tasks
+		aExecutor.shutdownNow();
+		// log this
+		LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+				"Background tasks did not terminate within [{0}] ms.",
+				SHUTDOWN_TIMEOUT);
+		return false;
+	}
+
+	/**
+	 * Configures the warm-up of the portlet, based on the init parameters of
+	 * the portlet. The warm-up loads the resource bundles, resolves the
+	 * dispatchers of the JSPs, runs synthetic renders through the model, view
+	 * and controller and exercises the marshaller of the private parameters.
+	 * 
+	 * @return the warm-up or <code>null</code> if the portlet does not warm up
+	 * 
+	 * @throws PortletException
+	 */
+	private final Warmup createWarmup() throws PortletException {
+		// check if the warm-up has been configured
+		final long renders = getInitParameter(INIT_WARMUP_RENDERS, 0);
+		if (renders <= 0) {
+			return null;
+		}
+		final List<Locale> locales = getWarmupLocales();
+		final Warmup result = new Warmup(getPortletName(), metrics);
+		// the resource bundles
+		result.addStep("bundles", new Warmup.Step() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.common.Warmup.Step#run()
+			 */
+			@Override
+			public void run() {
+				for (final Locale locale : locales) {
+					final ResourceBundle bundle = getResourceBundle(locale);
+					for (final Enumeration<String> keys = bundle.getKeys(); keys
+							.hasMoreElements();) {
+						bundle.getObject(keys.nextElement());
+					}
+				}
+			}
+		});
+		// the dispatchers
+		result.addStep("dispatchers", new Warmup.Step() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.common.Warmup.Step#run()
+			 */
+			@Override
+			public void run() throws PortletException {
+				final Set<String> paths = getPortletContext()
+						.getResourcePaths(jspRoot);
+				if (paths == null) {
+					throw new PortletException("No JSPs in [" + jspRoot + "].");
+				}
+				for (final String path : paths) {
+					if (path.endsWith(".jsp")
+							&& (getPortletContext().getRequestDispatcher(path) == null)) {
+						throw new PortletException("No dispatcher for [" + path
+								+ "].");
+					}
+				}
+			}
+		});
+		// the beans of the render
+		result.addStep("renders", new Warmup.Step() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.common.Warmup.Step#run()
+			 */
+			@Override
+			public void run() throws Exception {
+				// every render decodes the state of the previous one
+				Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+				for (long i = 0; i < renders; ++i) {
+					for (final Locale locale : locales) {
+						params = renderSynthetic(locale, params);
+					}
+				}
+			}
+		});
+		// the marshaller
+		result.addStep("marshaller", new Warmup.Step() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.common.Warmup.Step#run()
+			 */
+			@Override
+			public void run() {
+				warmupMarshaller();
+			}
+		});
+		// ok
+		return result;
+	}
+
+	/**
+	 * Returns the locales of the warm-up, based on the init parameters of the
+	 * portlet
+	 * 
+	 * @return the locales
+	 */
+	private final List<Locale> getWarmupLocales() {
+		final Set<Locale> result = new LinkedHashSet<Locale>();
+		final String locales = getInitParameter(INIT_WARMUP_LOCALES);
+		if (locales != null) {
+			// the configured locales, e.g. de_DE or de-DE
+			for (final String locale : locales.split(",")) {
+				final String[] parts = locale.trim().split("[_-]");
+				if (parts[0].length() > 0) {
+					result.add(new Locale(parts[0], (parts.length > 1) ? parts[1]
+							: "", (parts.length > 2) ? parts[2] : ""));
+				}
+			}
+		} else {
+			// the locales of the portlet
+			final Enumeration<Locale> supported = getSupportedLocales();
+			while ((supported != null) && supported.hasMoreElements()) {
+				result.add(supported.nextElement());
+			}
+			result.add(Locale.getDefault());
+		}
+		return new ArrayList<Locale>(result);
+	}
+
+	/**
+	 * Runs the model, view and controller of a render on in-memory objects.
+	 * The beans are read like the JSP reads them, the JSP itself is not
+	 * included, since the container only dispatches its own requests.
+	 * 
+	 * @param aLocale
+	 *            locale of the render
+	 * @param aParameters
+	 *            the private render parameters
+	 * @return the private render parameters of the next render
+	 * @throws Exception
+	 */
+	private final Map<String, String[]> renderSynthetic(final Locale aLocale,
+			final Map<String, String[]> aParameters) throws Exception {
+		// the in-memory request
+		final RenderRequest request = InMemoryPortletObjects.createRequest(
+				RenderRequest.class, WARMUP_WINDOW_ID, "", aLocale,
+				aParameters);
+		final RenderResponse response = InMemoryPortletObjects.createResponse(
+				RenderResponse.class, WARMUP_WINDOW_ID, aLocale);
+		// the beans, as in the render
+		RenderScope.open(request);
+		final AsyncFetcher.Session fetches = asyncFetcher.open();
+		final TemplateView view = new TemplateView(getPortletConfig(), request,
+				response, dependencies);
+		final TemplateModel model = decodeModel(request, response);
+		final TemplateController controller = createController(model, request,
+				response);
+		try {
+			model.startFetches(fetches);
+			fetches.startDeadline();
+			// read the beans like the JSP
+			Warmup.readProperties(view);
+			Warmup.readProperties(model);
+			Warmup.readProperties(controller);
+			// navigate to the next state
+			return InMemoryPortletObjects.getParameters(controller
+					.getIncSampleIntURL());
+		} finally {
+			fetches.close();
+			RenderScope.close(request);
+			controller.dispose();
+			model.dispose();
+			view.dispose();
+		}
+	}
+
+	/**
+	 * Unregisters an MBean of this portlet
+	 * 
+	 * @param aName
+	 *            name of the MBean, <code>null</code> if it has not been
+	 *            registered
+	 */
+	private final void unregisterMBean(final ObjectName aName) {
+		// logging support
+		final String LOG_METHOD = "unregisterMBean(aName)";
+		if (aName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(aName);
+		} catch (final JMException ex) {
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Unable to unregister the MBean [" + aName + "].", ex);
+		}
+	}
+
+	/**
+	 * Marshals and unmarshals sample values with the marshaller of the
+	 * private parameters, covering the enum, integer and string paths as
+	 * well as values long enough to be compressed
+	 * 
+	 * @throws IllegalStateException
+	 *             if a value does not survive the round trip
+	 */
+	private final void warmupMarshaller() {
+		final Marshaller marshaller = privateMarshaller;
+		// enums
+		final AsyncCommitter.STATUS[] values = AsyncCommitter.STATUS.values();
+		for (final AsyncCommitter.STATUS value : values) {
+			if (marshaller.unmarshalEnum(marshaller.marshalEnum(value), values,
+					AsyncCommitter.STATUS.UNKNOWN) != value) {
+				throw new IllegalStateException("Enum [" + value
+						+ "] does not survive marshalling.");
+			}
+		}
+		// integers
+		for (final int value : new int[] { 0, 1, -1, Integer.MAX_VALUE,
+				Integer.MIN_VALUE }) {
+			if (marshaller.unmarshalInt(marshaller.marshalInt(value), 0) != value) {
+				throw new IllegalStateException("Integer [" + value
+						+ "] does not survive marshalling.");
+			}
+		}
+		// strings, from short to compressed
+		final StringBuilder text = new StringBuilder();
+		for (final int length : new int[] { 1, 64, 256 }) {
+			while (text.length() < length) {
+				text.append("sample ");
+			}
+			final String value = text.substring(0, length);
+			if (!value.equals(marshaller.unmarshalString(
+					marshaller.marshalString(value), null))) {
+				throw new IllegalStateException("String of length [" + length
+						+ "] does not survive marshalling.");
+			}
+		}
+	}
+
+	/**
+	 * Configures the shrinking of the caches under memory pressure, based on
+	 * the init parameters of the portlet
+	 * 
+	 * @return the governor or <code>null</code> if the caches are not governed
+	 * 
+	 * @throws PortletException
 	 */
-	private Dependencies dependencies;
+	private final MemoryGovernor createMemoryGovernor() throws PortletException {
+		// usage levels
+		final long threshold = getInitParameter(INIT_MEMORY_THRESHOLD, 0);
+		if (threshold <= 0) {
+			return null;
+		}
+		final long recovery = getInitParameter(INIT_MEMORY_RECOVERY,
+				Math.min(DEFAULT_MEMORY_RECOVERY, threshold));
+		if ((threshold >= 100) || (recovery <= 0) || (recovery > threshold)) {
+			throw new PortletException("Init parameters ["
+					+ INIT_MEMORY_THRESHOLD + "] and [" + INIT_MEMORY_RECOVERY
+					+ "] must satisfy 0 < recovery <= threshold < 100.");
+		}
+		// construct the governor
+		return new MemoryGovernor(cacheService, threshold, recovery, Math.max(
+				1, getInitParameter(INIT_MEMORY_INTERVAL,
+						DEFAULT_MEMORY_INTERVAL)), getPortletName() + "-memory",
+				metrics);
+	}
 
 	/**
-	 * root path for JSPs. Per default we use the package name of the portlet
-	 * inside the WEB-INF directory.
+	 * Configures the background execution of commits, based on the init
+	 * parameters of the portlet
+	 * 
+	 * @return the committer or <code>null</code> if commits run synchronously
+	 * 
+	 * @throws PortletException
 	 */
-	private String jspRoot;
+	private final AsyncCommitter createAsyncCommitter() throws PortletException {
+		// number of workers
+		final int threads = (int) getInitParameter(INIT_COMMIT_THREADS, 0);
+		if (threads <= 0) {
+			return null;
+		}
+		// construct the committer
+		return new AsyncCommitter(getPortletName() + "-commit", threads,
+				(int) getInitParameter(INIT_COMMIT_QUEUE_SIZE,
+						DEFAULT_COMMIT_QUEUE_SIZE), getInitParameter(
+						INIT_COMMIT_RETENTION, DEFAULT_COMMIT_RETENTION),
+				metrics);
+	}
 
 	/**
-	 * Constructs the action handler
+	 * Configures the content addressed store for uploaded files, based on the
+	 * init parameters of the portlet
 	 * 
-	 * @param aModel
-	 *            model the actions will work on
-	 * @param aRequest
-	 *            the action request
-	 * @param aResponse
-	 *            the action response
-	 * @return the model
+	 * @return the store
 	 * 
-	 * @throws PortletException
 	 * @throws IOException
 	 */
-	private final TemplateActions createActions(final TemplateModel aModel,
-			final ActionRequest aRequest, final ActionResponse aResponse)
-			throws PortletException, IOException {
-		// sanity check
-		assert aModel != null;
-		assert aRequest != null;
-		assert aResponse != null;
-		/**
-		 * Decodes the action.This method normally does not have to be changed.
-		 * Rather change the implementation of the action.
-		 */
-		return new TemplateActions(aModel, aRequest, aResponse, dependencies);
+	private final ContentStore createContentStore() throws IOException {
+		// the directory, private to this web application
+		final String dirName = getInitParameter(INIT_UPLOAD_STORE);
+		final File dir = resolveFile((dirName != null) ? dirName.trim()
+				: getPortletName() + "/content");
+		// open the store
+		return new ContentStore(dir, uploadManager, metrics);
 	}
 
 	/**
-	 * Constructs a new controller
+	 * Configures the parallel processing of uploaded files, based on the init
+	 * parameters of the portlet. Replace the executor to run the workers in a
+	 * container managed thread pool.
 	 * 
-	 * @param aModel
-	 *            the model
-	 * @param aRequest
-	 *            the request
-	 * @param aResponse
-	 *            the response
-	 * @return the controller
+	 * @return the pipeline
+	 * 
+	 * @throws PortletException
 	 */
-	private final TemplateController createController(
-			final TemplateModel aModel, final PortletRequest aRequest,
-			final MimeResponse aResponse) {
-		// sanity check
-		assert aModel != null;
-		assert aRequest != null;
-		assert aResponse != null;
-		/**
-		 * Constructs the controller. This method normally does not have to be
-		 * changed. Rather change the implementation of the controller.
-		 */
-		return new TemplateController(aModel, aRequest, aResponse, dependencies);
+	private final UploadPipeline createUploadPipeline() throws PortletException {
+		// number of workers
+		final int threads = (int) getInitParameter(INIT_UPLOAD_THREADS, 0);
+		final int maxPending = (int) getInitParameter(INIT_UPLOAD_MAX_PENDING,
+				Math.max(1, threads << 1));
+		// the bound is enforced by the pipeline, so the queue can be unbounded
+		if (threads > 0) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+					threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
+							getPortletName() + "-upload"));
+			executor.allowCoreThreadTimeOut(true);
+			uploadExecutor = executor;
+		}
+		// construct the pipeline
+		return new UploadPipeline(uploadExecutor, maxPending, metrics);
 	}
 
 	/**
-	 * Decodes the model used during rendering
+	 * Reads a numeric init parameter
 	 * 
-	 * @param aRequest
-	 *            the portlet request
-	 * @param aResponse
-	 *            the portlet response
-	 * @return the model
+	 * @param aName
+	 *            name of the parameter
+	 * @param aDefault
+	 *            value used if the parameter is missing
+	 * @return the value
 	 * 
 	 * @throws PortletException
-	 * @throws IOException
+	 *             if the parameter is not a number
 	 */
-	private final TemplateModel decodeModel(final PortletRequest aRequest,
-			final PortletResponse aResponse) throws PortletException,
-			IOException {
-		// sanity check
-		assert aRequest != null;
-		assert aResponse != null;
-		/**
-		 * Decodes the model.This method normally does not have to be changed.
-		 * Rather change the implementation of the model.
-		 */
-		return new TemplateModel(aRequest, aResponse, getPortletConfig(),
-				dependencies);
+	private final long getInitParameter(final String aName, final long aDefault)
+			throws PortletException {
+		// read the parameter
+		final String value = getInitParameter(aName);
+		if (value == null) {
+			return aDefault;
+		}
+		// parse
+		try {
+			return Long.parseLong(value.trim());
+		} catch (final NumberFormatException ex) {
+			throw new PortletException("Init parameter [" + aName
+					+ "] is not a number.", ex);
+		}
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Executes the actions and commits the persistent modifications. Failures
+	 * are logged and counted, but not propagated.
 	 * 
-	 * @see javax.portlet.GenericPortlet#destroy()
+	 * @param aActions
+	 *            the actions
+	 * @return <code>true</code> if the actions succeeded, else
+	 *         <code>false</code>
 	 */
-	@Override
-	public void destroy() {
+	private final boolean executeActions(final TemplateActions aActions) {
+		// sanity check
+		assert aActions != null;
 		// logging support
-		final String LOG_METHOD = "destroy()";
+		final String LOG_METHOD = "executeActions(aActions)";
 		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
-		if (bIsLogging) {
-			LOGGER.entering(LOG_CLASS, LOG_METHOD);
-		}
-		// TODO reset all other instance fields to null
-		// reset the dependencies
-		dependencies = null;
-		jspRoot = null;
-		// default
-		super.destroy();
-		// exit trace
-		if (bIsLogging) {
-			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		try {
+			// process the model
+			if (aActions.processActions()) {
+				// log this
+				if (bIsLogging) {
+					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+							"Committing the model ...");
+				}
+				// commit persistent modifications
+				aActions.commit();
+			}
+			// ok
+			return true;
+		} catch (final Throwable ex) {
+			// handle the exception
+			metrics.increment(METRIC_ACTION_FAILURES);
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Action processing failed.", ex);
+			return false;
 		}
 	}
 
@@ -228,15 +1692,77 @@ public class TemplatePortlet extends GenericPortlet {
 		// initialize the content type
 		response.setContentType(request.getResponseContentType());
 		// render the JSP
-		final String jspName = jspRoot + request.getPortletMode() + ".jsp";
-		getPortletContext().getRequestDispatcher(jspName).include(request,
-				response);
+		final RenderScope scope = RenderScope.get(request);
+		if ((renderCoalescer == null) || (scope == null)) {
+			includeMarkup(request, response);
+		} else {
+			/**
+			 * Identical renders of the same window share the markup, if it
+			 * does not depend on the user
+			 */
+			final String key = request.getWindowID() + ":"
+					+ request.getResponseContentType() + ":"
+					+ RenderScope.getSharedKey(request);
+			renderCoalescer.render(key, response.getWriter(),
+					new RenderCoalescer.Renderer() {
+
+						/*
+						 * (non-Javadoc)
+						 * 
+						 * @see
+						 * com.ibm.portal.samples.common.RenderCoalescer.Renderer
+						 * #render(java.io.PrintWriter)
+						 */
+						@Override
+						public boolean render(final PrintWriter aWriter)
+								throws PortletException, IOException {
+							// capture the markup
+							includeMarkup(request, new RenderResponseWrapper(
+									response) {
+
+								/*
+								 * (non-Javadoc)
+								 * 
+								 * @see
+								 * javax.portlet.filter.RenderResponseWrapper
+								 * #getWriter()
+								 */
+								@Override
+								public PrintWriter getWriter() {
+									return aWriter;
+								}
+							});
+							// ok
+							return scope.isPublic();
+						}
+					});
+		}
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
 		}
 	}
 
+	/**
+	 * Includes the JSP for the current portlet mode
+	 * 
+	 * @param aRequest
+	 *            the render request or the resource request of the AJAX
+	 *            action channel
+	 * @param aResponse
+	 *            the response
+	 * 
+	 * @throws PortletException
+	 * @throws IOException
+	 */
+	private final void includeMarkup(final PortletRequest aRequest,
+			final MimeResponse aResponse) throws PortletException, IOException {
+		// render the JSP
+		final String jspName = jspRoot + aRequest.getPortletMode() + ".jsp";
+		getPortletContext().getRequestDispatcher(jspName).include(aRequest,
+				aResponse);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -261,6 +1787,61 @@ public class TemplatePortlet extends GenericPortlet {
 			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD, "Root path [{0}].",
 					jspRoot);
 		}
+		// the counters
+		metrics = new Metrics();
+		metricsName = registerMBean(metrics, "Metrics");
+		// limits for the decoding of request data
+		decodingLimits = new DecodingLimits((int) getInitParameter(
+				INIT_LIMITS_PARAMETER,
+				DecodingLimits.DEFAULT_MAX_PARAMETER_LENGTH),
+				getInitParameter(INIT_LIMITS_REQUEST,
+						DecodingLimits.DEFAULT_MAX_REQUEST_LENGTH), metrics);
+		// form upload handling
+		uploadManager = createUploadManager();
+		uploadPipeline = createUploadPipeline();
+		// background commits
+		asyncCommitter = createAsyncCommitter();
+		// backend fetches of the render phase
+		asyncFetcher = createAsyncFetcher();
+		// caches for backend data
+		cacheService = createCacheService();
+		// coalescing of identical renders
+		final long coalesceTimeout = getInitParameter(INIT_COALESCE_TIMEOUT, 0);
+		renderCoalescer = (coalesceTimeout > 0) ? new RenderCoalescer(
+				coalesceTimeout,
+				cacheService.<String, Boolean> getCache(CACHE_RENDER_PRIVATE),
+				metrics) : null;
+		// the services that provide the data
+		backend = createBackend();
+		// shrink the caches under memory pressure
+		memoryGovernor = createMemoryGovernor();
+		// runs the restore and the warm-up, the thread ends once both are done
+		final ThreadPoolExecutor startup = new ThreadPoolExecutor(1, 1, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory(getPortletName() + "-startup"));
+		startup.allowCoreThreadTimeOut(true);
+		startupExecutor = startup;
+		// warm up the caches with the data of the previous run
+		cacheSnapshot = createCacheSnapshot();
+		if (cacheSnapshot != null) {
+			restoreCacheSnapshot();
+		}
+		// duplicate action detection
+		duplicateFilter = new DuplicateFilter(getInitParameter(INIT_TOKENS_TTL,
+				DEFAULT_TOKENS_TTL), (int) getInitParameter(INIT_TOKENS_MAX,
+				DEFAULT_TOKENS_MAX), metrics);
+		// preference snapshots
+		preferencesCache = new PreferencesCache(getInitParameter(
+				INIT_PREFERENCES_TTL, DEFAULT_PREFERENCES_TTL),
+				(int) getInitParameter(INIT_PREFERENCES_MAX_WINDOWS,
+						DEFAULT_PREFERENCES_MAX_WINDOWS), metrics);
+		// decide how to marshal private parameters
+		try {
+			contentStore = createContentStore();
+			privateMarshaller = createPrivateParameterMarshaller();
+		} catch (final IOException ex) {
+			throw new PortletException(ex);
+		}
 		/**
 		 * Note that our dependency interface extends the dependency interfaces
 		 * of multiple other components. Thanks to a naming convention however
@@ -277,12 +1858,127 @@ public class TemplatePortlet extends GenericPortlet {
 			 */
 			@Override
 			public Marshaller getPrivateParameterMarshaller() {
-				// decide how to marshal private parameters
-				return PrivateParameterMarshaller.SINGLETON;
+				// decided during init
+				return privateMarshaller;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateModel.Dependencies#
+			 * getDecodingLimits()
+			 */
+			@Override
+			public DecodingLimits getDecodingLimits() {
+				// decided during init
+				return decodingLimits;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateActions.Dependencies#
+			 * getUploadManager()
+			 */
+			@Override
+			public UploadManager getUploadManager() {
+				// decided during init
+				return uploadManager;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateActions.Dependencies#
+			 * getUploadPipeline()
+			 */
+			@Override
+			public UploadPipeline getUploadPipeline() {
+				// decided during init
+				return uploadPipeline;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateActions.Dependencies#
+			 * getContentStore()
+			 */
+			@Override
+			public ContentStore getContentStore() {
+				// decided during init
+				return contentStore;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateModel.Dependencies#
+			 * getAsyncCommitter()
+			 */
+			@Override
+			public AsyncCommitter getAsyncCommitter() {
+				// decided during init
+				return asyncCommitter;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateModel.Dependencies#
+			 * getCacheService()
+			 */
+			@Override
+			public CacheService getCacheService() {
+				// decided during init
+				return cacheService;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateModel.Dependencies#
+			 * getBackend()
+			 */
+			@Override
+			public Backend getBackend() {
+				// decided during init
+				return backend;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.view.TemplateView.Dependencies#
+			 * getPreferencesCache()
+			 */
+			@Override
+			public PreferencesCache getPreferencesCache() {
+				// decided during init
+				return preferencesCache;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see com.ibm.portal.samples.mvc.model.TemplateActions.Dependencies#
+			 * getDuplicateFilter()
+			 */
+			@Override
+			public DuplicateFilter getDuplicateFilter() {
+				// decided during init
+				return duplicateFilter;
 			}
 
 			// implement your getters here
 		};
+		// prepare for the first requests in the background
+		warmup = createWarmup();
+		if (warmup != null) {
+			warmupName = registerMBean(warmup, "Warmup");
+			// runs after the restore of the snapshot
+			warmup.start(startupExecutor);
+		}
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -310,24 +2006,21 @@ public class TemplatePortlet extends GenericPortlet {
 		// construct the action handler
 		final TemplateActions actions = createActions(model, request, response);
 		try {
-			// process the model
-			if (actions.processActions()) {
-				// log this
-				if (bIsLogging) {
-					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
-							"Committing the model ...");
-				}
-				// commit persistent modifications
-				actions.commit();
-			}
-		} catch (final Throwable ex) {
-			// handle the exception
+			// process the model, the navigational state is retained on failure
+			executeActions(actions);
 		} finally {
 			/**
 			 * Encodes the model. This is an important step, without it the
-			 * navigational state would be lost after the action.
+			 * navigational state would be lost after the action. If the
+			 * actions did not modify the model, we simply pass on the
+			 * already encoded state of the action URL without its action
+			 * token.
 			 */
-			model.encode(response);
+			if (model.isDirty()) {
+				model.encode(response);
+			} else {
+				model.encodeUnmodified(response);
+			}
 			// dispose
 			actions.dispose();
 			model.dispose();
@@ -338,6 +2031,39 @@ public class TemplatePortlet extends GenericPortlet {
 		}
 	}
 
+	/**
+	 * Registers an MBean of this portlet, e.g. the metrics, so it can be
+	 * monitored via JMX. Failures are logged but do not prevent the portlet
+	 * from starting.
+	 * 
+	 * @param aMBean
+	 *            the MBean
+	 * @param aType
+	 *            type of the MBean, part of its name
+	 * @return the name of the MBean or <code>null</code> if it could not be
+	 *         registered
+	 */
+	private final ObjectName registerMBean(final Object aMBean,
+			final String aType) {
+		// logging support
+		final String LOG_METHOD = "registerMBean(aMBean, aType)";
+		try {
+			// the name identifies the portlet
+			final ObjectName name = new ObjectName(
+					"com.ibm.portal.samples:type=" + aType + ",portlet="
+							+ ObjectName.quote(getPortletName()));
+			final MBeanServer server = ManagementFactory
+					.getPlatformMBeanServer();
+			server.registerMBean(aMBean, name);
+			return name;
+		} catch (final JMException ex) {
+			// log this
+			LOGGER.logp(Level.WARNING, LOG_CLASS, LOG_METHOD,
+					"Unable to register the MBean [" + aType + "].", ex);
+			return null;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -348,16 +2074,71 @@ public class TemplatePortlet extends GenericPortlet {
 	public void render(final RenderRequest request,
 			final RenderResponse response) throws PortletException, IOException {
 		// logging support
-		final String LOG_METHOD = "doDispatch(request, response)";
+		final String LOG_METHOD = "render(request, response)";
 		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
 		if (bIsLogging) {
 			LOGGER.entering(LOG_CLASS, LOG_METHOD);
 		}
+		/**
+		 * Start the backend fetches during the header phase, so they run
+		 * while the portal renders the headers and markup of the other
+		 * portlets. The markup phase picks them up via the request attribute.
+		 */
+		final Object part = request.getAttribute(PortletRequest.RENDER_PART);
+		if (PortletRequest.RENDER_HEADERS.equals(part)) {
+			// decode the model
+			final TemplateModel model = decodeModel(request, response);
+			final AsyncFetcher.Session fetches = asyncFetcher.open();
+			try {
+				model.startFetches(fetches);
+			} finally {
+				model.dispose();
+			}
+			request.setAttribute(KEY_FETCHES, fetches);
+			// contribute the elements of the head section
+			contributeHeadElements(request, response);
+			// log this
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Started the fetches in the header phase.");
+			}
+			// default handling
+			super.render(request, response);
+			// exit trace
+			if (bIsLogging) {
+				LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+			}
+			return;
+		}
+		/**
+		 * Reuse the fetches of the header phase. If rendering is not split
+		 * into two phases, the fetches are started here.
+		 */
+		AsyncFetcher.Session fetches = (AsyncFetcher.Session) request
+				.getAttribute(KEY_FETCHES);
+		if (fetches != null) {
+			request.removeAttribute(KEY_FETCHES);
+		} else {
+			fetches = asyncFetcher.open();
+		}
+		// without the header phase the head elements are added up front
+		if (part == null) {
+			contributeHeadElements(request, response);
+		}
+		// track if the markup depends on the user
+		final RenderScope scope = RenderScope.open(request);
 		// construct the view bean
 		final TemplateView view = new TemplateView(getPortletConfig(), request,
 				response, dependencies);
 		// decode the model
 		final TemplateModel model = decodeModel(request, response);
+		if (model.getPendingCommit() != null) {
+			// the status of the commit belongs to the user
+			scope.markPrivate("commit status");
+		}
+		// join the fetches, this does not restart the ones already running
+		model.startFetches(fetches);
+		fetches.startDeadline();
 		// get the controller
 		final TemplateController controller = createController(model, request,
 				response);
@@ -368,7 +2149,12 @@ public class TemplatePortlet extends GenericPortlet {
 		try {
 			// default handling
 			super.render(request, response);
+			// share the markup if it does not depend on the user
+			applyCacheScope(request, response, scope);
 		} finally {
+			// discard fetches that are no longer required
+			fetches.close();
+			RenderScope.close(request);
 			// release model and controller
 			request.removeAttribute(KEY_CONTROLLER);
 			request.removeAttribute(KEY_MODEL);
@@ -395,9 +2181,90 @@ public class TemplatePortlet extends GenericPortlet {
 	public void serveResource(final ResourceRequest request,
 			final ResourceResponse response) throws PortletException,
 			IOException {
+		// logging support
+		final String LOG_METHOD = "serveResource(request, response)";
+		final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD);
+		}
 		/**
-		 * Method not required at the moment. Make sure to override the default
-		 * implementation, because it exposes a security issue.
+		 * Only the AJAX action channel is served. Make sure to never fall back
+		 * to the default implementation, because it exposes a security issue.
 		 */
+		if (!TemplateController.RESOURCE_ACTION.equals(request
+				.getResourceID())
+				|| !"POST".equalsIgnoreCase(request.getMethod())) {
+			// log this
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Rejecting resource [{0}].", request.getResourceID());
+			}
+			response.setProperty(ResourceResponse.HTTP_STATUS_CODE, "404");
+			return;
+		}
+		metrics.increment(METRIC_AJAX_ACTIONS);
+		// decode the model
+		final TemplateModel model = decodeModel(request, response);
+		try {
+			// run the same actions as the action phase
+			final TemplateActions actions = createActions(model, request,
+					response);
+			try {
+				if (!executeActions(actions)) {
+					/**
+					 * the client falls back to the regular form post, which
+					 * reports the failure in the context of the page. The
+					 * token of a failed action has been released, so the
+					 * post is executed again.
+					 */
+					response.setProperty(ResourceResponse.HTTP_STATUS_CODE,
+							"500");
+					return;
+				}
+				if (actions.isActionPhaseRequired()) {
+					/**
+					 * the actions modified the preferences, which can only be
+					 * stored in the action phase. The client falls back to
+					 * the regular form post.
+					 */
+					metrics.increment(METRIC_AJAX_REDIRECTS);
+					response.setProperty(ResourceResponse.HTTP_STATUS_CODE,
+							"409");
+					return;
+				}
+			} finally {
+				actions.dispose();
+			}
+			/**
+			 * Render the fragment from the modified model. The resource
+			 * request cannot update the navigational state, so the URLs in the
+			 * fragment carry the modified model instead.
+			 */
+			final TemplateView view = new TemplateView(getPortletConfig(),
+					request, response, dependencies);
+			final TemplateController controller = createController(model,
+					request, response);
+			request.setAttribute(KEY_VIEW, view);
+			request.setAttribute(KEY_MODEL, model);
+			request.setAttribute(KEY_CONTROLLER, controller);
+			try {
+				response.setContentType("text/html");
+				includeMarkup(request, response);
+			} finally {
+				// release model and controller
+				request.removeAttribute(KEY_CONTROLLER);
+				request.removeAttribute(KEY_MODEL);
+				request.removeAttribute(KEY_VIEW);
+				// dispose
+				controller.dispose();
+				view.dispose();
+			}
+		} finally {
+			model.dispose();
+		}
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		}
 	}
 }
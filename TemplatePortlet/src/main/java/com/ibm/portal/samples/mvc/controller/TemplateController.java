@@ -23,8 +23,11 @@ import javax.portlet.MimeResponse;
 import javax.portlet.PortletException;
 import javax.portlet.PortletRequest;
 import javax.portlet.PortletURL;
+import javax.portlet.ResourceURL;
 
+import com.ibm.portal.samples.common.AsyncCommitter;
 import com.ibm.portal.samples.common.Marshaller;
+import com.ibm.portal.samples.mvc.model.TemplateActions;
 import com.ibm.portal.samples.mvc.model.TemplateActions.ACTION;
 import com.ibm.portal.samples.mvc.model.TemplateActions.KEY;
 import com.ibm.portal.samples.mvc.model.TemplateModel;
@@ -54,6 +57,11 @@ public class TemplateController {
 		 */
 	}
 
+	/**
+	 * Resource ID of the AJAX action channel
+	 */
+	public static final String RESOURCE_ACTION = "action";
+
 	/** class name for the logger */
 	private static final String LOG_CLASS = TemplateController.class.getName();
 
@@ -81,6 +89,7 @@ public class TemplateController {
 	 */
 	private final Marshaller privateMarshaller;
 
+
 	/**
 	 * Initializes the controller on top of a model
 	 * 
@@ -117,13 +126,21 @@ public class TemplateController {
 	}
 
 	/**
-	 * Returns a clone of the current model
+	 * Returns a clone of the current model. The token of a commit is only
+	 * carried forward while the commit is pending, so the result is shown
+	 * once.
 	 * 
 	 * @return the clone
 	 */
 	private final TemplateModel cloneModel() {
 		// clones the current model
-		return model.clone();
+		final TemplateModel clone = model.clone();
+		final AsyncCommitter.STATUS status = clone.getCommitStatus();
+		if ((status != null) && (status != AsyncCommitter.STATUS.PENDING)) {
+			clone.setPendingCommit(null);
+		}
+		// ok
+		return clone;
 	}
 
 	/**
@@ -157,7 +174,9 @@ public class TemplateController {
 	/**
 	 * Returns the action URL that encodes the current model. We use the same
 	 * action URL for all actions, since the distinction of the individual
-	 * action is encoded as a hidden form data value.
+	 * action is encoded as a hidden form data value. The URL does not depend
+	 * on the user, the one-time token that suppresses duplicate submissions
+	 * is added to the form by the client, see {@link #getKeyActionToken()}.
 	 * 
 	 * @return the action URL.
 	 * 
@@ -172,6 +191,28 @@ public class TemplateController {
 		return url;
 	}
 
+	/**
+	 * Returns the URL of the AJAX action channel. Posting the form to this
+	 * URL runs the same actions as the {@link #getActionURL()}, but returns
+	 * the markup of the portlet instead of causing a full page refresh. The
+	 * URL encodes the current model explicitly, because the navigational
+	 * state of the page is not updated by resource requests.
+	 * 
+	 * @return the resource URL
+	 * 
+	 * @throws PortletException
+	 * @throws IOException
+	 */
+	public ResourceURL getAjaxActionURL() throws PortletException,
+			IOException {
+		// construct a new resource URL
+		final ResourceURL url = response.createResourceURL();
+		url.setResourceID(RESOURCE_ACTION);
+		model.encode(url);
+		// ok
+		return url;
+	}
+
 	/**
 	 * Creates a render URL that clears the model
 	 * 
@@ -227,6 +268,20 @@ public class TemplateController {
 		return createRenderURL(clone);
 	}
 
+	/**
+	 * Creates a render URL that represents the current model, e.g. to poll
+	 * for the result of a pending commit
+	 * 
+	 * @return the render URL
+	 * 
+	 * @throws PortletException
+	 * @throws IOException
+	 */
+	public PortletURL getRefreshURL() throws PortletException, IOException {
+		// represent the cloned model via a URL
+		return createRenderURL(cloneModel());
+	}
+
 	/**
 	 * Returns the value of the form field that encodes the cancel action
 	 * 
@@ -254,6 +309,18 @@ public class TemplateController {
 		return privateMarshaller.marshalEnum(KEY.ACTION);
 	}
 
+	/**
+	 * Returns the name of the hidden form field that carries the one-time
+	 * token of the form. The field is rendered empty and filled in by the
+	 * client when the form is first submitted, the AJAX request and its
+	 * fallback share the same token.
+	 * 
+	 * @return form field name
+	 */
+	public String getKeyActionToken() {
+		return TemplateActions.KEY_ACTION_TOKEN;
+	}
+
 	/**
 	 * Returns the name of the form field that encodes the sample text
 	 * 
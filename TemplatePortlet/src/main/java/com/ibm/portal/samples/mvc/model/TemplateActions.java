@@ -16,21 +16,30 @@
 package com.ibm.portal.samples.mvc.model;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.portlet.ActionRequest;
-import javax.portlet.ActionResponse;
+import javax.portlet.ClientDataRequest;
+import javax.portlet.PortletResponse;
 
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.portlet.PortletFileUpload;
 
+import com.ibm.portal.samples.common.AsyncCommitter;
+import com.ibm.portal.samples.common.CoalescingPreferences;
+import com.ibm.portal.samples.common.ContentStore;
+import com.ibm.portal.samples.common.DecodingLimits;
+import com.ibm.portal.samples.common.DuplicateFilter;
 import com.ibm.portal.samples.common.Marshaller;
+import com.ibm.portal.samples.common.PreferencesCache;
+import com.ibm.portal.samples.common.TextDecoder;
+import com.ibm.portal.samples.common.UploadManager;
+import com.ibm.portal.samples.common.UploadPipeline;
 import com.ibm.portal.samples.mvc.TemplatePortlet;
 
 /**
@@ -43,10 +52,10 @@ import com.ibm.portal.samples.mvc.TemplatePortlet;
  * based on the {@link ActionEntry} bean.
  * 
  * Action implementations modify the underlying {@link TemplateModel} which will
- * be encoded into the navigational state after the end of the action phase. If
- * an action resulted in a persistent change of data, the action implementation
- * should return <code>true</code> to indicate this and the framework will call
- * the {@link TemplateActions#commit()} method.
+ * be encoded into the navigational state after the end of the action phase.
+ * The model tracks the modified fields, so only changes are copied back to the
+ * base model. If an action modified a field that represents persistent data,
+ * the framework will call the {@link TemplateActions#commit()} method.
  * 
  * @author cleue
  */
@@ -83,12 +92,12 @@ public class TemplateActions {
 			 * TemplateActions.ActionEntry)
 			 */
 			@Override
-			protected boolean processAction(final ActionEntry aEntry)
+			protected void processAction(final ActionEntry aEntry)
 					throws Exception {
 				// sanity check
 				assert aEntry != null;
 				// dispatch
-				return aEntry.processSampleFormCancel();
+				aEntry.processSampleFormCancel();
 			}
 		},
 
@@ -108,26 +117,25 @@ public class TemplateActions {
 			 * TemplateActions.ActionEntry)
 			 */
 			@Override
-			protected boolean processAction(final ActionEntry aEntry)
+			protected void processAction(final ActionEntry aEntry)
 					throws Exception {
 				// sanity check
 				assert aEntry != null;
 				// dispatch
-				return aEntry.processSampleFormSave();
+				aEntry.processSampleFormSave();
 			}
 		};
 
 		/**
-		 * Executes the action on the model
+		 * Executes the action on the model. Modifications are tracked by the
+		 * model.
 		 * 
 		 * @param aEntry
 		 *            the action to execute
-		 * @return <code>true</code> if the action modified persistent state,
-		 *         else <code>false</code>
 		 * 
 		 * @throws Exception
 		 */
-		protected abstract boolean processAction(final ActionEntry aEntry)
+		protected abstract void processAction(final ActionEntry aEntry)
 				throws Exception;
 	}
 
@@ -142,9 +150,10 @@ public class TemplateActions {
 		 * and then update the characterset depending on the existence of a
 		 * "_charset_" field. This field name is a de-facto standard in
 		 * browsers, that fill it in with the actual character set used to
-		 * encode the parameters.
+		 * encode the parameters. Character sets are cached, so decoding a
+		 * field does not require a lookup by name.
 		 */
-		private String charset = "UTF-8";
+		private Charset charset = TextDecoder.UTF_8;
 
 		/**
 		 * current form data entry
@@ -157,9 +166,27 @@ public class TemplateActions {
 		private final TemplateModel currentModel;
 
 		/**
-		 * Iterator over the existing form data entries
+		 * tracks the size of the form fields decoded for this request
 		 */
-		private final Iterator<FileItem> itemIterator;
+		private final DecodingLimits.Budget budget = limits.newBudget();
+
+		/**
+		 * <code>true</code> if the form carried the token of an action that
+		 * has been submitted before
+		 */
+		private boolean bDuplicate;
+
+		/**
+		 * file parts that are processed in parallel
+		 * 
+		 * TODO hand custom file inputs to the pipeline from their decoder via
+		 * uploads.submit(...), e.g. with a task that stores the entry via
+		 * {@link ContentStore#put(FileItem)} or moves it via
+		 * {@link UploadManager#transfer(FileItem, java.io.File)}. Set the
+		 * current entry to <code>null</code> afterwards, the batch deletes the
+		 * entry once the workers finished.
+		 */
+		private final UploadPipeline.Session uploads = uploadPipeline.open();
 
 		/**
 		 * currently decoded sample text
@@ -182,20 +209,17 @@ public class TemplateActions {
 			 */
 			currentModel = model.clone();
 			/**
-			 * Iterator over the entries
+			 * Start to parse the entries, they are received while we decode
 			 */
-			itemIterator = getFileItems().iterator();
+			openBatch();
 		}
 
 		/**
 		 * TODO replace by custom action implementation
 		 * 
 		 * Implementation of the {@link ACTION#SAMPLE_FORM_CANCEL} action
-		 * 
-		 * @return <code>true</code> if the backend changed after the action,
-		 *         else <code>false</code>
 		 */
-		private final boolean actionSampleFormCancel() {
+		private final void actionSampleFormCancel() {
 			// logging support
 			final String LOG_METHOD = "actionSampleFormCancel()";
 			if (bIsLogging) {
@@ -206,8 +230,6 @@ public class TemplateActions {
 			if (bIsLogging) {
 				LOGGER.exiting(LOG_CLASS, LOG_METHOD);
 			}
-			// nothing changed
-			return false;
 		}
 
 		/**
@@ -217,31 +239,42 @@ public class TemplateActions {
 		 * 
 		 * @param aSampleText
 		 *            the text to persist
-		 * @return <code>true</code> if the backend changed after the action,
-		 *         else <code>false</code>
 		 */
-		private final boolean actionSampleFormSave(final String aSampleText) {
+		private final void actionSampleFormSave(final String aSampleText) {
 			// logging support
 			final String LOG_METHOD = "actionSampleFormSave(aSampleText)";
 			if (bIsLogging) {
 				LOGGER.entering(LOG_CLASS, LOG_METHOD, aSampleText);
 			}
-			// update the model
+			// update the model, the model tracks if the text actually changed
 			currentModel.setSampleText(aSampleText);
+			/**
+			 * TODO modify preferences via the preferences field, e.g.
+			 * preferences.setValue(...), they are stored once per request.
+			 * Actions that modify preferences are repeated as a regular form
+			 * post if they arrive via the AJAX action channel.
+			 */
 			// exit trace
 			if (bIsLogging) {
 				LOGGER.exiting(LOG_CLASS, LOG_METHOD);
 			}
-			// nothing changed
-			return false;
 		}
 
 		/**
-		 * Copies the current working copy over to the base model
+		 * Copies the modified fields of the current working copy over to the
+		 * base model. Nothing is copied if the actions did not change anything.
 		 */
 		private final void commit() {
-			// commits the current model
-			model.copy(currentModel);
+			// logging support
+			final String LOG_METHOD = "commit()";
+			// check if there is anything to commit
+			if (currentModel.isDirty()) {
+				// commits the modified fields
+				model.merge(currentModel);
+			} else if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Model unchanged, skipping the commit.");
+			}
 		}
 
 		/**
@@ -249,6 +282,8 @@ public class TemplateActions {
 		 * processing
 		 */
 		private final void dispose() {
+			// wait for the workers before the items get deleted
+			uploads.close();
 			// cleanup
 			currentModel.dispose();
 		}
@@ -287,11 +322,8 @@ public class TemplateActions {
 				currentEntry.delete();
 				currentEntry = null;
 			}
-			// moves to the next entry
-			while (itemIterator.hasNext()) {
-				// next field
-				currentEntry = itemIterator.next();
-				assert currentEntry != null;
+			// moves to the next entry, the entry is parsed on demand
+			while ((currentEntry = nextFileItem()) != null) {
 				// check for special names
 				final String name = currentEntry.getFieldName();
 				assert name != null;
@@ -302,8 +334,16 @@ public class TemplateActions {
 				}
 				// check for special fields
 				if (KEY_CHARSET.equals(name)) {
-					// update the charset
-					charset = readString();
+					// update the charset, keep the current one if unknown
+					charset = TextDecoder.getCharset(readString(), charset);
+				} else if (KEY_ACTION_TOKEN.equals(name)) {
+					// stop decoding if the form has been submitted before
+					if (!registerToken(readString())) {
+						bDuplicate = true;
+						currentEntry.delete();
+						currentEntry = null;
+						break;
+					}
 				} else {
 					// bail out
 					break;
@@ -327,14 +367,11 @@ public class TemplateActions {
 		 * 
 		 * Cancels the form execution
 		 * 
-		 * @return <code>true</code> if the config could be saved, else
-		 *         <code>false</code>
-		 * 
 		 * @see ACTION#SAMPLE_FORM_SAVE
 		 */
-		private final boolean processSampleFormCancel() {
+		private final void processSampleFormCancel() {
 			// dispatch
-			return actionSampleFormCancel();
+			actionSampleFormCancel();
 		}
 
 		/**
@@ -343,14 +380,11 @@ public class TemplateActions {
 		 * Persists the form after all form data have been assembled in this
 		 * bean
 		 * 
-		 * @return <code>true</code> if the config could be saved, else
-		 *         <code>false</code>
-		 * 
 		 * @see ACTION#SAMPLE_FORM_SAVE
 		 */
-		private final boolean processSampleFormSave() {
+		private final void processSampleFormSave() {
 			// dispatch
-			return actionSampleFormSave(sampleText);
+			actionSampleFormSave(sampleText);
 		}
 
 		/**
@@ -359,8 +393,10 @@ public class TemplateActions {
 		 * @return the decoded action or <code>null</code> if the action could
 		 *         not be decoded
 		 * @throws IOException
+		 * @throws FileUploadException
 		 */
-		private final ACTION readAction() throws IOException {
+		private final ACTION readAction() throws IOException,
+				FileUploadException {
 			// decodes the action parameter
 			return privateMarshaller.unmarshalEnum(readString(), ACTIONS,
 					ACTION.SAMPLE_FORM_CANCEL);
@@ -372,25 +408,57 @@ public class TemplateActions {
 		 * Reads the sample text from the next form input
 		 * 
 		 * @throws IOException
+		 * @throws FileUploadException
 		 * 
 		 * @see KEY#SAMPLE_TEXT
 		 */
-		private final boolean readSampleText() throws IOException {
+		private final void readSampleText() throws IOException,
+				FileUploadException {
 			// reads the text
 			sampleText = readString();
-			// no persistent modification
-			return false;
 		}
 
 		/**
-		 * Reads a trimmed string
+		 * Waits until all entries handed to the upload pipeline have been
+		 * processed
+		 * 
+		 * @throws Exception
+		 *             the failure of an entry
+		 */
+		private final void awaitFiles() throws Exception {
+			uploads.await();
+		}
+
+		/**
+		 * Reads a trimmed string. The size of the field is checked against the
+		 * decoding limits before the content is decoded. The content is decoded
+		 * using the per thread {@link TextDecoder} to avoid the allocation of
+		 * a decoder and intermediate buffers per field.
 		 * 
 		 * @return the string
 		 * @throws IOException
+		 * @throws FileUploadException
+		 *             if the field exceeds the limits
 		 */
-		private final String readString() throws IOException {
+		private final String readString() throws IOException,
+				FileUploadException {
+			// check the limits before decoding the content
+			if (!budget.consume(currentEntry.getSize())) {
+				throw new FileUploadException("Field ["
+						+ currentEntry.getFieldName()
+						+ "] exceeds the size limits.");
+			}
+			// decodes the content
+			if (currentEntry.isInMemory()) {
+				return TextDecoder.decode(currentEntry.get(), charset);
+			}
 			// decodes the stream
-			return currentEntry.getString(charset);
+			final InputStream in = currentEntry.getInputStream();
+			try {
+				return TextDecoder.decode(in, charset);
+			} finally {
+				in.close();
+			}
 		}
 
 		/**
@@ -414,6 +482,56 @@ public class TemplateActions {
 		 */
 		Marshaller getPrivateParameterMarshaller();
 
+		/**
+		 * Size limits for the decoding of form fields
+		 * 
+		 * @return the limits
+		 */
+		DecodingLimits getDecodingLimits();
+
+		/**
+		 * Portlet wide handling of the form upload
+		 * 
+		 * @return the upload manager
+		 */
+		UploadManager getUploadManager();
+
+		/**
+		 * Parallel processing of uploaded files
+		 * 
+		 * @return the pipeline
+		 */
+		UploadPipeline getUploadPipeline();
+
+		/**
+		 * Deduplicating store for uploaded files
+		 * 
+		 * @return the store
+		 */
+		ContentStore getContentStore();
+
+		/**
+		 * Background execution of commits, may be <code>null</code> if
+		 * commits run synchronously
+		 * 
+		 * @return the committer
+		 */
+		AsyncCommitter getAsyncCommitter();
+
+		/**
+		 * Snapshots of the portlet preferences
+		 * 
+		 * @return the cache
+		 */
+		PreferencesCache getPreferencesCache();
+
+		/**
+		 * Detection of duplicate action submissions
+		 * 
+		 * @return the filter
+		 */
+		DuplicateFilter getDuplicateFilter();
+
 		/**
 		 * TODO add dependencies via parameterless getter methods
 		 */
@@ -444,7 +562,7 @@ public class TemplateActions {
 			 * .ActionEntry)
 			 */
 			@Override
-			protected boolean decodeKey(final ActionEntry aEntry)
+			protected void decodeKey(final ActionEntry aEntry)
 					throws Exception {
 				// logging support
 				final String LOG_METHOD = "decodeKey(aEntry)";
@@ -459,17 +577,18 @@ public class TemplateActions {
 					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
 							"Processing action [{0}].", action);
 				}
+				// the action sees the files submitted so far
+				aEntry.awaitFiles();
 				// execute the action if we were able to decode it
-				final boolean bResult = (action != null) ? action
-						.processAction(aEntry) : false;
+				if (action != null) {
+					action.processAction(aEntry);
+				}
 				// reset the entry
 				aEntry.reset();
 				// exit trace
 				if (bIsLogging) {
-					LOGGER.exiting(LOG_CLASS, LOG_METHOD, bResult);
+					LOGGER.exiting(LOG_CLASS, LOG_METHOD);
 				}
-				// ok
-				return bResult;
 			}
 		},
 
@@ -491,10 +610,10 @@ public class TemplateActions {
 			 * .ActionEntry)
 			 */
 			@Override
-			protected boolean decodeKey(final ActionEntry aEntry)
+			protected void decodeKey(final ActionEntry aEntry)
 					throws Exception {
 				// decode the sample text
-				return aEntry.readSampleText();
+				aEntry.readSampleText();
 			}
 
 		},
@@ -514,11 +633,10 @@ public class TemplateActions {
 			 * .ActionEntry)
 			 */
 			@Override
-			protected boolean decodeKey(final ActionEntry aEntry)
+			protected void decodeKey(final ActionEntry aEntry)
 					throws Exception {
 				// TODO you might want to throw an exception in this case
 				// nothing special to do
-				return false;
 			}
 
 		};
@@ -528,11 +646,9 @@ public class TemplateActions {
 		 * 
 		 * @param aEntry
 		 *            the action to execute
-		 * @return <code>true</code> if the action modified persistent state,
-		 *         else <code>false</code>
 		 * @throws Exception
 		 */
-		protected abstract boolean decodeKey(final ActionEntry aEntry)
+		protected abstract void decodeKey(final ActionEntry aEntry)
 				throws Exception;
 	}
 
@@ -548,6 +664,18 @@ public class TemplateActions {
 	 */
 	private static final String KEY_CHARSET = "_charset_";
 
+	/**
+	 * Name of the hidden field with the one-time token of the form. The token
+	 * is generated by the client when the form is submitted, so the markup
+	 * does not depend on the user, and it must precede the action fields.
+	 */
+	public static final String KEY_ACTION_TOKEN = "_token_";
+
+	/**
+	 * maximum length of an action token, longer tokens are ignored
+	 */
+	private static final int MAX_TOKEN_LENGTH = 64;
+
 	/**
 	 * Available keys, we maintain a reference to the array, because the
 	 * {@link KEY#values()} method will create a new copy of the array with each
@@ -564,19 +692,6 @@ public class TemplateActions {
 	/** class logger */
 	private static final Logger LOGGER = Logger.getLogger(LOG_CLASS);
 
-	/**
-	 * Computes the logical or of the entries
-	 * 
-	 * @param bLeft
-	 *            the left flag
-	 * @param bRight
-	 *            the right flag
-	 * @return the result
-	 */
-	private static final boolean or(final boolean bLeft, final boolean bRight) {
-		return bLeft || bRight;
-	}
-
 	/**
 	 * logging can be an instance variable, since the lifecycle of the model is
 	 * the request
@@ -584,19 +699,40 @@ public class TemplateActions {
 	private final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
 
 	/**
-	 * List of form data entries
+	 * the registered token of the action, <code>null</code> if the form did
+	 * not carry a token or the token has been released
 	 */
-	private List<FileItem> fileItems;
+	private String actionToken;
 
 	/**
-	 * the basic model
+	 * background execution of commits, may be <code>null</code>
 	 */
-	private final TemplateModel model;
+	private final AsyncCommitter committer;
+
+	/**
+	 * deduplicating store for uploaded files
+	 */
+	private final ContentStore contentStore;
+
+	/**
+	 * detects duplicate submissions
+	 */
+	private final DuplicateFilter duplicateFilter;
+
+	/**
+	 * form data entries of the request
+	 */
+	private UploadManager.Batch batch;
+
+	/**
+	 * size limits for the form fields
+	 */
+	private final DecodingLimits limits;
 
 	/**
-	 * access to the APIs that allow to decode the form upload
+	 * the basic model
 	 */
-	private PortletFileUpload portletFileUpload;
+	private final TemplateModel model;
 
 	/**
 	 * controls how private parameters are marshalled
@@ -604,9 +740,30 @@ public class TemplateActions {
 	private final Marshaller privateMarshaller;
 
 	/**
-	 * current action request
+	 * <code>true</code> if the actions must be repeated in the action phase
+	 */
+	private boolean bActionPhaseRequired;
+
+	/**
+	 * the portlet preferences, modifications are stored once after all
+	 * actions succeeded
+	 */
+	private final CoalescingPreferences preferences;
+
+	/**
+	 * current action or resource request
+	 */
+	private final ClientDataRequest request;
+
+	/**
+	 * portlet wide handling of the form upload
+	 */
+	private final UploadManager uploadManager;
+
+	/**
+	 * parallel processing of uploaded files
 	 */
-	private final ActionRequest request;
+	private final UploadPipeline uploadPipeline;
 
 	/**
 	 * Initializes the model from a portlet request
@@ -614,16 +771,15 @@ public class TemplateActions {
 	 * @param aModel
 	 *            basic model of the request
 	 * @param aRequest
-	 *            the request
+	 *            the action request or the resource request of the AJAX
+	 *            action channel
 	 * @param aResponse
 	 *            the response
-	 * @param aConfig
-	 *            the config
 	 * @param aDeps
 	 *            the dependencies
 	 */
 	public TemplateActions(final TemplateModel aModel,
-			final ActionRequest aRequest, final ActionResponse aResponse,
+			final ClientDataRequest aRequest, final PortletResponse aResponse,
 			final Dependencies aDeps) {
 		// sanity check
 		assert aModel != null;
@@ -639,6 +795,13 @@ public class TemplateActions {
 		model = aModel;
 		request = aRequest;
 		privateMarshaller = aDeps.getPrivateParameterMarshaller();
+		limits = aDeps.getDecodingLimits();
+		uploadManager = aDeps.getUploadManager();
+		uploadPipeline = aDeps.getUploadPipeline();
+		contentStore = aDeps.getContentStore();
+		committer = aDeps.getAsyncCommitter();
+		duplicateFilter = aDeps.getDuplicateFilter();
+		preferences = aDeps.getPreferencesCache().open(aRequest);
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -648,9 +811,18 @@ public class TemplateActions {
 	/**
 	 * Called if all actions have been executed successfully and resulted in
 	 * persistent modifications. In this case these modifications have to be
-	 * saved to the underlying data store.
+	 * saved to the underlying data store. Use the dirty flags of the model to
+	 * write only the fields that actually changed.
+	 * 
+	 * If an {@link AsyncCommitter} is configured, the modifications are saved
+	 * in the background and the model carries the token of the pending
+	 * operation, so the following render can show the progress. If the queue
+	 * of the committer is full, the modifications are saved synchronously.
+	 * 
+	 * @throws Exception
+	 *             if the synchronous commit failed
 	 */
-	public void commit() {
+	public void commit() throws Exception {
 		// logging support
 		final String LOG_METHOD = "commit()";
 		if (bIsLogging) {
@@ -659,17 +831,62 @@ public class TemplateActions {
 		/**
 		 * Executed after the action phase if the action implementation
 		 * indicates that backend state has been changed as a side effect of the
-		 * action.
-		 */
-		/**
-		 * TODO implement your commit operation here
+		 * action. The snapshot outlives the request, this is safe because the
+		 * modified fields have been decoded already.
 		 */
+		final TemplateModel snapshot = model.clone();
+		final String token = (committer != null) ? committer
+				.submit(new Callable<Void>() {
+
+					/*
+					 * (non-Javadoc)
+					 * 
+					 * @see java.util.concurrent.Callable#call()
+					 */
+					@Override
+					public Void call() throws Exception {
+						store(snapshot);
+						return null;
+					}
+				}) : null;
+		// track the background commit or fall back to a synchronous one
+		if (token != null) {
+			model.setPendingCommit(token);
+		} else {
+			try {
+				store(snapshot);
+			} catch (final Exception ex) {
+				// the action may be submitted again
+				releaseToken();
+				throw ex;
+			}
+		}
 		// exit trace
 		if (bIsLogging) {
-			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD, token);
 		}
 	}
 
+	/**
+	 * Writes the modified persistent fields of the model to the underlying
+	 * data store. This may be called on a background thread after the request
+	 * has ended, so it must only access the modified fields of the model and
+	 * no request scoped objects.
+	 * 
+	 * @param aModel
+	 *            snapshot of the model
+	 * 
+	 * @throws Exception
+	 */
+	private static final void store(final TemplateModel aModel)
+			throws Exception {
+		/**
+		 * TODO implement your commit operation here. Only write the fields
+		 * that are marked as modified, e.g. check
+		 * aModel.isSampleTextDirty() before storing the sample text.
+		 */
+	}
+
 	/**
 	 * Performs cleanup of the model resources at the end of the request
 	 */
@@ -679,9 +896,11 @@ public class TemplateActions {
 		if (bIsLogging) {
 			LOGGER.entering(LOG_CLASS, LOG_METHOD);
 		}
-		// reset the data
-		portletFileUpload = null;
-		fileItems = null;
+		// release the form data, this also removes temporary files
+		if (batch != null) {
+			uploadManager.release(batch);
+			batch = null;
+		}
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -689,58 +908,145 @@ public class TemplateActions {
 	}
 
 	/**
-	 * Returns the list of items from the multipart request
+	 * Checks if the actions modified state that can only be stored during the
+	 * action phase, e.g. the portlet preferences, while they were processed in
+	 * another phase. In this case nothing has been committed and the form must
+	 * be submitted as a regular action.
+	 * 
+	 * @return <code>true</code> if the actions must be repeated as an action
+	 */
+	public boolean isActionPhaseRequired() {
+		return bActionPhaseRequired;
+	}
+
+	/**
+	 * Starts to parse the multipart request, the parser enforces the limits
+	 * while streaming
+	 * 
+	 * @throws FileUploadException
+	 */
+	private final void openBatch() throws FileUploadException {
+		if (batch == null) {
+			try {
+				batch = uploadManager.open(request);
+			} catch (final FileUploadException ex) {
+				throw countRejection(ex);
+			}
+		}
+	}
+
+	/**
+	 * Parses the next item from the multipart request
 	 * 
-	 * @return the list of items
+	 * @return the item or <code>null</code> if there are no more items
 	 * 
 	 * @throws FileUploadException
-	 * @throws IOException
 	 */
-	private final List<FileItem> getFileItems() throws FileUploadException,
-			IOException {
+	private final FileItem nextFileItem() throws FileUploadException {
+		// logging support
+		final String LOG_METHOD = "nextFileItem()";
+		// sanity check
+		assert batch != null;
+		// parse the next item
+		final FileItem item;
+		try {
+			item = batch.next();
+		} catch (final FileUploadException ex) {
+			throw countRejection(ex);
+		}
+		// log this
+		if (bIsLogging) {
+			LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+					"Decoding the file item [{0}].", item);
+		}
+		// ok
+		return item;
+	}
+
+	/**
+	 * Counts a request or a form field that exceeded the limits
+	 * 
+	 * @param aException
+	 *            the failure of the parser
+	 * @return the failure
+	 */
+	private final FileUploadException countRejection(
+			final FileUploadException aException) {
+		if (aException instanceof FileSizeLimitExceededException) {
+			// files have their own limit
+			final FileSizeLimitExceededException ex = (FileSizeLimitExceededException) aException;
+			if (ex.getFileName() == null) {
+				limits.rejectParameter(ex.getActualSize());
+			}
+		} else if (aException instanceof SizeLimitExceededException) {
+			limits.rejectRequest(((SizeLimitExceededException) aException)
+					.getActualSize());
+		}
+		// ok
+		return aException;
+	}
+
+	/**
+	 * Registers the one-time token of the form, so a duplicate submission of
+	 * the same form (e.g. a double click or the fallback of the AJAX action
+	 * channel) is only executed once. Forms without a valid token are always
+	 * executed.
+	 * 
+	 * @param aToken
+	 *            the token, may be empty
+	 * @return <code>true</code> if the actions should be executed,
+	 *         <code>false</code> for a duplicate
+	 */
+	private final boolean registerToken(final String aToken) {
 		// logging support
-		final String LOG_METHOD = "getFileItems()";
-		if (fileItems == null) {
-			// decode the list
-			fileItems = getPortletFileUpload().parseRequest(request);
+		final String LOG_METHOD = "registerToken(aToken)";
+		// only the first token counts
+		if ((actionToken != null) || (aToken.length() == 0)
+				|| (aToken.length() > MAX_TOKEN_LENGTH)) {
 			// log this
 			if (bIsLogging) {
 				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
-						"Decoding the file items [{0}].", fileItems);
+						"Ignoring the token [{0}].", aToken);
 			}
+			return true;
 		}
-		// returns the items
-		return fileItems;
+		// suppress duplicate submissions of the same form
+		if (!duplicateFilter.register(aToken)) {
+			// log this
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Suppressing the duplicate action [{0}].", aToken);
+			}
+			return false;
+		}
+		// the token is released again if the action fails
+		actionToken = aToken;
+		return true;
 	}
 
 	/**
-	 * Returns access to the form data APIs
-	 * 
-	 * @return the the APIs
-	 * @throws IOException
+	 * Releases the token of a failed action, so a resubmission of the same
+	 * action URL is executed instead of being suppressed as a duplicate
 	 */
-	private final PortletFileUpload getPortletFileUpload() throws IOException {
+	private final void releaseToken() {
 		// logging support
-		final String LOG_METHOD = "getPortletFileUpload()";
-		// access the data stream
-		if (portletFileUpload == null) {
-			// file handling
-			final FileItemFactory itemFactory = new DiskFileItemFactory();
-			// fetch the stream
-			portletFileUpload = new PortletFileUpload(itemFactory);
+		final String LOG_METHOD = "releaseToken()";
+		if (actionToken != null) {
+			duplicateFilter.unregister(actionToken);
 			// log this
 			if (bIsLogging) {
 				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
-						"Accessing the input stream ...");
+						"Released the token [{0}] of the failed action.",
+						actionToken);
 			}
+			actionToken = null;
 		}
-		// ok
-		return portletFileUpload;
 	}
 
 	/**
 	 * Execute the actions. This is the main entry point that is called from
-	 * {@link TemplatePortlet#doDispatch(ActionRequest, ActionResponse)}. The
+	 * the action phase and from the AJAX action channel of the
+	 * {@link TemplatePortlet}. The
 	 * implementation interprets the form input stream sequentially. For each
 	 * input it looks up the {@link KEY} based on the name of the input field
 	 * and executes the registered callback per key. If the key represents data
@@ -748,7 +1054,8 @@ public class TemplateActions {
 	 * represents an action, the action is executed for data assembled so far.
 	 * 
 	 * @return <code>true</code> if the action resulted in a persistent
-	 *         modification, else <code>false</code>
+	 *         modification, else <code>false</code>. This is derived from the
+	 *         dirty flags of the model, not from the individual handlers.
 	 * 
 	 * @throws Exception
 	 */
@@ -758,40 +1065,69 @@ public class TemplateActions {
 		if (bIsLogging) {
 			LOGGER.entering(LOG_CLASS, LOG_METHOD);
 		}
-		// check if the action has been executed
-		boolean bResult = false;
-		// decode the action
-		final ActionEntry actionEntry = new ActionEntry();
+		// the token of the form is registered while decoding
+		boolean bSucceeded = false;
 		try {
-			// process each action entry
-			while (actionEntry.nextEntry()) {
-				// decode the key
-				final KEY key = actionEntry.getKey();
-				// log this
-				if (bIsLogging) {
-					LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
-							"Decoding key [{0}].", key);
-				}
-				// the event loop
-				if (key != null) {
-					// handle the key and aggregate the result
-					bResult = or(key.decodeKey(actionEntry), bResult);
-				} else {
+			// decode the action
+			final ActionEntry actionEntry = new ActionEntry();
+			try {
+				// process each action entry
+				while (actionEntry.nextEntry()) {
+					// decode the key
+					final KEY key = actionEntry.getKey();
 					// log this
 					if (bIsLogging) {
 						LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
-								"Ignoring the current entry, because the key could not be decoded.");
+								"Decoding key [{0}].", key);
+					}
+					// the event loop
+					if (key != null) {
+						// handle the key, the model tracks the modifications
+						key.decodeKey(actionEntry);
+					} else {
+						// log this
+						if (bIsLogging) {
+							LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+									"Ignoring the current entry, because the key could not be decoded.");
+						}
 					}
 				}
+				// wait for files submitted after the last action
+				actionEntry.awaitFiles();
+				// a duplicate submission does not modify anything
+				if (actionEntry.bDuplicate) {
+					// nothing to do
+				} else if (preferences.isModified()
+						&& !preferences.isStorable()) {
+					/**
+					 * Preferences can only be stored during an action, the
+					 * client repeats the form as a regular action. Nothing is
+					 * committed and the token is released, so the repeated
+					 * form is not suppressed as a duplicate.
+					 */
+					bActionPhaseRequired = true;
+					releaseToken();
+				} else {
+					/**
+					 * Update the base model with the changes during the action
+					 */
+					actionEntry.commit();
+					// store the modified preferences once for all actions
+					preferences.flush();
+				}
+			} finally {
+				// cleanup on the entry
+				actionEntry.dispose();
 			}
-			/**
-			 * Update the base model with the changes during the action
-			 */
-			actionEntry.commit();
+			bSucceeded = true;
 		} finally {
-			// cleanup on the entry
-			actionEntry.dispose();
+			// a failed action may be submitted again
+			if (!bSucceeded) {
+				releaseToken();
+			}
 		}
+		// check if persistent data changed
+		final boolean bResult = model.isPersistentDirty();
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD, bResult);
@@ -16,16 +16,25 @@
 package com.ibm.portal.samples.mvc.model;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.portlet.BaseURL;
 import javax.portlet.PortletConfig;
 import javax.portlet.PortletException;
 import javax.portlet.PortletRequest;
 import javax.portlet.PortletResponse;
-import javax.portlet.PortletURL;
 import javax.portlet.StateAwareResponse;
 
+import com.ibm.portal.samples.common.AsyncCommitter;
+import com.ibm.portal.samples.common.AsyncFetcher;
+import com.ibm.portal.samples.common.Backend;
+import com.ibm.portal.samples.common.CacheService;
+import com.ibm.portal.samples.common.DecodingLimits;
 import com.ibm.portal.samples.common.Marshaller;
 import com.ibm.portal.samples.mvc.controller.TemplateController;
 
@@ -40,6 +49,9 @@ import com.ibm.portal.samples.mvc.controller.TemplateController;
  * <li>It can be cloned efficiently, because for every URLs, we will clone the
  * model, update the clone so it represents the desired state represented by the
  * URL and then this state will be encoded into the URL.</li>
+ * <li>It tracks which fields have been modified since the model has been
+ * decoded, so actions can tell if the navigational state or persistent data
+ * changed at all.</li>
  * </ul>
  * 
  * @author cleue
@@ -58,6 +70,36 @@ public class TemplateModel implements Cloneable {
 		 */
 		Marshaller getPrivateParameterMarshaller();
 
+		/**
+		 * Size limits for the decoding of render parameters
+		 * 
+		 * @return the limits
+		 */
+		DecodingLimits getDecodingLimits();
+
+		/**
+		 * Background execution of commits, may be <code>null</code> if
+		 * commits run synchronously
+		 * 
+		 * @return the committer
+		 */
+		AsyncCommitter getAsyncCommitter();
+
+		/**
+		 * Named caches for backend data, configured via the init parameters
+		 * of the portlet
+		 * 
+		 * @return the cache service
+		 */
+		CacheService getCacheService();
+
+		/**
+		 * The services that provide the data of the portlet
+		 * 
+		 * @return the backend, <code>null</code> if none is configured
+		 */
+		Backend getBackend();
+
 		/**
 		 * TODO add dependencies via parameterless getter methods
 		 */
@@ -69,6 +111,10 @@ public class TemplateModel implements Cloneable {
 	 * provide higher level modifying operations. The {@link TemplateController}
 	 * contains methods to represent the modifiers by URLs.
 	 * 
+	 * Each parameter declares if it represents persistent data. Modifications
+	 * of persistent parameters cause the
+	 * {@link TemplateActions#commit()} method to be called after the action.
+	 * 
 	 * @author cleue
 	 * 
 	 */
@@ -84,17 +130,51 @@ public class TemplateModel implements Cloneable {
 		 * @see TemplateModel#decSampleInt()
 		 */
 
-		SAMPLE_INT,
+		SAMPLE_INT(false),
 
 		/**
 		 * Sample text that can be entered via a form input field.
 		 * 
+		 * TODO mark parameters as persistent if they are backed by the backend
+		 * 
 		 * @see TemplateModel#getSampleText()
 		 * @see TemplateModel#setSampleText(String)
 		 */
-		SAMPLE_TEXT
+		SAMPLE_TEXT(false),
+
+		/**
+		 * Token of a commit that has been started by the previous action and
+		 * runs in the background.
+		 * 
+		 * @see TemplateModel#getPendingCommit()
+		 * @see TemplateModel#getCommitStatus()
+		 */
+		PENDING_COMMIT(false);
+
+		/**
+		 * <code>true</code> if the parameter represents persistent data
+		 */
+		private final boolean bPersistent;
+
+		/**
+		 * Initializes the parameter
+		 * 
+		 * @param aPersistent
+		 *            <code>true</code> if the parameter represents persistent
+		 *            data, else <code>false</code>
+		 */
+		private PARAMS(final boolean aPersistent) {
+			bPersistent = aPersistent;
+		}
 	}
 
+	/**
+	 * Available parameters, we maintain a reference to the array, because the
+	 * {@link PARAMS#values()} method will create a new copy of the array with
+	 * each invocation.
+	 */
+	private static final PARAMS[] ALL_PARAMS = PARAMS.values();
+
 	/**
 	 * default value for the sample integer
 	 * 
@@ -109,6 +189,11 @@ public class TemplateModel implements Cloneable {
 	 */
 	private static final String DEFAULT_SAMPLE_TEXT = "sample";
 
+	/**
+	 * key of the fetch for the status of the pending commit
+	 */
+	private static final String FETCH_COMMIT_STATUS = "commitStatus";
+
 	/** class name for the logger */
 	private static final String LOG_CLASS = TemplateModel.class.getName();
 
@@ -136,11 +221,44 @@ public class TemplateModel implements Cloneable {
 	 */
 	private Boolean bSampleText;
 
+	/**
+	 * Check if we have decoded the pending commit, <code>null</code> means
+	 * that the token has not been decoded, yet.
+	 */
+	private Boolean bPendingCommit;
+
+	/**
+	 * background execution of commits, may be <code>null</code>
+	 */
+	private final AsyncCommitter committer;
+
+	/**
+	 * the backend calls of the current render, may be <code>null</code>
+	 */
+	private AsyncFetcher.Session fetches;
+
+	/**
+	 * The set of parameters that have been modified since the model has been
+	 * decoded. Lazy decoding of a parameter does not count as a modification.
+	 */
+	private final EnumSet<PARAMS> dirty = EnumSet.noneOf(PARAMS.class);
+
+	/**
+	 * tracks the size of the render parameters decoded for this request,
+	 * shared with the clones of the model
+	 */
+	private final DecodingLimits.Budget budget;
+
 	/**
 	 * 
 	 */
 	private final PortletRequest request;
 
+	/**
+	 * token of the commit running in the background
+	 */
+	private String pendingCommit;
+
 	/**
 	 * sample navigational state
 	 */
@@ -182,6 +300,8 @@ public class TemplateModel implements Cloneable {
 		// TODO copy dependencies from the interface into fields
 		request = aRequest;
 		privateMarshaller = aDeps.getPrivateParameterMarshaller();
+		budget = aDeps.getDecodingLimits().newBudget();
+		committer = aDeps.getAsyncCommitter();
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -200,6 +320,8 @@ public class TemplateModel implements Cloneable {
 		 */
 		request = aModel.request;
 		privateMarshaller = aModel.privateMarshaller;
+		budget = aModel.budget;
+		committer = aModel.committer;
 		/**
 		 * copies the resettable portion of the private data. Do not call the
 		 * copy method because it might have been overridden by a subclass.
@@ -263,6 +385,53 @@ public class TemplateModel implements Cloneable {
 		}
 	}
 
+	/**
+	 * Starts the backend calls required to render the model, so they can run
+	 * in parallel to the rendering of other portlets. Fetches that have
+	 * already been started in the session, e.g. during the header phase, are
+	 * not started again. The getters of the model then wait for the results
+	 * until the deadline of the session.
+	 * 
+	 * TODO add the fetches of your backend data, use
+	 * {@link AsyncFetcher.Session#fetch(String, com.ibm.portal.samples.common.DataCache, Object, com.ibm.portal.samples.common.DataCache.Loader)}
+	 * for cached data, so a slow backend is answered with the last good value
+	 * 
+	 * @param aFetches
+	 *            the session
+	 */
+	public void startFetches(final AsyncFetcher.Session aFetches) {
+		// sanity check
+		assert aFetches != null;
+		// logging support
+		final String LOG_METHOD = "startFetches(aFetches)";
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD);
+		}
+		// remember the session for the getters
+		fetches = aFetches;
+		// the status of the pending commit, do not access the request
+		final String token = getPendingCommit();
+		if ((token != null) && (committer != null)) {
+			aFetches.fetch(FETCH_COMMIT_STATUS,
+					new Callable<AsyncCommitter.STATUS>() {
+
+						/*
+						 * (non-Javadoc)
+						 * 
+						 * @see java.util.concurrent.Callable#call()
+						 */
+						@Override
+						public AsyncCommitter.STATUS call() {
+							return committer.getStatus(token);
+						}
+					});
+		}
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		}
+	}
+
 	/**
 	 * Decrement the sample integer
 	 */
@@ -280,8 +449,9 @@ public class TemplateModel implements Cloneable {
 		if (bIsLogging) {
 			LOGGER.entering(LOG_CLASS, LOG_METHOD);
 		}
-		// reset the data
-		internalClear();
+		// reset the data, without decoding the parameters that were not used
+		internalReset();
+		fetches = null;
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -301,7 +471,7 @@ public class TemplateModel implements Cloneable {
 	 * 
 	 * @see TemplateModel#encode(StateAwareResponse)
 	 */
-	public void encode(final PortletURL aURL) throws PortletException,
+	public void encode(final BaseURL aURL) throws PortletException,
 			IOException {
 		// sanity check
 		assert aURL != null;
@@ -315,6 +485,13 @@ public class TemplateModel implements Cloneable {
 				privateMarshaller.marshalString(getSampleText()));
 		aURL.setParameter(privateMarshaller.marshalEnum(PARAMS.SAMPLE_INT),
 				privateMarshaller.marshalInt(getSampleInt()));
+		// the token only exists while a commit is tracked
+		final String token = getPendingCommit();
+		if (token != null) {
+			aURL.setParameter(
+					privateMarshaller.marshalEnum(PARAMS.PENDING_COMMIT),
+					privateMarshaller.marshalString(token));
+		}
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -324,14 +501,14 @@ public class TemplateModel implements Cloneable {
 	/**
 	 * Encodes the state of the model into a response, typically after the
 	 * action. Note that typically the identical logic has to be implemented in
-	 * the {@link #encode(PortletURL))} method.
+	 * the {@link #encode(BaseURL))} method.
 	 * 
 	 * @param aResponse
 	 *            the response
 	 * @throws PortletException
 	 * @throws IOException
 	 * 
-	 * @see TemplateModel#encode(PortletURL)
+	 * @see TemplateModel#encode(BaseURL)
 	 */
 	public void encode(final StateAwareResponse aResponse)
 			throws PortletException, IOException {
@@ -349,12 +526,114 @@ public class TemplateModel implements Cloneable {
 		aResponse.setRenderParameter(
 				privateMarshaller.marshalEnum(PARAMS.SAMPLE_INT),
 				privateMarshaller.marshalInt(getSampleInt()));
+		// the token only exists while a commit is tracked
+		final String token = getPendingCommit();
+		if (token != null) {
+			aResponse.setRenderParameter(
+					privateMarshaller.marshalEnum(PARAMS.PENDING_COMMIT),
+					privateMarshaller.marshalString(token));
+		}
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
 		}
 	}
 
+	/**
+	 * Passes the navigational state of the request on to the response without
+	 * encoding it again, typically after an action that did not modify the
+	 * model. Only the parameters of the model are passed on, so parameters
+	 * that only belong to the action URL do not end up in the render state.
+	 * 
+	 * @param aResponse
+	 *            the response
+	 */
+	public void encodeUnmodified(final StateAwareResponse aResponse) {
+		// sanity check
+		assert aResponse != null;
+		// copy the encoded parameters of the model
+		final Map<String, String[]> params = request.getPrivateParameterMap();
+		final Map<String, String[]> state = new HashMap<String, String[]>();
+		for (final PARAMS param : ALL_PARAMS) {
+			final String key = privateMarshaller.marshalEnum(param);
+			final String[] values = params.get(key);
+			if (values != null) {
+				state.put(key, values);
+			}
+		}
+		aResponse.setRenderParameters(state);
+	}
+
+	/**
+	 * Reads the raw value of a render parameter. Values that exceed the size
+	 * limits are rejected before they get unmarshalled, so the default value
+	 * is used instead.
+	 * 
+	 * @param aParam
+	 *            the parameter
+	 * @return the value or <code>null</code> if the parameter is missing or
+	 *         has been rejected
+	 */
+	private final String getParameter(final PARAMS aParam) {
+		// logging support
+		final String LOG_METHOD = "getParameter(aParam)";
+		// the raw value
+		final String token = request.getParameter(privateMarshaller
+				.marshalEnum(aParam));
+		// check the limits, clones share the budget but are charged only once
+		if ((token != null) && !budget.consume(aParam, token)) {
+			// log this
+			if (bIsLogging) {
+				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
+						"Rejected parameter [{0}].", aParam);
+			}
+			return null;
+		}
+		// ok
+		return token;
+	}
+
+	/**
+	 * Returns the status of the commit that has been started in the
+	 * background by the previous action
+	 * 
+	 * @return the status or <code>null</code> if there is no such commit
+	 */
+	public AsyncCommitter.STATUS getCommitStatus() {
+		// check for a commit
+		final String token = getPendingCommit();
+		if (token == null) {
+			return null;
+		}
+		if (committer == null) {
+			return AsyncCommitter.STATUS.UNKNOWN;
+		}
+		// the commit is still considered pending if the lookup is too slow
+		if (fetches != null) {
+			return fetches.get(FETCH_COMMIT_STATUS,
+					AsyncCommitter.STATUS.PENDING);
+		}
+		// lookup the status
+		return committer.getStatus(token);
+	}
+
+	/**
+	 * Getter for the token of the commit running in the background
+	 * 
+	 * @return the token or <code>null</code>
+	 */
+	public String getPendingCommit() {
+		// check if we have already decoded the parameter
+		if (bPendingCommit == null) {
+			// decodes the token, this is not a modification
+			pendingCommit = privateMarshaller.unmarshalString(
+					getParameter(PARAMS.PENDING_COMMIT), null);
+			bPendingCommit = Boolean.TRUE;
+		}
+		// ok
+		return pendingCommit;
+	}
+
 	/**
 	 * Getter for the sample integer
 	 * 
@@ -365,11 +644,9 @@ public class TemplateModel implements Cloneable {
 		final String LOG_METHOD = "getSampleInt()";
 		// check if we have already decoded the parameter
 		if (bSampleInt == null) {
-			// decodes the int
-			setSampleInt(privateMarshaller.unmarshalInt(request
-					.getParameter(privateMarshaller
-							.marshalEnum(PARAMS.SAMPLE_INT)),
-					DEFAULT_SAMPLE_INT));
+			// decodes the int, this is not a modification
+			internalSetSampleInt(privateMarshaller.unmarshalInt(
+					getParameter(PARAMS.SAMPLE_INT), DEFAULT_SAMPLE_INT));
 			// log this
 			if (bIsLogging) {
 				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
@@ -390,11 +667,9 @@ public class TemplateModel implements Cloneable {
 		final String LOG_METHOD = "getSampleText()";
 		// check if we have already decoded the parameter
 		if (bSampleText == null) {
-			// decodes the text
-			setSampleText(privateMarshaller.unmarshalString(request
-					.getParameter(privateMarshaller
-							.marshalEnum(PARAMS.SAMPLE_TEXT)),
-					DEFAULT_SAMPLE_TEXT));
+			// decodes the text, this is not a modification
+			internalSetSampleText(privateMarshaller.unmarshalString(
+					getParameter(PARAMS.SAMPLE_TEXT), DEFAULT_SAMPLE_TEXT));
 			// log this
 			if (bIsLogging) {
 				LOGGER.logp(LOG_LEVEL, LOG_CLASS, LOG_METHOD,
@@ -414,12 +689,68 @@ public class TemplateModel implements Cloneable {
 	}
 
 	/**
-	 * Clears only our private data
+	 * Clears only our private data. The fields are reset directly, so
+	 * parameters that have not been decoded, yet, are not decoded just to
+	 * compare them with the defaults. Such a parameter counts as modified if
+	 * the request carries a value for it.
 	 */
 	private final void internalClear() {
 		// TODO reset your custom data here
-		setSampleInt(DEFAULT_SAMPLE_INT);
-		setSampleText(DEFAULT_SAMPLE_TEXT);
+		if (isModifiedByReset(bSampleInt, PARAMS.SAMPLE_INT,
+				sampleInt != DEFAULT_SAMPLE_INT)) {
+			dirty.add(PARAMS.SAMPLE_INT);
+		}
+		if (isModifiedByReset(bSampleText, PARAMS.SAMPLE_TEXT,
+				!DEFAULT_SAMPLE_TEXT.equals(sampleText))) {
+			dirty.add(PARAMS.SAMPLE_TEXT);
+		}
+		if (isModifiedByReset(bPendingCommit, PARAMS.PENDING_COMMIT,
+				pendingCommit != null)) {
+			dirty.add(PARAMS.PENDING_COMMIT);
+		}
+		// reset the fields
+		internalSetSampleInt(DEFAULT_SAMPLE_INT);
+		internalSetSampleText(DEFAULT_SAMPLE_TEXT);
+		pendingCommit = null;
+		bPendingCommit = Boolean.TRUE;
+	}
+
+	/**
+	 * Resets our private data to the undecoded state, without tracking
+	 * modifications, e.g. at the end of the request
+	 */
+	private final void internalReset() {
+		// TODO reset your custom data here
+		bSampleInt = null;
+		sampleInt = 0;
+		bSampleText = null;
+		sampleText = null;
+		bPendingCommit = null;
+		pendingCommit = null;
+		dirty.clear();
+	}
+
+	/**
+	 * Checks if resetting a parameter to its default modifies it
+	 * 
+	 * @param bDecoded
+	 *            the decoding flag of the parameter, <code>null</code> if the
+	 *            parameter has not been decoded, yet
+	 * @param aParam
+	 *            the parameter
+	 * @param bDiffers
+	 *            <code>true</code> if the decoded value differs from the
+	 *            default
+	 * @return <code>true</code> if the reset is a modification
+	 */
+	private final boolean isModifiedByReset(final Boolean bDecoded,
+			final PARAMS aParam, final boolean bDiffers) {
+		// compare the decoded value
+		if (bDecoded != null) {
+			return bDiffers;
+		}
+		// check the raw value only, a missing parameter decodes to the default
+		return request.getParameter(privateMarshaller.marshalEnum(aParam)) != null;
 	}
 
 	/**
@@ -436,6 +767,139 @@ public class TemplateModel implements Cloneable {
 		sampleInt = aModel.sampleInt;
 		bSampleText = aModel.bSampleText;
 		sampleText = aModel.sampleText;
+		bPendingCommit = aModel.bPendingCommit;
+		pendingCommit = aModel.pendingCommit;
+		// copy the modification state
+		dirty.clear();
+		dirty.addAll(aModel.dirty);
+	}
+
+	/**
+	 * Assigns the sample integer without tracking the modification
+	 * 
+	 * @param aSampleInt
+	 *            the new sample
+	 */
+	private final void internalSetSampleInt(final int aSampleInt) {
+		// set the int
+		sampleInt = aSampleInt;
+		// update the flag
+		bSampleInt = (sampleInt != 0);
+	}
+
+	/**
+	 * Assigns the sample text without tracking the modification
+	 * 
+	 * @param aSampleText
+	 *            new text
+	 */
+	private final void internalSetSampleText(final String aSampleText) {
+		// set the text
+		sampleText = aSampleText;
+		// update the flag
+		bSampleText = (sampleText != null);
+	}
+
+	/**
+	 * Checks if any parameter of the model has been modified since it has been
+	 * decoded. If not, the navigational state does not need to be re-encoded.
+	 * 
+	 * @return <code>true</code> if the model has been modified, else
+	 *         <code>false</code>
+	 */
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+
+	/**
+	 * Checks if any parameter that represents persistent data has been
+	 * modified since the model has been decoded.
+	 * 
+	 * @return <code>true</code> if persistent data has been modified, else
+	 *         <code>false</code>
+	 */
+	public boolean isPersistentDirty() {
+		// check the modified parameters
+		for (final PARAMS param : dirty) {
+			if (param.bPersistent) {
+				return true;
+			}
+		}
+		// nothing persistent changed
+		return false;
+	}
+
+	/**
+	 * Checks if the sample integer has been modified
+	 * 
+	 * TODO replace by custom state
+	 * 
+	 * @return <code>true</code> if the integer has been modified, else
+	 *         <code>false</code>
+	 */
+	public boolean isSampleIntDirty() {
+		return dirty.contains(PARAMS.SAMPLE_INT);
+	}
+
+	/**
+	 * Checks if the sample text has been modified
+	 * 
+	 * TODO replace by custom state
+	 * 
+	 * @return <code>true</code> if the text has been modified, else
+	 *         <code>false</code>
+	 */
+	public boolean isSampleTextDirty() {
+		return dirty.contains(PARAMS.SAMPLE_TEXT);
+	}
+
+	/**
+	 * Copies only the modified fields of the given model over to this model.
+	 * Fields that actually change their value are marked as modified in this
+	 * model.
+	 * 
+	 * @param aModel
+	 *            model to merge
+	 */
+	public final void merge(final TemplateModel aModel) {
+		// sanity check
+		assert aModel != null;
+		// logging support
+		final String LOG_METHOD = "merge(aModel)";
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD, aModel.dirty);
+		}
+		// TODO merge the custom data here
+		if (aModel.isSampleIntDirty()) {
+			setSampleInt(aModel.sampleInt);
+		}
+		if (aModel.isSampleTextDirty()) {
+			setSampleText(aModel.sampleText);
+		}
+		if (aModel.dirty.contains(PARAMS.PENDING_COMMIT)) {
+			setPendingCommit(aModel.pendingCommit);
+		}
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD, dirty);
+		}
+	}
+
+	/**
+	 * Assigns the token of the commit running in the background
+	 * 
+	 * @param aToken
+	 *            the token or <code>null</code> to stop tracking the commit
+	 */
+	public void setPendingCommit(final String aToken) {
+		// track the modification, compare with the decoded value
+		final String current = getPendingCommit();
+		if ((current != null) ? !current.equals(aToken) : (aToken != null)) {
+			dirty.add(PARAMS.PENDING_COMMIT);
+		}
+		// set the token
+		pendingCommit = aToken;
+		bPendingCommit = Boolean.TRUE;
 	}
 
 	/**
@@ -450,10 +914,12 @@ public class TemplateModel implements Cloneable {
 		if (bIsLogging) {
 			LOGGER.entering(LOG_CLASS, LOG_METHOD, aSampleInt);
 		}
+		// track the modification, compare with the decoded value
+		if (getSampleInt() != aSampleInt) {
+			dirty.add(PARAMS.SAMPLE_INT);
+		}
 		// set the int
-		sampleInt = aSampleInt;
-		// update the flag
-		bSampleInt = (sampleInt != 0);
+		internalSetSampleInt(aSampleInt);
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -472,10 +938,14 @@ public class TemplateModel implements Cloneable {
 		if (bIsLogging) {
 			LOGGER.entering(LOG_CLASS, LOG_METHOD, aSampleText);
 		}
+		// track the modification, compare with the decoded value
+		final String current = getSampleText();
+		if ((current != null) ? !current.equals(aSampleText)
+				: (aSampleText != null)) {
+			dirty.add(PARAMS.SAMPLE_TEXT);
+		}
 		// set the text
-		sampleText = aSampleText;
-		// update the flag
-		bSampleText = (sampleText != null);
+		internalSetSampleText(aSampleText);
 		// exit trace
 		if (bIsLogging) {
 			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
@@ -18,11 +18,13 @@ package com.ibm.portal.samples.mvc.view;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.portlet.MimeResponse;
 import javax.portlet.PortletConfig;
-import javax.portlet.RenderRequest;
-import javax.portlet.RenderResponse;
+import javax.portlet.PortletRequest;
 
 import com.ibm.portal.samples.common.AbstractView;
+import com.ibm.portal.samples.common.CoalescingPreferences;
+import com.ibm.portal.samples.common.PreferencesCache;
 
 /**
  * Implementation of the view bean. The bean has accessors that can be used by
@@ -42,6 +44,14 @@ public class TemplateView extends AbstractView {
 	 * 
 	 */
 	public interface Dependencies extends AbstractView.Dependencies {
+
+		/**
+		 * Snapshots of the portlet preferences
+		 * 
+		 * @return the cache
+		 */
+		PreferencesCache getPreferencesCache();
+
 		/**
 		 * TODO add dependencies via parameterless getter methods
 		 */
@@ -61,20 +71,26 @@ public class TemplateView extends AbstractView {
 	 */
 	private final boolean bIsLogging = LOGGER.isLoggable(LOG_LEVEL);
 
+	/**
+	 * read access to the portlet preferences
+	 */
+	private final CoalescingPreferences preferences;
+
 	/**
 	 * Initialize the view bean
 	 * 
 	 * @param aConfig
 	 *            configuration of the portlet
 	 * @param aRequest
-	 *            the request
+	 *            the render request or the resource request of the AJAX
+	 *            action channel
 	 * @param aResponse
 	 *            the response
 	 * @param aDeps
 	 *            the dependencies
 	 */
 	public TemplateView(final PortletConfig aConfig,
-			final RenderRequest aRequest, final RenderResponse aResponse,
+			final PortletRequest aRequest, final MimeResponse aResponse,
 			final Dependencies aDeps) {
 		// default
 		super(aConfig, aRequest, aResponse, aDeps);
@@ -83,6 +99,31 @@ public class TemplateView extends AbstractView {
 		assert aRequest != null;
 		assert aResponse != null;
 		assert aDeps != null;
+		// the preferences are read from a snapshot
+		preferences = aDeps.getPreferencesCache().open(aRequest);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ibm.portal.samples.common.AbstractView#contributeHeadElements()
+	 */
+	@Override
+	public void contributeHeadElements() {
+		// logging support
+		final String LOG_METHOD = "contributeHeadElements()";
+		if (bIsLogging) {
+			LOGGER.entering(LOG_CLASS, LOG_METHOD);
+		}
+		// the client side of the AJAX action channel
+		addScript("/js/template.js");
+		// referenced by the markup
+		addPreload("/images/blank.png", "image");
+		// TODO add the style sheets and scripts of your view
+		// exit trace
+		if (bIsLogging) {
+			LOGGER.exiting(LOG_CLASS, LOG_METHOD);
+		}
 	}
 
 	/**
@@ -113,6 +154,56 @@ public class TemplateView extends AbstractView {
 		return getMessage("form.button.cancel");
 	}
 
+	/**
+	 * Resource bundle access for the message shown after a background commit
+	 * completed.
+	 * 
+	 * @return the resource bundle entry
+	 */
+	public String getCommitDoneMessage() {
+		return getMessage("commit.done");
+	}
+
+	/**
+	 * Resource bundle access for the message shown if a background commit
+	 * failed.
+	 * 
+	 * @return the resource bundle entry
+	 */
+	public String getCommitFailedMessage() {
+		return getMessage("commit.failed");
+	}
+
+	/**
+	 * Resource bundle access for the message shown while a background commit
+	 * is pending.
+	 * 
+	 * @return the resource bundle entry
+	 */
+	public String getCommitPendingMessage() {
+		return getMessage("commit.pending");
+	}
+
+	/**
+	 * Resource bundle access for the text of the link that refreshes the
+	 * status of a background commit.
+	 * 
+	 * @return the resource bundle entry
+	 */
+	public String getCommitRefreshTitle() {
+		return getMessage("commit.refresh.title");
+	}
+
+	/**
+	 * Returns the portlet preferences, the values are read from a snapshot
+	 * that is shared across requests
+	 * 
+	 * @return the preferences
+	 */
+	public CoalescingPreferences getPreferences() {
+		return preferences;
+	}
+
 	/**
 	 * Resource bundle access for the tooltip on the decrement link.
 	 * 
@@ -4,7 +4,32 @@
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core"%>
 <%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions"%>
 
-<div class="lotusui30" lang="${view.locale}">
+<%-- the data attributes drive the AJAX action channel, see js/template.js --%>
+<div id="${view.namespace}_root" class="lotusui30" lang="${view.locale}"
+	data-ajax-url="${fn:escapeXml(controller.ajaxActionURL)}">
+
+	<!-- status of a commit that runs in the background -->
+	<c:if test="${not empty model.commitStatus}">
+		<c:choose>
+			<c:when test="${model.commitStatus == 'PENDING'}">
+				<div class="lotusMessage2 lotusInfo" role="status">
+					<c:out value="${view.commitPendingMessage}" />
+					<a href="${fn:escapeXml(controller.refreshURL)}"><c:out
+							value="${view.commitRefreshTitle}" /></a>
+				</div>
+			</c:when>
+			<c:when test="${model.commitStatus == 'DONE'}">
+				<div class="lotusMessage2 lotusSuccess" role="status">
+					<c:out value="${view.commitDoneMessage}" />
+				</div>
+			</c:when>
+			<c:when test="${model.commitStatus == 'FAILED'}">
+				<div class="lotusMessage2 lotusError" role="alert">
+					<c:out value="${view.commitFailedMessage}" />
+				</div>
+			</c:when>
+		</c:choose>
+	</c:if>
 
 	<!-- always render a form using multipart/form-data for best compatibility -->
 	<form id="${view.namespace}_form" class="lotusForm2" method="POST"
@@ -15,6 +40,11 @@
 		<input type="hidden" name="_charset_"
 			value="${view.characterEncoding}" />
 
+		<!-- one-time token of the form, filled in by js/template.js, so the 
+				markup does not depend on the user -->
+		<input type="hidden" name="${controller.keyActionToken}" value=""
+			data-action-token="true" />
+
 		<!-- form header (use a div instead of a header tag if you aren't using 
 				html5) -->
 		<header class="lotusFormTitle">
@@ -83,4 +113,4 @@
 		</div>
 	</div>
 
-</div>
\ No newline at end of file
+</div>
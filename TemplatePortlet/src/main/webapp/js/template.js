@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+/*
+ * Client side of the AJAX action channel. Forms inside of an element with a
+ * "data-ajax-url" attribute are posted to that URL and the element is replaced
+ * by the returned markup. If the request fails for any reason, or the browser
+ * lacks support, the regular form post is used as the fallback, so the result
+ * or the error is reported in the context of the page. The fallback is safe
+ * even if the server received the request: the token of a failed action is
+ * released, so the form post executes it, and the token of an executed action
+ * is kept, so the form post only renders the page. The script is loaded once
+ * per page and serves all instances of the portlet.
+ *
+ * Fields with a "data-action-token" attribute receive a random one-time token
+ * when the form is submitted for the first time. The server executes each
+ * token only once, so a double click or the fallback post of a request that
+ * did reach the server is suppressed. The token is generated here, so the
+ * markup of the portlet does not depend on the user and can be shared.
+ */
+(function(document) {
+	var crypto = window.crypto || window.msCrypto;
+
+	// generates a random token, hex encoded
+	var newToken = function() {
+		var bytes = new Uint8Array(12), token = "", i;
+		crypto.getRandomValues(bytes);
+		for (i = 0; i < bytes.length; i++) {
+			token += (bytes[i] < 16 ? "0" : "") + bytes[i].toString(16);
+		}
+		return token;
+	};
+
+	// assigns the token of the form, the token is kept for resubmissions
+	var assignToken = function(form) {
+		var field = form.querySelector("[data-action-token]");
+		if (field && !field.value) {
+			field.value = newToken();
+		}
+	};
+
+	if (!crypto || !crypto.getRandomValues || !window.Uint8Array) {
+		return;
+	}
+
+	// the token is also required for forms posted without AJAX
+	document.addEventListener("submit", function(evt) {
+		assignToken(evt.target);
+	}, true);
+
+	if (!window.FormData || !window.XMLHttpRequest) {
+		return;
+	}
+
+	// the button that submitted the form, FormData does not include it
+	var submitter = null;
+
+	// locates the element that carries the URL of the channel
+	var findRoot = function(node) {
+		while (node && node.getAttribute) {
+			if (node.getAttribute("data-ajax-url")) {
+				return node;
+			}
+			node = node.parentNode;
+		}
+		return null;
+	};
+
+	document.addEventListener("click", function(evt) {
+		var target = evt.target;
+		submitter = (target && target.form && target.type === "submit") ? target
+				: null;
+	}, true);
+
+	document.addEventListener("submit", function(evt) {
+		var form = evt.target, root = findRoot(form);
+		if (!root || form.getAttribute("data-fallback")) {
+			return;
+		}
+		evt.preventDefault();
+		var button = (submitter && submitter.form === form) ? submitter : null;
+		var data = new FormData(form);
+		if (button && button.name) {
+			data.append(button.name, button.value);
+		}
+		// regular form post
+		var fallback = function() {
+			form.setAttribute("data-fallback", "true");
+			if (button && button.name) {
+				var field = document.createElement("input");
+				field.type = "hidden";
+				field.name = button.name;
+				field.value = button.value;
+				form.appendChild(field);
+			}
+			form.submit();
+		};
+		var xhr = new XMLHttpRequest();
+		xhr.open("POST", root.getAttribute("data-ajax-url"), true);
+		xhr.onreadystatechange = function() {
+			if (xhr.readyState !== 4) {
+				return;
+			}
+			// replace the markup of the portlet
+			var markup = null;
+			if ((xhr.status === 200) && xhr.responseText && root.parentNode) {
+				var holder = document.createElement("div");
+				holder.innerHTML = xhr.responseText;
+				markup = findRoot(holder.querySelector("[data-ajax-url]"));
+			}
+			if (markup) {
+				root.parentNode.replaceChild(markup, root);
+			} else {
+				// e.g. the request never reached the server, the action failed
+				// or requires the action phase (409)
+				root.setAttribute("data-ajax-status", String(xhr.status));
+				fallback();
+			}
+		};
+		xhr.send(data);
+	}, false);
+})(document);
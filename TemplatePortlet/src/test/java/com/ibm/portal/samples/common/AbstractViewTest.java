@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListResourceBundle;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletConfig;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests the contribution of head elements by the {@link AbstractView}
+ * 
+ * @author cleue
+ */
+public class AbstractViewTest {
+
+	/**
+	 * View that contributes a script and a preload hint
+	 */
+	private static final class View extends AbstractView {
+
+		/**
+		 * Initializes the view
+		 * 
+		 * @param aRequest
+		 *            the request
+		 * @param aResponse
+		 *            the response
+		 */
+		private View(final RenderRequest aRequest,
+				final RenderResponse aResponse) {
+			super(CONFIG, aRequest, aResponse, new Dependencies() {
+			});
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.ibm.portal.samples.common.AbstractView#contributeHeadElements()
+		 */
+		@Override
+		public void contributeHeadElements() {
+			addScript("/js/test.js");
+			addPreload("/images/blank.png", "image");
+			// duplicate contributions of the same view
+			addScript("/js/test.js");
+		}
+	}
+
+	/**
+	 * the portlet config, serves an empty bundle
+	 */
+	private static final PortletConfig CONFIG = (PortletConfig) Proxy
+			.newProxyInstance(PortletConfig.class.getClassLoader(),
+					new Class<?>[] { PortletConfig.class },
+					new InvocationHandler() {
+
+						@Override
+						public Object invoke(final Object aProxy,
+								final Method aMethod, final Object[] aArgs) {
+							return new ListResourceBundle() {
+
+								@Override
+								protected Object[][] getContents() {
+									return new Object[0][];
+								}
+							};
+						}
+					});
+
+	/**
+	 * creates the elements
+	 */
+	private Document document;
+
+	/**
+	 * the head elements added to the responses
+	 */
+	private final List<Element> elements = new ArrayList<Element>();
+
+	/**
+	 * Constructs a request with its own attributes
+	 * 
+	 * @return the request
+	 */
+	private static RenderRequest request() {
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		return (RenderRequest) Proxy.newProxyInstance(
+				RenderRequest.class.getClassLoader(),
+				new Class<?>[] { RenderRequest.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						final String name = aMethod.getName();
+						if ("getContextPath".equals(name)) {
+							return "/ctx";
+						}
+						if ("getAttribute".equals(name)) {
+							return attributes.get(aArgs[0]);
+						}
+						if ("setAttribute".equals(name)) {
+							attributes.put((String) aArgs[0], aArgs[1]);
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Constructs a response that records the head elements
+	 * 
+	 * @return the response
+	 */
+	private RenderResponse response() {
+		return (RenderResponse) Proxy.newProxyInstance(
+				RenderResponse.class.getClassLoader(),
+				new Class<?>[] { RenderResponse.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						final String name = aMethod.getName();
+						if ("getLocale".equals(name)) {
+							return Locale.ENGLISH;
+						}
+						if ("createElement".equals(name)) {
+							return document.createElement((String) aArgs[0]);
+						}
+						if ("encodeURL".equals(name)) {
+							return aArgs[0];
+						}
+						if ("addProperty".equals(name)) {
+							assertEquals(MimeResponse.MARKUP_HEAD_ELEMENT,
+									aArgs[0]);
+							elements.add((Element) aArgs[1]);
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Creates the document
+	 * 
+	 * @throws Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.newDocument();
+	}
+
+	/**
+	 * The elements carry stable IDs and the script is added via the loader
+	 */
+	@Test
+	public void testHeadElements() {
+		new View(request(), response()).contributeHeadElements();
+		assertEquals(2, elements.size());
+		final Element script = elements.get(0);
+		assertEquals("script", script.getTagName());
+		assertEquals(
+				"com.ibm.portal.samples.head.script_ctx_js_test.js.loader",
+				script.getAttribute("id"));
+		assertTrue(script.getTextContent().contains(
+				"\"com.ibm.portal.samples.head.script_ctx_js_test.js\""));
+		assertTrue(script.getTextContent().contains("\"/ctx/js/test.js\""));
+		final Element link = elements.get(1);
+		assertEquals("link", link.getTagName());
+		assertEquals("preload", link.getAttribute("rel"));
+		assertEquals("/ctx/images/blank.png", link.getAttribute("href"));
+	}
+
+	/**
+	 * Views of the same request, e.g. of the header and the render phase,
+	 * contribute each element once, views of other requests again
+	 */
+	@Test
+	public void testOncePerRequest() {
+		final RenderRequest request = request();
+		new View(request, response()).contributeHeadElements();
+		new View(request, response()).contributeHeadElements();
+		assertEquals(2, elements.size());
+		new View(request(), response()).contributeHeadElements();
+		assertEquals(4, elements.size());
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link AsyncCommitter}
+ * 
+ * @author cleue
+ */
+public class AsyncCommitterTest {
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * the committer under test, one worker and room for four operations
+	 */
+	private final AsyncCommitter committer = new AsyncCommitter("test", 1, 4,
+			60 * 1000, metrics);
+
+	/**
+	 * Constructs an operation that waits for a latch and then counts its
+	 * execution
+	 * 
+	 * @param aLatch
+	 *            the latch
+	 * @param aCount
+	 *            the counter
+	 * @return the operation
+	 */
+	private static Callable<Object> operation(final CountDownLatch aLatch,
+			final AtomicInteger aCount) {
+		return new Callable<Object>() {
+
+			@Override
+			public Object call() throws Exception {
+				aLatch.await();
+				aCount.incrementAndGet();
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Shutting down waits for the queued commits
+	 */
+	@Test
+	public void testShutdownCompletesQueued() {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicInteger count = new AtomicInteger();
+		final String first = committer.submit(operation(latch, count));
+		final String second = committer.submit(operation(latch, count));
+		assertNotNull(second);
+		assertEquals(AsyncCommitter.STATUS.PENDING, committer.getStatus(first));
+		// release the commits while the shutdown waits
+		new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (final InterruptedException ex) {
+					// ignore
+				}
+				latch.countDown();
+			}
+		}.start();
+		assertTrue(committer.shutdown(10 * 1000));
+		assertEquals(2, count.get());
+		assertEquals(AsyncCommitter.STATUS.DONE, committer.getStatus(first));
+		assertEquals(AsyncCommitter.STATUS.DONE, committer.getStatus(second));
+		assertEquals(0, metrics.get(AsyncCommitter.METRIC_QUEUE_DEPTH));
+	}
+
+	/**
+	 * Commits that do not complete within the timeout are dropped
+	 */
+	@Test
+	public void testShutdownTimeout() {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicInteger count = new AtomicInteger();
+		final String first = committer.submit(operation(latch, count));
+		committer.submit(operation(latch, count));
+		committer.submit(operation(latch, count));
+		assertFalse(committer.shutdown(50));
+		// the running commit has been interrupted, the queued ones dropped
+		assertEquals(0, count.get());
+		assertEquals(0, metrics.get(AsyncCommitter.METRIC_QUEUE_DEPTH));
+		latch.countDown();
+		assertTrue(committer.getStatus(first) != AsyncCommitter.STATUS.DONE);
+	}
+
+	/**
+	 * Operations beyond the queue size are rejected, the caller executes them
+	 * synchronously
+	 */
+	@Test
+	public void testQueueFull() {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicInteger count = new AtomicInteger();
+		try {
+			// one running, four queued
+			for (int i = 0; i < 5; ++i) {
+				assertNotNull(committer.submit(operation(latch, count)));
+			}
+			assertEquals(null, committer.submit(operation(latch, count)));
+			assertEquals(1, metrics.get(AsyncCommitter.METRIC_REJECTED));
+		} finally {
+			latch.countDown();
+			assertTrue(committer.shutdown(10 * 1000));
+		}
+		assertEquals(5, count.get());
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the {@link AsyncFetcher}
+ * 
+ * @author cleue
+ */
+public class AsyncFetcherTest {
+
+	/**
+	 * Fetch that waits for a latch and counts its calls
+	 */
+	private static final class BlockingFetch implements Callable<String> {
+
+		/**
+		 * number of calls
+		 */
+		private final AtomicInteger calls = new AtomicInteger();
+
+		/**
+		 * releases the fetch
+		 */
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		/**
+		 * the result
+		 */
+		private final String value;
+
+		/**
+		 * Initializes the fetch
+		 * 
+		 * @param aValue
+		 *            the result
+		 */
+		private BlockingFetch(final String aValue) {
+			value = aValue;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public String call() throws Exception {
+			calls.incrementAndGet();
+			release.await(10, TimeUnit.SECONDS);
+			return value;
+		}
+	}
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * the workers
+	 */
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+	/**
+	 * Constructs a fetch that returns a value
+	 * 
+	 * @param aValue
+	 *            the value
+	 * @return the fetch
+	 */
+	private static Callable<String> value(final String aValue) {
+		return new Callable<String>() {
+
+			@Override
+			public String call() {
+				return aValue;
+			}
+		};
+	}
+
+	/**
+	 * Constructs a cache whose entries expire after a second and are kept as
+	 * last good value for a minute
+	 * 
+	 * @return the cache
+	 */
+	private DataCache<String, String> cache() {
+		return new DataCache<String, String>("test", DataCache.Spec
+				.parse("maximumSize=100,expireAfterWrite=1000,"
+						+ "staleWhileRevalidate=60000"), null, executor,
+				metrics);
+	}
+
+	/**
+	 * Constructs a loader that runs a fetch
+	 * 
+	 * @param aFetch
+	 *            the fetch
+	 * @return the loader
+	 */
+	private static DataCache.Loader<String, String> loader(
+			final Callable<String> aFetch) {
+		return new DataCache.Loader<String, String>() {
+
+			@Override
+			public String load(final String aKey) throws Exception {
+				return aFetch.call();
+			}
+		};
+	}
+
+	/**
+	 * Stops the workers
+	 */
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Without an executor the fetch runs on the calling thread
+	 */
+	@Test
+	public void testSynchronous() {
+		final AsyncFetcher.Session session = new AsyncFetcher(null, 1000,
+				metrics).open();
+		session.fetch("key", value("value"));
+		assertEquals("value", session.get("key", "default"));
+		assertEquals("default", session.get("missing", "default"));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_STARTED));
+	}
+
+	/**
+	 * A fetch started in the header phase is not started again in the
+	 * markup phase
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEarly() throws Exception {
+		final AsyncFetcher.Session session = new AsyncFetcher(executor, 1000,
+				metrics).open();
+		final BlockingFetch fetch = new BlockingFetch("value");
+		session.fetch("key", fetch);
+		session.fetch("key", fetch);
+		fetch.release.countDown();
+		assertEquals("value", session.get("key", "default"));
+		assertEquals(1, fetch.calls.get());
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_STARTED));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_EARLY));
+	}
+
+	/**
+	 * The markup phase waits at most until the deadline, which is started
+	 * once
+	 */
+	@Test
+	public void testDeadline() {
+		final AsyncFetcher.Session session = new AsyncFetcher(executor, 50,
+				metrics).open();
+		assertEquals(50, session.getRemaining());
+		final BlockingFetch fetch = new BlockingFetch("value");
+		session.fetch("key", fetch);
+		final long start = System.nanoTime();
+		assertEquals("default", session.get("key", "default"));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(40));
+		assertEquals(0, session.getRemaining());
+		// later reads do not wait again
+		final long second = System.nanoTime();
+		assertEquals("default", session.get("key", "default"));
+		assertTrue(System.nanoTime() - second < TimeUnit.MILLISECONDS
+				.toNanos(40));
+		assertEquals(2, metrics.get(AsyncFetcher.METRIC_TIMEOUTS));
+		fetch.release.countDown();
+	}
+
+	/**
+	 * A failed fetch renders the default
+	 */
+	@Test
+	public void testFailure() {
+		final AsyncFetcher.Session session = new AsyncFetcher(null, 1000,
+				metrics).open();
+		session.fetch("key", new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				throw new IOException("backend down");
+			}
+		});
+		assertEquals("default", session.get("key", "default"));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_FAILURES));
+	}
+
+	/**
+	 * A rejected fetch runs on the calling thread
+	 */
+	@Test
+	public void testRejected() {
+		final AsyncFetcher.Session session = new AsyncFetcher(
+				new Executor() {
+
+					@Override
+					public void execute(final Runnable aCommand) {
+						throw new RejectedExecutionException();
+					}
+				}, 1000, metrics).open();
+		session.fetch("key", value("value"));
+		assertEquals("value", session.get("key", "default"));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_SYNCHRONOUS));
+	}
+
+	/**
+	 * Closing the session cancels the fetches that did not start
+	 */
+	@Test
+	public void testClose() {
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		final AsyncFetcher.Session session = new AsyncFetcher(
+				new Executor() {
+
+					@Override
+					public void execute(final Runnable aCommand) {
+						queued.add(aCommand);
+					}
+				}, 1000, metrics).open();
+		final BlockingFetch fetch = new BlockingFetch("value");
+		session.fetch("key", fetch);
+		session.close();
+		assertEquals("default", session.get("key", "default"));
+		// the queued task does not call the fetch
+		assertEquals(1, queued.size());
+		queued.get(0).run();
+		assertEquals(0, fetch.calls.get());
+	}
+
+	/**
+	 * Fresh cache entries are served without a thread
+	 */
+	@Test
+	public void testFreshEntry() {
+		final DataCache<String, String> cache = cache();
+		cache.put("entry", "cached");
+		final AsyncFetcher.Session session = new AsyncFetcher(executor, 1000,
+				metrics).open();
+		final BlockingFetch fetch = new BlockingFetch("value");
+		session.fetch("key", cache, "entry", loader(fetch));
+		assertEquals("cached", session.get("key", "default"));
+		assertEquals(0, fetch.calls.get());
+		assertEquals(0, metrics.get(AsyncFetcher.METRIC_STARTED));
+	}
+
+	/**
+	 * A reload that misses the deadline serves the last good value and
+	 * refreshes the cache in the background, even after the session has
+	 * been closed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStaleOnTimeout() throws Exception {
+		final DataCache<String, String> cache = cache();
+		assertTrue(cache.restore("entry", "old", 995));
+		Thread.sleep(20);
+		final AsyncFetcher.Session session = new AsyncFetcher(executor, 50,
+				metrics).open();
+		final BlockingFetch fetch = new BlockingFetch("new");
+		session.fetch("key", cache, "entry", loader(fetch));
+		assertEquals("old", session.get("key", "default"));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_TIMEOUTS));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_STALE));
+		// the reload completes after the close
+		session.close();
+		fetch.release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals("new", cache.getIfPresent("entry"));
+	}
+
+	/**
+	 * A failed reload serves the last good value, without one the default
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStaleOnFailure() throws Exception {
+		final DataCache<String, String> cache = cache();
+		assertTrue(cache.restore("entry", "old", 995));
+		Thread.sleep(20);
+		final Callable<String> failing = new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				throw new IOException("backend down");
+			}
+		};
+		final AsyncFetcher.Session session = new AsyncFetcher(null, 1000,
+				metrics).open();
+		session.fetch("key", cache, "entry", loader(failing));
+		session.fetch("other", cache, "missing", loader(failing));
+		assertEquals("old", session.get("key", "default"));
+		assertEquals("default", session.get("other", "default"));
+		assertEquals(2, metrics.get(AsyncFetcher.METRIC_FAILURES));
+		assertEquals(1, metrics.get(AsyncFetcher.METRIC_STALE));
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link CacheSnapshot}
+ * 
+ * @author cleue
+ */
+public class CacheSnapshotTest {
+
+	/**
+	 * Runs the refreshes on the calling thread
+	 */
+	private static final Executor SYNCHRONOUS = new Executor() {
+
+		@Override
+		public void execute(final Runnable aCommand) {
+			aCommand.run();
+		}
+	};
+
+	/**
+	 * the snapshot file
+	 */
+	private File file;
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * Constructs an empty set of caches
+	 * 
+	 * @return the caches
+	 */
+	private CacheService service() {
+		return new CacheService(
+				Collections.<String, DataCache.Spec> emptyMap(),
+				DataCache.Spec.parse("maximumSize=100"), SYNCHRONOUS, metrics);
+	}
+
+	/**
+	 * Constructs a snapshot that accepts strings and booleans
+	 * 
+	 * @param aVersion
+	 *            build version
+	 * @return the snapshot
+	 */
+	private CacheSnapshot snapshot(final String aVersion) {
+		final List<Class<?>> types = new ArrayList<Class<?>>();
+		types.add(String.class);
+		types.add(Boolean.class);
+		return new CacheSnapshot(file, aVersion, 10, types, metrics);
+	}
+
+	/**
+	 * Creates the name of the snapshot file
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("caches", ".snapshot");
+		assertTrue(file.delete());
+	}
+
+	/**
+	 * Removes the snapshot file
+	 */
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Written entries are restored into new caches
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final CacheService before = service();
+		final DataCache<String, Boolean> cache = before.getCache("test");
+		cache.put("a", Boolean.TRUE);
+		cache.put("b", Boolean.FALSE);
+		assertEquals(2, snapshot("1").write(before.getCaches()));
+		assertTrue(file.isFile());
+		// restore
+		final CacheService after = service();
+		assertEquals(2, snapshot("1").restore(after));
+		final DataCache<String, Boolean> restored = after.getCache("test");
+		assertEquals(Boolean.TRUE, restored.getIfPresent("a"));
+		assertEquals(Boolean.FALSE, restored.getIfPresent("b"));
+	}
+
+	/**
+	 * A damaged file is discarded
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testCorruptFile() throws IOException {
+		final CacheService before = service();
+		before.<String, Boolean> getCache("test").put("a", Boolean.TRUE);
+		assertEquals(1, snapshot("1").write(before.getCaches()));
+		// flip the last byte of the records
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			final int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last ^ 0xff);
+		} finally {
+			raf.close();
+		}
+		// restore
+		final CacheService after = service();
+		assertEquals(0, snapshot("1").restore(after));
+		assertNull(after.<String, Boolean> getCache("test").getIfPresent("a"));
+		assertFalse(file.exists());
+		assertEquals(1, metrics.get("snapshot.discarded"));
+	}
+
+	/**
+	 * A snapshot of a different build is discarded
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testOtherBuild() throws IOException {
+		final CacheService before = service();
+		before.<String, Boolean> getCache("test").put("a", Boolean.TRUE);
+		snapshot("1").write(before.getCaches());
+		assertEquals(0, snapshot("2").restore(service()));
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Entries of types that have not been allowed are not deserialized
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testRejectedClass() throws IOException {
+		final CacheService before = service();
+		before.<String, Date> getCache("test").put("a", new Date());
+		before.<String, Boolean> getCache("other").put("b", Boolean.TRUE);
+		assertEquals(2, snapshot("1").write(before.getCaches()));
+		// restore
+		final CacheService after = service();
+		assertEquals(1, snapshot("1").restore(after));
+		assertNull(after.getCache("test").getIfPresent("a"));
+		assertEquals(Boolean.TRUE,
+				after.<String, Boolean> getCache("other").getIfPresent("b"));
+		assertEquals(1, metrics.get("snapshot.skipped"));
+	}
+}
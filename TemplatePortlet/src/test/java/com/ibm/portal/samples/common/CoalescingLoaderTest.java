@@ -0,0 +1,332 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test of the {@link CoalescingLoader}, alone and behind a
+ * {@link DataCache}. Bursts of concurrent callers spread over a few keys
+ * must result in exactly one backend call per key and burst. To make this
+ * deterministic, the backend blocks until all other callers of the burst
+ * joined a load in flight, a second load of a key would never see all
+ * followers and fail the test.
+ * 
+ * @author cleue
+ */
+public class CoalescingLoaderTest {
+
+	/**
+	 * Access to the loader under test
+	 */
+	private interface Source {
+
+		/**
+		 * Returns the value of the key
+		 * 
+		 * @param aKey
+		 *            the key
+		 * @return the value
+		 * @throws Exception
+		 */
+		String get(String aKey) throws Exception;
+	}
+
+	/**
+	 * Backend that counts the calls per key and waits for the followers
+	 */
+	private final class Backend implements DataCache.Loader<String, String> {
+
+		/**
+		 * calls per key
+		 */
+		private final AtomicLong[] calls = new AtomicLong[KEYS];
+
+		/**
+		 * the failure to throw, <code>null</code> to return a value
+		 */
+		private volatile Exception failure;
+
+		/**
+		 * counter of the callers that joined a load in flight
+		 */
+		private final AtomicLong followers;
+
+		/**
+		 * number of followers expected after the current burst
+		 */
+		private volatile long expected;
+
+		/**
+		 * Initializes the backend
+		 * 
+		 * @param aFollowers
+		 *            counter of the callers that joined a load in flight
+		 */
+		private Backend(final AtomicLong aFollowers) {
+			followers = aFollowers;
+			for (int i = 0; i < KEYS; ++i) {
+				calls[i] = new AtomicLong();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.DataCache.Loader#load(java.lang.Object)
+		 */
+		@Override
+		public String load(final String aKey) throws Exception {
+			calls[Integer.parseInt(aKey)].incrementAndGet();
+			// hold the load until every other caller joined a load
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (followers.get() < expected) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IllegalStateException("Only ["
+							+ followers.get() + "] of [" + expected
+							+ "] callers joined the load.");
+				}
+				Thread.sleep(1);
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return "value" + aKey;
+		}
+	}
+
+	/**
+	 * number of bursts
+	 */
+	private static final int BURSTS = 20;
+
+	/**
+	 * number of distinct keys per burst
+	 */
+	private static final int KEYS = 4;
+
+	/**
+	 * number of concurrent callers per burst
+	 */
+	private static final int THREADS = 64;
+
+	/**
+	 * time in milliseconds to wait for the callers of a burst
+	 */
+	private static final long TIMEOUT = 10 * 1000;
+
+	/**
+	 * the counters
+	 */
+	private Metrics metrics;
+
+	/**
+	 * runs the callers
+	 */
+	private ExecutorService pool;
+
+	/**
+	 * Runs a burst of concurrent callers, caller <code>i</code> loads key
+	 * <code>i % KEYS</code>
+	 * 
+	 * @param aBackend
+	 *            the backend
+	 * @param aSource
+	 *            the loader under test
+	 * @return the results of the callers
+	 * @throws Exception
+	 */
+	private List<Future<String>> burst(final Backend aBackend,
+			final Source aSource) throws Exception {
+		// everybody but the leaders joins a load
+		aBackend.expected = aBackend.followers.get() + THREADS - KEYS;
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < THREADS; ++i) {
+			final String key = Integer.toString(i % KEYS);
+			results.add(pool.submit(new Callable<String>() {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.util.concurrent.Callable#call()
+				 */
+				@Override
+				public String call() throws Exception {
+					start.await(TIMEOUT, TimeUnit.MILLISECONDS);
+					return aSource.get(key);
+				}
+			}));
+		}
+		// wait for the burst to complete
+		for (final Future<String> result : results) {
+			try {
+				result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (final ExecutionException ex) {
+				// checked by the caller
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Checks that each key has been loaded once per burst
+	 * 
+	 * @param aBackend
+	 *            the backend
+	 * @param aBursts
+	 *            number of bursts so far
+	 */
+	private static void assertOneCallPerKey(final Backend aBackend,
+			final int aBursts) {
+		for (int i = 0; i < KEYS; ++i) {
+			assertEquals("calls of key [" + i + "]", aBursts,
+					aBackend.calls[i].get());
+		}
+	}
+
+	/**
+	 * Creates the callers
+	 */
+	@Before
+	public void setUp() {
+		metrics = new Metrics();
+		pool = Executors.newFixedThreadPool(THREADS);
+	}
+
+	/**
+	 * Stops the callers
+	 * 
+	 * @throws Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		pool.shutdownNow();
+		assertTrue(pool.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Each burst calls the backend once per key, all callers of a key see the
+	 * same value
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testOneCallPerKeyPerBurst() throws Exception {
+		final CoalescingLoader<String, String> loader = new CoalescingLoader<String, String>(
+				"test", metrics);
+		final Backend backend = new Backend(metrics.getCounter("test.followers"));
+		final Source source = new Source() {
+
+			@Override
+			public String get(final String aKey) throws Exception {
+				return loader.load(aKey, backend, 0);
+			}
+		};
+		for (int burst = 1; burst <= BURSTS; ++burst) {
+			final List<Future<String>> results = burst(backend, source);
+			for (int i = 0; i < THREADS; ++i) {
+				assertEquals("value" + (i % KEYS), results.get(i).get());
+			}
+			assertOneCallPerKey(backend, burst);
+		}
+		assertEquals(BURSTS * KEYS, metrics.get("test.leaders"));
+		assertEquals(BURSTS * (THREADS - KEYS), metrics.get("test.followers"));
+		assertEquals(0, metrics.get("test.timeouts"));
+	}
+
+	/**
+	 * The failure of a load reaches all callers of the key
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailureReachesAllCallers() throws Exception {
+		final CoalescingLoader<String, String> loader = new CoalescingLoader<String, String>(
+				"test", metrics);
+		final Backend backend = new Backend(metrics.getCounter("test.followers"));
+		backend.failure = new IOException("backend down");
+		final List<Future<String>> results = burst(backend, new Source() {
+
+			@Override
+			public String get(final String aKey) throws Exception {
+				return loader.load(aKey, backend, 0);
+			}
+		});
+		for (final Future<String> result : results) {
+			try {
+				result.get();
+			} catch (final ExecutionException ex) {
+				assertSame(backend.failure, ex.getCause());
+				continue;
+			}
+			throw new AssertionError("failure not propagated");
+		}
+		assertOneCallPerKey(backend, 1);
+	}
+
+	/**
+	 * Behind the cache, each burst after an invalidation calls the backend
+	 * once per key
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testOneCallPerKeyPerBurstBehindCache() throws Exception {
+		final DataCache<String, String> cache = new DataCache<String, String>(
+				"test", DataCache.Spec.parse("maximumSize=100"), null, null,
+				metrics);
+		final Backend backend = new Backend(
+				metrics.getCounter("cache.test.coalesce.followers"));
+		final Source source = new Source() {
+
+			@Override
+			public String get(final String aKey) throws Exception {
+				return cache.get(aKey, backend);
+			}
+		};
+		for (int burst = 1; burst <= BURSTS; ++burst) {
+			cache.invalidateAll();
+			final List<Future<String>> results = burst(backend, source);
+			for (int i = 0; i < THREADS; ++i) {
+				assertEquals("value" + (i % KEYS), results.get(i).get());
+			}
+			assertOneCallPerKey(backend, burst);
+		}
+		// the values are cached now
+		assertEquals("value0", source.get("0"));
+		assertOneCallPerKey(backend, BURSTS);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.portlet.ActionRequest;
+import javax.portlet.PortletPreferences;
+import javax.portlet.ResourceRequest;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link CoalescingPreferences}
+ * 
+ * @author cleue
+ */
+public class CoalescingPreferencesTest {
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * the cache
+	 */
+	private final PreferencesCache cache = new PreferencesCache(60 * 1000, 10,
+			metrics);
+
+	/**
+	 * the values of the preferences
+	 */
+	private final Map<String, String[]> values = new HashMap<String, String[]>();
+
+	/**
+	 * the names of the methods called on the preferences
+	 */
+	private final List<String> calls = new ArrayList<String>();
+
+	/**
+	 * the preferences, record the modifying calls
+	 */
+	private final PortletPreferences preferences = (PortletPreferences) Proxy
+			.newProxyInstance(PortletPreferences.class.getClassLoader(),
+					new Class<?>[] { PortletPreferences.class },
+					new InvocationHandler() {
+
+						@Override
+						public Object invoke(final Object aProxy,
+								final Method aMethod, final Object[] aArgs) {
+							final String name = aMethod.getName();
+							if ("getMap".equals(name)) {
+								return values;
+							}
+							if ("setValues".equals(name)) {
+								values.put((String) aArgs[0],
+										(String[]) aArgs[1]);
+							}
+							calls.add(name);
+							return null;
+						}
+					});
+
+	/**
+	 * Modifications are read back and stored with a single store operation
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFlush() throws Exception {
+		values.put("key", new String[] { "old" });
+		final CoalescingPreferences prefs = cache.open(PreferencesCacheTest
+				.request(ActionRequest.class, "window", "alice", preferences));
+		assertEquals("old", prefs.getValue("key", null));
+		prefs.setValue("key", "first");
+		prefs.setValue("key", "second");
+		prefs.setValue("other", "value");
+		assertEquals("second", prefs.getValue("key", null));
+		assertTrue(prefs.isStorable());
+		prefs.flush();
+		assertFalse(prefs.isModified());
+		assertEquals(3, calls.size());
+		assertEquals("store", calls.get(2));
+		assertEquals("second", values.get("key")[0]);
+		assertEquals(1, metrics.get(PreferencesCache.METRIC_STORES));
+		assertEquals(2, metrics.get(PreferencesCache.METRIC_WRITES));
+	}
+
+	/**
+	 * Modifications that do not change a value are not stored
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFlushUnchanged() throws Exception {
+		values.put("key", new String[] { "old" });
+		final CoalescingPreferences prefs = cache.open(PreferencesCacheTest
+				.request(ActionRequest.class, "window", "alice", preferences));
+		prefs.setValue("key", "old");
+		prefs.flush();
+		assertTrue(calls.isEmpty());
+		assertEquals(1, metrics.get(PreferencesCache.METRIC_STORES_SKIPPED));
+	}
+
+	/**
+	 * Resource requests, e.g. of the AJAX action channel, cannot store the
+	 * preferences, callers check before they flush
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testResourceRequest() throws Exception {
+		final CoalescingPreferences prefs = cache
+				.open(PreferencesCacheTest.request(ResourceRequest.class,
+						"window", "alice", preferences));
+		assertFalse(prefs.isStorable());
+		// nothing to store
+		prefs.flush();
+		prefs.setValue("key", "value");
+		try {
+			prefs.flush();
+			fail("preferences stored during a resource request");
+		} catch (final IllegalStateException ex) {
+			// expected
+		}
+		assertTrue(calls.isEmpty());
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link DataCache}
+ * 
+ * @author cleue
+ */
+public class DataCacheTest {
+
+	/**
+	 * Loader that returns a configurable value and counts its calls
+	 */
+	private static final class CountingLoader implements
+			DataCache.Loader<String, String> {
+
+		/**
+		 * number of calls
+		 */
+		private final AtomicInteger calls = new AtomicInteger();
+
+		/**
+		 * failure to throw, <code>null</code> to return the value
+		 */
+		private Exception failure;
+
+		/**
+		 * the value
+		 */
+		private String value;
+
+		/**
+		 * Initializes the loader
+		 * 
+		 * @param aValue
+		 *            the value
+		 */
+		private CountingLoader(final String aValue) {
+			value = aValue;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.DataCache.Loader#load(java.lang.Object)
+		 */
+		@Override
+		public String load(final String aKey) throws Exception {
+			calls.incrementAndGet();
+			if (failure != null) {
+				throw failure;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Runs the refreshes on the calling thread
+	 */
+	private static final Executor SYNCHRONOUS = new Executor() {
+
+		@Override
+		public void execute(final Runnable aCommand) {
+			aCommand.run();
+		}
+	};
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * Constructs a cache
+	 * 
+	 * @param aSpec
+	 *            the textual configuration
+	 * @return the cache
+	 */
+	private DataCache<String, String> cache(final String aSpec) {
+		return new DataCache<String, String>("test",
+				DataCache.Spec.parse(aSpec), null, SYNCHRONOUS, metrics);
+	}
+
+	/**
+	 * Counts the keys that are cached
+	 * 
+	 * @param aCache
+	 *            the cache
+	 * @param aPrefix
+	 *            prefix of the keys
+	 * @param aCount
+	 *            number of keys
+	 * @return number of cached keys
+	 */
+	private static int count(final DataCache<String, String> aCache,
+			final String aPrefix, final int aCount) {
+		int result = 0;
+		for (int i = 0; i < aCount; ++i) {
+			if (aCache.getStale(aPrefix + i) != null) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The textual configuration is parsed, invalid settings are rejected
+	 */
+	@Test
+	public void testSpec() {
+		final DataCache.Spec spec = DataCache.Spec
+				.parse("maximumWeight=500, expireAfterWrite=60000,refreshAfterWrite=30000,"
+						+ "staleWhileRevalidate=1000,loadTimeout=200,policy=lru");
+		assertEquals(500, spec.getMaximum());
+		assertTrue(spec.isWeighted());
+		assertEquals(60000, spec.getExpireAfterWrite());
+		assertEquals(30000, spec.getRefreshAfterWrite());
+		assertEquals(1000, spec.getStaleWhileRevalidate());
+		assertEquals(200, spec.getLoadTimeout());
+		assertTrue(spec.isLru());
+		assertEquals(DataCache.DEFAULT_MAXIMUM_SIZE, DataCache.Spec.parse("")
+				.getMaximum());
+		for (final String invalid : new String[] { "maximumSize",
+				"maximumSize=0", "maximumSize=x", "policy=fifo", "unknown=1" }) {
+			try {
+				DataCache.Spec.parse(invalid);
+				fail("accepted [" + invalid + "]");
+			} catch (final IllegalArgumentException ex) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * The LRU policy evicts the least recently used entry, reads count as a
+	 * use
+	 */
+	@Test
+	public void testLruEviction() {
+		final DataCache<String, String> cache = cache("maximumSize=3,policy=lru");
+		cache.put("a", "a");
+		cache.put("b", "b");
+		cache.put("c", "c");
+		// touch the oldest entry
+		assertEquals("a", cache.getIfPresent("a"));
+		cache.put("d", "d");
+		assertNotNull(cache.getStale("a"));
+		assertNull(cache.getStale("b"));
+		assertEquals(3, cache.size());
+		assertEquals(1, metrics.get("cache.test.evictions"));
+		assertEquals(3, metrics.get("cache.test.weight"));
+	}
+
+	/**
+	 * W-TinyLFU keeps the popular entries when a scan of keys that are used
+	 * only once passes through the cache, LRU does not
+	 */
+	@Test
+	public void testScanResistance() {
+		final DataCache<String, String> lfu = cache("maximumSize=100");
+		final DataCache<String, String> lru = new DataCache<String, String>(
+				"lru", DataCache.Spec.parse("maximumSize=100,policy=lru"), null,
+				null, metrics);
+		for (final DataCache<String, String> cache : new DataCache[] { lfu,
+				lru }) {
+			// popular entries
+			for (int i = 0; i < 100; ++i) {
+				cache.put("hot" + i, "value");
+			}
+			for (int round = 0; round < 3; ++round) {
+				for (int i = 0; i < 100; ++i) {
+					cache.getIfPresent("hot" + i);
+				}
+			}
+			// the scan
+			for (int i = 0; i < 200; ++i) {
+				cache.put("scan" + i, "value");
+			}
+		}
+		assertTrue(count(lfu, "hot", 100) >= 90);
+		assertEquals(0, count(lru, "hot", 100));
+	}
+
+	/**
+	 * The hottest entries are returned from the protected segment, the
+	 * probation segment and the window, most recently used first
+	 */
+	@Test
+	public void testHottest() {
+		final DataCache<String, String> cache = cache("maximumSize=100");
+		cache.put("a", "a");
+		cache.put("b", "b");
+		cache.put("c", "c");
+		// promotes the entry to the protected segment
+		cache.getIfPresent("b");
+		final List<DataCache.Entry<String, String>> hottest = cache
+				.getHottest(10);
+		assertEquals(3, hottest.size());
+		assertEquals("b", hottest.get(0).getKey());
+		assertEquals("a", hottest.get(1).getKey());
+		assertEquals("c", hottest.get(2).getKey());
+		assertEquals(2, cache.getHottest(2).size());
+	}
+
+	/**
+	 * Shrinking the cache evicts entries immediately
+	 */
+	@Test
+	public void testSetMaximum() {
+		final DataCache<String, String> cache = cache("maximumSize=100");
+		for (int i = 0; i < 100; ++i) {
+			cache.put("key" + i, "value");
+		}
+		cache.setMaximum(10);
+		assertEquals(10, cache.size());
+		assertEquals(10, cache.getMaximum());
+		assertEquals(10, metrics.get("cache.test.weight"));
+	}
+
+	/**
+	 * Values are loaded on a miss, <code>null</code> values are not cached
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoad() throws Exception {
+		final DataCache<String, String> cache = cache("maximumSize=100");
+		final CountingLoader loader = new CountingLoader("value");
+		assertEquals("value", cache.get("key", loader));
+		assertEquals("value", cache.get("key", loader));
+		assertEquals(1, loader.calls.get());
+		loader.value = null;
+		assertNull(cache.get("other", loader));
+		assertNull(cache.get("other", loader));
+		assertEquals(3, loader.calls.get());
+		assertEquals(1, metrics.get("cache.test.hits"));
+	}
+
+	/**
+	 * Old entries are refreshed in the background, readers get the current
+	 * value until the new one is available, a failed refresh keeps the value
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRefresh() throws Exception {
+		final DataCache<String, String> cache = cache("maximumSize=100,refreshAfterWrite=1000");
+		final CountingLoader loader = new CountingLoader("new");
+		// a young entry is not refreshed
+		assertTrue(cache.restore("young", "old", 500));
+		assertEquals("old", cache.get("young", loader));
+		assertEquals(0, loader.calls.get());
+		// an old entry is, the read returns the current value
+		assertTrue(cache.restore("key", "old", 1500));
+		assertEquals("old", cache.get("key", loader));
+		assertEquals(1, loader.calls.get());
+		assertEquals("new", cache.get("key", loader));
+		assertEquals(1, metrics.get("cache.test.refreshes"));
+		// a failed refresh keeps the value and is tried again
+		assertTrue(cache.restore("failing", "old", 1500));
+		loader.failure = new IOException("backend down");
+		assertEquals("old", cache.get("failing", loader));
+		assertEquals("old", cache.get("failing", loader));
+		assertEquals(3, loader.calls.get());
+		assertEquals(2, metrics.get("cache.test.load.failures"));
+		// a refresh without a value removes the entry
+		loader.failure = null;
+		loader.value = null;
+		assertEquals("old", cache.get("failing", loader));
+		assertNull(cache.getIfPresent("failing"));
+	}
+
+	/**
+	 * Expired entries are misses, but are kept as the last good value until
+	 * the stale period ends
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStale() throws Exception {
+		final DataCache<String, String> cache = cache("maximumSize=100,expireAfterWrite=1000,"
+				+ "staleWhileRevalidate=1000");
+		// expired entries are not restored
+		assertFalse(cache.restore("expired", "value", 1000));
+		// expired, but stale
+		assertTrue(cache.restore("key", "value", 990));
+		Thread.sleep(20);
+		assertNull(cache.getIfPresent("key"));
+		assertEquals("value", cache.getStale("key"));
+		assertEquals(1, cache.size());
+		// a load replaces the stale value
+		assertEquals("new", cache.get("key", new CountingLoader("new")));
+		assertEquals("new", cache.getIfPresent("key"));
+	}
+
+	/**
+	 * Without a stale period, expired entries are removed on access
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testExpiration() throws Exception {
+		final DataCache<String, String> cache = cache("maximumSize=100,expireAfterWrite=1000");
+		assertTrue(cache.restore("key", "value", 990));
+		Thread.sleep(20);
+		assertNull(cache.getIfPresent("key"));
+		assertNull(cache.getStale("key"));
+		assertEquals(0, cache.size());
+		assertEquals(1, metrics.get("cache.test.expirations"));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link DecodingLimits}
+ * 
+ * @author cleue
+ */
+public class DecodingLimitsTest {
+
+	/**
+	 * Counts the warnings of a logger
+	 */
+	private static final class WarningCounter extends Handler {
+
+		/**
+		 * number of warnings
+		 */
+		private int warnings;
+
+		@Override
+		public void close() {
+			// nothing to release
+		}
+
+		@Override
+		public void flush() {
+			// nothing to flush
+		}
+
+		@Override
+		public synchronized void publish(final LogRecord aRecord) {
+			if (aRecord.getLevel().intValue() >= Level.WARNING.intValue()) {
+				++warnings;
+			}
+		}
+	}
+
+	/**
+	 * Values are checked against the per parameter limit
+	 */
+	@Test
+	public void testParameterLimit() {
+		final Metrics metrics = new Metrics();
+		final DecodingLimits limits = new DecodingLimits(10, 100, metrics);
+		assertTrue(limits.checkParameter(10));
+		assertFalse(limits.checkParameter(11));
+		assertEquals(1, metrics
+				.get(DecodingLimits.METRIC_REJECTED_PARAMETER));
+		assertEquals(0, metrics.get(DecodingLimits.METRIC_REJECTED_REQUEST));
+	}
+
+	/**
+	 * The budget accounts for all values of a request
+	 */
+	@Test
+	public void testBudget() {
+		final Metrics metrics = new Metrics();
+		final DecodingLimits limits = new DecodingLimits(10, 25, metrics);
+		final DecodingLimits.Budget budget = limits.newBudget();
+		assertTrue(budget.consume(10));
+		assertTrue(budget.consume(10));
+		// a rejected value is not accounted for
+		assertFalse(budget.consume(11));
+		assertFalse(budget.consume(6));
+		assertTrue(budget.consume(5));
+		assertFalse(budget.consume(1));
+		assertEquals(1, metrics
+				.get(DecodingLimits.METRIC_REJECTED_PARAMETER));
+		assertEquals(2, metrics.get(DecodingLimits.METRIC_REJECTED_REQUEST));
+		// a new request starts with a new budget
+		assertTrue(limits.newBudget().consume(10));
+	}
+
+	/**
+	 * Named values are measured in UTF-8 bytes and charged only once
+	 */
+	@Test
+	public void testBudgetChargesKeysOnce() {
+		final Metrics metrics = new Metrics();
+		final DecodingLimits limits = new DecodingLimits(10, 20, metrics);
+		final DecodingLimits.Budget budget = limits.newBudget();
+		// five characters, ten bytes
+		assertTrue(budget.consume("a", "\u00e4\u00f6\u00fc\u00df\u00e9"));
+		assertTrue(budget.consume("a", "\u00e4\u00f6\u00fc\u00df\u00e9"));
+		assertTrue(budget.consume("a", "\u00e4\u00f6\u00fc\u00df\u00e9"));
+		// a rejection is remembered and counted once
+		assertFalse(budget.consume("b", "\u20ac\u20ac\u20ac\u20ac"));
+		assertFalse(budget.consume("b", "\u20ac\u20ac\u20ac\u20ac"));
+		assertEquals(1, metrics
+				.get(DecodingLimits.METRIC_REJECTED_PARAMETER));
+		// the remaining budget is ten bytes
+		assertTrue(budget.consume("c", "0123456789"));
+		assertFalse(budget.consume("d", "x"));
+	}
+
+	/**
+	 * The UTF-8 length is computed without encoding
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testUTF8Length() throws Exception {
+		final String[] values = { "", "abc", "\u00e4", "\u20ac",
+				"\ud83d\ude00", "a\u00e4\u20ac\ud83d\ude00z" };
+		for (final String value : values) {
+			assertEquals(value.getBytes("UTF-8").length,
+					DecodingLimits.getUTF8Length(value));
+		}
+	}
+
+	/**
+	 * A flood of rejections results in a single warning
+	 */
+	@Test
+	public void testWarningsAreRateLimited() {
+		final Metrics metrics = new Metrics();
+		final DecodingLimits limits = new DecodingLimits(10, 100, metrics);
+		final Logger logger = Logger.getLogger(DecodingLimits.class.getName());
+		final WarningCounter counter = new WarningCounter();
+		logger.addHandler(counter);
+		try {
+			for (int i = 0; i < 1000; ++i) {
+				limits.rejectParameter(11);
+				limits.rejectRequest(101);
+			}
+		} finally {
+			logger.removeHandler(counter);
+		}
+		assertEquals(1, counter.warnings);
+		assertEquals(1000, metrics
+				.get(DecodingLimits.METRIC_REJECTED_PARAMETER));
+		assertEquals(1000, metrics
+				.get(DecodingLimits.METRIC_REJECTED_REQUEST));
+	}
+}
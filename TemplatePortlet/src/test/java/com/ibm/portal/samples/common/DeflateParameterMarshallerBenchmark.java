@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.net.URLEncoder;
+
+/**
+ * Measures the cost of encoding and decoding values with the
+ * {@link DeflateParameterMarshaller} against the URL length it saves. The
+ * class is not a unit test, run it via its main method, e.g. from the IDE or
+ * with <code>mvn exec:java -Dexec.classpathScope=test</code>.
+ * 
+ * @author cleue
+ */
+public class DeflateParameterMarshallerBenchmark {
+
+	/**
+	 * sizes of the values in characters
+	 */
+	private static final int[] SIZES = { 64, 256, 1024, 4096, 16384, 65536 };
+
+	/**
+	 * minimum time in nanoseconds each measurement runs
+	 */
+	private static final long MEASURE_NANOS = 1000L * 1000 * 1000;
+
+	/**
+	 * minimum time in nanoseconds of the warm-up of each measurement
+	 */
+	private static final long WARMUP_NANOS = 300L * 1000 * 1000;
+
+	/**
+	 * prevents the JIT from removing the measured code
+	 */
+	private static volatile int sink;
+
+	/**
+	 * Measures the encoding
+	 * 
+	 * @param aMarshaller
+	 *            the marshaller
+	 * @param aValue
+	 *            the value
+	 * @param aNanos
+	 *            minimum duration
+	 * @return nanoseconds per operation
+	 */
+	private static double encode(final Marshaller aMarshaller,
+			final String aValue, final long aNanos) {
+		final long start = System.nanoTime();
+		long ops = 0;
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; ++i) {
+				sink += aMarshaller.marshalString(aValue).length();
+			}
+			ops += 100;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < aNanos);
+		return (double) elapsed / ops;
+	}
+
+	/**
+	 * Measures the decoding
+	 * 
+	 * @param aMarshaller
+	 *            the marshaller
+	 * @param aToken
+	 *            the encoded value
+	 * @param aNanos
+	 *            minimum duration
+	 * @return nanoseconds per operation
+	 */
+	private static double decode(final Marshaller aMarshaller,
+			final String aToken, final long aNanos) {
+		final long start = System.nanoTime();
+		long ops = 0;
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; ++i) {
+				sink += aMarshaller.unmarshalString(aToken, null).length();
+			}
+			ops += 100;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < aNanos);
+		return (double) elapsed / ops;
+	}
+
+	/**
+	 * Runs the benchmark and prints one line per value size
+	 * 
+	 * @param args
+	 *            not used
+	 * @throws Exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final DeflateParameterMarshaller deflate = new DeflateParameterMarshaller(
+				DeflateParameterMarshaller.DEFAULT_THRESHOLD,
+				DeflateParameterMarshaller.DEFAULT_MAX_LENGTH,
+				DeflateParameterMarshaller.DEFAULT_DICTIONARY);
+		final Marshaller plain = PrivateParameterMarshaller.SINGLETON;
+		try {
+			System.out.printf("%8s %10s %10s %7s %12s %12s %12s %12s%n",
+					"chars", "url plain", "url deflt", "saved", "enc plain",
+					"enc deflt", "dec plain", "dec deflt");
+			for (final int size : SIZES) {
+				final String value = DeflateParameterMarshallerTest
+						.filterList(size).substring(0, size);
+				final String plainToken = plain.marshalString(value);
+				final String deflateToken = deflate.marshalString(value);
+				// the parameter value as it appears in the URL
+				final int plainURL = URLEncoder.encode(plainToken, "UTF-8")
+						.length();
+				final int deflateURL = URLEncoder.encode(deflateToken,
+						"UTF-8").length();
+				// warm up, then measure
+				encode(plain, value, WARMUP_NANOS);
+				encode(deflate, value, WARMUP_NANOS);
+				decode(plain, plainToken, WARMUP_NANOS);
+				decode(deflate, deflateToken, WARMUP_NANOS);
+				System.out.printf(
+						"%8d %10d %10d %6.1f%% %10.0fns %10.0fns %10.0fns %10.0fns%n",
+						size, plainURL, deflateURL,
+						100.0 * (plainURL - deflateURL) / plainURL,
+						encode(plain, value, MEASURE_NANOS),
+						encode(deflate, value, MEASURE_NANOS),
+						decode(plain, plainToken, MEASURE_NANOS),
+						decode(deflate, deflateToken, MEASURE_NANOS));
+			}
+		} finally {
+			deflate.destroy();
+		}
+	}
+}
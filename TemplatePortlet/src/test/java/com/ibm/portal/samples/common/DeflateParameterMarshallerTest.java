@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the {@link DeflateParameterMarshaller}
+ * 
+ * @author cleue
+ */
+public class DeflateParameterMarshallerTest {
+
+	/**
+	 * the marshaller under test
+	 */
+	private final DeflateParameterMarshaller marshaller = new DeflateParameterMarshaller(
+			64, 4096, DeflateParameterMarshaller.DEFAULT_DICTIONARY, 2);
+
+	/**
+	 * Constructs a compressible value
+	 * 
+	 * @param aLength
+	 *            minimum number of characters
+	 * @return the value
+	 */
+	static String filterList(final int aLength) {
+		final StringBuilder result = new StringBuilder();
+		for (int i = 0; result.length() < aLength; ++i) {
+			result.append("filter=status:open,owner:").append(i % 7)
+					.append(";sort=asc;page=").append(i % 3).append(' ');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Releases the pooled instances
+	 */
+	@After
+	public void tearDown() {
+		marshaller.destroy();
+	}
+
+	/**
+	 * Large values are compressed and decode to the original value
+	 */
+	@Test
+	public void testRoundTrip() {
+		final String value = filterList(2000);
+		final String token = marshaller.marshalString(value);
+		assertEquals(DeflateParameterMarshaller.MARKER, token.charAt(0));
+		assertTrue(token.length() < value.length() / 4);
+		assertEquals(value, marshaller.unmarshalString(token, "default"));
+		// the pooled instances are reusable
+		for (int i = 0; i < 10; ++i) {
+			final String other = filterList(1000 + i);
+			assertEquals(other, marshaller.unmarshalString(
+					marshaller.marshalString(other), "default"));
+		}
+	}
+
+	/**
+	 * Short values and values that look compressed are passed as plain
+	 * values
+	 */
+	@Test
+	public void testPlainValues() {
+		assertEquals("short", marshaller.marshalString("short"));
+		assertNull(marshaller.marshalString(null));
+		final String marked = DeflateParameterMarshaller.MARKER + "value";
+		final String token = marshaller.marshalString(marked);
+		assertEquals(DeflateParameterMarshaller.MARKER + marked, token);
+		assertEquals(marked, marshaller.unmarshalString(token, "default"));
+	}
+
+	/**
+	 * Values that inflate beyond the limit are rejected
+	 */
+	@Test
+	public void testBoundedInflation() {
+		// a generous encoder produces a value above the limit of the decoder
+		final DeflateParameterMarshaller encoder = new DeflateParameterMarshaller(
+				64, 1024 * 1024, DeflateParameterMarshaller.DEFAULT_DICTIONARY);
+		try {
+			final StringBuilder bomb = new StringBuilder();
+			for (int i = 0; i < 100000; ++i) {
+				bomb.append('a');
+			}
+			final String token = encoder.marshalString(bomb.toString());
+			// the token itself is short, only the inflated size is too large
+			assertTrue(token.length() < 4096);
+			assertEquals("default", marshaller.unmarshalString(token,
+					"default"));
+		} finally {
+			encoder.destroy();
+		}
+	}
+
+	/**
+	 * Tokens that cannot be decoded fall back to the default value
+	 */
+	@Test
+	public void testInvalidTokens() {
+		final String token = marshaller.marshalString(filterList(2000));
+		// truncated
+		assertEquals("default", marshaller.unmarshalString(
+				token.substring(0, token.length() / 2), "default"));
+		// not deflated
+		assertEquals("default", marshaller.unmarshalString(
+				DeflateParameterMarshaller.MARKER + "AAAAAAAA", "default"));
+		// too long to be valid
+		assertEquals("default", marshaller.unmarshalString(
+				DeflateParameterMarshaller.MARKER + filterList(10000),
+				"default"));
+	}
+
+	/**
+	 * A destroyed marshaller still works, but no longer pools its instances
+	 */
+	@Test
+	public void testDestroy() {
+		final String value = filterList(2000);
+		final String token = marshaller.marshalString(value);
+		marshaller.destroy();
+		assertEquals(token, marshaller.marshalString(value));
+		assertEquals(value, marshaller.unmarshalString(token, "default"));
+	}
+}
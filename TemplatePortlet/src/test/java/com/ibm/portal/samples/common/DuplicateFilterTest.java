@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link DuplicateFilter}
+ * 
+ * @author cleue
+ */
+public class DuplicateFilterTest {
+
+	/**
+	 * source of unique tokens
+	 */
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/**
+	 * Generates a new token, the way the client script does
+	 * 
+	 * @return the token
+	 */
+	private static String token() {
+		return "token-" + COUNTER.incrementAndGet();
+	}
+
+	/**
+	 * The second registration of a token is rejected and counted
+	 */
+	@Test
+	public void testDuplicate() {
+		final Metrics metrics = new Metrics();
+		final DuplicateFilter filter = new DuplicateFilter(60 * 1000, 100,
+				metrics);
+		final String token = token();
+		assertTrue(filter.register(token));
+		assertFalse(filter.register(token));
+		assertEquals(1, metrics.get(DuplicateFilter.METRIC_ACCEPTED));
+		assertEquals(1, metrics.get(DuplicateFilter.METRIC_SUPPRESSED));
+	}
+
+	/**
+	 * The token of a failed action can be registered again
+	 */
+	@Test
+	public void testUnregister() {
+		final DuplicateFilter filter = new DuplicateFilter(60 * 1000, 100,
+				new Metrics());
+		final String token = token();
+		assertTrue(filter.register(token));
+		filter.unregister(token);
+		assertTrue(filter.register(token));
+		assertFalse(filter.register(token));
+	}
+
+	/**
+	 * Tokens are accepted again after they expired
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testExpiration() throws Exception {
+		final DuplicateFilter filter = new DuplicateFilter(50, 100,
+				new Metrics());
+		final String token = token();
+		assertTrue(filter.register(token));
+		assertFalse(filter.register(token));
+		Thread.sleep(100);
+		assertTrue(filter.register(token));
+	}
+
+	/**
+	 * The oldest tokens are dropped above the capacity
+	 */
+	@Test
+	public void testCapacity() {
+		final DuplicateFilter filter = new DuplicateFilter(60 * 1000, 2,
+				new Metrics());
+		final String first = token();
+		assertTrue(filter.register(first));
+		assertTrue(filter.register(token()));
+		assertTrue(filter.register(token()));
+		// the first token has been dropped
+		assertTrue(filter.register(first));
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link MappedFileStateStore}
+ * 
+ * @author cleue
+ */
+public class MappedFileStateStoreTest {
+
+	/**
+	 * size of the file used by the tests
+	 */
+	private static final int CAPACITY = 4096;
+
+	/**
+	 * offset of the first record, see the file format of the store
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * size of the data of a record, five records fit into the largest allowed
+	 * record
+	 */
+	private static final int LENGTH = 180;
+
+	/**
+	 * size of the record header, see the file format of the store
+	 */
+	private static final int RECORD_OVERHEAD = 4 + AbstractStateStore.KEY_BYTES;
+
+	/**
+	 * Constructs distinct data
+	 * 
+	 * @param aSeed
+	 *            distinguishes the data
+	 * @param aLength
+	 *            number of bytes
+	 * @return the data
+	 */
+	static byte[] data(final int aSeed, final int aLength) {
+		final byte[] result = new byte[aLength];
+		for (int i = 0; i < aLength; ++i) {
+			result[i] = (byte) (aSeed * 31 + i);
+		}
+		return result;
+	}
+
+	/**
+	 * the file that backs the store
+	 */
+	private File file;
+
+	/**
+	 * the store under test
+	 */
+	private MappedFileStateStore store;
+
+	/**
+	 * Checks that exactly the most recent entries can be read
+	 * 
+	 * @param aKeys
+	 *            keys of all entries in the order they have been stored
+	 * @param aFirst
+	 *            seed of the first entry
+	 * @return number of readable entries
+	 * @throws IOException
+	 */
+	private int assertRecent(final List<String> aKeys, final int aFirst)
+			throws IOException {
+		// the readable entries form a suffix of the sequence
+		int count = 0;
+		boolean bEvicted = true;
+		for (int i = 0; i < aKeys.size(); ++i) {
+			final byte[] stored = store.get(aKeys.get(i));
+			if (stored == null) {
+				assertTrue("entry " + i + " evicted after a newer one", bEvicted);
+			} else {
+				bEvicted = false;
+				assertArrayEquals(data(aFirst + i, LENGTH), stored);
+				++count;
+			}
+		}
+		assertNotNull(store.get(aKeys.get(aKeys.size() - 1)));
+		return count;
+	}
+
+	/**
+	 * Stores entries with the given seeds
+	 * 
+	 * @param aFirst
+	 *            first seed
+	 * @param aCount
+	 *            number of entries
+	 * @return the keys
+	 * @throws IOException
+	 */
+	private List<String> put(final int aFirst, final int aCount)
+			throws IOException {
+		final List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < aCount; ++i) {
+			final String key = store.put(data(aFirst + i, LENGTH));
+			assertNotNull(key);
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	/**
+	 * Creates the file and opens the store
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("state", ".bin");
+		assertTrue(file.delete());
+		store = new MappedFileStateStore(file, CAPACITY);
+	}
+
+	/**
+	 * Closes the store and removes the file
+	 * 
+	 * @throws IOException
+	 */
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+		file.delete();
+	}
+
+	/**
+	 * Stored data can be read back, identical data results in the same key
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final byte[] data = data(1, 100);
+		final String key = store.put(data);
+		assertEquals(key, store.put(data.clone()));
+		assertArrayEquals(data, store.get(key));
+		assertNull(store.get("unknown"));
+	}
+
+	/**
+	 * Records larger than a quarter of the file are not stored and no key is
+	 * returned for them
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testOversizedRecord() throws IOException {
+		final List<String> keys = put(0, 3);
+		assertNull(store.put(data(100, CAPACITY / 4)));
+		// the other entries are not affected
+		assertEquals(3, assertRecent(keys, 0));
+	}
+
+	/**
+	 * The ring buffer evicts the oldest entries when it wraps around, over
+	 * several rounds
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testWrapAround() throws IOException {
+		// several times the capacity
+		final List<String> keys = put(0, 100);
+		final int count = assertRecent(keys, 0);
+		assertTrue(count > 10);
+		assertTrue(count * LENGTH < CAPACITY);
+	}
+
+	/**
+	 * The entries are recovered when the file is opened again, also after the
+	 * ring buffer wrapped around
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testRecovery() throws IOException {
+		final List<String> keys = put(0, 50);
+		final int count = assertRecent(keys, 0);
+		// reopen
+		store.close();
+		store = new MappedFileStateStore(file, CAPACITY);
+		assertEquals(count, assertRecent(keys, 0));
+		// the recovered store keeps evicting in order
+		keys.addAll(put(50, 50));
+		assertTrue(assertRecent(keys, 0) > 10);
+	}
+
+	/**
+	 * A corrupt record discards the content of the file, the store remains
+	 * usable
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testCorruptRecord() throws IOException {
+		final List<String> keys = put(0, 5);
+		store.close();
+		// modify the data of the last record
+		final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		try {
+			final long pos = HEADER_SIZE + 4 * (RECORD_OVERHEAD + LENGTH)
+					+ RECORD_OVERHEAD;
+			raw.seek(pos);
+			final int value = raw.read();
+			raw.seek(pos);
+			raw.write(~value);
+		} finally {
+			raw.close();
+		}
+		store = new MappedFileStateStore(file, CAPACITY);
+		for (final String key : keys) {
+			assertNull(store.get(key));
+		}
+		// still usable
+		final String key = store.put(data(1, LENGTH));
+		assertArrayEquals(data(1, LENGTH), store.get(key));
+	}
+
+	/**
+	 * Opening the file with a different capacity discards its content
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testResize() throws IOException {
+		final List<String> keys = put(0, 5);
+		store.close();
+		store = new MappedFileStateStore(file, 2 * CAPACITY);
+		for (final String key : keys) {
+			assertNull(store.get(key));
+		}
+	}
+}
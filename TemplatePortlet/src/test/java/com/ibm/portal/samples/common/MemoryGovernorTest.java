@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link MemoryGovernor} does not interfere with the usage
+ * thresholds of other components, they are global to the JVM
+ * 
+ * @author cleue
+ */
+public class MemoryGovernorTest {
+
+	/**
+	 * a tenured pool that supports collection usage thresholds
+	 */
+	private MemoryPoolMXBean pool;
+
+	/**
+	 * Creates the governor
+	 * 
+	 * @return the governor
+	 */
+	private static MemoryGovernor governor() {
+		final Metrics metrics = new Metrics();
+		return new MemoryGovernor(new CacheService(
+				Collections.<String, DataCache.Spec> emptyMap(),
+				DataCache.Spec.parse("maximumSize=100"), null, metrics), 99,
+				50, 60 * 1000, "test-memory", metrics);
+	}
+
+	/**
+	 * Locates the pool, the test is skipped if the JVM has none
+	 */
+	@Before
+	public void setUp() {
+		for (final MemoryPoolMXBean candidate : ManagementFactory
+				.getMemoryPoolMXBeans()) {
+			if ((candidate.getType() == MemoryType.HEAP)
+					&& candidate.isValid()
+					&& candidate.isUsageThresholdSupported()
+					&& candidate.isCollectionUsageThresholdSupported()
+					&& (candidate.getUsage().getMax() > 0)) {
+				pool = candidate;
+				break;
+			}
+		}
+		assumeTrue(pool != null);
+		assumeTrue(pool.getCollectionUsageThreshold() == 0);
+	}
+
+	/**
+	 * Removes the thresholds of the test
+	 */
+	@After
+	public void tearDown() {
+		if (pool != null) {
+			pool.setCollectionUsageThreshold(0);
+		}
+	}
+
+	/**
+	 * A free pool gets the threshold of the governor, which is removed on
+	 * shutdown
+	 */
+	@Test
+	public void testOwnThreshold() {
+		final MemoryGovernor governor = governor();
+		try {
+			assertTrue(pool.getCollectionUsageThreshold() > 0);
+		} finally {
+			governor.shutdown();
+		}
+		assertEquals(0, pool.getCollectionUsageThreshold());
+	}
+
+	/**
+	 * The threshold of another component is neither replaced nor removed
+	 */
+	@Test
+	public void testForeignThreshold() {
+		final long foreign = pool.getUsage().getMax() / 2;
+		pool.setCollectionUsageThreshold(foreign);
+		final MemoryGovernor governor = governor();
+		try {
+			assertEquals(foreign, pool.getCollectionUsageThreshold());
+		} finally {
+			governor.shutdown();
+		}
+		assertEquals(foreign, pool.getCollectionUsageThreshold());
+	}
+
+	/**
+	 * A threshold changed by another component after the governor set its
+	 * own one survives the shutdown
+	 */
+	@Test
+	public void testChangedThreshold() {
+		final MemoryGovernor governor = governor();
+		final long changed = pool.getUsage().getMax() / 3;
+		try {
+			pool.setCollectionUsageThreshold(changed);
+		} finally {
+			governor.shutdown();
+		}
+		assertEquals(changed, pool.getCollectionUsageThreshold());
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link MemoryStateStore}
+ * 
+ * @author cleue
+ */
+public class MemoryStateStoreTest {
+
+	/**
+	 * the store under test
+	 */
+	private final MemoryStateStore store = new MemoryStateStore(1000);
+
+	/**
+	 * Stored data can be read back, identical data results in the same key and
+	 * callers cannot modify the stored data
+	 */
+	@Test
+	public void testRoundTrip() {
+		final byte[] data = MappedFileStateStoreTest.data(1, 100);
+		final String key = store.put(data);
+		assertEquals(key, store.put(data.clone()));
+		data[0]++;
+		store.get(key)[1]++;
+		assertArrayEquals(MappedFileStateStoreTest.data(1, 100), store.get(key));
+		assertNull(store.get("unknown"));
+	}
+
+	/**
+	 * The least recently used entries are evicted first
+	 */
+	@Test
+	public void testEviction() {
+		final String first = store.put(MappedFileStateStoreTest.data(1, 400));
+		final String second = store.put(MappedFileStateStoreTest.data(2, 400));
+		// touch the first entry, so the second one is the oldest
+		assertNotNull(store.get(first));
+		final String third = store.put(MappedFileStateStoreTest.data(3, 400));
+		assertNotNull(store.get(first));
+		assertNull(store.get(second));
+		assertNotNull(store.get(third));
+	}
+
+	/**
+	 * Entries larger than the capacity are not stored and no key is returned
+	 * for them
+	 */
+	@Test
+	public void testOversizedEntry() {
+		final String key = store.put(MappedFileStateStoreTest.data(1, 400));
+		assertNull(store.put(MappedFileStateStoreTest.data(2, 1001)));
+		// the other entries are not affected
+		assertNotNull(store.get(key));
+	}
+}
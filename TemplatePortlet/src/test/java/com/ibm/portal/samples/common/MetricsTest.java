@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link Metrics}
+ * 
+ * @author cleue
+ */
+public class MetricsTest {
+
+	/**
+	 * Reset clears the counters, but keeps the gauges
+	 */
+	@Test
+	public void testResetKeepsGauges() {
+		final Metrics metrics = new Metrics();
+		final AtomicLong counter = metrics.getCounter("counter");
+		final AtomicLong gauge = metrics.getGauge("gauge");
+		counter.addAndGet(5);
+		metrics.increment("other");
+		metrics.set("ratio", 42);
+		// two operations in flight
+		gauge.addAndGet(2);
+		metrics.reset();
+		assertEquals(0, metrics.get("counter"));
+		assertEquals(0, metrics.get("other"));
+		assertEquals(42, metrics.get("ratio"));
+		assertEquals(2, metrics.get("gauge"));
+		// the operations complete after the reset
+		gauge.addAndGet(-2);
+		assertEquals(0, gauge.get());
+		// references survive the reset
+		counter.incrementAndGet();
+		assertEquals(1, metrics.getCounters().get("counter").longValue());
+	}
+}
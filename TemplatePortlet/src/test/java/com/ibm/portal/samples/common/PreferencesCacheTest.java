@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.PortletPreferences;
+import javax.portlet.PortletRequest;
+import javax.portlet.RenderRequest;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link PreferencesCache}
+ * 
+ * @author cleue
+ */
+public class PreferencesCacheTest {
+
+	/**
+	 * Constructs preferences with a single value
+	 * 
+	 * @param aValue
+	 *            the value of the "key" preference
+	 * @return the preferences
+	 */
+	static PortletPreferences preferences(final String aValue) {
+		final Map<String, String[]> map = new HashMap<String, String[]>();
+		map.put("key", new String[] { aValue });
+		return (PortletPreferences) Proxy.newProxyInstance(
+				PortletPreferences.class.getClassLoader(),
+				new Class<?>[] { PortletPreferences.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						if ("getMap".equals(aMethod.getName())) {
+							return map;
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Constructs a request
+	 * 
+	 * @param aType
+	 *            the type of the request
+	 * @param aWindowID
+	 *            the window
+	 * @param aUser
+	 *            the user, <code>null</code> for anonymous requests
+	 * @param aPreferences
+	 *            the preferences
+	 * @return the request
+	 */
+	static <T extends PortletRequest> T request(final Class<T> aType,
+			final String aWindowID, final String aUser,
+			final PortletPreferences aPreferences) {
+		return aType.cast(Proxy.newProxyInstance(aType.getClassLoader(),
+				new Class<?>[] { aType }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						final String name = aMethod.getName();
+						if ("getWindowID".equals(name)) {
+							return aWindowID;
+						}
+						if ("getRemoteUser".equals(name)) {
+							return aUser;
+						}
+						if ("getPreferences".equals(name)) {
+							return aPreferences;
+						}
+						return null;
+					}
+				}));
+	}
+
+	/**
+	 * the cache under test
+	 */
+	private final PreferencesCache cache = new PreferencesCache(60 * 1000, 10,
+			new Metrics());
+
+	/**
+	 * Snapshots are shared per window and user, personalized preferences of
+	 * one user are never served to another user
+	 */
+	@Test
+	public void testSnapshotPerUser() {
+		final PreferencesCache.Snapshot anonymous = cache.getSnapshot(request(
+				RenderRequest.class, "window", null, preferences("shared")));
+		final PreferencesCache.Snapshot alice = cache.getSnapshot(request(
+				RenderRequest.class, "window", "alice", preferences("alice")));
+		final PreferencesCache.Snapshot bob = cache.getSnapshot(request(
+				RenderRequest.class, "window", "bob", preferences("bob")));
+		assertEquals("shared", anonymous.getValues().get("key")[0]);
+		assertEquals("alice", alice.getValues().get("key")[0]);
+		assertEquals("bob", bob.getValues().get("key")[0]);
+		// hits
+		assertSame(alice, cache.getSnapshot(request(RenderRequest.class,
+				"window", "alice", preferences("other"))));
+		assertSame(anonymous, cache.getSnapshot(request(RenderRequest.class,
+				"window", null, preferences("other"))));
+		// user names and window IDs do not mix
+		assertNotSame(anonymous, cache.getSnapshot(request(
+				RenderRequest.class, "5:alice@window", null,
+				preferences("other"))));
+	}
+
+	/**
+	 * Invalidation only drops the snapshot of the window and the user
+	 */
+	@Test
+	public void testInvalidate() {
+		final PreferencesCache.Snapshot alice = cache.getSnapshot(request(
+				RenderRequest.class, "window", "alice", preferences("alice")));
+		final PreferencesCache.Snapshot bob = cache.getSnapshot(request(
+				RenderRequest.class, "window", "bob", preferences("bob")));
+		cache.invalidate(request(RenderRequest.class, "window", "alice", null));
+		assertNotSame(alice, cache.getSnapshot(request(RenderRequest.class,
+				"window", "alice", preferences("alice"))));
+		assertSame(bob, cache.getSnapshot(request(RenderRequest.class,
+				"window", "bob", preferences("other"))));
+	}
+}
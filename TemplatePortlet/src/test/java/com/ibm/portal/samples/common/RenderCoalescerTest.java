@@ -0,0 +1,322 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.PortletException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the {@link RenderCoalescer}
+ * 
+ * @author cleue
+ */
+public class RenderCoalescerTest {
+
+	/**
+	 * Renderer that writes a fixed markup, optionally waits for a latch and
+	 * counts its calls
+	 */
+	private static final class TestRenderer implements
+			RenderCoalescer.Renderer {
+
+		/**
+		 * number of calls
+		 */
+		private final AtomicInteger calls = new AtomicInteger();
+
+		/**
+		 * the markup
+		 */
+		private final String markup;
+
+		/**
+		 * checks if the markup is independent of the user
+		 */
+		private final boolean bPublic;
+
+		/**
+		 * releases the render
+		 */
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		/**
+		 * released once the render started
+		 */
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		/**
+		 * Initializes the renderer
+		 * 
+		 * @param aMarkup
+		 *            the markup
+		 * @param bIsPublic
+		 *            checks if the markup is independent of the user
+		 * @param bBlocking
+		 *            checks if the render waits for its release
+		 */
+		private TestRenderer(final String aMarkup, final boolean bIsPublic,
+				final boolean bBlocking) {
+			markup = aMarkup;
+			bPublic = bIsPublic;
+			if (!bBlocking) {
+				release.countDown();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.ibm.portal.samples.common.RenderCoalescer.Renderer#render(java
+		 * .io.PrintWriter)
+		 */
+		@Override
+		public boolean render(final PrintWriter aWriter)
+				throws PortletException, IOException {
+			calls.incrementAndGet();
+			started.countDown();
+			aWriter.write(markup);
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (final InterruptedException ex) {
+				throw new PortletException(ex);
+			}
+			return bPublic;
+		}
+	}
+
+	/**
+	 * Runs the refreshes on the calling thread
+	 */
+	private static final Executor SYNCHRONOUS = new Executor() {
+
+		@Override
+		public void execute(final Runnable aCommand) {
+			aCommand.run();
+		}
+	};
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * the concurrent renders
+	 */
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	/**
+	 * keys of user specific markup
+	 */
+	private final DataCache<String, Boolean> privateKeys = new DataCache<String, Boolean>(
+			"private", DataCache.Spec.parse("maximumSize=100"), null,
+			SYNCHRONOUS, metrics);
+
+	/**
+	 * Renders on a different thread
+	 * 
+	 * @param aCoalescer
+	 *            the coalescer
+	 * @param aKey
+	 *            identifies the markup
+	 * @param aRenderer
+	 *            produces the markup
+	 * @return the markup
+	 */
+	private Future<String> render(final RenderCoalescer aCoalescer,
+			final String aKey, final RenderCoalescer.Renderer aRenderer) {
+		return executor.submit(new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				final StringWriter result = new StringWriter();
+				final PrintWriter writer = new PrintWriter(result);
+				aCoalescer.render(aKey, writer, aRenderer);
+				writer.flush();
+				return result.toString();
+			}
+		});
+	}
+
+	/**
+	 * Stops the renders
+	 */
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * A render that arrives while the same key is rendered copies the public
+	 * markup
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFollower() throws Exception {
+		final RenderCoalescer coalescer = new RenderCoalescer(10000,
+				privateKeys, metrics);
+		final TestRenderer leader = new TestRenderer("markup", true, true);
+		final TestRenderer follower = new TestRenderer("other", true, false);
+		final Future<String> first = render(coalescer, "key", leader);
+		assertTrue(leader.started.await(10, TimeUnit.SECONDS));
+		final Future<String> second = render(coalescer, "key", follower);
+		Thread.sleep(50);
+		leader.release.countDown();
+		assertEquals("markup", first.get());
+		assertEquals("markup", second.get());
+		assertEquals(0, follower.calls.get());
+		assertEquals(1, metrics.get("render.coalesce.leaders"));
+		assertEquals(1, metrics.get("render.coalesce.followers"));
+	}
+
+	/**
+	 * Private markup is not shared, later renders of the key do not wait
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testPrivate() throws Exception {
+		final RenderCoalescer coalescer = new RenderCoalescer(10000,
+				privateKeys, metrics);
+		final TestRenderer leader = new TestRenderer("alice", false, true);
+		final TestRenderer follower = new TestRenderer("bob", true, false);
+		final Future<String> first = render(coalescer, "key", leader);
+		assertTrue(leader.started.await(10, TimeUnit.SECONDS));
+		final Future<String> second = render(coalescer, "key", follower);
+		Thread.sleep(50);
+		leader.release.countDown();
+		assertEquals("alice", first.get());
+		assertEquals("bob", second.get());
+		assertEquals(1, metrics.get("render.coalesce.fallbacks"));
+		// the key is remembered as private
+		assertNotNull(privateKeys.getIfPresent("key"));
+		assertEquals("carol", render(coalescer, "key",
+				new TestRenderer("carol", true, false)).get());
+		assertEquals(1, metrics.get("render.coalesce.bypassed"));
+		assertEquals(1, metrics.get("render.coalesce.leaders"));
+	}
+
+	/**
+	 * Markup above the maximum length is streamed completely, but not
+	 * shared
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTooLarge() throws Exception {
+		final RenderCoalescer coalescer = new RenderCoalescer(10000,
+				privateKeys, metrics);
+		final StringBuilder large = new StringBuilder();
+		while (large.length() <= RenderCoalescer.MAX_MARKUP_LENGTH) {
+			large.append("0123456789abcdef");
+		}
+		final TestRenderer leader = new TestRenderer(large.toString(), true,
+				true);
+		final TestRenderer follower = new TestRenderer("small", true, false);
+		final Future<String> first = render(coalescer, "key", leader);
+		assertTrue(leader.started.await(10, TimeUnit.SECONDS));
+		final Future<String> second = render(coalescer, "key", follower);
+		Thread.sleep(50);
+		leader.release.countDown();
+		assertEquals(large.toString(), first.get());
+		assertEquals("small", second.get());
+		assertEquals(1, metrics.get("render.coalesce.fallbacks"));
+		assertEquals(0, metrics.get("render.coalesce.followers"));
+	}
+
+	/**
+	 * A render that waits too long renders independently
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		final RenderCoalescer coalescer = new RenderCoalescer(50, privateKeys,
+				metrics);
+		final TestRenderer leader = new TestRenderer("markup", true, true);
+		final Future<String> first = render(coalescer, "key", leader);
+		assertTrue(leader.started.await(10, TimeUnit.SECONDS));
+		assertEquals("other", render(coalescer, "key",
+				new TestRenderer("other", true, false)).get());
+		assertEquals(1, metrics.get("render.coalesce.timeouts"));
+		assertEquals(1, metrics.get("render.coalesce.fallbacks"));
+		leader.release.countDown();
+		assertEquals("markup", first.get());
+	}
+
+	/**
+	 * A failing render releases the waiting renders
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailure() throws Exception {
+		final RenderCoalescer coalescer = new RenderCoalescer(10000,
+				privateKeys, metrics);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future<String> first = render(coalescer, "key",
+				new RenderCoalescer.Renderer() {
+
+					@Override
+					public boolean render(final PrintWriter aWriter)
+							throws PortletException {
+						started.countDown();
+						try {
+							release.await(10, TimeUnit.SECONDS);
+						} catch (final InterruptedException ex) {
+							// fail anyway
+						}
+						throw new PortletException("render failed");
+					}
+				});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		final Future<String> second = render(coalescer, "key",
+				new TestRenderer("other", true, false));
+		Thread.sleep(50);
+		release.countDown();
+		try {
+			first.get();
+			fail();
+		} catch (final ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof PortletException);
+		}
+		assertEquals("other", second.get());
+		assertEquals(1, metrics.get("render.coalesce.fallbacks"));
+	}
+}
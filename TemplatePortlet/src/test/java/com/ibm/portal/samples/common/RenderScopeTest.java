@@ -0,0 +1,270 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.CacheControl;
+import javax.portlet.PortletMode;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+import javax.portlet.WindowState;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link RenderScope}
+ * 
+ * @author cleue
+ */
+public class RenderScopeTest {
+
+	/**
+	 * Cache control that records the settings
+	 */
+	private static final class Control implements CacheControl {
+
+		/**
+		 * the validation token
+		 */
+		private String etag;
+
+		/**
+		 * the expiration time in seconds
+		 */
+		private int expirationTime;
+
+		/**
+		 * the scope
+		 */
+		private boolean bPublic;
+
+		/**
+		 * checks if the cached content is still valid
+		 */
+		private boolean bUseCachedContent;
+
+		@Override
+		public String getETag() {
+			return etag;
+		}
+
+		@Override
+		public int getExpirationTime() {
+			return expirationTime;
+		}
+
+		@Override
+		public boolean isPublicScope() {
+			return bPublic;
+		}
+
+		@Override
+		public void setETag(final String aToken) {
+			etag = aToken;
+		}
+
+		@Override
+		public void setExpirationTime(final int aTime) {
+			expirationTime = aTime;
+		}
+
+		@Override
+		public void setPublicScope(final boolean aPublicScope) {
+			bPublic = aPublicScope;
+		}
+
+		@Override
+		public void setUseCachedContent(final boolean aUseCachedContent) {
+			bUseCachedContent = aUseCachedContent;
+		}
+
+		@Override
+		public boolean useCachedContent() {
+			return bUseCachedContent;
+		}
+	}
+
+	/**
+	 * Constructs a render request in the view mode
+	 * 
+	 * @param aLocale
+	 *            the locale
+	 * @param aParams
+	 *            the private render parameters as pairs of name and value
+	 * @return the request
+	 */
+	private static RenderRequest request(final Locale aLocale,
+			final String... aParams) {
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		final Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+		for (int i = 0; i < aParams.length; i += 2) {
+			params.put(aParams[i], new String[] { aParams[i + 1] });
+		}
+		return (RenderRequest) Proxy.newProxyInstance(
+				RenderRequest.class.getClassLoader(),
+				new Class<?>[] { RenderRequest.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						final String name = aMethod.getName();
+						if ("getPortletMode".equals(name)) {
+							return PortletMode.VIEW;
+						}
+						if ("getWindowState".equals(name)) {
+							return WindowState.NORMAL;
+						}
+						if ("getLocale".equals(name)) {
+							return aLocale;
+						}
+						if ("getPrivateParameterMap".equals(name)) {
+							return params;
+						}
+						if ("getAttribute".equals(name)) {
+							return attributes.get(aArgs[0]);
+						}
+						if ("setAttribute".equals(name)) {
+							attributes.put((String) aArgs[0], aArgs[1]);
+						}
+						if ("removeAttribute".equals(name)) {
+							attributes.remove(aArgs[0]);
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Constructs a render response
+	 * 
+	 * @param aControl
+	 *            the cache control
+	 * @param bCommitted
+	 *            checks if output has been sent
+	 * @return the response
+	 */
+	private static RenderResponse response(final CacheControl aControl,
+			final boolean bCommitted) {
+		return (RenderResponse) Proxy.newProxyInstance(
+				RenderResponse.class.getClassLoader(),
+				new Class<?>[] { RenderResponse.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						final String name = aMethod.getName();
+						if ("getCacheControl".equals(name)) {
+							return aControl;
+						}
+						if ("isCommitted".equals(name)) {
+							return Boolean.valueOf(bCommitted);
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * The scope is tracked as request attribute
+	 */
+	@Test
+	public void testTracking() {
+		final RenderRequest request = request(Locale.ENGLISH);
+		// untracked renders are ignored
+		RenderScope.markPrivate(request, "ignored");
+		assertNull(RenderScope.get(request));
+		// tracked
+		final RenderScope scope = RenderScope.open(request);
+		assertSame(scope, RenderScope.get(request));
+		assertTrue(scope.isPublic());
+		RenderScope.markPrivate(request, "preferences");
+		RenderScope.markPrivate(request, "commit");
+		assertFalse(scope.isPublic());
+		assertEquals("preferences", scope.getReason());
+		RenderScope.close(request);
+		assertNull(RenderScope.get(request));
+	}
+
+	/**
+	 * The key depends on the state of the window only
+	 */
+	@Test
+	public void testSharedKey() {
+		final String key = RenderScope.getSharedKey(request(Locale.ENGLISH,
+				"a", "1", "b", "2"));
+		assertNotNull(key);
+		// the order of the parameters does not matter
+		assertEquals(key, RenderScope.getSharedKey(request(Locale.ENGLISH,
+				"b", "2", "a", "1")));
+		// but their values and the locale do
+		assertFalse(key.equals(RenderScope.getSharedKey(request(
+				Locale.ENGLISH, "a", "1", "b", "3"))));
+		assertFalse(key.equals(RenderScope.getSharedKey(request(
+				Locale.GERMAN, "a", "1", "b", "2"))));
+		// adjacent values are not confused
+		assertFalse(RenderScope.getSharedKey(request(Locale.ENGLISH, "a", "bc"))
+				.equals(RenderScope.getSharedKey(request(Locale.ENGLISH, "ab",
+						"c"))));
+	}
+
+	/**
+	 * Public markup gets the public scope and the shared key as validation
+	 * token
+	 */
+	@Test
+	public void testPublic() {
+		final RenderRequest request = request(Locale.ENGLISH, "a", "1");
+		final Control control = new Control();
+		final RenderScope scope = RenderScope.open(request);
+		final String key = scope.share(request, response(control, false));
+		assertEquals(RenderScope.getSharedKey(request), key);
+		assertTrue(control.isPublicScope());
+		assertEquals(key, control.getETag());
+	}
+
+	/**
+	 * Private markup and committed responses keep the cache control
+	 */
+	@Test
+	public void testPrivate() {
+		final RenderRequest request = request(Locale.ENGLISH, "a", "1");
+		final Control control = new Control();
+		// committed
+		final RenderScope scope = RenderScope.open(request);
+		assertNull(scope.share(request, response(control, true)));
+		// private
+		scope.markPrivate("preferences");
+		assertNull(scope.share(request, response(control, false)));
+		assertFalse(control.isPublicScope());
+		assertNull(control.getETag());
+	}
+}
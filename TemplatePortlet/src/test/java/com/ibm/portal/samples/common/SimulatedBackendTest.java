@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link SimulatedBackend}
+ * 
+ * @author cleue
+ */
+public class SimulatedBackendTest {
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * Constructs a backend
+	 * 
+	 * @param aConfig
+	 *            the settings in properties format, separated by commas
+	 * @return the backend
+	 */
+	private SimulatedBackend backend(final String aConfig) {
+		final Properties props = new Properties();
+		for (final String setting : aConfig.split(",")) {
+			final int idx = setting.indexOf('=');
+			props.setProperty(setting.substring(0, idx), setting
+					.substring(idx + 1));
+		}
+		return new SimulatedBackend(props, metrics);
+	}
+
+	/**
+	 * Measures the time of a call
+	 * 
+	 * @param aBackend
+	 *            the backend
+	 * @param aResource
+	 *            the resource
+	 * @return time in milliseconds
+	 * @throws IOException
+	 */
+	private static long time(final Backend aBackend, final String aResource)
+			throws IOException {
+		final long start = System.nanoTime();
+		aBackend.load(aResource);
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * The payload only depends on the seed, the resource and the number of
+	 * previous calls of the resource
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testReproducible() throws IOException {
+		final SimulatedBackend first = backend("seed=7,default.payload=uniform:10:100");
+		final SimulatedBackend second = backend("seed=7,default.payload=uniform:10:100");
+		final byte[] a1 = first.load("a");
+		final byte[] a2 = first.load("a");
+		// other resources do not change the sequence
+		second.load("b");
+		assertArrayEquals(a1, second.load("a"));
+		assertArrayEquals(a2, second.load("a"));
+		assertFalse(Arrays.equals(a1, a2));
+		assertTrue((a1.length >= 10) && (a1.length <= 100));
+		assertEquals(5, metrics.get("backend.calls"));
+	}
+
+	/**
+	 * Services inherit missing settings from the default service, resources
+	 * of unknown services use the default service
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testServices() throws IOException {
+		final SimulatedBackend backend = backend("default.payload=fixed:100,"
+				+ "slow.latency=fixed:100,small.payload=fixed:10");
+		assertEquals(100, backend.load("slow/1").length);
+		assertEquals(10, backend.load("small/1").length);
+		assertEquals(100, backend.load("unknown/1").length);
+		assertEquals(100, backend.load("plain").length);
+		assertEquals(310, metrics.get("backend.bytes"));
+		assertTrue(time(backend, "slow/2") >= 90);
+		assertTrue(time(backend, "small/2") < 90);
+	}
+
+	/**
+	 * Failures are drawn by the error rate
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testErrorRate() throws IOException {
+		final SimulatedBackend backend = backend("failing.errorRate=1");
+		try {
+			backend.load("failing/1");
+			fail();
+		} catch (final IOException ex) {
+			// expected
+		}
+		backend.load("working/1");
+		assertEquals(1, metrics.get("backend.failures"));
+	}
+
+	/**
+	 * Calls above the rate are delayed
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testRate() throws IOException {
+		final SimulatedBackend backend = backend("default.rate=20");
+		final long start = System.nanoTime();
+		for (int i = 0; i < 3; ++i) {
+			backend.load("key");
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(90));
+		assertEquals(2, metrics.get("backend.throttled"));
+	}
+
+	/**
+	 * Calls above the concurrency limit wait for a slot
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMaxConcurrent() throws Exception {
+		final SimulatedBackend backend = backend("default.maxConcurrent=1,"
+				+ "default.latency=fixed:200");
+		final Thread other = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					backend.load("first");
+				} catch (final IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		};
+		other.start();
+		Thread.sleep(50);
+		backend.load("second");
+		other.join();
+		assertEquals(1, metrics.get("backend.queued"));
+	}
+
+	/**
+	 * Invalid configurations are rejected
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testInvalid() throws IOException {
+		for (final String config : new String[] { "default.errorRate=2",
+				"default.latency=normal:1", "default.latency=fixed:-1",
+				"default.payload=uniform:1", "default.rate=fast" }) {
+			try {
+				backend(config);
+				fail(config);
+			} catch (final IllegalArgumentException ex) {
+				// expected
+			}
+		}
+		// the file format
+		final SimulatedBackend backend = SimulatedBackend.load(
+				new ByteArrayInputStream("default.payload = fixed:3\n"
+						.getBytes("ISO-8859-1")), metrics);
+		assertEquals(3, backend.load("key").length);
+	}
+}
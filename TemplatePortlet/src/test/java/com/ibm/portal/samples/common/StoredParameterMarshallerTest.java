@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link StoredParameterMarshaller}
+ * 
+ * @author cleue
+ */
+public class StoredParameterMarshallerTest {
+
+	/**
+	 * Constructs a value of the given length
+	 * 
+	 * @param aLength
+	 *            number of characters
+	 * @return the value
+	 */
+	private static String value(final int aLength) {
+		final StringBuilder result = new StringBuilder(aLength);
+		for (int i = 0; i < aLength; ++i) {
+			result.append((char) ('a' + i % 26));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * the store
+	 */
+	private final MemoryStateStore store = new MemoryStateStore(1000);
+
+	/**
+	 * the marshaller under test
+	 */
+	private final StoredParameterMarshaller marshaller = new StoredParameterMarshaller(
+			PrivateParameterMarshaller.SINGLETON, store, 100);
+
+	/**
+	 * Small values travel inline, values that look like stored ones are
+	 * escaped
+	 */
+	@Test
+	public void testInline() {
+		assertEquals("small", marshaller.marshalString("small"));
+		final String token = marshaller.marshalString("!small");
+		assertEquals("!!small", token);
+		assertEquals("!small", marshaller.unmarshalString(token, "default"));
+	}
+
+	/**
+	 * Large values are moved into the store
+	 */
+	@Test
+	public void testStored() {
+		final String value = value(500);
+		final String token = marshaller.marshalString(value);
+		assertEquals(StoredParameterMarshaller.MARKER, token.charAt(0));
+		assertEquals(value, marshaller.unmarshalString(token, "default"));
+	}
+
+	/**
+	 * Values the store cannot hold are encoded inline, so they are not lost
+	 */
+	@Test
+	public void testFallbackForOversizedValues() {
+		final String value = "!" + value(2000);
+		final String token = marshaller.marshalString(value);
+		assertEquals(value.length() + 1, token.length());
+		assertEquals(value, marshaller.unmarshalString(token, "default"));
+	}
+
+	/**
+	 * Evicted values decode to the default
+	 */
+	@Test
+	public void testEvicted() {
+		final String token = marshaller.marshalString(value(500));
+		store.close();
+		assertEquals("default", marshaller.unmarshalString(token, "default"));
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TextDecoder}
+ * 
+ * @author cleue
+ */
+public class TextDecoderTest {
+
+	/**
+	 * Returns the number of cached character sets
+	 * 
+	 * @return the number
+	 * @throws Exception
+	 */
+	private static int cachedCharsets() throws Exception {
+		final Field field = TextDecoder.class.getDeclaredField("CHARSETS");
+		field.setAccessible(true);
+		return ((Map<?, ?>) field.get(null)).size();
+	}
+
+	/**
+	 * Returns the values of the thread locals of the current thread
+	 * 
+	 * @return the byte buffer, the character buffer and the decoder
+	 * @throws Exception
+	 */
+	private static Object[] threadLocals() throws Exception {
+		final String[] names = { "BYTES", "CHARS", "DECODER" };
+		final Object[] result = new Object[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			final Field field = TextDecoder.class.getDeclaredField(names[i]);
+			field.setAccessible(true);
+			result[i] = ((ThreadLocal<?>) field.get(null)).get();
+		}
+		return result;
+	}
+
+	/**
+	 * Variants of a name share one cache entry, unknown names are not cached
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCharsetLookup() throws Exception {
+		final Charset latin = Charset.forName("ISO-8859-1");
+		assertSame(TextDecoder.UTF_8, TextDecoder.getCharset(" utf-8 ", null));
+		assertEquals(latin, TextDecoder.getCharset("ISO-8859-1", null));
+		final int size = cachedCharsets();
+		assertEquals(latin, TextDecoder.getCharset(" iso-8859-1", null));
+		assertEquals(latin, TextDecoder.getCharset("Iso-8859-1\t", null));
+		assertEquals(TextDecoder.UTF_8, TextDecoder.getCharset("UTF-8 ", null));
+		assertEquals(size, cachedCharsets());
+		// unknown and invalid names result in the default
+		assertSame(latin, TextDecoder.getCharset("no-such-charset", latin));
+		assertSame(latin, TextDecoder.getCharset("in valid", latin));
+		assertSame(latin, TextDecoder.getCharset(null, latin));
+		assertEquals(size, cachedCharsets());
+	}
+
+	/**
+	 * The cache does not grow beyond its bound
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCharsetCacheIsBounded() throws Exception {
+		for (final String name : Charset.availableCharsets().keySet()) {
+			TextDecoder.getCharset(name, null);
+		}
+		assertTrue(cachedCharsets() <= 32);
+	}
+
+	/**
+	 * Bytes and streams are decoded like the {@link String} constructor does
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDecode() throws Exception {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; ++i) {
+			text.append("\u00e4\u20ac").append(i);
+		}
+		final byte[] data = text.toString().getBytes("UTF-8");
+		assertEquals(text.toString(),
+				TextDecoder.decode(data, TextDecoder.UTF_8));
+		// multi byte sequences span the chunks of the stream
+		assertEquals(text.toString(), TextDecoder.decode(
+				new ByteArrayInputStream(data), TextDecoder.UTF_8));
+		// malformed input is replaced
+		assertEquals(new String(new byte[] { 'a', (byte) 0xc3 }, "UTF-8"),
+				TextDecoder.decode(new byte[] { 'a', (byte) 0xc3 },
+						TextDecoder.UTF_8));
+		// other character sets
+		final Charset latin = Charset.forName("ISO-8859-1");
+		assertEquals("\u00e4",
+				TextDecoder.decode(new byte[] { (byte) 0xe4 }, latin));
+	}
+
+	/**
+	 * The decoder and the buffers are reused across invocations and the
+	 * thread locals only hold JDK types, so they do not pin the class loader
+	 * of the web application
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testThreadLocals() throws Exception {
+		TextDecoder.decode(new ByteArrayInputStream(new byte[] { 'a' }),
+				TextDecoder.UTF_8);
+		final Object[] values = threadLocals();
+		TextDecoder.decode(new ByteArrayInputStream(new byte[] { 'b' }),
+				TextDecoder.UTF_8);
+		final Object[] reused = threadLocals();
+		for (int i = 0; i < values.length; ++i) {
+			assertNotNull(values[i]);
+			assertSame(values[i], reused[i]);
+			assertNull(values[i].getClass().getClassLoader());
+		}
+	}
+}
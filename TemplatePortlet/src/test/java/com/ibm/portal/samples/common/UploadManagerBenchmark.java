@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * Measures the throughput of file uploads through the {@link UploadManager},
+ * from parsing the multipart body, which spools and hashes the file, to the
+ * transfer to its final location. The body is generated while it is read, so
+ * the sizes are not limited by the heap. The class is not a unit test, run it
+ * via its main method, e.g. from the IDE or with
+ * <code>mvn exec:java -Dexec.classpathScope=test</code>. The arguments are
+ * the file sizes in MB, the default is 1, 16, 256 and 1024.
+ * 
+ * @author cleue
+ */
+public class UploadManagerBenchmark {
+
+	/**
+	 * Multipart body with a text field and a file of the given size, the
+	 * content of the file is generated while it is read
+	 */
+	private static final class Body extends InputStream {
+
+		/**
+		 * the bytes of the file, repeated
+		 */
+		private final byte[] chunk = new byte[8192];
+
+		/**
+		 * the multipart headers in front of the file
+		 */
+		private final byte[] head;
+
+		/**
+		 * total length of the body
+		 */
+		private final long length;
+
+		/**
+		 * number of bytes read
+		 */
+		private long pos;
+
+		/**
+		 * the closing boundary
+		 */
+		private final byte[] tail;
+
+		/**
+		 * Initializes the body
+		 * 
+		 * @param aFileSize
+		 *            size of the file in bytes
+		 * @throws IOException
+		 */
+		private Body(final long aFileSize) throws IOException {
+			// reuse the framing of the unit test
+			final byte[] empty = UploadManagerTest.multipart("benchmark", 0);
+			final int tailLength = ("\r\n--" + BOUNDARY + "--\r\n").length();
+			head = new byte[empty.length - tailLength];
+			tail = new byte[tailLength];
+			System.arraycopy(empty, 0, head, 0, head.length);
+			System.arraycopy(empty, head.length, tail, 0, tail.length);
+			for (int i = 0; i < chunk.length; ++i) {
+				chunk[i] = (byte) i;
+			}
+			length = head.length + aFileSize + tail.length;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			if (pos >= length) {
+				return -1;
+			}
+			// pick the section the position falls into
+			final long fileEnd = length - tail.length;
+			final int n;
+			if (pos < head.length) {
+				n = Math.min(len, head.length - (int) pos);
+				System.arraycopy(head, (int) pos, b, off, n);
+			} else if (pos < fileEnd) {
+				final int offset = (int) ((pos - head.length) % chunk.length);
+				n = (int) Math.min(Math.min(len, chunk.length - offset),
+						fileEnd - pos);
+				System.arraycopy(chunk, offset, b, off, n);
+			} else {
+				n = Math.min(len, (int) (length - pos));
+				System.arraycopy(tail, (int) (pos - fileEnd), b, off, n);
+			}
+			pos += n;
+			return n;
+		}
+	}
+
+	/**
+	 * boundary of the multipart bodies, same as in the unit test
+	 */
+	private static final String BOUNDARY = "----TemplatePortletBoundary";
+
+	/**
+	 * default file sizes in MB
+	 */
+	private static final int[] SIZES = { 1, 16, 256, 1024 };
+
+	/**
+	 * Runs the benchmark and prints one line per file size
+	 * 
+	 * @param args
+	 *            the file sizes in MB
+	 * @throws Exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		// the sizes
+		final int[] sizes;
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; ++i) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		} else {
+			sizes = SIZES;
+		}
+		// temporary repository, the target resides on the same file system
+		final File repository = File.createTempFile("uploads", "");
+		if (!repository.delete() || !repository.mkdir()) {
+			throw new IOException("Unable to create [" + repository + "].");
+		}
+		final Metrics metrics = new Metrics();
+		final UploadManager manager = new UploadManager(10240, repository,
+				DecodingLimits.DEFAULT_MAX_PARAMETER_LENGTH,
+				UploadManager.DEFAULT_MAX_FILE_SIZE, -1, metrics);
+		try {
+			System.out.printf("%8s %12s %12s %12s %12s%n", "MB", "parse",
+					"parse MB/s", "transfer", "total MB/s");
+			// warm up with a small file
+			run(manager, repository, 1);
+			for (final int size : sizes) {
+				final long[] nanos = run(manager, repository, size);
+				System.out.printf("%8d %10.1fms %12.1f %10.1fms %12.1f%n",
+						size, nanos[0] / 1e6, size / (nanos[0] / 1e9),
+						nanos[1] / 1e6, size / ((nanos[0] + nanos[1]) / 1e9));
+			}
+		} finally {
+			manager.shutdown();
+			UploadManagerTest.delete(repository);
+		}
+	}
+
+	/**
+	 * Uploads a single file and moves it to its final location
+	 * 
+	 * @param aManager
+	 *            the manager
+	 * @param aRepository
+	 *            the repository
+	 * @param aSize
+	 *            size of the file in MB
+	 * @return nanoseconds of the parsing and of the transfer
+	 * @throws Exception
+	 */
+	private static long[] run(final UploadManager aManager,
+			final File aRepository, final int aSize) throws Exception {
+		final long fileSize = aSize * 1024L * 1024L;
+		final Body body = new Body(fileSize);
+		final File target = new File(aRepository, "target");
+		// parse, this spools and hashes the file
+		final long start = System.nanoTime();
+		final UploadManager.Batch batch = aManager.parse(UploadManagerTest
+				.request(body, (int) body.length));
+		final long parsed = System.nanoTime();
+		try {
+			final List<FileItem> items = batch.getItems();
+			final long len = aManager.transfer(items.get(1), target);
+			if (len != fileSize) {
+				throw new IllegalStateException("Transferred [" + len
+						+ "] instead of [" + fileSize + "] bytes.");
+			}
+		} finally {
+			aManager.release(batch);
+			target.delete();
+		}
+		return new long[] { parsed - start, System.nanoTime() - parsed };
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import javax.portlet.ActionRequest;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link UploadManager}
+ * 
+ * @author cleue
+ */
+public class UploadManagerTest {
+
+	/**
+	 * boundary of the multipart bodies
+	 */
+	private static final String BOUNDARY = "----TemplatePortletBoundary";
+
+	/**
+	 * the counters
+	 */
+	private Metrics metrics;
+
+	/**
+	 * repository of the temporary files
+	 */
+	private File repository;
+
+	/**
+	 * the manager under test
+	 */
+	private UploadManager manager;
+
+	/**
+	 * Constructs a multipart body with one text field and one file
+	 * 
+	 * @param aText
+	 *            value of the text field
+	 * @param aFileSize
+	 *            size of the file in bytes
+	 * @return the body
+	 * @throws IOException
+	 */
+	static byte[] multipart(final String aText, final int aFileSize)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				aFileSize + 1024);
+		out.write(("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"text\"\r\n\r\n"
+				+ aText + "\r\n" + "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n")
+				.getBytes("ISO-8859-1"));
+		final byte[] chunk = new byte[8192];
+		for (int i = 0; i < chunk.length; ++i) {
+			chunk[i] = (byte) i;
+		}
+		for (int len = 0; len < aFileSize; len += chunk.length) {
+			out.write(chunk, 0, Math.min(chunk.length, aFileSize - len));
+		}
+		out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Constructs an action request that posts the multipart body
+	 * 
+	 * @param aBody
+	 *            the body
+	 * @return the request
+	 */
+	static ActionRequest request(final byte[] aBody) {
+		return request(new ByteArrayInputStream(aBody), aBody.length);
+	}
+
+	/**
+	 * Constructs an action request that posts a multipart body from a stream
+	 * 
+	 * @param aBody
+	 *            the body
+	 * @param aLength
+	 *            length of the body
+	 * @return the request
+	 */
+	static ActionRequest request(final InputStream aBody, final int aLength) {
+		return (ActionRequest) Proxy.newProxyInstance(
+				ActionRequest.class.getClassLoader(),
+				new Class<?>[] { ActionRequest.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						final String name = aMethod.getName();
+						if ("getContentType".equals(name)) {
+							return "multipart/form-data; boundary=" + BOUNDARY;
+						}
+						if ("getContentLength".equals(name)) {
+							return Integer.valueOf(aLength);
+						}
+						if ("getMethod".equals(name)) {
+							return "POST";
+						}
+						if ("getPortletInputStream".equals(name)) {
+							return aBody;
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Deletes a directory tree
+	 * 
+	 * @param aFile
+	 *            the root
+	 */
+	static void delete(final File aFile) {
+		final File[] children = aFile.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		aFile.delete();
+	}
+
+	/**
+	 * Creates the repository and the manager
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		repository = File.createTempFile("uploads", "");
+		assertTrue(repository.delete() && repository.mkdir());
+		metrics = new Metrics();
+		manager = new UploadManager(1024, repository, 1024, 64 * 1024,
+				256 * 1024, metrics);
+	}
+
+	/**
+	 * Removes the repository
+	 */
+	@After
+	public void tearDown() {
+		manager.shutdown();
+		delete(repository);
+	}
+
+	/**
+	 * Items above the threshold are buffered on disk and the buffers are
+	 * accounted for until the batch is released
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testParseAndRelease() throws Exception {
+		final UploadManager.Batch batch = manager.parse(request(multipart(
+				"hello", 10000)));
+		final List<FileItem> items = batch.getItems();
+		assertEquals(2, items.size());
+		assertEquals("hello", items.get(0).getString());
+		assertTrue(items.get(0).isInMemory());
+		assertFalse(items.get(1).isInMemory());
+		assertEquals(10000, items.get(1).getSize());
+		final File spooled = ((DiskFileItem) items.get(1)).getStoreLocation();
+		assertTrue(spooled.isFile());
+		// the gauges
+		assertEquals(5, metrics.get(UploadManager.METRIC_MEMORY_BYTES));
+		assertEquals(10000, metrics.get(UploadManager.METRIC_DISK_BYTES));
+		assertEquals(1, metrics.get(UploadManager.METRIC_DISK_FILES));
+		// release, twice is harmless
+		manager.release(batch);
+		manager.release(batch);
+		assertFalse(spooled.exists());
+		assertEquals(0, metrics.get(UploadManager.METRIC_MEMORY_BYTES));
+		assertEquals(0, metrics.get(UploadManager.METRIC_DISK_BYTES));
+		assertEquals(0, metrics.get(UploadManager.METRIC_DISK_FILES));
+	}
+
+	/**
+	 * The limits are enforced while the request is parsed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLimits() throws Exception {
+		try {
+			manager.parse(request(multipart("hello", 65 * 1024)));
+			fail("file size limit not enforced");
+		} catch (final FileSizeLimitExceededException ex) {
+			// expected
+		}
+		try {
+			manager.parse(request(multipart("hello", 300 * 1024)));
+			fail("request size limit not enforced");
+		} catch (final SizeLimitExceededException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * Form fields are limited independently of the files
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFieldLimit() throws Exception {
+		// a file above the field limit is accepted
+		manager.release(manager.parse(request(multipart("hello", 32 * 1024))));
+		// a form field above the field limit is not
+		final StringBuilder text = new StringBuilder();
+		while (text.length() <= 1024) {
+			text.append("hello");
+		}
+		try {
+			manager.parse(request(multipart(text.toString(), 10)));
+			fail("field size limit not enforced");
+		} catch (final FileSizeLimitExceededException ex) {
+			assertEquals("text", ex.getFieldName());
+			assertNull(ex.getFileName());
+		}
+	}
+
+	/**
+	 * Parts are available as soon as they have been received, before the rest
+	 * of the body has been read
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreaming() throws Exception {
+		final byte[] body = multipart("hello", 60 * 1024);
+		final int[] read = new int[1];
+		final InputStream in = new ByteArrayInputStream(body) {
+
+			@Override
+			public synchronized int read(final byte[] aBuffer,
+					final int aOffset, final int aLength) {
+				final int len = super.read(aBuffer, aOffset, aLength);
+				if (len > 0) {
+					read[0] += len;
+				}
+				return len;
+			}
+		};
+		final UploadManager.Batch batch = manager
+				.open(request(in, body.length));
+		try {
+			final FileItem text = batch.next();
+			assertEquals("hello", text.getString());
+			assertTrue(read[0] < body.length / 2);
+			assertEquals(1, batch.getItems().size());
+			assertEquals(5, metrics.get(UploadManager.METRIC_MEMORY_BYTES));
+			assertEquals(0, metrics.get(UploadManager.METRIC_DISK_FILES));
+			// the file
+			final FileItem file = batch.next();
+			assertEquals(60 * 1024, file.getSize());
+			assertEquals(read[0], body.length);
+			assertEquals(1, metrics.get(UploadManager.METRIC_DISK_FILES));
+			assertNull(batch.next());
+		} finally {
+			manager.release(batch);
+		}
+		assertEquals(0, metrics.get(UploadManager.METRIC_MEMORY_BYTES));
+		assertEquals(0, metrics.get(UploadManager.METRIC_DISK_BYTES));
+		assertEquals(0, metrics.get(UploadManager.METRIC_DISK_FILES));
+	}
+
+	/**
+	 * A part that exceeds the limits fails when it is reached, the parts
+	 * received before are released with the batch
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamingLimit() throws Exception {
+		final UploadManager.Batch batch = manager.open(request(multipart(
+				"hello", 65 * 1024)));
+		try {
+			assertEquals("hello", batch.next().getString());
+			try {
+				batch.next();
+				fail("file size limit not enforced");
+			} catch (final FileSizeLimitExceededException ex) {
+				// expected
+			}
+			assertEquals(5, metrics.get(UploadManager.METRIC_MEMORY_BYTES));
+		} finally {
+			manager.release(batch);
+		}
+		assertEquals(0, metrics.get(UploadManager.METRIC_MEMORY_BYTES));
+		assertEquals(0, metrics.get(UploadManager.METRIC_DISK_FILES));
+		assertEquals(0, repository.list().length);
+	}
+
+	/**
+	 * Spooled files are renamed, in memory items are streamed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTransfer() throws Exception {
+		final UploadManager.Batch batch = manager.parse(request(multipart(
+				"hello", 10000)));
+		try {
+			final List<FileItem> items = batch.getItems();
+			final File target = new File(repository, "target");
+			// spooled file
+			final File spooled = ((DiskFileItem) items.get(1))
+					.getStoreLocation();
+			assertEquals(10000, manager.transfer(items.get(1), target));
+			assertEquals(10000, target.length());
+			assertFalse(spooled.exists());
+			assertEquals(1, metrics.get(UploadManager.METRIC_TRANSFER_RENAMED));
+			// in memory item, replaces the target
+			assertEquals(5, manager.transfer(items.get(0), target));
+			assertEquals(5, target.length());
+			assertEquals(1,
+					metrics.get(UploadManager.METRIC_TRANSFER_STREAMED));
+			assertEquals(10005,
+					metrics.get(UploadManager.METRIC_TRANSFER_BYTES));
+		} finally {
+			manager.release(batch);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link Warmup}
+ * 
+ * @author cleue
+ */
+public class WarmupTest {
+
+	/**
+	 * Bean with two readable properties
+	 */
+	public static final class Bean {
+
+		/**
+		 * checks if the getter fails
+		 */
+		private final boolean bFailing;
+
+		/**
+		 * Initializes the bean
+		 * 
+		 * @param bIsFailing
+		 *            checks if the getter fails
+		 */
+		Bean(final boolean bIsFailing) {
+			bFailing = bIsFailing;
+		}
+
+		/**
+		 * Returns the name
+		 * 
+		 * @return the name
+		 */
+		public String getName() {
+			if (bFailing) {
+				throw new IllegalStateException("getter failed");
+			}
+			return "name";
+		}
+
+		/**
+		 * Checks the bean
+		 * 
+		 * @return always <code>true</code>
+		 */
+		public boolean isValid() {
+			return true;
+		}
+
+		/**
+		 * Write only property
+		 * 
+		 * @param aValue
+		 *            ignored
+		 */
+		public void setValue(final String aValue) {
+			// ignore
+		}
+	}
+
+	/**
+	 * the counters
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * Constructs a step that records its name
+	 * 
+	 * @param aName
+	 *            name of the step
+	 * @param aLog
+	 *            the executed steps
+	 * @return the step
+	 */
+	private static Warmup.Step step(final String aName, final List<String> aLog) {
+		return new Warmup.Step() {
+
+			@Override
+			public void run() {
+				aLog.add(aName);
+			}
+		};
+	}
+
+	/**
+	 * The steps run in order, a failing step does not stop the others
+	 */
+	@Test
+	public void testSteps() {
+		final List<String> log = new ArrayList<String>();
+		final Warmup warmup = new Warmup("test", metrics);
+		warmup.addStep("first", step("first", log));
+		warmup.addStep("failing", new Warmup.Step() {
+
+			@Override
+			public void run() throws Exception {
+				throw new IOException("step failed");
+			}
+		});
+		warmup.addStep("last", step("last", log));
+		assertFalse(warmup.isReady());
+		assertEquals(0, warmup.getElapsedTime());
+		warmup.run();
+		assertTrue(warmup.isReady());
+		assertEquals(Arrays.asList("first", "last"), log);
+		assertEquals(Arrays.asList("first", "last"), new ArrayList<String>(
+				warmup.getStepTimes().keySet()));
+		assertEquals(1, warmup.getFailures().size());
+		assertTrue(warmup.getFailures().get("failing").contains("step failed"));
+		assertEquals(1, metrics.get("warmup.failures"));
+	}
+
+	/**
+	 * Steps that did not start, yet, are skipped after a cancel
+	 */
+	@Test
+	public void testCancel() {
+		final List<String> log = new ArrayList<String>();
+		final Warmup warmup = new Warmup("test", metrics);
+		warmup.addStep("first", step("first", log));
+		warmup.addStep("cancel", new Warmup.Step() {
+
+			@Override
+			public void run() {
+				warmup.cancel();
+			}
+		});
+		warmup.addStep("last", step("last", log));
+		warmup.run();
+		assertEquals(Arrays.asList("first"), log);
+		assertFalse(warmup.isReady());
+		assertTrue(warmup.getStepTimes().containsKey("cancel"));
+	}
+
+	/**
+	 * The steps run on the executor
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testStart() throws InterruptedException {
+		final List<String> log = new ArrayList<String>();
+		final Warmup warmup = new Warmup("test", metrics);
+		warmup.addStep("first", step("first", log));
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		warmup.start(executor);
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(warmup.isReady());
+		assertEquals(Arrays.asList("first"), log);
+	}
+
+	/**
+	 * All readable properties are read, the failure of a getter is reported
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadProperties() throws Exception {
+		assertEquals(2, Warmup.readProperties(new Bean(false)));
+		try {
+			Warmup.readProperties(new Bean(true));
+			fail();
+		} catch (final IllegalStateException ex) {
+			assertEquals("getter failed", ex.getMessage());
+		}
+	}
+}
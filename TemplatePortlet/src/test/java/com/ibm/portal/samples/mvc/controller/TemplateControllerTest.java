@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.mvc.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Locale;
+
+import javax.portlet.PortletConfig;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+
+import org.junit.Test;
+
+import com.ibm.portal.samples.common.AsyncCommitter;
+import com.ibm.portal.samples.common.Backend;
+import com.ibm.portal.samples.common.CacheService;
+import com.ibm.portal.samples.common.DecodingLimits;
+import com.ibm.portal.samples.common.InMemoryPortletObjects;
+import com.ibm.portal.samples.common.Marshaller;
+import com.ibm.portal.samples.common.Metrics;
+import com.ibm.portal.samples.common.PrivateParameterMarshaller;
+import com.ibm.portal.samples.common.RenderScope;
+import com.ibm.portal.samples.mvc.model.TemplateModel;
+
+/**
+ * Tests that the {@link TemplateController} does not make the markup user
+ * specific
+ * 
+ * @author cleue
+ */
+public class TemplateControllerTest {
+
+	/**
+	 * Dependencies of the model and the controller, no asynchronous commits
+	 * and no backend
+	 */
+	private static final class Deps implements TemplateModel.Dependencies,
+			TemplateController.Dependencies {
+
+		/**
+		 * the limits
+		 */
+		private final DecodingLimits limits = new DecodingLimits(
+				DecodingLimits.DEFAULT_MAX_PARAMETER_LENGTH,
+				DecodingLimits.DEFAULT_MAX_REQUEST_LENGTH, new Metrics());
+
+		@Override
+		public AsyncCommitter getAsyncCommitter() {
+			return null;
+		}
+
+		@Override
+		public Backend getBackend() {
+			return null;
+		}
+
+		@Override
+		public CacheService getCacheService() {
+			return null;
+		}
+
+		@Override
+		public DecodingLimits getDecodingLimits() {
+			return limits;
+		}
+
+		@Override
+		public Marshaller getPrivateParameterMarshaller() {
+			return PrivateParameterMarshaller.SINGLETON;
+		}
+	}
+
+	/**
+	 * Evaluates the controller and model properties that the view JSP reads,
+	 * while the scope of the render is tracked. The markup can be shared,
+	 * because nothing marks the scope as private and the action URLs only
+	 * carry the navigational state.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testViewRendersWithPublicScope() throws Exception {
+		final RenderRequest request = InMemoryPortletObjects.createRequest(
+				RenderRequest.class, "window", "/test", Locale.ENGLISH,
+				Collections.<String, String[]> emptyMap());
+		final RenderResponse response = InMemoryPortletObjects.createResponse(
+				RenderResponse.class, "ns", Locale.ENGLISH);
+		final PortletConfig config = (PortletConfig) Proxy.newProxyInstance(
+				PortletConfig.class.getClassLoader(),
+				new Class<?>[] { PortletConfig.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						return null;
+					}
+				});
+		final Deps deps = new Deps();
+		// the render as in the portlet
+		final RenderScope scope = RenderScope.open(request);
+		try {
+			final TemplateModel model = new TemplateModel(request, response,
+					config, deps);
+			final TemplateController controller = new TemplateController(
+					model, request, response, deps);
+			// the properties in the order of view.jsp
+			controller.getAjaxActionURL();
+			assertNull(model.getCommitStatus());
+			controller.getActionURL();
+			controller.getKeyActionToken();
+			controller.getKeySampleText();
+			model.getSampleText();
+			controller.getKeyAction();
+			controller.getValueActionSave();
+			controller.getValueActionCancel();
+			model.getSampleInt();
+			controller.getDecSampleIntURL();
+			controller.getIncSampleIntURL();
+			controller.getClearURL();
+			assertTrue(scope.getReason(), scope.isPublic());
+			// the action URL carries the same state as a render URL
+			assertEquals(InMemoryPortletObjects.getParameters(
+					controller.getRefreshURL()).keySet(),
+					InMemoryPortletObjects.getParameters(
+							controller.getActionURL()).keySet());
+			controller.dispose();
+			model.dispose();
+		} finally {
+			RenderScope.close(request);
+		}
+	}
+}
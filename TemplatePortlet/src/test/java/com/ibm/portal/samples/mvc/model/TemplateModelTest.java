@@ -0,0 +1,374 @@
+/*
+ * (C) Copyright IBM Corp. 2014
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License.
+ */
+package com.ibm.portal.samples.mvc.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.PortletConfig;
+import javax.portlet.PortletURL;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+import javax.portlet.StateAwareResponse;
+
+import org.junit.Test;
+
+import com.ibm.portal.samples.common.AsyncCommitter;
+import com.ibm.portal.samples.common.Backend;
+import com.ibm.portal.samples.common.CacheService;
+import com.ibm.portal.samples.common.DecodingLimits;
+import com.ibm.portal.samples.common.InMemoryPortletObjects;
+import com.ibm.portal.samples.common.Marshaller;
+import com.ibm.portal.samples.common.Metrics;
+import com.ibm.portal.samples.common.PrivateParameterMarshaller;
+
+/**
+ * Tests the tracking of modified fields of the {@link TemplateModel}
+ * 
+ * @author cleue
+ */
+public class TemplateModelTest {
+
+	/**
+	 * Dependencies of the model, no asynchronous commits and no backend
+	 */
+	private static final TemplateModel.Dependencies DEPS = new TemplateModel.Dependencies() {
+
+		/**
+		 * the limits
+		 */
+		private final DecodingLimits limits = new DecodingLimits(
+				DecodingLimits.DEFAULT_MAX_PARAMETER_LENGTH,
+				DecodingLimits.DEFAULT_MAX_REQUEST_LENGTH, new Metrics());
+
+		@Override
+		public AsyncCommitter getAsyncCommitter() {
+			return null;
+		}
+
+		@Override
+		public Backend getBackend() {
+			return null;
+		}
+
+		@Override
+		public CacheService getCacheService() {
+			return null;
+		}
+
+		@Override
+		public DecodingLimits getDecodingLimits() {
+			return limits;
+		}
+
+		@Override
+		public Marshaller getPrivateParameterMarshaller() {
+			return PrivateParameterMarshaller.SINGLETON;
+		}
+	};
+
+	/**
+	 * Decodes a model from a request with the given render parameters
+	 * 
+	 * @param aParameters
+	 *            the parameters
+	 * @return the model
+	 */
+	private static TemplateModel decode(final Map<String, String[]> aParameters) {
+		return decode(InMemoryPortletObjects.createRequest(RenderRequest.class,
+				"window", "/test", Locale.ENGLISH, aParameters));
+	}
+
+	/**
+	 * Decodes a model from the given request
+	 * 
+	 * @param aRequest
+	 *            the request
+	 * @return the model
+	 */
+	private static TemplateModel decode(final RenderRequest aRequest) {
+		final RenderRequest request = aRequest;
+		final RenderResponse response = InMemoryPortletObjects.createResponse(
+				RenderResponse.class, "ns", Locale.ENGLISH);
+		final PortletConfig config = (PortletConfig) Proxy.newProxyInstance(
+				PortletConfig.class.getClassLoader(),
+				new Class<?>[] { PortletConfig.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+						return null;
+					}
+				});
+		return new TemplateModel(request, response, config, DEPS);
+	}
+
+	/**
+	 * Encodes the state of a model the way a render URL carries it
+	 * 
+	 * @param aText
+	 *            the sample text
+	 * @param aInt
+	 *            the sample integer
+	 * @return the render parameters
+	 * @throws Exception
+	 */
+	private static Map<String, String[]> encode(final String aText,
+			final int aInt) throws Exception {
+		final TemplateModel model = decode(Collections
+				.<String, String[]> emptyMap());
+		model.setSampleText(aText);
+		model.setSampleInt(aInt);
+		final PortletURL url = InMemoryPortletObjects.createResponse(
+				RenderResponse.class, "ns", Locale.ENGLISH).createRenderURL();
+		model.encode(url);
+		return InMemoryPortletObjects.getParameters(url);
+	}
+
+	/**
+	 * Lazy decoding of the parameters does not count as a modification
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDecodingIsNoModification() throws Exception {
+		final TemplateModel model = decode(encode("hello", 5));
+		assertEquals("hello", model.getSampleText());
+		assertEquals(5, model.getSampleInt());
+		assertFalse(model.isDirty());
+	}
+
+	/**
+	 * Saving the unchanged text into a clone of the undecoded model, like
+	 * the save action does, does not modify the model
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSaveSameTextOnUndecodedClone() throws Exception {
+		// the action writes into a clone of the undecoded model
+		final TemplateModel model = decode(encode("hello", 5));
+		final TemplateModel current = model.clone();
+		current.setSampleText("hello");
+		current.setSampleInt(5);
+		assertFalse(current.isDirty());
+		// nothing to merge back
+		model.merge(current);
+		assertFalse(model.isDirty());
+		assertFalse(model.isPersistentDirty());
+	}
+
+	/**
+	 * Saving the default text does not modify a model without parameters
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSaveDefaultTextWithoutParameters() throws Exception {
+		final TemplateModel model = decode(Collections
+				.<String, String[]> emptyMap());
+		final TemplateModel current = model.clone();
+		current.setSampleText("sample");
+		assertFalse(current.isDirty());
+	}
+
+	/**
+	 * Saving a different text modifies only the text
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSaveModifiedText() throws Exception {
+		final TemplateModel model = decode(encode("hello", 5));
+		final TemplateModel current = model.clone();
+		current.setSampleText("world");
+		assertTrue(current.isDirty());
+		assertTrue(current.isSampleTextDirty());
+		assertFalse(current.isSampleIntDirty());
+		// only the text is merged
+		model.merge(current);
+		assertTrue(model.isSampleTextDirty());
+		assertFalse(model.isSampleIntDirty());
+		assertEquals("world", model.getSampleText());
+		assertEquals(5, model.getSampleInt());
+	}
+
+	/**
+	 * A field stays modified, even if its value is changed back
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRevertedModificationStaysDirty() throws Exception {
+		final TemplateModel model = decode(encode("hello", 5));
+		model.incSampleInt();
+		model.decSampleInt();
+		assertTrue(model.isSampleIntDirty());
+		assertEquals(5, model.getSampleInt());
+	}
+
+	/**
+	 * The token of the pending commit is tracked like the other fields
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testPendingCommit() throws Exception {
+		final TemplateModel model = decode(encode("hello", 5));
+		model.setPendingCommit(null);
+		assertFalse(model.isDirty());
+		model.setPendingCommit("token");
+		assertTrue(model.isDirty());
+	}
+
+	/**
+	 * Clones share the budget of the request, but decoding the same parameter
+	 * in several clones is charged only once
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testClonesAreChargedOnce() throws Exception {
+		// the text nearly exhausts the budget of the request
+		final StringBuilder text = new StringBuilder();
+		while (text.length() < DecodingLimits.DEFAULT_MAX_PARAMETER_LENGTH - 100) {
+			text.append("abcdefghij");
+		}
+		final TemplateModel model = decode(encode(text.toString(), 5));
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(text.toString(), model.clone().getSampleText());
+		}
+		assertEquals(text.toString(), model.getSampleText());
+		assertEquals(5, model.getSampleInt());
+	}
+
+	/**
+	 * Disposing a model does not decode the parameters the request did not
+	 * use
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDisposeDoesNotDecode() throws Exception {
+		// count the parameter lookups
+		final RenderRequest delegate = InMemoryPortletObjects.createRequest(
+				RenderRequest.class, "window", "/test", Locale.ENGLISH,
+				encode("hello", 5));
+		final AtomicInteger lookups = new AtomicInteger();
+		final RenderRequest request = (RenderRequest) Proxy.newProxyInstance(
+				RenderRequest.class.getClassLoader(),
+				new Class<?>[] { RenderRequest.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs)
+							throws Throwable {
+						if ("getParameter".equals(aMethod.getName())) {
+							lookups.incrementAndGet();
+						}
+						return aMethod.invoke(delegate, aArgs);
+					}
+				});
+		final TemplateModel model = decode(request);
+		assertEquals("hello", model.getSampleText());
+		assertEquals(1, lookups.get());
+		model.dispose();
+		assertEquals(1, lookups.get());
+	}
+
+	/**
+	 * Clearing a model marks the parameters as modified that the request
+	 * carries, without decoding them
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testClear() throws Exception {
+		// no parameters, nothing changes
+		final TemplateModel empty = decode(Collections
+				.<String, String[]> emptyMap());
+		empty.clear();
+		assertFalse(empty.isDirty());
+		// decoded default values do not change either
+		final TemplateModel defaults = decode(encode("sample", 1));
+		assertEquals("sample", defaults.getSampleText());
+		assertEquals(1, defaults.getSampleInt());
+		defaults.clear();
+		assertFalse(defaults.isDirty());
+		// undecoded parameters count as modified
+		final TemplateModel model = decode(encode("hello", 5));
+		model.clear();
+		assertTrue(model.isSampleTextDirty());
+		assertTrue(model.isSampleIntDirty());
+		assertEquals("sample", model.getSampleText());
+		assertEquals(1, model.getSampleInt());
+	}
+
+	/**
+	 * Passing on the unmodified state drops the parameters that do not belong
+	 * to the model
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncodeUnmodifiedKeepsOnlyModelState() throws Exception {
+		// the state of an action URL with a foreign parameter
+		final TemplateModel template = decode(encode("hello", 5));
+		final PortletURL url = InMemoryPortletObjects.createResponse(
+				RenderResponse.class, "ns", Locale.ENGLISH).createActionURL();
+		template.encode(url);
+		url.setParameter("token", "value");
+		final Map<String, String[]> params = InMemoryPortletObjects
+				.getParameters(url);
+		final TemplateModel model = decode(params);
+		// capture the render parameters
+		final Map<String, String[]> result = new HashMap<String, String[]>();
+		final StateAwareResponse response = (StateAwareResponse) Proxy
+				.newProxyInstance(StateAwareResponse.class.getClassLoader(),
+						new Class<?>[] { StateAwareResponse.class },
+						new InvocationHandler() {
+
+							@Override
+							@SuppressWarnings("unchecked")
+							public Object invoke(final Object aProxy,
+									final Method aMethod, final Object[] aArgs) {
+								if ("setRenderParameters".equals(aMethod
+										.getName())) {
+									result.putAll((Map<String, String[]>) aArgs[0]);
+								}
+								return null;
+							}
+						});
+		model.encodeUnmodified(response);
+		assertEquals(params.size() - 1, result.size());
+		assertNull(result.get("token"));
+		assertEquals("hello", decode(result).getSampleText());
+		assertEquals(5, decode(result).getSampleInt());
+	}
+}